@@ -0,0 +1,113 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview;
+
+import android.graphics.RectF;
+
+import com.jjoe64.graphview.series.Series;
+import com.jjoe64.graphview.series.SeriesBounds;
+
+import java.util.List;
+
+/**
+ * the complete range (minX, maxX, minY, maxY) of
+ * a list of series, calculated from their bounds.
+ * It is only recalculated when a series was added or
+ * removed, or the data version of one of them changed.
+ *
+ * @author jjoe64
+ */
+class CompleteRange {
+    /**
+     * the series the complete range was calculated from
+     */
+    private Series[] mSeries = new Series[0];
+
+    /**
+     * the data versions of the series the complete range
+     * was calculated from
+     */
+    private long[] mVersions = new long[0];
+
+    /**
+     * recalculates the range if it is outdated
+     *
+     * @param series the current series
+     * @param range left = minX, right = maxX,
+     *              bottom = minY, top = maxY
+     * @return true if the range was recalculated
+     */
+    boolean update(List<Series> series, RectF range) {
+        if (!isOutdated(series)) {
+            return false;
+        }
+        range.set(0, 0, 0, 0);
+        if (!series.isEmpty() && !series.get(0).isEmpty()) {
+            SeriesBounds first = series.get(0).getBounds();
+            double minX = first.getLowestX();
+            double maxX = first.getHighestX();
+            double minY = first.getLowestY();
+            double maxY = first.getHighestY();
+            for (int i = 0; i < series.size(); i++) {
+                SeriesBounds b = series.get(i).getBounds();
+                if (b.isEmpty()) {
+                    continue;
+                }
+                minX = Math.min(minX, b.getLowestX());
+                maxX = Math.max(maxX, b.getHighestX());
+                minY = Math.min(minY, b.getLowestY());
+                maxY = Math.max(maxY, b.getHighestY());
+            }
+            range.left = (float) minX;
+            range.right = (float) maxX;
+            range.bottom = (float) minY;
+            range.top = (float) maxY;
+        }
+        return true;
+    }
+
+    /**
+     * checks the data versions of the series against the
+     * ones the complete range was calculated from.
+     * If they differ, the new series and versions are stored.
+     *
+     * @param series the current series
+     * @return true if the complete range has to be recalculated
+     */
+    private boolean isOutdated(List<Series> series) {
+        boolean outdated = series.size() != mSeries.length;
+        for (int i = 0; !outdated && i < series.size(); i++) {
+            Series s = series.get(i);
+            outdated = s != mSeries[i]
+                    || s.getDataVersion() != mVersions[i];
+        }
+        if (outdated) {
+            if (mSeries.length != series.size()) {
+                mSeries = new Series[series.size()];
+                mVersions = new long[series.size()];
+            }
+            for (int i = 0; i < series.size(); i++) {
+                mSeries[i] = series.get(i);
+                mVersions[i] = series.get(i).getDataVersion();
+            }
+        }
+        return outdated;
+    }
+}
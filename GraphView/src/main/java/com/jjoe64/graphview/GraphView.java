@@ -168,6 +168,12 @@ public class GraphView extends View {
 
     private boolean mWaitingForRefresh = false;
 
+    /**
+     * renderer for the strip chart mode.
+     * null if the strip chart mode is disabled.
+     */
+    private StripChartRenderer mStripChartRenderer;
+
     /**
      * Initialize the GraphView view
      * @param context
@@ -243,6 +249,32 @@ public class GraphView extends View {
 
     public boolean getExplicitRefreshMode() {return mExplicitRefreshMode;}
 
+    /**
+     * In strip chart mode the line series are kept in an offscreen
+     * bitmap and only newly appended data is drawn on each refresh.
+     * Use this for streamed data with ascending x values.
+     *
+     * @param b flag whether the strip chart mode is enabled
+     * @see com.jjoe64.graphview.StripChartRenderer
+     */
+    public synchronized void setStripChartMode(boolean b) {
+        if (b && mStripChartRenderer == null) {
+            mStripChartRenderer = new StripChartRenderer(this);
+        } else if (!b && mStripChartRenderer != null) {
+            mStripChartRenderer.release();
+            mStripChartRenderer = null;
+        }
+    }
+
+    public boolean getStripChartMode() {return mStripChartRenderer != null;}
+
+    /**
+     * @return the strip chart renderer, or null if the strip chart mode is disabled
+     */
+    public StripChartRenderer getStripChartRenderer() {
+        return mStripChartRenderer;
+    }
+
     /**
      * Add a new series to the graph. This will
      * automatically redraw the graph.
@@ -316,12 +348,16 @@ public class GraphView extends View {
             drawTitle(canvas);
             mViewport.drawFirst(canvas);
             mGridLabelRenderer.draw(canvas);
-            for (Series s : mSeries) {
-                s.draw(this, canvas, false);
-            }
-            if (mSecondScale != null) {
-                for (Series s : mSecondScale.getSeries()) {
-                    s.draw(this, canvas, true);
+            if (mStripChartRenderer != null) {
+                mStripChartRenderer.draw(canvas);
+            } else {
+                for (Series s : mSeries) {
+                    s.draw(this, canvas, false);
+                }
+                if (mSecondScale != null) {
+                    for (Series s : mSecondScale.getSeries()) {
+                        s.draw(this, canvas, true);
+                    }
                 }
             }
             mViewport.draw(canvas);
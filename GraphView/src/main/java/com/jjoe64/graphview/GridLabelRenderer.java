@@ -28,6 +28,8 @@ import android.support.v4.view.ViewCompat;
 import android.util.Log;
 import android.util.TypedValue;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -144,12 +146,111 @@ public class GridLabelRenderer {
         public boolean drawHorizontal() { return this == BOTH || this == HORIZONTAL && this != NONE; }
     }
 
+    /**
+     * formatted and measured label
+     */
+    private static final class LabelLayout {
+        /**
+         * the lines of the label
+         */
+        String[] lines;
+
+        /**
+         * the width of the widest line in pixel
+         */
+        int width;
+
+        /**
+         * the height of all lines in pixel
+         */
+        int height;
+    }
+
+    /**
+     * cache of the label layouts of one axis, so that
+     * the labels are not formatted, split and measured
+     * on every frame.
+     * The cache is bound to the formatter and text size
+     * it was filled with.
+     */
+    private final class LabelCache {
+        /**
+         * true if the labels are x values
+         */
+        private final boolean mIsValueX;
+
+        /**
+         * Key      = raw value
+         * Value    = layout of the label
+         */
+        private final Map<Double, LabelLayout> mLayouts = new HashMap<Double, LabelLayout>();
+
+        /**
+         * the formatter the cache was filled with
+         */
+        private LabelFormatter mFormatter;
+
+        /**
+         * the text size the cache was filled with
+         */
+        private float mTextSize;
+
+        LabelCache(boolean isValueX) {
+            mIsValueX = isValueX;
+        }
+
+        /**
+         * @param formatter the label formatter
+         * @param value raw value
+         * @return the cached or new layout of the label
+         */
+        LabelLayout get(LabelFormatter formatter, double value) {
+            if (formatter != mFormatter || mPaintLabel.getTextSize() != mTextSize) {
+                mLayouts.clear();
+                mFormatter = formatter;
+                mTextSize = mPaintLabel.getTextSize();
+            }
+            LabelLayout layout = mLayouts.get(value);
+            if (layout == null) {
+                String label = formatter.formatLabel(value, mIsValueX);
+                if (label == null) {
+                    label = "";
+                }
+                layout = new LabelLayout();
+                layout.lines = label.split("\n");
+                for (String line : layout.lines) {
+                    mPaintLabel.getTextBounds(line, 0, line.length(), mTextBounds);
+                    layout.width = Math.max(layout.width, mTextBounds.width());
+                    layout.height = Math.max(layout.height, mTextBounds.height());
+                }
+                layout.height *= layout.lines.length;
+                mLayouts.put(value, layout);
+            }
+            return layout;
+        }
+
+        /**
+         * removes the labels that are not used by the steps anymore
+         *
+         * @param values the values of the current steps
+         */
+        void retain(Collection<Double> values) {
+            mLayouts.keySet().retainAll(values);
+        }
+
+        /**
+         * clears the cache
+         */
+        void clear() {
+            mLayouts.clear();
+        }
+    }
+
     /**
      * wraps the styles regarding the
      * grid and labels
      */
     protected Styles mStyles;
-
     /**
      * reference to graphview
      */
@@ -271,6 +372,27 @@ public class GridLabelRenderer {
      */
     private int mNumHorizontalLabels;
 
+    /**
+     * cached layouts of the horizontal labels
+     */
+    private final LabelCache mLabelCacheHorizontal = new LabelCache(true);
+
+    /**
+     * cached layouts of the vertical labels
+     */
+    private final LabelCache mLabelCacheVertical = new LabelCache(false);
+
+    /**
+     * cached layouts of the vertical labels
+     * of the second scale
+     */
+    private final LabelCache mLabelCacheVerticalSecondScale = new LabelCache(false);
+
+    /**
+     * reused rect to measure texts
+     */
+    private final Rect mTextBounds = new Rect();
+
     public void setLabelVerticalWidth(int new_width) {
         mLabelVerticalWidth = new_width;
     }
@@ -369,6 +491,10 @@ public class GridLabelRenderer {
         mPaintAxisTitle = new Paint();
         mPaintAxisTitle.setTextSize(getTextSize());
         mPaintAxisTitle.setTextAlign(Paint.Align.CENTER);
+
+        mLabelCacheHorizontal.clear();
+        mLabelCacheVertical.clear();
+        mLabelCacheVerticalSecondScale.clear();
     }
 
     /**
@@ -491,6 +617,7 @@ public class GridLabelRenderer {
             p += pixelStep;
             v -= exactSteps;
         }
+        mLabelCacheVerticalSecondScale.retain(mStepsVerticalSecondScale.values());
 
         return true;
     }
@@ -586,6 +713,7 @@ public class GridLabelRenderer {
             p += pixelStep;
             v -= exactSteps;
         }
+        mLabelCacheVertical.retain(mStepsVertical.values());
 
         return true;
     }
@@ -733,6 +861,7 @@ public class GridLabelRenderer {
             p += pixelStep;
             v += exactSteps;
         }
+        mLabelCacheHorizontal.retain(mStepsHorizontal.values());
 
         return true;
     }
@@ -758,7 +887,7 @@ public class GridLabelRenderer {
         String testLabel = mLabelFormatter.formatLabel(mGraphView.getViewport().getMaxY(false), false);
         if (testLabel == null) testLabel = "";
 
-        Rect textBounds = new Rect();
+        Rect textBounds = mTextBounds;
         mPaintLabel.getTextBounds(testLabel, 0, testLabel.length(), textBounds);
         mLabelVerticalWidth = textBounds.width();
         mLabelVerticalHeight = textBounds.height();
@@ -798,7 +927,7 @@ public class GridLabelRenderer {
         // test label
         double testY = ((mGraphView.mSecondScale.getMaxY() - mGraphView.mSecondScale.getMinY()) * 0.783) + mGraphView.mSecondScale.getMinY();
         String testLabel = mGraphView.mSecondScale.getLabelFormatter().formatLabel(testY, false);
-        Rect textBounds = new Rect();
+        Rect textBounds = mTextBounds;
         mPaintLabel.getTextBounds(testLabel, 0, testLabel.length(), textBounds);
         mLabelVerticalSecondScaleWidth = textBounds.width();
         mLabelVerticalSecondScaleHeight = textBounds.height();
@@ -822,7 +951,7 @@ public class GridLabelRenderer {
         if (testLabel == null) {
             testLabel = "";
         }
-        Rect textBounds = new Rect();
+        Rect textBounds = mTextBounds;
         mPaintLabel.getTextBounds(testLabel, 0, testLabel.length(), textBounds);
         mLabelHorizontalWidth = textBounds.width();
 
@@ -870,6 +999,12 @@ public class GridLabelRenderer {
 
         if (!mIsAdjusted) {
             adjust();
+            if (mIsAdjusted && fitLabelVerticalWidths()) {
+                // content area changed, adjust again
+                mIsAdjusted = false;
+                ViewCompat.postInvalidateOnAnimation(mGraphView);
+                return;
+            }
         }
 
         if (mIsAdjusted) {
@@ -890,6 +1025,41 @@ public class GridLabelRenderer {
         }
     }
 
+    /**
+     * widens the vertical labels if a label of the
+     * current steps does not fit.
+     * The width only grows, it is reset when the
+     * label sizes are invalidated.
+     *
+     * @return true if a width has changed
+     */
+    protected boolean fitLabelVerticalWidths() {
+        boolean changed = false;
+        if (!mLabelVerticalWidthFixed && isVerticalLabelsVisible()) {
+            int width = 0;
+            for (Double v : mStepsVertical.values()) {
+                width = Math.max(width, mLabelCacheVertical.get(mLabelFormatter, v).width);
+            }
+            // margin and space between text and graph content
+            width += 6 + mStyles.labelsSpace;
+            if (width > mLabelVerticalWidth) {
+                mLabelVerticalWidth = width;
+                changed = true;
+            }
+        }
+        if (mGraphView.mSecondScale != null && mStepsVerticalSecondScale != null) {
+            int width = 0;
+            for (Double v : mStepsVerticalSecondScale.values()) {
+                width = Math.max(width, mLabelCacheVerticalSecondScale.get(mGraphView.mSecondScale.mLabelFormatter, v).width);
+            }
+            if (width > mLabelVerticalSecondScaleWidth) {
+                mLabelVerticalSecondScaleWidth = width;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
     /**
      * draws the horizontal axis title if
      * it is set
@@ -979,11 +1149,7 @@ public class GridLabelRenderer {
                     mPaintLabel.setTextAlign(Paint.Align.LEFT);
 
                 // multiline labels
-                String label = mLabelFormatter.formatLabel(e.getValue(), true);
-                if (label == null) {
-                    label = "";
-                }
-                String[] lines = label.split("\n");
+                String[] lines = mLabelCacheHorizontal.get(mLabelFormatter, e.getValue()).lines;
                 for (int li = 0; li < lines.length; li++) {
                     // for the last line y = height
                     float y = (canvas.getHeight() - mStyles.padding - getHorizontalAxisTitleHeight()) - (lines.length - li - 1) * getTextSize() * 1.1f + mStyles.labelsSpace;
@@ -1021,7 +1187,7 @@ public class GridLabelRenderer {
 
             float y = e.getKey();
 
-            String[] lines = mGraphView.mSecondScale.mLabelFormatter.formatLabel(e.getValue(), false).split("\n");
+            String[] lines = mLabelCacheVerticalSecondScale.get(mGraphView.mSecondScale.mLabelFormatter, e.getValue()).lines;
             y += (lines.length * getTextSize() * 1.1f) / 2; // center text vertically
             for (int li = 0; li < lines.length; li++) {
                 // for the last line y = height
@@ -1069,11 +1235,7 @@ public class GridLabelRenderer {
 
                 float y = e.getKey();
 
-                String label = mLabelFormatter.formatLabel(e.getValue(), false);
-                if (label == null) {
-                    label = "";
-                }
-                String[] lines = label.split("\n");
+                String[] lines = mLabelCacheVertical.get(mLabelFormatter, e.getValue()).lines;
                 y += (lines.length * getTextSize() * 1.1f) / 2; // center text vertically
                 for (int li = 0; li < lines.length; li++) {
                     // for the last line y = height
@@ -30,7 +30,6 @@ import android.util.TypedValue;
 
 import com.jjoe64.graphview.series.Series;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -103,6 +102,35 @@ public class LegendRenderer {
      */
     private int cachedLegendWidth;
 
+    /**
+     * the series, titles and colors the legend
+     * was laid out for. The layout is only done
+     * again when one of them changes.
+     */
+    private Series<?>[] mLayoutSeries = new Series<?>[0];
+    private String[] mLayoutTitles = new String[0];
+    private int[] mLayoutColors = new int[0];
+    private int mLayoutCount;
+
+    /**
+     * height of the box exclusive padding,
+     * calculated in the layout
+     */
+    private float mLayoutHeight;
+
+    /**
+     * flag whether the layout has to be done
+     * again, because a style changed
+     */
+    private boolean mLayoutInvalid = true;
+
+    /**
+     * reused for the drawing, so that a frame
+     * does not allocate
+     */
+    private final Rect mTextBounds = new Rect();
+    private final RectF mRect = new RectF();
+
     /**
      * creates legend renderer
      *
@@ -149,6 +177,82 @@ public class LegendRenderer {
         mStyles.textColor = color1;
 
         cachedLegendWidth = 0;
+        mLayoutInvalid = true;
+    }
+
+    /**
+     * forces the legend to be laid out again
+     * in the next drawing. Changes of the series,
+     * their titles and colors are detected without
+     * this.
+     */
+    public void invalidate() {
+        mLayoutInvalid = true;
+    }
+
+    /**
+     * checks whether the series, their titles or
+     * colors changed since the last layout and
+     * copies them if they did. Does not allocate
+     * unless the count of series grew.
+     *
+     * @return true if the layout has to be done again
+     */
+    private boolean updateLayoutSeries() {
+        List<Series> series = mGraphView.getSeries();
+        List<Series> secondSeries = mGraphView.mSecondScale != null ? mGraphView.mSecondScale.getSeries() : null;
+        int count = series.size() + (secondSeries != null ? secondSeries.size() : 0);
+        boolean changed = mLayoutInvalid || count != mLayoutCount;
+        if (mLayoutSeries.length < count) {
+            mLayoutSeries = new Series<?>[count];
+            mLayoutTitles = new String[count];
+            mLayoutColors = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            Series<?> s = i < series.size() ? series.get(i) : secondSeries.get(i - series.size());
+            String title = s.getTitle();
+            int color = s.getColor();
+            if (s != mLayoutSeries[i] || color != mLayoutColors[i]
+                    || (title != mLayoutTitles[i] && (title == null || !title.equals(mLayoutTitles[i])))) {
+                mLayoutSeries[i] = s;
+                mLayoutTitles[i] = title;
+                mLayoutColors[i] = color;
+                changed = true;
+            }
+        }
+        for (int i = count; i < mLayoutCount; i++) {
+            // do not keep removed series alive
+            mLayoutSeries[i] = null;
+            mLayoutTitles[i] = null;
+        }
+        mLayoutCount = count;
+        return changed;
+    }
+
+    /**
+     * measures the titles and calculates the size
+     * of the box
+     */
+    private void layout() {
+        mPaint.setTextSize(mStyles.textSize);
+        int shapeSize = (int) (mStyles.textSize*0.8d);
+
+        int legendWidth = 0;
+        for (int i = 0; i < mLayoutCount; i++) {
+            String title = mLayoutTitles[i];
+            if (title != null) {
+                mPaint.getTextBounds(title, 0, title.length(), mTextBounds);
+                legendWidth = Math.max(legendWidth, mTextBounds.width());
+            }
+        }
+        if (legendWidth == 0) legendWidth = 1;
+
+        // add shape size
+        legendWidth += shapeSize+mStyles.padding*2 + mStyles.spacing;
+        cachedLegendWidth = legendWidth;
+
+        mLayoutHeight = (mStyles.textSize+mStyles.spacing)*mLayoutCount -mStyles.spacing;
+        mLayoutInvalid = false;
     }
 
     /**
@@ -160,40 +264,23 @@ public class LegendRenderer {
     public void draw(Canvas canvas) {
         if (!mIsVisible) return;
 
+        if (updateLayoutSeries() || cachedLegendWidth == 0) {
+            layout();
+        }
+
         mPaint.setTextSize(mStyles.textSize);
 
         int shapeSize = (int) (mStyles.textSize*0.8d);
 
-        List<Series> allSeries = new ArrayList<Series>();
-        allSeries.addAll(mGraphView.getSeries());
-        if (mGraphView.mSecondScale != null) {
-            allSeries.addAll(mGraphView.getSecondScale().getSeries());
-        }
-
         // width
         int legendWidth = mStyles.width;
         if (legendWidth == 0) {
             // auto
             legendWidth = cachedLegendWidth;
-
-            if (legendWidth == 0) {
-                Rect textBounds = new Rect();
-                for (Series s : allSeries) {
-                    if (s.getTitle() != null) {
-                        mPaint.getTextBounds(s.getTitle(), 0, s.getTitle().length(), textBounds);
-                        legendWidth = Math.max(legendWidth, textBounds.width());
-                    }
-                }
-                if (legendWidth == 0) legendWidth = 1;
-
-                // add shape size
-                legendWidth += shapeSize+mStyles.padding*2 + mStyles.spacing;
-                cachedLegendWidth = legendWidth;
-            }
         }
 
         // rect
-        float legendHeight = (mStyles.textSize+mStyles.spacing)*allSeries.size() -mStyles.spacing;
+        float legendHeight = mLayoutHeight;
         float lLeft;
         float lTop;
         if (mStyles.fixedPosition != null) {
@@ -216,17 +303,17 @@ public class LegendRenderer {
         float lRight = lLeft+legendWidth;
         float lBottom = lTop+legendHeight+2*mStyles.padding;
         mPaint.setColor(mStyles.backgroundColor);
-        canvas.drawRoundRect(new RectF(lLeft, lTop, lRight, lBottom), 8, 8, mPaint);
-
-        int i=0;
-        for (Series series : allSeries) {
-            mPaint.setColor(series.getColor());
-            canvas.drawRect(new RectF(lLeft+mStyles.padding, lTop+mStyles.padding+(i*(mStyles.textSize+mStyles.spacing)), lLeft+mStyles.padding+shapeSize, lTop+mStyles.padding+(i*(mStyles.textSize+mStyles.spacing))+shapeSize), mPaint);
-            if (series.getTitle() != null) {
+        mRect.set(lLeft, lTop, lRight, lBottom);
+        canvas.drawRoundRect(mRect, 8, 8, mPaint);
+
+        for (int i = 0; i < mLayoutCount; i++) {
+            float top = lTop+mStyles.padding+(i*(mStyles.textSize+mStyles.spacing));
+            mPaint.setColor(mLayoutColors[i]);
+            canvas.drawRect(lLeft+mStyles.padding, top, lLeft+mStyles.padding+shapeSize, top+shapeSize, mPaint);
+            if (mLayoutTitles[i] != null) {
                 mPaint.setColor(mStyles.textColor);
-                canvas.drawText(series.getTitle(), lLeft+mStyles.padding+shapeSize+mStyles.spacing, lTop+mStyles.padding+mStyles.textSize+(i*(mStyles.textSize+mStyles.spacing)), mPaint);
+                canvas.drawText(mLayoutTitles[i], lLeft+mStyles.padding+shapeSize+mStyles.spacing, top+mStyles.textSize, mPaint);
             }
-            i++;
         }
     }
 
@@ -262,6 +349,7 @@ public class LegendRenderer {
     public void setTextSize(float textSize) {
         mStyles.textSize = textSize;
         cachedLegendWidth = 0;
+        mLayoutInvalid = true;
     }
 
     /**
@@ -278,6 +366,7 @@ public class LegendRenderer {
      */
     public void setSpacing(int spacing) {
         mStyles.spacing = spacing;
+        mLayoutInvalid = true;
     }
 
     /**
@@ -298,6 +387,7 @@ public class LegendRenderer {
      */
     public void setPadding(int padding) {
         mStyles.padding = padding;
+        mLayoutInvalid = true;
     }
 
     /**
@@ -0,0 +1,553 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import com.jjoe64.graphview.series.DataPointInterface;
+import com.jjoe64.graphview.series.IncrementalSeries;
+import com.jjoe64.graphview.series.Series;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Renderer for the strip chart mode.
+ * The plotted lines are kept in a circular offscreen
+ * bitmap. When new data is appended, only the new segments
+ * are drawn and the bitmap is scrolled by moving its
+ * start column. The complete bitmap is only redrawn
+ * when the scale of the axes, the size of the graph
+ * or the attached series change.
+ *
+ * Only {@link com.jjoe64.graphview.series.IncrementalSeries},
+ * like {@link com.jjoe64.graphview.series.LineGraphSeries}
+ * without background filling, are rendered incrementally,
+ * all other series are drawn as usual.
+ * The x values of the series have to be ascending.
+ *
+ * A complete redraw draws the projection of the series,
+ * so downsampling and the level of detail apply as in a
+ * normal draw. New data is reduced to the extent of the
+ * line in each pixel column. The projection of the series
+ * is saved every frame, so taps find the data on screen.
+ *
+ * @author jjoe64
+ */
+public class StripChartRenderer {
+    /**
+     * state of one incrementally drawn line
+     */
+    private final class Trace {
+        /**
+         * the series
+         */
+        final IncrementalSeries<?> series;
+
+        /**
+         * flag whether the series belongs to the second scale
+         */
+        final boolean isSecondScale;
+
+        /**
+         * paint for the line
+         */
+        final Paint paint;
+
+        /**
+         * flag whether there is a last drawn point
+         */
+        boolean hasLast;
+
+        /**
+         * x value of the last drawn data, new
+         * data is read after it
+         */
+        double lastValueX;
+
+        /**
+         * pixel of the last drawn point, relative to the origin
+         */
+        double lastX;
+        double lastY;
+
+        /**
+         * pixel column of the last drawn point and
+         * the rows the line covers in it
+         */
+        long column;
+        double columnMinY;
+        double columnMaxY;
+
+        Trace(IncrementalSeries<?> series, boolean isSecondScale) {
+            this.series = series;
+            this.isSecondScale = isSecondScale;
+            paint = new Paint();
+            paint.setAntiAlias(true);
+            paint.setStrokeCap(Paint.Cap.ROUND);
+            paint.setStyle(Paint.Style.STROKE);
+        }
+    }
+
+    /**
+     * reference to the graphview
+     */
+    private final GraphView mGraphView;
+
+    /**
+     * the incrementally drawn lines
+     */
+    private final List<Trace> mTraces;
+
+    /**
+     * circular bitmap holding the plotted pixels.
+     * Column (x - origin) modulo width holds the pixels of x.
+     */
+    private Bitmap mBitmap;
+
+    /**
+     * canvas to draw into the bitmap
+     */
+    private Canvas mBitmapCanvas;
+
+    /**
+     * paint to clear recycled columns
+     */
+    private final Paint mClearPaint;
+
+    /**
+     * paint to copy the bitmap onto the view
+     */
+    private final Paint mBitmapPaint;
+
+    /**
+     * reused rects for clearing and copying
+     */
+    private final Rect mSrcRect;
+    private final Rect mDstRect;
+
+    /**
+     * flag whether the bitmap has to be redrawn completely
+     */
+    private boolean mNeedsRedraw;
+
+    /**
+     * x value that corresponds to the pixel 0
+     */
+    private double mOriginX;
+
+    /**
+     * pixels per x unit
+     */
+    private double mScaleX;
+
+    /**
+     * y bounds of the main and second scale that were used for the bitmap
+     */
+    private double mMinY, mMaxY, mMinY2, mMaxY2;
+
+    /**
+     * pixel of the left border of the viewport, relative to the origin
+     */
+    private int mLeft;
+
+    /**
+     * creates the strip chart renderer
+     *
+     * @param graphView regarding graphview
+     */
+    public StripChartRenderer(GraphView graphView) {
+        mGraphView = graphView;
+        mTraces = new ArrayList<Trace>();
+        mClearPaint = new Paint();
+        mClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        mBitmapPaint = new Paint();
+        mSrcRect = new Rect();
+        mDstRect = new Rect();
+        mNeedsRedraw = true;
+    }
+
+    /**
+     * forces a complete redraw of the bitmap on the next
+     * draw, e.g. after the styles of a series were changed
+     * or after the data of a series was reset.
+     */
+    public void invalidate() {
+        mNeedsRedraw = true;
+    }
+
+    /**
+     * frees the offscreen bitmap
+     */
+    public void release() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+            mBitmapCanvas = null;
+        }
+        mTraces.clear();
+        mNeedsRedraw = true;
+    }
+
+    /**
+     * draws all series of the graph.
+     * Will be called by GraphView instead of
+     * drawing the series directly.
+     *
+     * @param canvas canvas
+     */
+    public void draw(Canvas canvas) {
+        int width = mGraphView.getGraphContentWidth();
+        int height = mGraphView.getGraphContentHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+            }
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mBitmapCanvas = new Canvas(mBitmap);
+            mNeedsRedraw = true;
+        }
+
+        if (updateTraces()) {
+            mNeedsRedraw = true;
+        }
+
+        Viewport vp = mGraphView.getViewport();
+        double minX = vp.getMinX(false);
+        double maxX = vp.getMaxX(false);
+        double minY = vp.getMinY(false);
+        double maxY = vp.getMaxY(false);
+        double minY2 = 0, maxY2 = 0;
+        if (mGraphView.mSecondScale != null) {
+            minY2 = mGraphView.mSecondScale.getMinY();
+            maxY2 = mGraphView.mSecondScale.getMaxY();
+        }
+        double scaleX = width / (maxX - minX);
+
+        if (!mNeedsRedraw) {
+            // the x bounds are stored as float, so allow rounding errors
+            if (Math.abs(scaleX - mScaleX) > mScaleX * 1e-5
+                    || minY != mMinY || maxY != mMaxY
+                    || minY2 != mMinY2 || maxY2 != mMaxY2) {
+                mNeedsRedraw = true;
+            }
+        }
+
+        if (!mNeedsRedraw) {
+            int left = (int) Math.floor((minX - mOriginX) * mScaleX);
+            if (left < mLeft || left - mLeft >= width) {
+                // scrolled backwards or more than one screen
+                mNeedsRedraw = true;
+            } else {
+                clearColumns(mLeft + width, left + width);
+                mLeft = left;
+                drawNewSegments(maxX);
+            }
+        }
+
+        if (mNeedsRedraw) {
+            mOriginX = minX;
+            mScaleX = scaleX;
+            mMinY = minY;
+            mMaxY = maxY;
+            mMinY2 = minY2;
+            mMaxY2 = maxY2;
+            mLeft = 0;
+            redraw(maxX);
+            mNeedsRedraw = false;
+        }
+
+        // copy the circular bitmap, starting at the column of the left border
+        int graphLeft = mGraphView.getGraphContentLeft() + 1;
+        int graphTop = mGraphView.getGraphContentTop();
+        int start = mLeft % width;
+        mSrcRect.set(start, 0, width, height);
+        mDstRect.set(graphLeft, graphTop, graphLeft + width - start, graphTop + height);
+        canvas.drawBitmap(mBitmap, mSrcRect, mDstRect, mBitmapPaint);
+        if (start > 0) {
+            mSrcRect.set(0, 0, start, height);
+            mDstRect.set(graphLeft + width - start, graphTop, graphLeft + width, graphTop + height);
+            canvas.drawBitmap(mBitmap, mSrcRect, mDstRect, mBitmapPaint);
+        }
+
+        // all other series are drawn as usual
+        for (Series<?> s : mGraphView.getSeries()) {
+            if (!isIncremental(s)) {
+                s.draw(mGraphView, canvas, false);
+            }
+        }
+        if (mGraphView.mSecondScale != null) {
+            for (Series<?> s : mGraphView.mSecondScale.getSeries()) {
+                if (!isIncremental(s)) {
+                    s.draw(mGraphView, canvas, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param s series
+     * @return whether the series can be rendered incrementally
+     */
+    private boolean isIncremental(Series<?> s) {
+        return s instanceof IncrementalSeries && ((IncrementalSeries<?>) s).isIncremental();
+    }
+
+    /**
+     * synchronizes the traces with the series of the graph
+     *
+     * @return true if the series have changed
+     */
+    private boolean updateTraces() {
+        int i = 0;
+        boolean changed = false;
+        for (Series<?> s : mGraphView.getSeries()) {
+            if (isIncremental(s)) {
+                changed |= i >= mTraces.size() || mTraces.get(i).series != s || mTraces.get(i).isSecondScale;
+                i++;
+            }
+        }
+        if (mGraphView.mSecondScale != null) {
+            for (Series<?> s : mGraphView.mSecondScale.getSeries()) {
+                if (isIncremental(s)) {
+                    changed |= i >= mTraces.size() || mTraces.get(i).series != s || !mTraces.get(i).isSecondScale;
+                    i++;
+                }
+            }
+        }
+        changed |= i != mTraces.size();
+
+        if (changed) {
+            mTraces.clear();
+            for (Series<?> s : mGraphView.getSeries()) {
+                if (isIncremental(s)) {
+                    mTraces.add(new Trace((IncrementalSeries<?>) s, false));
+                }
+            }
+            if (mGraphView.mSecondScale != null) {
+                for (Series<?> s : mGraphView.mSecondScale.getSeries()) {
+                    if (isIncremental(s)) {
+                        mTraces.add(new Trace((IncrementalSeries<?>) s, true));
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * clears the bitmap and draws the projection
+     * of the visible data of every series
+     *
+     * @param maxX right border of the viewport
+     */
+    private void redraw(double maxX) {
+        mBitmap.eraseColor(Color.TRANSPARENT);
+        int width = mBitmap.getWidth();
+        // the origin is the left border of the content
+        int graphLeft = mGraphView.getGraphContentLeft() + 1;
+        int graphTop = mGraphView.getGraphContentTop();
+        for (Trace t : mTraces) {
+            t.hasLast = false;
+            updatePaint(t);
+            int n = t.series.projectLine(mGraphView, t.isSecondScale);
+            float[] pixels = t.series.getProjectedPixels();
+            for (int i = 0; i < n; i++) {
+                double x = pixels[2*i] - graphLeft;
+                double y = pixels[2*i+1] - graphTop;
+                if (x > width) {
+                    // will be drawn again when the viewport has scrolled
+                    if (t.hasLast) {
+                        drawSegment(t.lastX, t.lastY, x, y, t.paint);
+                    }
+                    break;
+                }
+                lineTo(t, x, y);
+            }
+            t.lastValueX = maxX;
+        }
+    }
+
+    /**
+     * draws the data that was appended since the last draw
+     *
+     * @param maxX right border of the viewport
+     */
+    private void drawNewSegments(double maxX) {
+        for (Trace t : mTraces) {
+            if (!t.hasLast) {
+                // nothing drawn yet
+                mNeedsRedraw = true;
+                return;
+            }
+            if (t.series.isEmpty()) {
+                // data was reset
+                mNeedsRedraw = true;
+                return;
+            }
+        }
+        int height = mBitmap.getHeight();
+        for (Trace t : mTraces) {
+            // taps have to be mapped with the scrolled viewport
+            t.series.saveProjection(mGraphView, t.isSecondScale);
+            updatePaint(t);
+            double minY = t.isSecondScale ? mMinY2 : mMinY;
+            double maxY = t.isSecondScale ? mMaxY2 : mMaxY;
+            Iterator<? extends DataPointInterface> values = t.series.getValuesAfter(t.lastValueX);
+            while (values.hasNext()) {
+                DataPointInterface value = values.next();
+                double x = (value.getX() - mOriginX) * mScaleX;
+                double y = height - (value.getY() - minY) / (maxY - minY) * height;
+                if (value.getX() > maxX) {
+                    // will be drawn again when the viewport has scrolled
+                    drawSegment(t.lastX, t.lastY, x, y, t.paint);
+                    break;
+                }
+                lineTo(t, x, y);
+                t.lastValueX = value.getX();
+            }
+        }
+    }
+
+    /**
+     * takes the current styles of the series
+     *
+     * @param t trace
+     */
+    private void updatePaint(Trace t) {
+        t.paint.setColor(t.series.getColor());
+        t.paint.setStrokeWidth(t.series.getThickness());
+    }
+
+    /**
+     * continues the line of the trace to the given pixel.
+     * Within a pixel column only what extends the rows the
+     * line already covers in it is drawn, so dense data
+     * costs at most a few lines per column.
+     *
+     * @param t trace
+     * @param x pixel relative to the origin
+     * @param y pixel
+     */
+    private void lineTo(Trace t, double x, double y) {
+        long column = (long) Math.floor(x);
+        if (!t.hasLast || column != t.column) {
+            if (t.hasLast) {
+                drawSegment(t.lastX, t.lastY, x, y, t.paint);
+            }
+            t.column = column;
+            t.columnMinY = y;
+            t.columnMaxY = y;
+            drawDataPoint(t, x, y);
+        } else if (y < t.columnMinY || y > t.columnMaxY) {
+            drawSegment(x, y < t.columnMinY ? t.columnMinY : t.columnMaxY, x, y, t.paint);
+            t.columnMinY = Math.min(t.columnMinY, y);
+            t.columnMaxY = Math.max(t.columnMaxY, y);
+            drawDataPoint(t, x, y);
+        }
+        t.hasLast = true;
+        t.lastX = x;
+        t.lastY = y;
+    }
+
+    /**
+     * highlights a data point, if the series wants it
+     *
+     * @param t trace
+     * @param x pixel relative to the origin
+     * @param y pixel
+     */
+    private void drawDataPoint(Trace t, double x, double y) {
+        int width = mBitmap.getWidth();
+        if (t.series.isDrawDataPoints() && x >= mLeft && x <= mLeft + width) {
+            float cx = (float) (x - Math.floor(x / width) * width);
+            mBitmapCanvas.drawCircle(cx, (float) y, t.series.getDataPointsRadius(), t.paint);
+        }
+    }
+
+    /**
+     * draws a line into the circular bitmap.
+     * The line is clipped to the current viewport
+     * and wrapped around the end of the bitmap.
+     *
+     * @param x0 start pixel relative to the origin
+     * @param y0 start pixel
+     * @param x1 end pixel relative to the origin
+     * @param y1 end pixel
+     * @param paint paint
+     */
+    private void drawSegment(double x0, double y0, double x1, double y1, Paint paint) {
+        int width = mBitmap.getWidth();
+        double left = mLeft;
+        double right = mLeft + width;
+        if (x1 < left || x0 > right) {
+            return;
+        }
+        if (x0 < left) { // start left
+            y0 = y0 + (y1 - y0) * (left - x0) / (x1 - x0);
+            x0 = left;
+        }
+        if (x1 > right) { // end right
+            y1 = y0 + (y1 - y0) * (right - x0) / (x1 - x0);
+            x1 = right;
+        }
+
+        double offset = Math.floor(x0 / width) * width;
+        mBitmapCanvas.drawLine((float) (x0 - offset), (float) y0, (float) (x1 - offset), (float) y1, paint);
+        if (x1 - offset > width) {
+            // wraps around the end of the bitmap
+            offset += width;
+            mBitmapCanvas.drawLine((float) (x0 - offset), (float) y0, (float) (x1 - offset), (float) y1, paint);
+        }
+    }
+
+    /**
+     * clears the columns that are recycled for new data
+     *
+     * @param from first pixel relative to the origin
+     * @param until last pixel (exclusive) relative to the origin
+     */
+    private void clearColumns(int from, int until) {
+        if (until <= from) {
+            return;
+        }
+        int width = mBitmap.getWidth();
+        int height = mBitmap.getHeight();
+        int start = from % width;
+        int end = start + (until - from);
+        mSrcRect.set(start, 0, Math.min(end, width), height);
+        mBitmapCanvas.drawRect(mSrcRect, mClearPaint);
+        if (end > width) {
+            mSrcRect.set(0, 0, end - width, height);
+            mBitmapCanvas.drawRect(mSrcRect, mClearPaint);
+        }
+    }
+}
@@ -303,6 +303,11 @@ public class Viewport {
      */
     protected RectF mCompleteRange = new RectF();
 
+    /**
+     * recalculates #mCompleteRange when the data of the series changed
+     */
+    private final CompleteRange mCompleteRangeCache = new CompleteRange();
+
     /**
      * flag whether scaling is currently active
      */
@@ -330,6 +335,14 @@ public class Viewport {
      */
     private boolean mIsScalable;
 
+    /**
+     * flag whether series may draw a summary of
+     * their data when zoomed out
+     *
+     * @see #getLevelOfDetail(double)
+     */
+    private boolean mLevelOfDetail;
+
     /**
      * gesture detector to detect scrolling
      */
@@ -516,40 +529,7 @@ public class Viewport {
      */
     public void calcCompleteRange() {
         List<Series> series = mGraphView.getSeries();
-        mCompleteRange.set(0, 0, 0, 0);
-        if (!series.isEmpty() && !series.get(0).isEmpty()) {
-            double d = series.get(0).getLowestValueX();
-            for (Series s : series) {
-                if (!s.isEmpty() && d > s.getLowestValueX()) {
-                    d = s.getLowestValueX();
-                }
-            }
-            mCompleteRange.left = (float) d;
-
-            d = series.get(0).getHighestValueX();
-            for (Series s : series) {
-                if (!s.isEmpty() && d < s.getHighestValueX()) {
-                    d = s.getHighestValueX();
-                }
-            }
-            mCompleteRange.right = (float) d;
-
-            d = series.get(0).getLowestValueY();
-            for (Series s : series) {
-                if (!s.isEmpty() && d > s.getLowestValueY()) {
-                    d = s.getLowestValueY();
-                }
-            }
-            mCompleteRange.bottom = (float) d;
-
-            d = series.get(0).getHighestValueY();
-            for (Series s : series) {
-                if (!s.isEmpty() && d < s.getHighestValueY()) {
-                    d = s.getHighestValueY();
-                }
-            }
-            mCompleteRange.top = (float) d;
-        }
+        mCompleteRangeCache.update(series, mCompleteRange);
 
         // calc current viewport bounds
         if (mYAxisBoundsStatus == AxisBoundsStatus.AUTO_ADJUSTED) {
@@ -693,6 +673,49 @@ public class Viewport {
         mCurrentViewport.left = (float) x;
     }
 
+    /**
+     * @return whether series may draw a summary of their
+     *         data when zoomed out
+     */
+    public boolean isLevelOfDetail() {
+        return mLevelOfDetail;
+    }
+
+    /**
+     * let series draw a summary of their data when there
+     * are more points in view than pixel columns. The series
+     * keep a pyramid of ever coarser summaries and this
+     * viewport chooses the level, so that a series draws
+     * at most about twice the view width in points, however
+     * far it is zoomed out. Full resolution is only drawn
+     * when zoomed in. The data has to be sorted by x.
+     *
+     * @param levelOfDetail whether to use the summaries
+     */
+    public void setLevelOfDetail(boolean levelOfDetail) {
+        mLevelOfDetail = levelOfDetail;
+    }
+
+    /**
+     * chooses the level of the summary to draw for the
+     * current zoom. Level l has 2^l times fewer points
+     * than the data.
+     *
+     * @param pointsPerUnit density of the data, in data points per x unit
+     * @return the level, 0 for the data itself
+     */
+    public int getLevelOfDetail(double pointsPerUnit) {
+        if (!mLevelOfDetail) {
+            return 0;
+        }
+        double visible = pointsPerUnit * mCurrentViewport.width();
+        double budget = 2 * mGraphView.getGraphContentWidth();
+        if (!(visible > budget) || budget <= 0) {
+            return 0;
+        }
+        return (int) Math.ceil(Math.log(visible / budget) / Math.log(2));
+    }
+
     /**
      * release the glowing effects
      */
@@ -21,15 +21,12 @@ package com.jjoe64.graphview.series;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.graphics.RectF;
 import android.util.Log;
 
 import com.jjoe64.graphview.GraphView;
 import com.jjoe64.graphview.ValueDependentColor;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -79,10 +76,16 @@ public class BarGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
     private float mValuesOnTopSize;
 
     /**
-     * stores the coordinates of the bars to
-     * trigger tap on series events.
+     * offset of the left edge of this series' bars
+     * from the pixel column of their x value, as
+     * of the last draw. Used to find the bar at a tap.
      */
-    private Map<RectF, E> mDataPoints = new HashMap<RectF, E>();
+    private float mBarShift;
+
+    /**
+     * width of the bars of the last draw
+     */
+    private float mBarWidth;
 
     /**
      * creates bar series without any data
@@ -180,8 +183,6 @@ public class BarGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
 
         int numBarSlots = (minGap == 0) ? 1 : (int)Math.round((maxX - minX)/minGap) + 1;
 
-        Iterator<E> values = getValues(minX, maxX);
-
         // Calculate the overall bar slot width - this includes all bars across
         // all series, and any spacing between sets of bars
         float barSlotWidth = numBarSlots == 1
@@ -195,30 +196,24 @@ public class BarGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
         float barWidth = (barSlotWidth - spacing) / numBarSeries;
         // Offset from the center of a given bar to start drawing
         float offset = barSlotWidth/2;
+        // the bars start at contentLeft, one pixel left of the projected columns
+        mBarShift = - 1 - offset + spacing/2 + currentSeriesOrder*barWidth;
+        mBarWidth = barWidth;
 
-        double diffY = maxY - minY;
-        double diffX = maxX - minX;
         float contentHeight = graphView.getGraphContentHeight();
         float contentWidth = graphView.getGraphContentWidth();
         float contentLeft = graphView.getGraphContentLeft();
         float contentTop = graphView.getGraphContentTop();
 
-        // draw data
-        int i=0;
-        while (values.hasNext()) {
-            E value = values.next();
-
-            double valY = value.getY() - minY;
-            double ratY = valY / diffY;
-            double y = contentHeight * ratY;
+        // project the visible data in one pass
+        int count = projectValues(graphView, minX, maxX, minY, maxY);
+        float[] pixels = getProjectedPixels();
+        float zeroLine = graphView.getGridLabelRenderer().isHighlightZeroLines()?4:1;
+        float y0 = (contentTop - (float) (contentHeight * (0 - minY) / (maxY - minY))) + contentHeight;
 
-            double valY0 = 0 - minY;
-            double ratY0 = valY0 / diffY;
-            double y0 = contentHeight * ratY0;
-
-            double valX = value.getX() - minX;
-            double ratX = valX / diffX;
-            double x = contentWidth * ratX;
+        // draw data
+        for (int i = 0; i < count; i++) {
+            E value = getProjectedValue(i);
 
             // hook for value dependent color
             if (getValueDependentColor() != null) {
@@ -227,15 +222,15 @@ public class BarGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
                 mPaint.setColor(getColor());
             }
 
-            float left = (float)x + contentLeft - offset + spacing/2 + currentSeriesOrder*barWidth;
-            float top = (contentTop - (float)y) + contentHeight;
+            float left = pixels[2*i] + mBarShift;
+            float top = pixels[2*i+1];
             float right = left + barWidth;
-            float bottom = (contentTop - (float)y0) + contentHeight - (graphView.getGridLabelRenderer().isHighlightZeroLines()?4:1);
+            float bottom = y0 - zeroLine;
 
             boolean reverse = top > bottom;
             if (reverse) {
                 float tmp = top;
-                top = bottom + (graphView.getGridLabelRenderer().isHighlightZeroLines()?4:1);
+                top = bottom + zeroLine;
                 bottom = tmp;
             }
 
@@ -245,8 +240,6 @@ public class BarGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
             bottom = Math.min(bottom, contentTop+contentHeight);
             top = Math.max(top, contentTop);
 
-            mDataPoints.put(new RectF(left, top, right, bottom), value);
-
             canvas.drawRect(left, top, right, bottom, mPaint);
 
             // set values on top of graph
@@ -264,8 +257,6 @@ public class BarGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
                         graphView.getGridLabelRenderer().getLabelFormatter().formatLabel(value.getY(), false)
                         , (left+right)/2, top, mPaint);
             }
-
-            i++;
         }
     }
 
@@ -350,14 +341,6 @@ public class BarGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
         this.mValuesOnTopSize = mValuesOnTopSize;
     }
 
-    /**
-     * resets the cached coordinates of the bars
-     */
-    @Override
-    protected void resetDataPoints() {
-        mDataPoints.clear();
-    }
-
     /**
      * find the corresponding data point by
      * coordinates.
@@ -366,12 +349,23 @@ public class BarGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
      * @param y pixels
      * @return datapoint or null
      */
+    @SuppressWarnings("unchecked")
     @Override
     protected E findDataPoint(float x, float y) {
-        for (Map.Entry<RectF, E> entry : mDataPoints.entrySet()) {
-            if (x >= entry.getKey().left && x <= entry.getKey().right
-                && y >= entry.getKey().top && y <= entry.getKey().bottom) {
-                return entry.getValue();
+        HitIndex index = getHitIndex();
+        if (index == null) {
+            return null;
+        }
+        Projection p = index.projection;
+        float zeroY = p.toPixelY(0);
+        // a bar covers x if its pixel column lies within one bar width left of x
+        float from = x - mBarShift - mBarWidth;
+        float until = x - mBarShift;
+        for (int i = index.lowerBound(from); i < index.size() && index.getX(i) <= until; i++) {
+            float top = Math.max(Math.min(index.getY(i), zeroY), p.top);
+            float bottom = Math.min(Math.max(index.getY(i), zeroY), p.top + p.height);
+            if (y >= top && y <= bottom) {
+                return (E) index.get(i);
             }
         }
         return null;
@@ -19,16 +19,13 @@
  */
 package com.jjoe64.graphview.series;
 
-import android.graphics.PointF;
 import android.util.Log;
 
 import com.jjoe64.graphview.GraphView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
@@ -44,24 +41,171 @@ import java.util.Set;
  * the data. If you want to implement a custom data provider
  * you may want to implement {@link com.jjoe64.graphview.series.Series}.
  *
+ * The data may be appended by one producer thread while
+ * other threads draw: every change publishes a new immutable
+ * snapshot of the data, so readers never block the writer.
+ *
  * @author jjoe64
  */
 public abstract class BaseSeries<E extends DataPointInterface> implements Series<E> {
     /**
-     * holds the data
+     * immutable view of the data.
+     * The data lies in data[start..end), with its values
+     * also in xs and ys for the projection. The writer only
+     * writes behind the end of the current snapshot or into
+     * a new array, so published elements never change and
+     * readers can iterate a snapshot without locking.
      */
-    final private List<E> mData = new ArrayList<E>();
+    private static final class Snapshot {
+        final DataPointInterface[] data;
+        final double[] xs;
+        final double[] ys;
+        final int start;
+        final int end;
+        final long version;
+
+        /**
+         * position of data[start] among all points
+         * appended since the data was last reset
+         */
+        final long seq;
+
+        /**
+         * flag whether the x values are ascending,
+         * then the lowest x value is always xs[start]
+         */
+        final boolean sorted;
+
+        /**
+         * bounds of the data, calculated on demand.
+         * Concurrent calculations give the same result,
+         * so the race is benign.
+         */
+        SeriesBounds bounds;
+
+        Snapshot(DataPointInterface[] data, double[] xs, double[] ys, int start, int end, long seq, long version, boolean sorted, SeriesBounds bounds) {
+            this.data = data;
+            this.xs = xs;
+            this.ys = ys;
+            this.start = start;
+            this.end = end;
+            this.seq = seq;
+            this.version = version;
+            this.sorted = sorted;
+            this.bounds = bounds;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        SeriesBounds getBounds() {
+            SeriesBounds b = bounds;
+            if (b == null) {
+                b = SeriesBounds.scan(xs, ys, start, end, version);
+                bounds = b;
+            }
+            return b;
+        }
+    }
 
     /**
-     * stores the used coordinates to find the
-     * corresponding data point on a tap
-     *
-     * Key => x/y pixel
-     * Value => Plotted Datapoint
-     *
-     * will be filled while drawing via {@link #registerDataPoint(float, float, DataPointInterface)}
+     * iterates the data of a snapshot
+     */
+    private class SnapshotIterator implements Iterator<E> {
+        private final DataPointInterface[] data;
+        private final double[] xs;
+        private final int end;
+        private int i;
+
+        SnapshotIterator(Snapshot snapshot, int from) {
+            data = snapshot.data;
+            xs = snapshot.xs;
+            end = snapshot.end;
+            i = from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return i < end;
+        }
+
+        /**
+         * @return x value of the next data point
+         */
+        double peekX() {
+            return xs[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E next() {
+            if (i >= end) {
+                throw new NoSuchElementException();
+            }
+            return (E) data[i++];
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * the current data.
+     * Readers take the current snapshot without locking,
+     * the writer publishes a new snapshot after every change.
+     */
+    private volatile Snapshot mSnapshot = new Snapshot(new DataPointInterface[0], new double[0], new double[0], 0, 0, 0, 0, true, null);
+
+    /**
+     * serializes the writers.
+     * Readers never take this lock.
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * data to pixel transform of the last draw.
+     * Saved by the series while drawing via
+     * {@link #saveProjection(GraphView, double, double, double, double)}
+     * so a tap can be mapped back to a data point.
+     */
+    private volatile Projection mProjection;
+
+    /**
+     * pixel positions of the drawn data points,
+     * built on the first tap after the data or
+     * the projection changed.
+     */
+    private HitIndex mHitIndex;
+
+    /**
+     * reused pixel buffer of the projection stage.
+     * Holds x0, y0, x1, y1, ... of the window
+     * projected by the last call of
+     * {@link #projectValues(GraphView, double, double, double, double)}
+     */
+    private float[] mPixels = new float[0];
+
+    /**
+     * snapshot and first index of the
+     * last projected window
+     */
+    private Snapshot mProjected;
+    private int mProjectedFrom;
+
+    /**
+     * counts the replacements of the data,
+     * so caches of the data know when to start over
+     */
+    private volatile long mResets = 0;
+
+    /**
+     * multi-resolution summary of the data for drawing
+     * when zoomed out, created when first needed
      */
-    private Map<PointF, E> mDataPoints = new HashMap<PointF, E>();
+    private SeriesPyramid mPyramid;
 
     /**
      * title for this series that can be displayed
@@ -101,69 +245,55 @@ public abstract class BaseSeries<E extends DataPointInterface> implements Series
      */
     public BaseSeries(E[] data) {
         mGraphViews = new ArrayList<GraphView>();
-        for (E d : data) {
-            mData.add(d);
-        }
+        publish(data);
     }
 
     /**
      * @return the lowest x value, or 0 if there is no data
      */
     public double getLowestValueX() {
-        if (mData.isEmpty()) return 0d;
-        double l = mData.get(0).getX();
-        for (int i = 1; i < mData.size(); i++) {
-            double c = mData.get(i).getX();
-            if (l > c) {
-                l = c;
-            }
-        }
-        return l;
+        return getBounds().getLowestX();
     }
 
     /**
      * @return the highest x value, or 0 if there is no data
      */
     public double getHighestValueX() {
-        if (mData.isEmpty()) return 0d;
-        double h = mData.get(0).getX();
-        for (int i = 1; i < mData.size(); i++) {
-            double c = mData.get(i).getX();
-            if (h < c) {
-                h = c;
-            }
-        }
-        return h;
+        return getBounds().getHighestX();
     }
 
     /**
      * @return the lowest y value, or 0 if there is no data
      */
     public double getLowestValueY() {
-        if (mData.isEmpty()) return 0d;
-        double l = mData.get(0).getY();
-        for (int i = 1; i < mData.size(); i++) {
-            double c = mData.get(i).getY();
-            if (l > c) {
-                l = c;
-            }
-        }
-        return l;
+        return getBounds().getLowestY();
     }
 
     /**
      * @return the highest y value, or 0 if there is no data
      */
     public double getHighestValueY() {
-        if (mData.isEmpty()) return 0d;
-        double h = mData.get(0).getY();
-        for (int i = 1; i < mData.size(); i++) {
-            double c = mData.get(i).getY();
-            if (h < c) {
-                h = c;
-            }
-        }
-        return h;
+        return getBounds().getHighestY();
+    }
+
+    /**
+     * The bounds are updated incrementally on append and
+     * only recalculated with a full scan when a point
+     * on the bounds was removed or the data was reset.
+     *
+     * @return immutable summary of the bounds of the data
+     */
+    @Override
+    public SeriesBounds getBounds() {
+        return mSnapshot.getBounds();
+    }
+
+    /**
+     * @return the version of the data, without calculating the bounds
+     */
+    @Override
+    public long getDataVersion() {
+        return mSnapshot.version;
     }
 
     /**
@@ -178,70 +308,59 @@ public abstract class BaseSeries<E extends DataPointInterface> implements Series
      */
     @Override
     public Iterator<E> getValues(final double from, final double until) {
-        if (from <= getLowestValueX() && until >= getHighestValueX()) {
-            return mData.iterator();
+        final Snapshot snapshot = mSnapshot;
+        SeriesBounds bounds = snapshot.getBounds();
+        if (from <= bounds.getLowestX() && until >= bounds.getHighestX()) {
+            return new SnapshotIterator(snapshot, snapshot.start);
         } else {
-            return new Iterator<E>() {
-                // TODO: This is written with the assumption that these data points are in order, which is no longer guaranteed
-                Iterator<E> org = mData.iterator();
-                E nextValue = null;
-                E nextNextValue = null;
+            // TODO: This is written with the assumption that these data points are in order, which is no longer guaranteed
+            // go to first, including one data point before
+            int first = snapshot.start;
+            while (first < snapshot.end && snapshot.xs[first] < from) {
+                first++;
+            }
+            if (first > snapshot.start) {
+                first--;
+            }
+            return new SnapshotIterator(snapshot, first) {
                 boolean plusOne = true;
 
-                {
-                    // go to first
-                    E prevValue = null;
-                    nextValue = null;
-                    if (org.hasNext()) {
-                        prevValue = org.next();
-                    }
-                    if (   prevValue != null
-                        && prevValue.getX() >= from) {
-                        nextValue = prevValue;
-                    } else {
-                        while (org.hasNext()) {
-                            nextValue = org.next();
-                            if (nextValue.getX() >= from) {
-                                nextNextValue = nextValue;
-                                nextValue = prevValue;
-                                break;
-                            }
-                            prevValue = nextValue;
-                        }
-                    }
-                }
-
-                @Override
-                public void remove() {
-                    throw new UnsupportedOperationException();
-                }
-
                 @Override
                 public E next() {
-                    if (hasNext()) {
-                        E r = nextValue;
-                        if (r.getX() > until) {
-                            plusOne = false;
-                        }
-                        if (nextNextValue != null) {
-                            nextValue = nextNextValue;
-                            nextNextValue = null;
-                        } else if (org.hasNext()) nextValue = org.next();
-                        else nextValue = null;
-                        return r;
-                    } else {
-                        throw new NoSuchElementException();
+                    E r = super.next();
+                    if (r.getX() > until) {
+                        plusOne = false;
                     }
+                    return r;
                 }
 
                 @Override
                 public boolean hasNext() {
-                    return nextValue != null && (nextValue.getX() <= until || plusOne);
+                    // including one data point after
+                    return super.hasNext() && (plusOne || peekX() <= until);
                 }
             };
         }
     }
 
+    /**
+     * get the values with a x value bigger than the given one.
+     * The data is searched backwards from the newest point, so
+     * the cost depends only on the number of returned points.
+     * This is used for incremental rendering of streamed data.
+     *
+     * @param after exclusive minimal x-value
+     * @return the newest data points after the given x-value
+     */
+    public Iterator<E> getValuesAfter(double after) {
+        Snapshot snapshot = mSnapshot;
+        int i = snapshot.end;
+        while (i > snapshot.start && snapshot.xs[i-1] > after) {
+            i--;
+        }
+        return new SnapshotIterator(snapshot, i);
+    }
+
     /**
      * @return the title of the series
      */
@@ -311,45 +430,267 @@ public abstract class BaseSeries<E extends DataPointInterface> implements Series
      * @param y pixel
      * @return the data point or null if nothing was found
      */
+    @SuppressWarnings("unchecked")
     protected E findDataPoint(float x, float y) {
-        float shortestDistance = Float.NaN;
-        E shortest = null;
-        for (Map.Entry<PointF, E> entry : mDataPoints.entrySet()) {
-            float x1 = entry.getKey().x;
-            float y1 = entry.getKey().y;
-            float x2 = x;
-            float y2 = y;
-
-            float distance = (float) Math.sqrt((x1-x2)*(x1-x2) + (y1-y2)*(y1-y2));
-            if (shortest == null || distance < shortestDistance) {
-                shortestDistance = distance;
-                shortest = entry.getValue();
-            }
+        HitIndex index = getHitIndex();
+        if (index == null) {
+            return null;
+        }
+        int i = index.nearest(x, y, 120);
+        return i < 0 ? null : (E) index.get(i);
+    }
+
+    /**
+     * saves the transform used for drawing, so taps
+     * can be mapped back to data points later.
+     * Call this from draw, it only allocates when
+     * the transform changed.
+     *
+     * @param graphView graphview
+     * @param minX lowest visible x value
+     * @param maxX highest visible x value
+     * @param minY lowest visible y value
+     * @param maxY highest visible y value
+     */
+    protected void saveProjection(GraphView graphView, double minX, double maxX, double minY, double maxY) {
+        saveProjection(minX, maxX, minY, maxY, graphView.getGraphContentLeft(), graphView.getGraphContentTop(),
+                graphView.getGraphContentWidth(), graphView.getGraphContentHeight());
+    }
+
+    /**
+     * saves the transform for the given content area
+     * of the graph
+     */
+    void saveProjection(double minX, double maxX, double minY, double maxY, float left, float top, float width, float height) {
+        Projection p = mProjection;
+        if (p == null || !p.matches(minX, maxX, minY, maxY, left, top, width, height)) {
+            mProjection = new Projection(minX, maxX, minY, maxY, left, top, width, height);
         }
-        if (shortest != null) {
-            if (shortestDistance < 120) {
-                return shortest;
+    }
+
+    /**
+     * projection stage shared by the series types.
+     * Finds the data for the x range, like
+     * {@link #getValues(double, double)}, and transforms
+     * it to pixels in one pass into a reused buffer.
+     * No clipping is done, that is left to the series.
+     * Saves the projection for taps as well.
+     *
+     * @param graphView graphview
+     * @param minX lowest visible x value
+     * @param maxX highest visible x value
+     * @param minY lowest visible y value
+     * @param maxY highest visible y value
+     * @return count of projected points, their pixels are in
+     *         {@link #getProjectedPixels()}
+     */
+    protected int projectValues(GraphView graphView, double minX, double maxX, double minY, double maxY) {
+        saveProjection(graphView, minX, maxX, minY, maxY);
+        return projectValues(minX, maxX);
+    }
+
+    /**
+     * projection stage with the saved projection
+     *
+     * @param minX lowest visible x value
+     * @param maxX highest visible x value
+     * @return count of projected points
+     */
+    int projectValues(double minX, double maxX) {
+        Snapshot snapshot = mSnapshot;
+        SeriesBounds bounds = snapshot.getBounds();
+        int first = snapshot.start;
+        int last = snapshot.end;
+        if (minX > bounds.getLowestX() || maxX < bounds.getHighestX()) {
+            // the range plus one data point before and after
+            double[] xs = snapshot.xs;
+            while (first < snapshot.end && xs[first] < minX) {
+                first++;
+            }
+            if (first > snapshot.start) {
+                first--;
+            }
+            last = first;
+            while (last < snapshot.end && xs[last] <= maxX) {
+                last++;
+            }
+            if (last < snapshot.end) {
+                last++;
             }
         }
-        return null;
+        int n = last - first;
+        if (mPixels.length < 2*n) {
+            mPixels = new float[Math.max(64, 4*n)];
+        }
+        mProjection.project(snapshot.xs, snapshot.ys, first, last, mPixels);
+        mProjected = snapshot;
+        mProjectedFrom = first;
+        return n;
     }
 
     /**
-     * register the datapoint to find it at a tap
+     * like {@link #projectValues(GraphView, double, double, double, double)},
+     * but projects a downsampled version of the data when there are
+     * more than two points per pixel column. The data has to be
+     * sorted by x. {@link #getProjectedValue(int)} can not be used
+     * after this.
      *
-     * @param x pixel
-     * @param y pixel
-     * @param dp the data point to save
+     * @param downsampler downsampler, keeps its cache between calls
+     * @return count of projected points
+     */
+    int projectDownsampled(GraphView graphView, double minX, double maxX, double minY, double maxY, LttbDownsampler downsampler) {
+        saveProjection(graphView, minX, maxX, minY, maxY);
+        return projectDownsampled(minX, maxX, graphView.getGraphContentWidth(),
+                getLevelOfDetail(graphView, mSnapshot), downsampler);
+    }
+
+    /**
+     * downsampling stage with the saved projection
+     *
+     * @param minX lowest visible x value
+     * @param maxX highest visible x value
+     * @param target width of the graph content in pixels
+     * @param level level of the summary the viewport chooses
+     * @param downsampler downsampler, keeps its cache between calls
+     * @return count of projected points
+     */
+    int projectDownsampled(double minX, double maxX, int target, int level, LttbDownsampler downsampler) {
+        // read before the snapshot, so a reset in between only causes one more rebuild
+        long resets = mResets;
+        Snapshot snapshot = mSnapshot;
+        if (snapshot.size() <= 2*target || maxX <= minX) {
+            return projectValues(minX, maxX);
+        }
+        int n;
+        if (level >= 2) {
+            // downsample a summary with a few points per bucket rather than all of the data.
+            // It covers whole buckets with a bucket to spare, so the cached buckets stay right.
+            SeriesPyramid pyramid = updatePyramid(snapshot, resets, level - 1);
+            double width = LttbDownsampler.bucketWidth(minX, maxX, target);
+            double from = (Math.floor(minX / width) - 2) * width;
+            double until = (Math.floor(maxX / width) + 3) * width;
+            int count = pyramid.gather(snapshot.xs, snapshot.ys, snapshot.start, snapshot.end, snapshot.seq, level - 1, from, until);
+            n = downsampler.downsample(pyramid.getX(), pyramid.getY(), 0, count, minX, maxX, target, (resets << 5) | (level - 1));
+        } else {
+            n = downsampler.downsample(snapshot.xs, snapshot.ys, snapshot.start, snapshot.end, minX, maxX, target, resets << 5);
+        }
+        if (mPixels.length < 2*n) {
+            mPixels = new float[Math.max(64, 4*n)];
+        }
+        mProjection.project(downsampler.getX(), downsampler.getY(), 0, n, mPixels);
+        mProjected = null;
+        return n;
+    }
+
+    /**
+     * like {@link #projectValues(GraphView, double, double, double, double)},
+     * but projects the level of the summary of the data the viewport
+     * chooses for the zoom, see {@link com.jjoe64.graphview.Viewport#setLevelOfDetail(boolean)}.
+     * The data has to be sorted by x. {@link #getProjectedValue(int)}
+     * can only be used if the data itself was projected.
+     *
+     * @return count of projected points
+     */
+    protected int projectLevelOfDetail(GraphView graphView, double minX, double maxX, double minY, double maxY) {
+        saveProjection(graphView, minX, maxX, minY, maxY);
+        return projectLevelOfDetail(minX, maxX, getLevelOfDetail(graphView, mSnapshot));
+    }
+
+    /**
+     * level of detail stage with the saved projection
+     *
+     * @param minX lowest visible x value
+     * @param maxX highest visible x value
+     * @param level level of the summary the viewport chooses
+     * @return count of projected points
+     */
+    int projectLevelOfDetail(double minX, double maxX, int level) {
+        long resets = mResets;
+        Snapshot snapshot = mSnapshot;
+        if (level == 0) {
+            return projectValues(minX, maxX);
+        }
+        SeriesPyramid pyramid = updatePyramid(snapshot, resets, level);
+        int n = pyramid.gather(snapshot.xs, snapshot.ys, snapshot.start, snapshot.end, snapshot.seq, level, minX, maxX);
+        if (mPixels.length < 2*n) {
+            mPixels = new float[Math.max(64, 4*n)];
+        }
+        mProjection.project(pyramid.getX(), pyramid.getY(), 0, n, mPixels);
+        mProjected = null;
+        return n;
+    }
+
+    /**
+     * @return the level of the summary the viewport chooses
+     *         for the density of the data
+     */
+    private int getLevelOfDetail(GraphView graphView, Snapshot snapshot) {
+        SeriesBounds bounds = snapshot.getBounds();
+        double range = bounds.getHighestX() - bounds.getLowestX();
+        if (snapshot.size() < 2 || range <= 0) {
+            return 0;
+        }
+        int level = graphView.getViewport().getLevelOfDetail(snapshot.size() / range);
+        return Math.min(level, SeriesPyramid.MAX_LEVEL);
+    }
+
+    /**
+     * brings the summary up to date with the data
+     *
+     * @param resets reset count, read before the snapshot
+     * @param level highest level that is needed
+     * @return the summary
+     */
+    private SeriesPyramid updatePyramid(Snapshot snapshot, long resets, int level) {
+        if (mPyramid == null) {
+            mPyramid = new SeriesPyramid();
+        }
+        mPyramid.update(snapshot.xs, snapshot.ys, snapshot.start, snapshot.end, snapshot.seq, resets, level);
+        return mPyramid;
+    }
+
+    /**
+     * @return pixels of the last projected window as
+     *         x0, y0, x1, y1, ...
+     */
+    protected float[] getProjectedPixels() {
+        return mPixels;
+    }
+
+    /**
+     * @param i index within the last projected window
+     * @return the data point of the i-th projected pixels
      */
-    protected void registerDataPoint(float x, float y, E dp) {
-        mDataPoints.put(new PointF(x, y), dp);
+    @SuppressWarnings("unchecked")
+    protected E getProjectedValue(int i) {
+        return (E) mProjected.data[mProjectedFrom + i];
     }
 
     /**
-     * clears the cached data point coordinates
+     * @return the transform of the last draw, or null if
+     *         the series was not drawn yet. The instance
+     *         only changes when the transform does.
      */
-    protected void resetDataPoints() {
-        mDataPoints.clear();
+    Projection getProjection() {
+        return mProjection;
+    }
+
+    /**
+     * @return the index of the points drawn last, or null
+     *         if the series was not drawn yet
+     */
+    HitIndex getHitIndex() {
+        Projection p = mProjection;
+        if (p == null) {
+            return null;
+        }
+        Snapshot snapshot = mSnapshot;
+        HitIndex index = mHitIndex;
+        if (index == null || index.projection != p || index.version != snapshot.version) {
+            index = HitIndex.build(getValues(p.minX, p.maxX), p, snapshot.version);
+            mHitIndex = index;
+        }
+        return index;
     }
 
     /**
@@ -360,10 +701,7 @@ public abstract class BaseSeries<E extends DataPointInterface> implements Series
      *             x-value has to be ASC. First the lowest x value and at least the highest x value.
      */
     public void resetData(E[] data) {
-        mData.clear();
-        for (E d : data) {
-            mData.add(d);
-        }
+        publish(data);
         checkValueOrder(null);
 
         // update graphview
@@ -393,23 +731,74 @@ public abstract class BaseSeries<E extends DataPointInterface> implements Series
     public void appendData(E dataPoint, boolean scrollToEnd, int maxDataPoints) {
         //checkValueOrder(dataPoint);
 
-        //if (!mData.isEmpty() && dataPoint.getX() < mData.get(mData.size()-1).getX()) {
+        //if (!isEmpty() && dataPoint.getX() < getHighestValueX()) {
         //    throw new IllegalArgumentException("new x-value must be greater then the last value. x-values has to be ordered in ASC.");
         //}
-        synchronized (mData) {
-            int curDataCount = mData.size();
-            if (curDataCount < maxDataPoints) {
-                // enough space
-                mData.add(dataPoint);
-            } else {
-                // we have to trim one data
-                mData.remove(0);
-                mData.add(dataPoint);
+        int newSize;
+        synchronized (mWriteLock) {
+            Snapshot old = mSnapshot;
+            DataPointInterface[] data = old.data;
+            double[] xs = old.xs;
+            double[] ys = old.ys;
+            int start = old.start;
+            int end = old.end;
+            long version = old.version + 1;
+            SeriesBounds bounds = old.bounds;
+            double x = dataPoint.getX();
+            double y = dataPoint.getY();
+
+            // trim the oldest data if max data count is reached
+            while (end - start >= Math.max(maxDataPoints, 1)) {
+                if (bounds != null) {
+                    // bounds may shrink, then recalculate them on demand.
+                    // Sorted data gets its lowest x from the oldest point left.
+                    boolean onBounds = old.sorted
+                            ? bounds.isOnBoundsY(ys[start])
+                            : bounds.isOnBounds(xs[start], ys[start]);
+                    if (onBounds) {
+                        bounds = null;
+                    }
+                }
+                start++;
+            }
+            long seq = old.seq + (start - old.start);
+            boolean sorted = old.sorted && (start == end || x >= xs[end-1]);
+
+            if (end == data.length) {
+                // no space behind the end, continue in a new array
+                int capacity = Math.max(16, (end - start + 1) * 2);
+                DataPointInterface[] newData = new DataPointInterface[capacity];
+                double[] newXs = new double[capacity];
+                double[] newYs = new double[capacity];
+                System.arraycopy(data, start, newData, 0, end - start);
+                System.arraycopy(xs, start, newXs, 0, end - start);
+                System.arraycopy(ys, start, newYs, 0, end - start);
+                data = newData;
+                xs = newXs;
+                ys = newYs;
+                end -= start;
+                start = 0;
             }
+            xs[end] = x;
+            ys[end] = y;
+            data[end++] = dataPoint;
+
+            if (bounds != null) {
+                if (end - start == 1) {
+                    bounds = new SeriesBounds(x, x, y, y, version);
+                } else if (old.sorted) {
+                    bounds = new SeriesBounds(Math.min(xs[start], x), Math.max(bounds.getHighestX(), x),
+                            Math.min(bounds.getLowestY(), y), Math.max(bounds.getHighestY(), y), version);
+                } else {
+                    bounds = bounds.extend(x, y, version);
+                }
+            }
+            mSnapshot = new Snapshot(data, xs, ys, start, end, seq, version, sorted, bounds);
+            newSize = end - start;
         }
 
         // recalc the labels when it was the first data
-        boolean keepLabels = mData.size() != 1;
+        boolean keepLabels = newSize != 1;
 
         // update linked graph views
         // update graphview
@@ -426,7 +815,31 @@ public abstract class BaseSeries<E extends DataPointInterface> implements Series
      */
     @Override
     public boolean isEmpty() {
-        return mData.isEmpty();
+        return mSnapshot.size() == 0;
+    }
+
+    /**
+     * replaces the data with a new snapshot
+     *
+     * @param data the new data
+     */
+    private void publish(E[] data) {
+        DataPointInterface[] copy = new DataPointInterface[data.length];
+        double[] xs = new double[data.length];
+        double[] ys = new double[data.length];
+        System.arraycopy(data, 0, copy, 0, data.length);
+        for (int i = 0; i < data.length; i++) {
+            xs[i] = data[i].getX();
+            ys[i] = data[i].getY();
+        }
+        boolean sorted = true;
+        for (int i = 1; i < xs.length && sorted; i++) {
+            sorted = xs[i] >= xs[i-1];
+        }
+        synchronized (mWriteLock) {
+            mSnapshot = new Snapshot(copy, xs, ys, 0, copy.length, 0, mSnapshot.version + 1, sorted, null);
+            mResets++;
+        }
     }
 
     /**
@@ -436,21 +849,23 @@ public abstract class BaseSeries<E extends DataPointInterface> implements Series
      *                  datapoint is after the last point.
      */
     protected void checkValueOrder(DataPointInterface onlyLast) {
-        if (mData.size()>1) {
+        Snapshot snapshot = mSnapshot;
+        DataPointInterface[] data = snapshot.data;
+        if (snapshot.size()>1) {
             if (onlyLast != null) {
                 // only check last
-                if (onlyLast.getX() < mData.get(mData.size()-1).getX()) {
+                if (onlyLast.getX() < data[snapshot.end-1].getX()) {
                     throw new IllegalArgumentException("new x-value must be greater then the last value. x-values has to be ordered in ASC.");
                 }
             } else {
-                double lx = mData.get(0).getX();
+                double lx = data[snapshot.start].getX();
 
-                for (int i = 1; i < mData.size(); i++) {
-                    if (mData.get(i).getX() != Double.NaN) {
-                        if (lx > mData.get(i).getX()) {
+                for (int i = snapshot.start+1; i < snapshot.end; i++) {
+                    if (data[i].getX() != Double.NaN) {
+                        if (lx > data[i].getX()) {
                             throw new IllegalArgumentException("The order of the values is not correct. X-Values have to be ordered ASC. First the lowest x value and at least the highest x value.");
                         }
-                        lx = mData.get(i).getX();
+                        lx = data[i].getX();
                     }
                 }
             }
@@ -0,0 +1,179 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * pixel positions of the drawn data points,
+ * sorted by pixel column, to find the data
+ * point at a tap.
+ * It is built on demand when the user taps,
+ * so drawing does not have to record anything
+ * per point.
+ *
+ * @author jjoe64
+ */
+final class HitIndex {
+    /**
+     * projection the pixels were calculated with
+     */
+    final Projection projection;
+
+    /**
+     * version of the data the index was built from
+     */
+    final long version;
+
+    private final float[] mX;
+    private final float[] mY;
+    private final DataPointInterface[] mPoints;
+    private final int mSize;
+
+    private HitIndex(Projection projection, long version, float[] x, float[] y, DataPointInterface[] points, int size) {
+        this.projection = projection;
+        this.version = version;
+        mX = x;
+        mY = y;
+        mPoints = points;
+        mSize = size;
+    }
+
+    /**
+     * projects the data points and sorts them by
+     * pixel column.
+     *
+     * @param values the data points to index
+     * @param projection the projection of the last draw
+     * @param version version of the data
+     * @return the index
+     */
+    static HitIndex build(Iterator<? extends DataPointInterface> values, Projection projection, long version) {
+        int n = 0;
+        float[] x = new float[64];
+        float[] y = new float[64];
+        DataPointInterface[] points = new DataPointInterface[64];
+        boolean sorted = true;
+        while (values.hasNext()) {
+            DataPointInterface p = values.next();
+            if (n == x.length) {
+                x = Arrays.copyOf(x, n * 2);
+                y = Arrays.copyOf(y, n * 2);
+                points = Arrays.copyOf(points, n * 2);
+            }
+            x[n] = projection.toPixelX(p.getX());
+            y[n] = projection.toPixelY(p.getY());
+            points[n] = p;
+            if (n > 0 && x[n] < x[n-1]) {
+                sorted = false;
+            }
+            n++;
+        }
+        if (!sorted) {
+            // the data is usually in order, only sort when it is not
+            final float[] keys = x;
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Float.compare(keys[a], keys[b]);
+                }
+            });
+            float[] sx = new float[n];
+            float[] sy = new float[n];
+            DataPointInterface[] sp = new DataPointInterface[n];
+            for (int i = 0; i < n; i++) {
+                sx[i] = x[order[i]];
+                sy[i] = y[order[i]];
+                sp[i] = points[order[i]];
+            }
+            x = sx;
+            y = sy;
+            points = sp;
+        }
+        return new HitIndex(projection, version, x, y, points, n);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    float getX(int i) {
+        return mX[i];
+    }
+
+    float getY(int i) {
+        return mY[i];
+    }
+
+    DataPointInterface get(int i) {
+        return mPoints[i];
+    }
+
+    /**
+     * @param x pixel
+     * @return index of the first point with a pixel column
+     *         of at least x, or size() if there is none
+     */
+    int lowerBound(float x) {
+        int lo = 0;
+        int hi = mSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mX[mid] < x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * finds the point closest to the given pixel.
+     * Only the points within maxDistance columns
+     * are looked at.
+     *
+     * @param x pixel
+     * @param y pixel
+     * @param maxDistance maximal distance in pixels
+     * @return index of the closest point, or -1 if no point is
+     *         closer than maxDistance
+     */
+    int nearest(float x, float y, float maxDistance) {
+        int best = -1;
+        float bestDistance = maxDistance * maxDistance;
+        for (int i = lowerBound(x - maxDistance); i < mSize && mX[i] <= x + maxDistance; i++) {
+            float dx = mX[i] - x;
+            float dy = mY[i] - y;
+            float distance = dx*dx + dy*dy;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+import com.jjoe64.graphview.GraphView;
+
+import java.util.Iterator;
+
+/**
+ * a line series that the strip chart renderer
+ * can draw incrementally into its bitmap.
+ *
+ * The renderer draws the line itself, but goes
+ * through the projection of the series, so the
+ * series chooses downsampling or the level of detail
+ * as in a normal draw, and taps are mapped with the
+ * transform of the frame that is on screen.
+ *
+ * @see com.jjoe64.graphview.StripChartRenderer
+ * @author jjoe64
+ */
+public interface IncrementalSeries<E extends DataPointInterface> extends Series<E> {
+    /**
+     * @return false if the series has to be drawn
+     *         as usual, e.g. because of a background filling
+     */
+    boolean isIncremental();
+
+    /**
+     * @return thickness of the line
+     */
+    int getThickness();
+
+    /**
+     * @return flag whether the data points are highlighted
+     */
+    boolean isDrawDataPoints();
+
+    /**
+     * @return the radius for the data points
+     */
+    float getDataPointsRadius();
+
+    /**
+     * projects the visible data to pixels the same way
+     * a draw would, and saves the projection for taps.
+     *
+     * @param graphView graphview
+     * @param isSecondScale flag if it is the second scale
+     * @return count of projected points, their pixels are in
+     *         {@link #getProjectedPixels()}
+     */
+    int projectLine(GraphView graphView, boolean isSecondScale);
+
+    /**
+     * @return pixels of the last projection as
+     *         x0, y0, x1, y1, ... The buffer is reused.
+     */
+    float[] getProjectedPixels();
+
+    /**
+     * saves the transform of the current viewport for
+     * taps, without projecting any data. For frames where
+     * only the new data is drawn.
+     *
+     * @param graphView graphview
+     * @param isSecondScale flag if it is the second scale
+     */
+    void saveProjection(GraphView graphView, boolean isSecondScale);
+
+    /**
+     * @param after x value
+     * @return the values with a higher x, ascending
+     */
+    Iterator<E> getValuesAfter(double after);
+}
@@ -26,7 +26,6 @@ import android.graphics.Path;
 
 import com.jjoe64.graphview.GraphView;
 
-import java.util.Iterator;
 
 /**
  * Series to plot the data as line.
@@ -34,7 +33,30 @@ import java.util.Iterator;
  *
  * @author jjoe64
  */
-public class LineGraphSeries<E extends DataPointInterface> extends BaseSeries<E> {
+public class LineGraphSeries<E extends DataPointInterface> extends BaseSeries<E> implements IncrementalSeries<E> {
+    /**
+     * how the data is reduced when there are
+     * more points than pixel columns
+     */
+    public enum Downsampling {
+        /**
+         * every point is drawn
+         */
+        NONE,
+
+        /**
+         * Largest-Triangle-Three-Buckets, keeps the
+         * visual shape of smooth lines
+         */
+        LTTB,
+
+        /**
+         * LTTB among the minima and maxima of the
+         * buckets, keeps spikes
+         */
+        MINMAX_LTTB
+    }
+
     /**
      * wrapped styles regarding the line
      */
@@ -77,6 +99,13 @@ public class LineGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
          * @see #drawBackground
          */
         private int backgroundColor = Color.argb(100, 172, 218, 255);
+
+        /**
+         * how the data is reduced before drawing
+         *
+         * @see Downsampling
+         */
+        private Downsampling downsampling = Downsampling.NONE;
     }
 
     /**
@@ -104,6 +133,12 @@ public class LineGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
      */
     private Path mPath;
 
+    /**
+     * downsampler of the current mode, keeps the
+     * downsampled points between frames
+     */
+    private LttbDownsampler mDownsampler;
+
     /**
      * custom paint that can be used.
      * this will ignore the thickness and color styles.
@@ -152,27 +187,9 @@ public class LineGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
      */
     @Override
     public synchronized void draw(GraphView graphView, Canvas canvas, boolean isSecondScale) {
-        resetDataPoints();
-
-        // get data
-        double maxX = graphView.getViewport().getMaxX(false);
-        double minX = graphView.getViewport().getMinX(false);
-
-        double maxY;
-        double minY;
-        if (isSecondScale) {
-            maxY = graphView.getSecondScale().getMaxY();
-            minY = graphView.getSecondScale().getMinY();
-        } else {
-            maxY = graphView.getViewport().getMaxY(false);
-            minY = graphView.getViewport().getMinY(false);
-        }
-
-        Iterator<E> values = getValues(minX, maxX);
-
-        // draw background
-        double lastEndY = 0;
-        double lastEndX = 0;
+        // project the visible data in one pass
+        int n = projectLine(graphView, isSecondScale);
+        float[] pixels = getProjectedPixels();
 
         // draw data
         mPaint.setStrokeWidth(mStyles.thickness);
@@ -190,104 +207,73 @@ public class LineGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
             mPathBackground.reset();
         }
 
-        double diffY = maxY - minY;
-        double diffX = maxX - minX;
-
         float graphHeight = graphView.getGraphContentHeight();
-        float graphWidth = graphView.getGraphContentWidth();
-        float graphLeft = graphView.getGraphContentLeft();
         float graphTop = graphView.getGraphContentTop();
 
-        lastEndY = 0;
-        lastEndX = 0;
-        double lastUsedEndX = 0;
+        // edges of the content in pixels
+        float contentLeft = graphView.getGraphContentLeft() + 1;
+        float contentRight = contentLeft + graphView.getGraphContentWidth();
+        float contentTop = graphTop;
+        float contentBottom = graphTop + graphHeight;
+
+        // clip the segments to the content and draw them
+        float lastUsedEndX = 0;
         float firstX = 0;
-        int i=0;
-        while (values.hasNext()) {
-            E value = values.next();
-
-            double valY = value.getY() - minY;
-            double ratY = valY / diffY;
-            double y = graphHeight * ratY;
-
-            double valX = value.getX() - minX;
-            double ratX = valX / diffX;
-            double x = graphWidth * ratX;
-
-            double orgX = x;
-            double orgY = y;
-
-            if (i > 0) {
-                // overdraw
-                if (x > graphWidth) { // end right
-                    double b = ((graphWidth - lastEndX) * (y - lastEndY)/(x - lastEndX));
-                    y = lastEndY+b;
-                    x = graphWidth;
-                }
-                if (y < 0) { // end bottom
-                    double b = ((0 - lastEndY) * (x - lastEndX)/(y - lastEndY));
-                    x = lastEndX+b;
-                    y = 0;
-                }
-                if (y > graphHeight) { // end top
-                    double b = ((graphHeight - lastEndY) * (x - lastEndX)/(y - lastEndY));
-                    x = lastEndX+b;
-                    y = graphHeight;
-                }
-                if (lastEndY < 0) { // start bottom
-                    double b = ((0 - y) * (x - lastEndX)/(lastEndY - y));
-                    lastEndX = x-b;
-                    lastEndY = 0;
-                }
-                if (lastEndX < 0) { // start left
-                    double b = ((0 - x) * (y - lastEndY)/(lastEndX - x));
-                    lastEndY = y-b;
-                    lastEndX = 0;
-                }
-                if (lastEndY > graphHeight) { // start top
-                    double b = ((graphHeight - y) * (x - lastEndX)/(lastEndY - y));
-                    lastEndX = x-b;
-                    lastEndY = graphHeight;
-                }
+        for (int i = 1; i < n; i++) {
+            float startX = pixels[2*i-2];
+            float startY = pixels[2*i-1];
+            float endX = pixels[2*i];
+            float endY = pixels[2*i+1];
+
+            // overdraw
+            if (endX > contentRight) { // end right
+                endY = startY + (contentRight - startX) * (endY - startY)/(endX - startX);
+                endX = contentRight;
+            }
+            if (endY > contentBottom) { // end bottom
+                endX = startX + (contentBottom - startY) * (endX - startX)/(endY - startY);
+                endY = contentBottom;
+            }
+            if (endY < contentTop) { // end top
+                endX = startX + (contentTop - startY) * (endX - startX)/(endY - startY);
+                endY = contentTop;
+            }
+            if (startY > contentBottom) { // start bottom
+                startX = endX - (contentBottom - endY) * (endX - startX)/(startY - endY);
+                startY = contentBottom;
+            }
+            if (startX < contentLeft) { // start left
+                startY = endY - (contentLeft - endX) * (endY - startY)/(startX - endX);
+                startX = contentLeft;
+            }
+            if (startY < contentTop) { // start top
+                startX = endX - (contentTop - endY) * (endX - startX)/(startY - endY);
+                startY = contentTop;
+            }
 
-                float startX = (float) lastEndX + (graphLeft + 1);
-                float startY = (float) (graphTop - lastEndY) + graphHeight;
-                float endX = (float) x + (graphLeft + 1);
-                float endY = (float) (graphTop - y) + graphHeight;
+            // draw data point
+            if (mStyles.drawDataPoints) {
+                //fix: last value was not drawn. Draw here now the end values
+                canvas.drawCircle(endX, endY, mStyles.dataPointsRadius, paint);
+            }
 
-                // draw data point
-                if (mStyles.drawDataPoints) {
-                    //fix: last value was not drawn. Draw here now the end values
-                    canvas.drawCircle(endX, endY, mStyles.dataPointsRadius, paint);
+            mPath.reset();
+            mPath.moveTo(startX, startY);
+            mPath.lineTo(endX, endY);
+            canvas.drawPath(mPath, paint);
+            if (mStyles.drawBackground) {
+                if (i==1) {
+                    firstX = startX;
+                    mPathBackground.moveTo(startX, startY);
                 }
-                registerDataPoint(endX, endY, value);
-
-                mPath.reset();
-                mPath.moveTo(startX, startY);
-                mPath.lineTo(endX, endY);
-                canvas.drawPath(mPath, paint);
-                if (mStyles.drawBackground) {
-                    if (i==1) {
-                        firstX = startX;
-                        mPathBackground.moveTo(startX, startY);
-                    }
-                    mPathBackground.lineTo(endX, endY);
-                }
-                lastUsedEndX = endX;
-            } else if (mStyles.drawDataPoints) {
-                //fix: last value not drawn as datapoint. Draw first point here, and then on every step the end values (above)
-                float first_X = (float) x + (graphLeft + 1);
-                float first_Y = (float) (graphTop - y) + graphHeight;
-                //TODO canvas.drawCircle(first_X, first_Y, dataPointsRadius, mPaint);
+                mPathBackground.lineTo(endX, endY);
             }
-            lastEndY = orgY;
-            lastEndX = orgX;
-            i++;
+            lastUsedEndX = endX;
         }
 
         if (mStyles.drawBackground) {
             // end / close path
-            mPathBackground.lineTo((float) lastUsedEndX, graphHeight + graphTop);
+            mPathBackground.lineTo(lastUsedEndX, graphHeight + graphTop);
             mPathBackground.lineTo(firstX, graphHeight + graphTop);
             mPathBackground.close();
             canvas.drawPath(mPathBackground, mPaintBackground);
@@ -295,6 +281,74 @@ public class LineGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
 
     }
 
+    /**
+     * projects the visible data, downsampled or at
+     * the level of detail of the viewport, and saves
+     * the projection for taps
+     *
+     * @param graphView graphview
+     * @param isSecondScale flag if it is the second scale
+     * @return count of projected points
+     */
+    @Override
+    public synchronized int projectLine(GraphView graphView, boolean isSecondScale) {
+        double maxX = graphView.getViewport().getMaxX(false);
+        double minX = graphView.getViewport().getMinX(false);
+
+        double maxY;
+        double minY;
+        if (isSecondScale) {
+            maxY = graphView.getSecondScale().getMaxY();
+            minY = graphView.getSecondScale().getMinY();
+        } else {
+            maxY = graphView.getViewport().getMaxY(false);
+            minY = graphView.getViewport().getMinY(false);
+        }
+
+        if (mDownsampler != null) {
+            return projectDownsampled(graphView, minX, maxX, minY, maxY, mDownsampler);
+        }
+        return projectLevelOfDetail(graphView, minX, maxX, minY, maxY);
+    }
+
+    /**
+     * saves the transform of the current viewport
+     * for taps, without projecting the data
+     *
+     * @param graphView graphview
+     * @param isSecondScale flag if it is the second scale
+     */
+    @Override
+    public void saveProjection(GraphView graphView, boolean isSecondScale) {
+        if (isSecondScale) {
+            saveProjection(graphView, graphView.getViewport().getMinX(false), graphView.getViewport().getMaxX(false),
+                    graphView.getSecondScale().getMinY(), graphView.getSecondScale().getMaxY());
+        } else {
+            saveProjection(graphView, graphView.getViewport().getMinX(false), graphView.getViewport().getMaxX(false),
+                    graphView.getViewport().getMinY(false), graphView.getViewport().getMaxY(false));
+        }
+    }
+
+    /**
+     * @return pixels of the last projection as
+     *         x0, y0, x1, y1, ...
+     */
+    @Override
+    public float[] getProjectedPixels() {
+        return super.getProjectedPixels();
+    }
+
+    /**
+     * the strip chart can only draw the line
+     * itself, not the background filling
+     *
+     * @return whether the series can be drawn incrementally
+     */
+    @Override
+    public boolean isIncremental() {
+        return !mStyles.drawBackground;
+    }
+
     /**
      * the thickness of the line.
      * This option will be ignored if you are
@@ -379,6 +433,36 @@ public class LineGraphSeries<E extends DataPointInterface> extends BaseSeries<E>
         mStyles.dataPointsRadius = dataPointsRadius;
     }
 
+    /**
+     * @return how the data is reduced when there are more
+     *         points than pixel columns
+     */
+    public Downsampling getDownsampling() {
+        return mStyles.downsampling;
+    }
+
+    /**
+     * reduce the data when there are more than two
+     * points per pixel column. The downsampled points
+     * are cached and reused while panning.
+     * The x values have to be in ascending order.
+     *
+     * @param downsampling how the data is reduced
+     */
+    public synchronized void setDownsampling(Downsampling downsampling) {
+        mStyles.downsampling = downsampling;
+        switch (downsampling) {
+            case LTTB:
+                mDownsampler = new LttbDownsampler(false);
+                break;
+            case MINMAX_LTTB:
+                mDownsampler = new LttbDownsampler(true);
+                break;
+            default:
+                mDownsampler = null;
+        }
+    }
+
     /**
      * @return  the background color for the filling under
      *          the line.
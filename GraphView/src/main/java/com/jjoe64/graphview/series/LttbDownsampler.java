@@ -0,0 +1,309 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling
+ * of sorted data, with a cache of the selected
+ * points.
+ *
+ * The buckets are aligned to multiples of the
+ * bucket width rather than to the viewport, and
+ * the width is rounded to a power of two. So
+ * while panning, or zooming a little, the buckets
+ * stay the same and only the buckets that scrolled
+ * into view, or that got new data, are computed.
+ *
+ * In MinMax mode only the lowest and highest point
+ * of each half of a bucket are candidates, which
+ * keeps the shape of spikes and needs fewer area
+ * calculations.
+ *
+ * @author jjoe64
+ */
+final class LttbDownsampler {
+    /**
+     * whether to preselect the candidates by min/max
+     */
+    private final boolean mMinMax;
+
+    /**
+     * width of the buckets of the cache
+     */
+    private double mBucketWidth = Double.NaN;
+
+    /**
+     * identifies the input the cache was built from
+     */
+    private long mSource = -1;
+
+    /**
+     * cached buckets, indexed by bucket number - mFirstBucket
+     */
+    private long mFirstBucket;
+    private int mBuckets;
+    private double[] mX = new double[0];
+    private double[] mY = new double[0];
+
+    /**
+     * flags of the cached buckets. 0 if the bucket
+     * is not cached. COMPLETE if its data can not
+     * change by later appends, EMPTY if it has no data.
+     */
+    private byte[] mState = new byte[0];
+    private static final byte CACHED = 1;
+    private static final byte COMPLETE = 2;
+    private static final byte EMPTY = 4;
+
+    /**
+     * the buffers of the previous cache, swapped
+     * in when the cached range moves
+     */
+    private double[] mSpareX = new double[0];
+    private double[] mSpareY = new double[0];
+    private byte[] mSpareState = new byte[0];
+
+    /**
+     * the downsampled points of the last call
+     */
+    private double[] mOutX = new double[0];
+    private double[] mOutY = new double[0];
+
+    LttbDownsampler(boolean minMax) {
+        mMinMax = minMax;
+    }
+
+    double[] getX() {
+        return mOutX;
+    }
+
+    double[] getY() {
+        return mOutY;
+    }
+
+    /**
+     * downsamples the data to about one to two points per bucket
+     * of the target.
+     *
+     * @param xs x values, ascending
+     * @param ys y values
+     * @param start index of the first data point
+     * @param end index after the last data point
+     * @param minX lowest visible x value
+     * @param maxX highest visible x value
+     * @param target about how many buckets the range is divided into
+     * @param source identifies the input, changes whenever the data was
+     *               replaced or a different summary of it is passed
+     * @return count of points, they are in {@link #getX()} and {@link #getY()}
+     */
+    int downsample(double[] xs, double[] ys, int start, int end, double minX, double maxX, int target, long source) {
+        double width = bucketWidth(minX, maxX, target);
+        // one bucket more on both sides, for the lines to the edges
+        long firstBucket = (long) Math.floor(minX / width) - 1;
+        int buckets = (int) ((long) Math.floor(maxX / width) + 1 - firstBucket + 1);
+        rebase(width, firstBucket, buckets, source);
+
+        if (mOutX.length < buckets) {
+            mOutX = new double[buckets];
+            mOutY = new double[buckets];
+        }
+
+        double firstX = xs[start];
+        double lastX = xs[end-1];
+        int n = 0;
+        int from = lowerBound(xs, start, end, firstBucket * width);
+        for (int b = 0; b < buckets; b++) {
+            double bucketStart = (firstBucket + b) * width;
+            double bucketEnd = bucketStart + width;
+            int until = lowerBound(xs, from, end, bucketEnd);
+            // reuse the bucket only if no data of it was trimmed since
+            if ((mState[b] & COMPLETE) != 0 && firstX < bucketStart) {
+                if ((mState[b] & EMPTY) == 0) {
+                    mOutX[n] = mX[b];
+                    mOutY[n] = mY[b];
+                    n++;
+                }
+                from = until;
+                continue;
+            }
+            byte state = lastX >= bucketEnd ? CACHED | COMPLETE : CACHED;
+            if (from == until) {
+                mState[b] = (byte) (state | EMPTY);
+                continue;
+            }
+            int selected;
+            if (from == start || n == 0) {
+                // keep the first point, like plain LTTB
+                selected = from;
+            } else if (until == end) {
+                // and the last point
+                selected = end - 1;
+            } else {
+                selected = select(xs, ys, from, until, end, mOutX[n-1], mOutY[n-1], bucketEnd + width);
+            }
+            mX[b] = mOutX[n] = xs[selected];
+            mY[b] = mOutY[n] = ys[selected];
+            mState[b] = state;
+            n++;
+            from = until;
+        }
+        return n;
+    }
+
+    /**
+     * @return the width of the buckets for the range, a power
+     *         of two, so the width is the same for small changes
+     *         of the range
+     */
+    static double bucketWidth(double minX, double maxX, int target) {
+        return Math.pow(2, Math.floor(Math.log((maxX - minX) / Math.max(target, 1)) / Math.log(2)));
+    }
+
+    /**
+     * picks the point of the bucket that spans the largest
+     * triangle with the previously selected point and the
+     * average of the next bucket.
+     */
+    private int select(double[] xs, double[] ys, int from, int until, int end, double ax, double ay, double nextEnd) {
+        // average of the next bucket
+        int nextUntil = lowerBound(xs, until, end, nextEnd);
+        double cx = 0;
+        double cy = 0;
+        for (int i = until; i < nextUntil; i++) {
+            cx += xs[i];
+            cy += ys[i];
+        }
+        if (nextUntil > until) {
+            cx /= nextUntil - until;
+            cy /= nextUntil - until;
+        } else {
+            cx = xs[until];
+            cy = ys[until];
+        }
+
+        if (mMinMax) {
+            int mid = (from + until) >>> 1;
+            int best = from;
+            double bestArea = -1;
+            for (int half = 0; half < 2; half++) {
+                int lo = half == 0 ? from : mid;
+                int hi = half == 0 ? mid : until;
+                if (lo == hi) {
+                    continue;
+                }
+                int min = lo;
+                int max = lo;
+                for (int i = lo + 1; i < hi; i++) {
+                    if (ys[i] < ys[min]) min = i;
+                    if (ys[i] > ys[max]) max = i;
+                }
+                double area = area(ax, ay, xs[min], ys[min], cx, cy);
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = min;
+                }
+                area = area(ax, ay, xs[max], ys[max], cx, cy);
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = max;
+                }
+            }
+            return best;
+        }
+
+        int best = from;
+        double bestArea = -1;
+        for (int i = from; i < until; i++) {
+            double area = area(ax, ay, xs[i], ys[i], cx, cy);
+            if (area > bestArea) {
+                bestArea = area;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return twice the area of the triangle a, b, c
+     */
+    private static double area(double ax, double ay, double bx, double by, double cx, double cy) {
+        return Math.abs((ax - cx) * (by - ay) - (ax - bx) * (cy - ay));
+    }
+
+    /**
+     * moves the cache to the given buckets, keeping
+     * the buckets that overlap.
+     */
+    private void rebase(double width, long firstBucket, int buckets, long source) {
+        if (width != mBucketWidth || source != mSource) {
+            // nothing can be reused
+            mBucketWidth = width;
+            mSource = source;
+            mBuckets = 0;
+        }
+        if (firstBucket == mFirstBucket && buckets == mBuckets) {
+            return;
+        }
+        if (mSpareState.length < buckets) {
+            mSpareX = new double[buckets * 2];
+            mSpareY = new double[buckets * 2];
+            mSpareState = new byte[buckets * 2];
+        }
+        for (int b = 0; b < buckets; b++) {
+            long old = firstBucket + b - mFirstBucket;
+            if (old >= 0 && old < mBuckets) {
+                mSpareX[b] = mX[(int) old];
+                mSpareY[b] = mY[(int) old];
+                mSpareState[b] = mState[(int) old];
+            } else {
+                mSpareState[b] = 0;
+            }
+        }
+        double[] x = mX;
+        double[] y = mY;
+        byte[] state = mState;
+        mX = mSpareX;
+        mY = mSpareY;
+        mState = mSpareState;
+        mSpareX = x;
+        mSpareY = y;
+        mSpareState = state;
+        mFirstBucket = firstBucket;
+        mBuckets = buckets;
+    }
+
+    /**
+     * @return index of the first value in xs[from..to) of at least x,
+     *         or to if there is none
+     */
+    private static int lowerBound(double[] xs, int from, int to, double x) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (xs[mid] < x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,872 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import com.jjoe64.graphview.GraphView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * line graph of several channels that are sampled
+ * at the same x values, like the readings of several
+ * meters or values derived from them.
+ *
+ * The data is stored in columns: one x column that
+ * all channels share, and one y column per channel.
+ * Every channel is a {@link Series} of its own, so it
+ * has its own title, color and axis and shows up in the
+ * legend, but the data is appended once for all of them
+ * and a draw projects all channels in one pass over
+ * the visible rows. When there are more than two rows
+ * per pixel column, the rows of a column are reduced to
+ * the lowest and highest value of each channel.
+ *
+ * The channels can be drawn by the strip chart renderer,
+ * see {@link IncrementalSeries}.
+ *
+ * The x values have to be ascending.
+ *
+ * @author jjoe64
+ */
+public class MultiSeries {
+    /**
+     * the axis a channel is plotted against
+     */
+    public enum Axis {
+        /**
+         * the y axis of the viewport
+         */
+        PRIMARY,
+
+        /**
+         * the y axis of the second scale
+         */
+        SECONDARY
+    }
+
+    /**
+     * immutable view of the data. The arrays are shared
+     * with later snapshots, which only write behind end.
+     */
+    private static final class Columns {
+        final double[] xs;
+        final double[][] ys;
+        final int start;
+        final int end;
+        final long version;
+
+        /**
+         * bounds of the channels, an entry is null
+         * until calculated on demand
+         */
+        final SeriesBounds[] bounds;
+
+        Columns(double[] xs, double[][] ys, int start, int end, long version, SeriesBounds[] bounds) {
+            this.xs = xs;
+            this.ys = ys;
+            this.start = start;
+            this.end = end;
+            this.version = version;
+            this.bounds = bounds;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        SeriesBounds getBounds(int channel) {
+            SeriesBounds b = bounds[channel];
+            if (b == null) {
+                b = SeriesBounds.scan(xs, ys[channel], start, end, version);
+                bounds[channel] = b;
+            }
+            return b;
+        }
+    }
+
+    /**
+     * one channel of the data, plotted as a line
+     */
+    public final class Channel implements IncrementalSeries<DataPointInterface> {
+        private final int mIndex;
+        private String mTitle;
+        private int mColor = 0xff0077cc;
+        private int mThickness = 5;
+        private Axis mAxis = Axis.PRIMARY;
+        private final Paint mPaint;
+        private OnDataPointTapListener mOnDataPointTapListener;
+
+        /**
+         * reused segment buffer for drawLines
+         */
+        private float[] mLines = new float[0];
+
+        /**
+         * reused pixels of the channel as x0, y0, x1, y1, ...
+         * for the strip chart renderer
+         */
+        private float[] mPixels = new float[0];
+
+        private Channel(int index) {
+            mIndex = index;
+            mPaint = new Paint();
+            mPaint.setStrokeCap(Paint.Cap.ROUND);
+            mPaint.setStyle(Paint.Style.STROKE);
+        }
+
+        /**
+         * @return the index of the y column of this channel
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * @return the container of this channel
+         */
+        public MultiSeries getOwner() {
+            return MultiSeries.this;
+        }
+
+        @Override
+        public double getLowestValueX() {
+            return getBounds().getLowestX();
+        }
+
+        @Override
+        public double getHighestValueX() {
+            return getBounds().getHighestX();
+        }
+
+        @Override
+        public double getLowestValueY() {
+            return getBounds().getLowestY();
+        }
+
+        @Override
+        public double getHighestValueY() {
+            return getBounds().getHighestY();
+        }
+
+        @Override
+        public SeriesBounds getBounds() {
+            return mColumns.getBounds(mIndex);
+        }
+
+        @Override
+        public long getDataVersion() {
+            return mColumns.version;
+        }
+
+        /**
+         * creates the data points on the fly, prefer
+         * {@link MultiSeries#getX(int)} and {@link MultiSeries#getY(int, int)}
+         */
+        @Override
+        public Iterator<DataPointInterface> getValues(double from, double until) {
+            return getValues(from, until, false);
+        }
+
+        /**
+         * @param after true for the values above from up to until,
+         *              false for the ones from from to until plus
+         *              one before and after
+         */
+        private Iterator<DataPointInterface> getValues(double from, double until, boolean after) {
+            final Columns columns = mColumns;
+            final double[] xs = columns.xs;
+            final double[] ys = columns.ys[mIndex];
+            final int first;
+            final int last;
+            if (after) {
+                first = upperBound(xs, columns.start, columns.end, from);
+                last = upperBound(xs, first, columns.end, until);
+            } else {
+                // including one data point before and after
+                first = Math.max(columns.start, lowerBound(xs, columns.start, columns.end, from) - 1);
+                last = Math.min(columns.end, upperBound(xs, first, columns.end, until) + 1);
+            }
+            return new Iterator<DataPointInterface>() {
+                int i = first;
+
+                @Override
+                public boolean hasNext() {
+                    return i < last;
+                }
+
+                @Override
+                public DataPointInterface next() {
+                    if (i >= last) {
+                        throw new NoSuchElementException();
+                    }
+                    DataPoint p = new DataPoint(xs[i], ys[i]);
+                    i++;
+                    return p;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        /**
+         * creates the data points on the fly
+         */
+        @Override
+        public Iterator<DataPointInterface> getValuesAfter(double after) {
+            Columns columns = mColumns;
+            return getValues(after, columns.end > columns.start ? columns.xs[columns.end - 1] : after, true);
+        }
+
+        /**
+         * draws the line from the pixels projected for
+         * all channels, see {@link MultiSeries#project(GraphView)}
+         */
+        @Override
+        public void draw(GraphView graphView, Canvas canvas, boolean isSecondScale) {
+            int n = project(graphView);
+            if (n < 2) {
+                return;
+            }
+            float[] px = mPixelX;
+            float[] py = mPixelY[mIndex];
+            if (mLines.length < 4*(n-1)) {
+                mLines = new float[Math.max(64, 8*(n-1))];
+            }
+            float[] lines = mLines;
+            for (int i = 1, j = 0; i < n; i++, j += 4) {
+                lines[j] = px[i-1];
+                lines[j+1] = py[i-1];
+                lines[j+2] = px[i];
+                lines[j+3] = py[i];
+            }
+
+            mPaint.setStrokeWidth(mThickness);
+            mPaint.setColor(mColor);
+
+            // clip to the content instead of each segment
+            float contentLeft = graphView.getGraphContentLeft() + 1;
+            float contentTop = graphView.getGraphContentTop();
+            canvas.save();
+            canvas.clipRect(contentLeft, contentTop,
+                    contentLeft + graphView.getGraphContentWidth(), contentTop + graphView.getGraphContentHeight());
+            canvas.drawLines(lines, 0, 4*(n-1), mPaint);
+            canvas.restore();
+        }
+
+        /**
+         * projects all channels, see {@link MultiSeries#project(GraphView)},
+         * and takes the pixels of this one. The axis of the
+         * channel decides the scale, not isSecondScale.
+         */
+        @Override
+        public int projectLine(GraphView graphView, boolean isSecondScale) {
+            synchronized (MultiSeries.this) {
+                int n = project(graphView);
+                if (mPixels.length < 2*n) {
+                    mPixels = new float[Math.max(64, 4*n)];
+                }
+                float[] px = mPixelX;
+                float[] py = mPixelY[mIndex];
+                for (int i = 0, j = 0; i < n; i++, j += 2) {
+                    mPixels[j] = px[i];
+                    mPixels[j+1] = py[i];
+                }
+                return n;
+            }
+        }
+
+        @Override
+        public float[] getProjectedPixels() {
+            return mPixels;
+        }
+
+        @Override
+        public void saveProjection(GraphView graphView, boolean isSecondScale) {
+            MultiSeries.this.saveProjection(graphView);
+        }
+
+        @Override
+        public boolean isIncremental() {
+            return true;
+        }
+
+        @Override
+        public boolean isDrawDataPoints() {
+            return false;
+        }
+
+        @Override
+        public float getDataPointsRadius() {
+            return 0;
+        }
+
+        @Override
+        public String getTitle() {
+            return mTitle;
+        }
+
+        /**
+         * @param title title of the channel, used in the legend
+         */
+        public void setTitle(String title) {
+            mTitle = title;
+        }
+
+        @Override
+        public int getColor() {
+            return mColor;
+        }
+
+        /**
+         * @param color color of the line
+         */
+        public void setColor(int color) {
+            mColor = color;
+        }
+
+        /**
+         * @return thickness of the line
+         */
+        @Override
+        public int getThickness() {
+            return mThickness;
+        }
+
+        /**
+         * @param thickness thickness of the line
+         */
+        public void setThickness(int thickness) {
+            mThickness = thickness;
+        }
+
+        /**
+         * @return the axis the channel is plotted against
+         */
+        public Axis getAxis() {
+            return mAxis;
+        }
+
+        /**
+         * set the axis the channel is plotted against.
+         * Takes effect when the channels are added to a
+         * graph via {@link MultiSeries#addTo(GraphView)}.
+         *
+         * @param axis the axis
+         */
+        public void setAxis(Axis axis) {
+            mAxis = axis;
+            mKey = null;
+        }
+
+        @Override
+        public void setOnDataPointTapListener(OnDataPointTapListener l) {
+            mOnDataPointTapListener = l;
+        }
+
+        /**
+         * looks for the nearest point with the
+         * transform of the last draw
+         */
+        @Override
+        public void onTap(float x, float y) {
+            if (mOnDataPointTapListener == null) {
+                return;
+            }
+            DataPointInterface p = findDataPoint(mIndex, x, y);
+            if (p != null) {
+                mOnDataPointTapListener.onTap(this, p);
+            }
+        }
+
+        @Override
+        public void onGraphViewAttached(GraphView graphView) {
+            if (!mGraphViews.contains(graphView)) {
+                mGraphViews.add(graphView);
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mColumns.size() == 0;
+        }
+    }
+
+    private final Channel[] mChannels;
+
+    /**
+     * the current data.
+     * Readers take the current columns without locking,
+     * the writer publishes new columns after every change.
+     */
+    private volatile Columns mColumns;
+
+    /**
+     * serializes the writers.
+     * Readers never take this lock.
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * graphs the channels are attached to
+     */
+    private final List<GraphView> mGraphViews = new ArrayList<GraphView>();
+
+    /**
+     * the viewport, scales and data of the last projection,
+     * as minX, maxX, minY, maxY, second minY, second maxY,
+     * left, top, width, height.
+     * null if it has to be done again.
+     */
+    private double[] mKey;
+    private final double[] mNewKey = new double[10];
+
+    /**
+     * the transform taps are mapped with, like mKey,
+     * but also saved on frames that don't project.
+     * null until the first draw.
+     */
+    private double[] mTapKey;
+
+    /**
+     * y transform per channel, reused
+     */
+    private final double[] mScaleY;
+    private final double[] mOffsetY;
+
+    /**
+     * pixels of the last projected window, the x column
+     * for all channels and one y column per channel.
+     * When reduced, two entries per pixel column with the
+     * lowest and highest pixel of each channel.
+     */
+    private float[] mPixelX = new float[0];
+    private float[][] mPixelY;
+    private int mProjectedCount;
+    private Columns mProjected;
+
+    /**
+     * creates an empty container
+     *
+     * @param channels count of y columns
+     */
+    public MultiSeries(int channels) {
+        mChannels = new Channel[channels];
+        SeriesBounds[] bounds = new SeriesBounds[channels];
+        for (int c = 0; c < channels; c++) {
+            mChannels[c] = new Channel(c);
+            bounds[c] = new SeriesBounds(0);
+        }
+        mColumns = new Columns(new double[0], new double[channels][0], 0, 0, 0, bounds);
+        mPixelY = new float[channels][0];
+        mScaleY = new double[channels];
+        mOffsetY = new double[channels];
+    }
+
+    /**
+     * @return count of channels
+     */
+    public int getChannelCount() {
+        return mChannels.length;
+    }
+
+    /**
+     * @param channel index of the channel
+     * @return the series of the channel
+     */
+    public Channel getChannel(int channel) {
+        return mChannels[channel];
+    }
+
+    /**
+     * adds the channels to the graph, each to
+     * the scale of its axis.
+     *
+     * @param graphView graphview
+     */
+    public void addTo(GraphView graphView) {
+        for (Channel c : mChannels) {
+            if (c.getAxis() == Axis.SECONDARY) {
+                c.onGraphViewAttached(graphView);
+                graphView.getSecondScale().addSeries(c);
+            } else {
+                graphView.addSeries(c);
+            }
+        }
+    }
+
+    /**
+     * @return count of rows
+     */
+    public int size() {
+        return mColumns.size();
+    }
+
+    /**
+     * @param row index of the row, 0 is the oldest
+     * @return x value of the row
+     */
+    public double getX(int row) {
+        Columns columns = mColumns;
+        return columns.xs[columns.start + row];
+    }
+
+    /**
+     * @param channel index of the channel
+     * @param row index of the row, 0 is the oldest
+     * @return y value of the channel in the row
+     */
+    public double getY(int channel, int row) {
+        Columns columns = mColumns;
+        return columns.ys[channel][columns.start + row];
+    }
+
+    /**
+     * appends a row to all channels.
+     *
+     * @param x x value, must not be lower than the last one
+     * @param y one y value per channel, is copied
+     * @param scrollToEnd true => graphview will scroll to the end (maxX)
+     * @param maxDataPoints if max data count is reached, the oldest row
+     *                      will be lost to avoid memory leaks
+     */
+    public void appendData(double x, double[] y, boolean scrollToEnd, int maxDataPoints) {
+        if (y.length < mChannels.length) {
+            throw new IllegalArgumentException("need a y value for each of the " + mChannels.length + " channels");
+        }
+        int newSize;
+        synchronized (mWriteLock) {
+            Columns old = mColumns;
+            double[] xs = old.xs;
+            double[][] ys = old.ys;
+            int start = old.start;
+            int end = old.end;
+            long version = old.version + 1;
+            SeriesBounds[] bounds = old.bounds.clone();
+
+            // trim the oldest rows if max data count is reached
+            while (end - start >= Math.max(maxDataPoints, 1)) {
+                for (int c = 0; c < bounds.length; c++) {
+                    // x is ascending, so only the y bounds may shrink.
+                    // Then they are recalculated on demand.
+                    if (bounds[c] != null && bounds[c].isOnBoundsY(ys[c][start])) {
+                        bounds[c] = null;
+                    }
+                }
+                start++;
+            }
+
+            if (end == xs.length) {
+                // no space behind the end, continue in new arrays
+                int capacity = Math.max(16, (end - start + 1) * 2);
+                double[] newXs = new double[capacity];
+                double[][] newYs = new double[ys.length][capacity];
+                System.arraycopy(xs, start, newXs, 0, end - start);
+                for (int c = 0; c < ys.length; c++) {
+                    System.arraycopy(ys[c], start, newYs[c], 0, end - start);
+                }
+                xs = newXs;
+                ys = newYs;
+                end -= start;
+                start = 0;
+            }
+            xs[end] = x;
+            for (int c = 0; c < ys.length; c++) {
+                ys[c][end] = y[c];
+                if (bounds[c] != null) {
+                    if (end == start) {
+                        bounds[c] = new SeriesBounds(x, x, y[c], y[c], version);
+                    } else {
+                        // the lowest x is the one of the oldest row left
+                        bounds[c] = new SeriesBounds(Math.min(xs[start], x), Math.max(bounds[c].getHighestX(), x),
+                                Math.min(bounds[c].getLowestY(), y[c]), Math.max(bounds[c].getHighestY(), y[c]), version);
+                    }
+                }
+            }
+            end++;
+            mColumns = new Columns(xs, ys, start, end, version, bounds);
+            newSize = end - start;
+        }
+
+        // recalc the labels when it was the first data
+        boolean keepLabels = newSize != 1;
+
+        // update linked graph views
+        for (GraphView gv : mGraphViews) {
+            gv.onDataChanged(keepLabels, scrollToEnd);
+            if (scrollToEnd) {
+                gv.getViewport().scrollToEnd();
+            }
+        }
+    }
+
+    /**
+     * removes all rows
+     */
+    public void clear() {
+        synchronized (mWriteLock) {
+            Columns old = mColumns;
+            SeriesBounds[] bounds = new SeriesBounds[mChannels.length];
+            for (int c = 0; c < bounds.length; c++) {
+                bounds[c] = new SeriesBounds(old.version + 1);
+            }
+            mColumns = new Columns(new double[0], new double[mChannels.length][0], 0, 0, old.version + 1, bounds);
+        }
+        for (GraphView gv : mGraphViews) {
+            gv.onDataChanged(false, false);
+        }
+    }
+
+    /**
+     * projects the visible rows of all channels to pixels,
+     * in one pass over the rows. The first channel drawn in
+     * a frame does the work, the others find it done,
+     * unless the viewport, a scale or the data changed.
+     *
+     * @param graphView graphview
+     * @return count of projected rows
+     */
+    synchronized int project(GraphView graphView) {
+        Columns columns = mColumns;
+        double[] key = mNewKey;
+        makeKey(graphView, key);
+        saveTapKey(key);
+        if (mKey != null && Arrays.equals(mKey, key) && mProjected == columns) {
+            return mProjectedCount;
+        }
+
+        // visible window plus one row on either side
+        double minX = key[0];
+        double maxX = key[1];
+        int from = Math.max(columns.start, lowerBound(columns.xs, columns.start, columns.end, minX) - 1);
+        int to = Math.min(columns.end, upperBound(columns.xs, from, columns.end, maxX) + 1);
+        int n = to - from;
+        // more than two rows per column are reduced to two per column,
+        // a column left and right of the content included
+        boolean reduce = n > 2*key[8] + 6;
+        int needed = reduce ? 2*((int) key[8] + 5) : n;
+        if (mPixelX.length < needed) {
+            int capacity = Math.max(64, 2*needed);
+            mPixelX = new float[capacity];
+            for (int c = 0; c < mChannels.length; c++) {
+                mPixelY[c] = new float[capacity];
+            }
+        }
+
+        float left = (float) key[6];
+        float top = (float) key[7];
+        float width = (float) key[8];
+        float height = (float) key[9];
+        final double scaleX = width / (maxX - minX);
+        final double offsetX = left + 1 - minX * scaleX;
+        int channels = mChannels.length;
+        double[] scaleY = mScaleY;
+        double[] offsetY = mOffsetY;
+        for (int c = 0; c < channels; c++) {
+            boolean isSecond = mChannels[c].getAxis() == Axis.SECONDARY;
+            double minY = isSecond ? key[4] : key[2];
+            double maxY = isSecond ? key[5] : key[3];
+            scaleY[c] = height / (maxY - minY);
+            offsetY[c] = top + height + minY * scaleY[c];
+        }
+
+        double[] xs = columns.xs;
+        double[][] ys = columns.ys;
+        float[] px = mPixelX;
+        float[][] py = mPixelY;
+        int count;
+        if (!reduce) {
+            for (int i = from, j = 0; i < to; i++, j++) {
+                px[j] = (float) (xs[i] * scaleX + offsetX);
+                for (int c = 0; c < channels; c++) {
+                    py[c][j] = (float) (offsetY[c] - ys[c][i] * scaleY[c]);
+                }
+            }
+            count = n;
+        } else {
+            // the lowest and highest pixel of each channel per column.
+            // The row before and after the window get a column each.
+            float lowest = left - 1;
+            float highest = left + 1 + width + 1;
+            int j = 0;
+            long column = Long.MIN_VALUE;
+            for (int i = from; i < to; i++) {
+                float x = Math.max(lowest, Math.min(highest, (float) (xs[i] * scaleX + offsetX)));
+                long col = (long) Math.floor(x);
+                if (col != column) {
+                    column = col;
+                    px[j] = x;
+                    px[j+1] = x;
+                    for (int c = 0; c < channels; c++) {
+                        float y = (float) (offsetY[c] - ys[c][i] * scaleY[c]);
+                        py[c][j] = y;
+                        py[c][j+1] = y;
+                    }
+                    j += 2;
+                } else {
+                    for (int c = 0; c < channels; c++) {
+                        float y = (float) (offsetY[c] - ys[c][i] * scaleY[c]);
+                        if (y < py[c][j-2]) {
+                            py[c][j-2] = y;
+                        } else if (y > py[c][j-1]) {
+                            py[c][j-1] = y;
+                        }
+                    }
+                }
+            }
+            count = j;
+        }
+
+        if (mKey == null) {
+            mKey = new double[key.length];
+        }
+        System.arraycopy(key, 0, mKey, 0, key.length);
+        mProjected = columns;
+        mProjectedCount = count;
+        return count;
+    }
+
+    /**
+     * saves the transform of the current viewport
+     * for taps, without projecting the data
+     *
+     * @param graphView graphview
+     */
+    synchronized void saveProjection(GraphView graphView) {
+        makeKey(graphView, mNewKey);
+        saveTapKey(mNewKey);
+    }
+
+    /**
+     * @param key receives the viewport, scales and size
+     *            of the graph, see {@link #mKey}
+     */
+    private void makeKey(GraphView graphView, double[] key) {
+        key[0] = graphView.getViewport().getMinX(false);
+        key[1] = graphView.getViewport().getMaxX(false);
+        key[2] = graphView.getViewport().getMinY(false);
+        key[3] = graphView.getViewport().getMaxY(false);
+        boolean second = false;
+        for (Channel c : mChannels) {
+            second |= c.getAxis() == Axis.SECONDARY;
+        }
+        key[4] = second ? graphView.getSecondScale().getMinY() : 0;
+        key[5] = second ? graphView.getSecondScale().getMaxY() : 0;
+        key[6] = graphView.getGraphContentLeft();
+        key[7] = graphView.getGraphContentTop();
+        key[8] = graphView.getGraphContentWidth();
+        key[9] = graphView.getGraphContentHeight();
+    }
+
+    private void saveTapKey(double[] key) {
+        if (mTapKey == null) {
+            mTapKey = new double[key.length];
+        }
+        System.arraycopy(key, 0, mTapKey, 0, key.length);
+    }
+
+    /**
+     * finds the row that is closest to the pixel in the
+     * given channel, with the transform of the last draw
+     *
+     * @return the data point, or null if none is within 120 pixels
+     */
+    private synchronized DataPointInterface findDataPoint(int channel, float x, float y) {
+        double[] key = mTapKey;
+        if (key == null) {
+            return null;
+        }
+        float maxDistance = 120;
+        Columns columns = mColumns;
+        double scaleX = key[8] / (key[1] - key[0]);
+        double offsetX = key[6] + 1 - key[0] * scaleX;
+        boolean isSecond = mChannels[channel].getAxis() == Axis.SECONDARY;
+        double minY = isSecond ? key[4] : key[2];
+        double maxY = isSecond ? key[5] : key[3];
+        double scaleY = key[9] / (maxY - minY);
+        double offsetY = key[7] + key[9] + minY * scaleY;
+
+        // the rows within reach in x
+        double[] xs = columns.xs;
+        double[] ys = columns.ys[channel];
+        int from = lowerBound(xs, columns.start, columns.end, (x - maxDistance - offsetX) / scaleX);
+        int to = upperBound(xs, from, columns.end, (x + maxDistance - offsetX) / scaleX);
+        int best = -1;
+        double bestDistance = maxDistance * maxDistance;
+        for (int i = from; i < to; i++) {
+            double dx = xs[i] * scaleX + offsetX - x;
+            double dy = offsetY - ys[i] * scaleY - y;
+            double distance = dx*dx + dy*dy;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        return new DataPoint(xs[best], ys[best]);
+    }
+
+    /**
+     * @return index of the first value in xs[from..to) of at least x,
+     *         or to if there is none
+     */
+    private static int lowerBound(double[] xs, int from, int to, double x) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (xs[mid] < x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return index of the first value in xs[from..to) above x,
+     *         or to if there is none
+     */
+    private static int upperBound(double[] xs, int from, int to, double x) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (xs[mid] <= x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
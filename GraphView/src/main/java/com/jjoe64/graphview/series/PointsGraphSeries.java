@@ -23,11 +23,9 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.Point;
 
 import com.jjoe64.graphview.GraphView;
 
-import java.util.Iterator;
 
 /**
  * Series that plots the data as points.
@@ -106,6 +104,35 @@ public class PointsGraphSeries<E extends DataPointInterface> extends BaseSeries<
      */
     private Paint mPaint;
 
+    /**
+     * paint for the batched shapes.
+     * points and rectangles are drawn as
+     * thick points with round or square caps.
+     */
+    private Paint mBatchPaint;
+
+    /**
+     * reused coordinates of the visible shapes.
+     * two floats per point and rectangle,
+     * six floats per triangle.
+     */
+    private float[] mVertices;
+
+    /**
+     * reused path for the triangles on
+     * hardware accelerated canvases
+     */
+    private Path mPath;
+
+    /**
+     * projection, data version and size the path
+     * was built for. While they stay the same the
+     * path is drawn again as it is.
+     */
+    private Projection mPathProjection;
+    private long mPathVersion;
+    private float mPathSize;
+
     /**
      * handler to use a custom drawing
      */
@@ -137,6 +164,10 @@ public class PointsGraphSeries<E extends DataPointInterface> extends BaseSeries<
         mStyles.size = 20f;
         mPaint = new Paint();
         mPaint.setStrokeCap(Paint.Cap.ROUND);
+        mBatchPaint = new Paint();
+        mBatchPaint.setAntiAlias(true);
+        mVertices = new float[0];
+        mPath = new Path();
         setShape(Shape.POINT);
     }
 
@@ -149,8 +180,6 @@ public class PointsGraphSeries<E extends DataPointInterface> extends BaseSeries<
      */
     @Override
     public void draw(GraphView graphView, Canvas canvas, boolean isSecondScale) {
-        resetDataPoints();
-
         // get data
         double maxX = graphView.getViewport().getMaxX(false);
         double minX = graphView.getViewport().getMinX(false);
@@ -165,103 +194,117 @@ public class PointsGraphSeries<E extends DataPointInterface> extends BaseSeries<
             minY = graphView.getViewport().getMinY(false);
         }
 
-        Iterator<E> values = getValues(minX, maxX);
+        // the triangles did not move since the path was built
+        if (mCustomShape == null && mStyles.shape == Shape.TRIANGLE && canvas.isHardwareAccelerated()) {
+            saveProjection(graphView, minX, maxX, minY, maxY);
+            if (isPathValid()) {
+                mBatchPaint.setColor(getColor());
+                mBatchPaint.setStyle(Paint.Style.FILL);
+                canvas.drawPath(mPath, mBatchPaint);
+                return;
+            }
+        }
 
-        // draw background
-        double lastEndY = 0;
-        double lastEndX = 0;
+        // project the visible data in one pass
+        int count = projectValues(graphView, minX, maxX, minY, maxY);
+        float[] pixels = getProjectedPixels();
 
         // draw data
         mPaint.setColor(getColor());
 
-        double diffY = maxY - minY;
-        double diffX = maxX - minX;
-
         float graphHeight = graphView.getGraphContentHeight();
-        float graphWidth = graphView.getGraphContentWidth();
-        float graphLeft = graphView.getGraphContentLeft();
         float graphTop = graphView.getGraphContentTop();
-
-        lastEndY = 0;
-        lastEndX = 0;
-        float firstX = 0;
-        int i=0;
-        while (values.hasNext()) {
-            E value = values.next();
-
-            double valY = value.getY() - minY;
-            double ratY = valY / diffY;
-            double y = graphHeight * ratY;
-
-            double valX = value.getX() - minX;
-            double ratX = valX / diffX;
-            double x = graphWidth * ratX;
-
-            double orgX = x;
-            double orgY = y;
-
-            // overdraw
-            boolean overdraw = false;
-            if (x > graphWidth) { // end right
-                overdraw = true;
-            }
-            if (y < 0) { // end bottom
-                overdraw = true;
+        float contentRight = graphView.getGraphContentLeft() + 1 + graphView.getGraphContentWidth();
+
+        int n=0;
+        float size = mStyles.size;
+        int floatsPerShape = mStyles.shape == Shape.TRIANGLE ? 6 : 2;
+        for (int i = 0; i < count; i++) {
+            float endX = pixels[2*i];
+            float endY = pixels[2*i+1];
+
+            // overdraw: right, bottom or top of the content
+            if (endX > contentRight || endY > graphTop + graphHeight || endY < graphTop) {
+                continue;
             }
-            if (y > graphHeight) { // end top
-                overdraw = true;
-            }
-
-            float endX = (float) x + (graphLeft + 1);
-            float endY = (float) (graphTop - y) + graphHeight;
-            registerDataPoint(endX, endY, value);
 
             // draw data point
-            if (!overdraw) {
-                if (mCustomShape != null) {
-                    mCustomShape.draw(canvas, mPaint, endX, endY, value);
-                } else if (mStyles.shape == Shape.POINT) {
-                    canvas.drawCircle(endX, endY, mStyles.size, mPaint);
-                } else if (mStyles.shape == Shape.RECTANGLE) {
-                    canvas.drawRect(endX-mStyles.size, endY-mStyles.size, endX+mStyles.size, endY+mStyles.size, mPaint);
-                } else if (mStyles.shape == Shape.TRIANGLE) {
-                    Point[] points = new Point[3];
-                    points[0] = new Point((int)endX, (int)(endY-getSize()));
-                    points[1] = new Point((int)(endX+getSize()), (int)(endY+getSize()*0.67));
-                    points[2] = new Point((int)(endX-getSize()), (int)(endY+getSize()*0.67));
-                    drawArrows(points, canvas, mPaint);
+            if (mCustomShape != null) {
+                mCustomShape.draw(canvas, mPaint, endX, endY, getProjectedValue(i));
+            } else {
+                // collect the shape, it is drawn in one batch below
+                if (n + floatsPerShape > mVertices.length) {
+                    float[] vertices = new float[Math.max(64, mVertices.length * 2)];
+                    System.arraycopy(mVertices, 0, vertices, 0, n);
+                    mVertices = vertices;
+                }
+                if (mStyles.shape == Shape.TRIANGLE) {
+                    mVertices[n++] = endX;
+                    mVertices[n++] = endY - size;
+                    mVertices[n++] = endX + size;
+                    mVertices[n++] = endY + size * 0.67f;
+                    mVertices[n++] = endX - size;
+                    mVertices[n++] = endY + size * 0.67f;
+                } else {
+                    mVertices[n++] = endX;
+                    mVertices[n++] = endY;
                 }
             }
+        }
 
-            i++;
+        if (n > 0) {
+            drawBatch(canvas, n);
+        } else {
+            mPathProjection = null;
         }
+    }
 
+    /**
+     * @return true if the triangle path was built
+     *         for the current projection and data
+     */
+    private boolean isPathValid() {
+        return mPathProjection != null
+                && mPathProjection == getProjection()
+                && mPathVersion == getDataVersion()
+                && mPathSize == mStyles.size;
     }
 
     /**
-     * helper to render triangle
+     * draws all collected shapes with
+     * a single draw call.
      *
-     * @param point array with 3 coordinates
      * @param canvas canvas to draw on
-     * @param paint paint object
+     * @param n count of used floats in the vertex array
      */
-    private void drawArrows(Point[] point, Canvas canvas, Paint paint) {
-        float [] points  = new float[8];
-        points[0] = point[0].x;
-        points[1] = point[0].y;
-        points[2] = point[1].x;
-        points[3] = point[1].y;
-        points[4] = point[2].x;
-        points[5] = point[2].y;
-        points[6] = point[0].x;
-        points[7] = point[0].y;
-
-        canvas.drawVertices(Canvas.VertexMode.TRIANGLES, 8, points, 0, null, 0, null, 0, null, 0, 0, paint);
-        Path path = new Path();
-        path.moveTo(point[0].x , point[0].y);
-        path.lineTo(point[1].x,point[1].y);
-        path.lineTo(point[2].x,point[2].y);
-        canvas.drawPath(path,paint);
+    private void drawBatch(Canvas canvas, int n) {
+        mBatchPaint.setColor(getColor());
+        if (mStyles.shape == Shape.TRIANGLE) {
+            mBatchPaint.setStyle(Paint.Style.FILL);
+            if (canvas.isHardwareAccelerated()) {
+                // drawVertices is not supported by the hardware renderer
+                // before API 29. The path is kept for the next frames
+                // and only built again when the triangles moved.
+                mPath.rewind();
+                for (int i = 0; i < n; i += 6) {
+                    mPath.moveTo(mVertices[i], mVertices[i+1]);
+                    mPath.lineTo(mVertices[i+2], mVertices[i+3]);
+                    mPath.lineTo(mVertices[i+4], mVertices[i+5]);
+                    mPath.close();
+                }
+                mPathProjection = getProjection();
+                mPathVersion = getDataVersion();
+                mPathSize = mStyles.size;
+                canvas.drawPath(mPath, mBatchPaint);
+            } else {
+                canvas.drawVertices(Canvas.VertexMode.TRIANGLES, n, mVertices, 0, null, 0, null, 0, null, 0, 0, mBatchPaint);
+            }
+        } else {
+            mBatchPaint.setStyle(Paint.Style.STROKE);
+            mBatchPaint.setStrokeWidth(mStyles.size * 2);
+            mBatchPaint.setStrokeCap(mStyles.shape == Shape.RECTANGLE ? Paint.Cap.SQUARE : Paint.Cap.ROUND);
+            canvas.drawPoints(mVertices, 0, n, mBatchPaint);
+        }
     }
 
     /**
@@ -298,6 +341,7 @@ public class PointsGraphSeries<E extends DataPointInterface> extends BaseSeries<
      */
     public void setShape(Shape s) {
         mStyles.shape = s;
+        mPathProjection = null;
     }
 
     /**
@@ -308,5 +352,6 @@ public class PointsGraphSeries<E extends DataPointInterface> extends BaseSeries<
      */
     public void setCustomShape(CustomShape shape) {
         mCustomShape = shape;
+        mPathProjection = null;
     }
 }
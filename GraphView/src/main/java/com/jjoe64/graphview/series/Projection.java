@@ -0,0 +1,97 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+/**
+ * immutable transform from data values
+ * to canvas pixels, as used by a series
+ * for one draw.
+ *
+ * @author jjoe64
+ */
+final class Projection {
+    final double minX;
+    final double maxX;
+    final double minY;
+    final double maxY;
+    final float left;
+    final float top;
+    final float width;
+    final float height;
+
+    Projection(double minX, double maxX, double minY, double maxY, float left, float top, float width, float height) {
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return whether this projection is the same
+     *         as one made from the given values
+     */
+    boolean matches(double minX, double maxX, double minY, double maxY, float left, float top, float width, float height) {
+        return this.minX == minX && this.maxX == maxX && this.minY == minY && this.maxY == maxY
+                && this.left == left && this.top == top && this.width == width && this.height == height;
+    }
+
+    /**
+     * @param x x value
+     * @return the pixel column of the value
+     */
+    float toPixelX(double x) {
+        return (float) ((x - minX) * (width / (maxX - minX)) + (left + 1));
+    }
+
+    /**
+     * @param y y value
+     * @return the pixel row of the value
+     */
+    float toPixelY(double y) {
+        return (float) ((top + height) - (y - minY) * (height / (maxY - minY)));
+    }
+
+    /**
+     * projects a window of values to pixels in
+     * one pass. No clipping is done, points outside
+     * of the viewport get pixels outside of the content.
+     *
+     * @param xs x values
+     * @param ys y values
+     * @param from first index of the window
+     * @param to index after the last of the window
+     * @param out receives the pixels as x0, y0, x1, y1, ...
+     *            needs room for 2*(to-from) floats
+     */
+    void project(double[] xs, double[] ys, int from, int to, float[] out) {
+        final double scaleX = width / (maxX - minX);
+        final double scaleY = height / (maxY - minY);
+        final double offsetX = left + 1 - minX * scaleX;
+        final double offsetY = top + height + minY * scaleY;
+        for (int i = from, j = 0; i < to; i++, j += 2) {
+            out[j] = (float) (xs[i] * scaleX + offsetX);
+            out[j+1] = (float) (offsetY - ys[i] * scaleY);
+        }
+    }
+}
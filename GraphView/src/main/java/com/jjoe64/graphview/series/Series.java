@@ -59,6 +59,20 @@ public interface Series<E extends DataPointInterface> {
      */
     public double getHighestValueY();
 
+    /**
+     * @return  immutable summary of the bounds of the data.
+     *          The version of the summary changes whenever
+     *          the data changes.
+     */
+    public SeriesBounds getBounds();
+
+    /**
+     * @return  the version of the data, the same as the
+     *          version of {@link #getBounds()}, but cheap
+     *          to read as the bounds are not calculated.
+     */
+    public long getDataVersion();
+
     /**
      * get the values for a specific range. It is
      * important that the data comes in the sorted order
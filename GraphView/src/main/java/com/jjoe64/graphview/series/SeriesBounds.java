@@ -0,0 +1,167 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+/**
+ * immutable summary of the bounds of
+ * the data of a series.
+ * The version changes whenever the data of
+ * the series changes, so the bounds can be
+ * cached and compared cheaply.
+ *
+ * @author jjoe64
+ */
+public final class SeriesBounds {
+    private final double lowestX;
+    private final double highestX;
+    private final double lowestY;
+    private final double highestY;
+    private final boolean empty;
+    private final long version;
+
+    /**
+     * creates the bounds of a series with data
+     *
+     * @param lowestX lowest x value
+     * @param highestX highest x value
+     * @param lowestY lowest y value
+     * @param highestY highest y value
+     * @param version version of the data
+     */
+    public SeriesBounds(double lowestX, double highestX, double lowestY, double highestY, long version) {
+        this.lowestX = lowestX;
+        this.highestX = highestX;
+        this.lowestY = lowestY;
+        this.highestY = highestY;
+        this.empty = false;
+        this.version = version;
+    }
+
+    /**
+     * creates the bounds of a series without data.
+     * All values are 0.
+     *
+     * @param version version of the data
+     */
+    public SeriesBounds(long version) {
+        this.lowestX = 0d;
+        this.highestX = 0d;
+        this.lowestY = 0d;
+        this.highestY = 0d;
+        this.empty = true;
+        this.version = version;
+    }
+
+    /**
+     * calculates the bounds of a window of values
+     * in one pass, without allocating in between.
+     *
+     * @param xs x values
+     * @param ys y values
+     * @param from first index of the window
+     * @param to index after the last of the window
+     * @param version version of the data
+     * @return the bounds of the window
+     */
+    public static SeriesBounds scan(double[] xs, double[] ys, int from, int to, long version) {
+        if (from >= to) {
+            return new SeriesBounds(version);
+        }
+        double lowestX = xs[from];
+        double highestX = lowestX;
+        double lowestY = ys[from];
+        double highestY = lowestY;
+        for (int i = from + 1; i < to; i++) {
+            double x = xs[i];
+            double y = ys[i];
+            if (x < lowestX) lowestX = x;
+            if (x > highestX) highestX = x;
+            if (y < lowestY) lowestY = y;
+            if (y > highestY) highestY = y;
+        }
+        return new SeriesBounds(lowestX, highestX, lowestY, highestY, version);
+    }
+
+    /**
+     * @param x x value of a new data point
+     * @param y y value of a new data point
+     * @param version version of the data including the new point
+     * @return the bounds extended by the new point
+     */
+    public SeriesBounds extend(double x, double y, long version) {
+        if (empty) {
+            return new SeriesBounds(x, x, y, y, version);
+        }
+        return new SeriesBounds(Math.min(lowestX, x), Math.max(highestX, x),
+                Math.min(lowestY, y), Math.max(highestY, y), version);
+    }
+
+    /**
+     * @param x x value
+     * @param y y value
+     * @return true if the point lies on one of the bounds
+     */
+    public boolean isOnBounds(double x, double y) {
+        return !empty && (x == lowestX || x == highestX || y == lowestY || y == highestY);
+    }
+
+    /**
+     * @param y y value
+     * @return true if the value lies on one of the y bounds
+     */
+    public boolean isOnBoundsY(double y) {
+        return !empty && (y == lowestY || y == highestY);
+    }
+
+    public double getLowestX() {
+        return lowestX;
+    }
+
+    public double getHighestX() {
+        return highestX;
+    }
+
+    public double getLowestY() {
+        return lowestY;
+    }
+
+    public double getHighestY() {
+        return highestY;
+    }
+
+    /**
+     * @return whether the series has no data
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @return the version of the data
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "["+lowestX+".."+highestX+"/"+lowestY+".."+highestY+" v"+version+"]";
+    }
+}
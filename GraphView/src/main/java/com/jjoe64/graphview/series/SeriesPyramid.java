@@ -0,0 +1,258 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+/**
+ * multi-resolution summary of the data of a series,
+ * for drawing when zoomed out.
+ *
+ * Level l has one bin per 2^(l+1) data points and keeps
+ * the lowest and the highest point of each bin, in their
+ * original order. So level l has 2^l times fewer points
+ * than the data and still shows every peak. Level 0 is
+ * the data itself.
+ *
+ * Bins are numbered by the position of their points
+ * since the data was last reset, so appending data only
+ * adds bins and trimming the oldest data only drops bins.
+ * Complete bins are added when a level is used, the
+ * data after the last complete bin is read directly.
+ * The data has to be sorted by x.
+ *
+ * @author jjoe64
+ */
+final class SeriesPyramid {
+    static final int MAX_LEVEL = 24;
+
+    /**
+     * per level: points of the bins, two per bin
+     */
+    private final double[][] mX = new double[MAX_LEVEL + 1][];
+    private final double[][] mY = new double[MAX_LEVEL + 1][];
+
+    /**
+     * per level: number of the first stored bin,
+     * its position in the arrays and the count of bins
+     */
+    private final long[] mFirstBin = new long[MAX_LEVEL + 1];
+    private final int[] mOffset = new int[MAX_LEVEL + 1];
+    private final int[] mCount = new int[MAX_LEVEL + 1];
+
+    /**
+     * reset count of the data the bins were built from
+     */
+    private long mResets = -1;
+
+    /**
+     * result of the last gather
+     */
+    private double[] mOutX = new double[0];
+    private double[] mOutY = new double[0];
+
+    double[] getX() {
+        return mOutX;
+    }
+
+    double[] getY() {
+        return mOutY;
+    }
+
+    /**
+     * adds the complete bins of the levels up to the given one
+     * and drops the bins of trimmed data.
+     *
+     * @param xs x values
+     * @param ys y values
+     * @param start index of the first data point
+     * @param end index after the last data point
+     * @param seqStart position of the first data point since the last reset
+     * @param resets changes whenever the data was replaced
+     * @param level highest level that is needed
+     */
+    void update(double[] xs, double[] ys, int start, int end, long seqStart, long resets, int level) {
+        if (resets != mResets) {
+            mResets = resets;
+            for (int l = 1; l <= MAX_LEVEL; l++) {
+                clear(l, 0);
+            }
+        }
+        long seqEnd = seqStart + (end - start);
+        for (int l = 1; l <= Math.min(level, MAX_LEVEL); l++) {
+            int binSize = 2 << l;
+            // drop the bins of trimmed data
+            long firstValid = (seqStart + binSize - 1) / binSize;
+            if (mFirstBin[l] + mCount[l] < firstValid) {
+                clear(l, firstValid);
+            } else if (mFirstBin[l] < firstValid) {
+                int drop = (int) (firstValid - mFirstBin[l]);
+                mFirstBin[l] += drop;
+                mOffset[l] += drop;
+                mCount[l] -= drop;
+            }
+
+            long next = mFirstBin[l] + mCount[l];
+            if (l == 1) {
+                // from the data, four points per bin
+                while ((next + 1) * binSize <= seqEnd) {
+                    int i = start + (int) (next * binSize - seqStart);
+                    addBin(l, xs, ys, i, i + binSize);
+                    next++;
+                }
+            } else {
+                // from two bins of the level below
+                int below = l - 1;
+                if (2 * next < mFirstBin[below]) {
+                    clear(l, (mFirstBin[below] + 1) / 2);
+                    next = mFirstBin[l];
+                }
+                while (2 * next + 2 <= mFirstBin[below] + mCount[below]) {
+                    int i = 2 * (mOffset[below] + (int) (2 * next - mFirstBin[below]));
+                    addBin(l, mX[below], mY[below], i, i + 4);
+                    next++;
+                }
+            }
+        }
+    }
+
+    /**
+     * collects the points of a level for an x range into
+     * {@link #getX()} and {@link #getY()}: the data before
+     * the first complete bin, the bins, and the data after the
+     * last complete bin. Includes one point before and after
+     * the range.
+     *
+     * @param level level, built by {@link #update}
+     * @return count of points
+     */
+    int gather(double[] xs, double[] ys, int start, int end, long seqStart, int level, double minX, double maxX) {
+        int n = 0;
+        if (level < 1 || mCount[level] == 0) {
+            return append(n, xs, ys, start, end, minX, maxX);
+        }
+        long binSize = 2 << level;
+        int headEnd = start + (int) Math.max(0, Math.min(end - start, mFirstBin[level] * binSize - seqStart));
+        int tailStart = start + (int) Math.min(end - start, (mFirstBin[level] + mCount[level]) * binSize - seqStart);
+        n = append(n, xs, ys, start, headEnd, minX, maxX);
+        int from = mOffset[level];
+        n = append(n, mX[level], mY[level], 2 * from, 2 * (from + mCount[level]), minX, maxX);
+        n = append(n, xs, ys, tailStart, end, minX, maxX);
+        return n;
+    }
+
+    /**
+     * appends the points of src[from..to) within the range,
+     * plus one point on either side, to the output
+     */
+    private int append(int n, double[] srcX, double[] srcY, int from, int to, double minX, double maxX) {
+        if (from >= to) {
+            return n;
+        }
+        int lo = Math.max(from, lowerBound(srcX, from, to, minX) - 1);
+        int hi = lowerBound(srcX, lo, to, maxX);
+        while (hi < to && srcX[hi] <= maxX) {
+            hi++;
+        }
+        hi = Math.min(to, hi + 1);
+        int count = hi - lo;
+        if (n + count > mOutX.length) {
+            double[] x = new double[Math.max(64, (n + count) * 2)];
+            double[] y = new double[x.length];
+            System.arraycopy(mOutX, 0, x, 0, n);
+            System.arraycopy(mOutY, 0, y, 0, n);
+            mOutX = x;
+            mOutY = y;
+        }
+        System.arraycopy(srcX, lo, mOutX, n, count);
+        System.arraycopy(srcY, lo, mOutY, n, count);
+        return n + count;
+    }
+
+    /**
+     * adds a bin to a level with the lowest and highest of the
+     * points src[from..to), in their order
+     */
+    private void addBin(int level, double[] srcX, double[] srcY, int from, int to) {
+        int min = from;
+        int max = from;
+        for (int i = from + 1; i < to; i++) {
+            if (srcY[i] < srcY[min]) min = i;
+            if (srcY[i] > srcY[max]) max = i;
+        }
+        int first = Math.min(min, max);
+        int second = Math.max(min, max);
+
+        double[] x = mX[level];
+        double[] y = mY[level];
+        int slot = mOffset[level] + mCount[level];
+        if (x == null || 2 * slot + 2 > x.length) {
+            int count = mCount[level];
+            if (x != null && mOffset[level] > count) {
+                // enough space at the start, move the bins down
+                System.arraycopy(x, 2 * mOffset[level], x, 0, 2 * count);
+                System.arraycopy(y, 2 * mOffset[level], y, 0, 2 * count);
+            } else {
+                double[] nx = new double[Math.max(64, 4 * (count + 1))];
+                double[] ny = new double[nx.length];
+                if (x != null) {
+                    System.arraycopy(x, 2 * mOffset[level], nx, 0, 2 * count);
+                    System.arraycopy(y, 2 * mOffset[level], ny, 0, 2 * count);
+                }
+                x = mX[level] = nx;
+                y = mY[level] = ny;
+            }
+            mOffset[level] = 0;
+            slot = count;
+        }
+        x[2 * slot] = srcX[first];
+        y[2 * slot] = srcY[first];
+        x[2 * slot + 1] = srcX[second];
+        y[2 * slot + 1] = srcY[second];
+        mCount[level]++;
+    }
+
+    /**
+     * removes all bins of a level
+     *
+     * @param firstBin number of the next bin to add
+     */
+    private void clear(int level, long firstBin) {
+        mFirstBin[level] = firstBin;
+        mOffset[level] = 0;
+        mCount[level] = 0;
+    }
+
+    /**
+     * @return index of the first value in xs[from..to) of at least x,
+     *         or to if there is none
+     */
+    static int lowerBound(double[] xs, int from, int to, double x) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (xs[mid] < x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview;
+
+import java.util.Arrays;
+
+/**
+ * timing harness for the benchmarks next to the tests.
+ * They have a main() and no @Test, so the test task
+ * doesn't run them. The JIT is warmed up with a few
+ * rounds first, then the median of the timed rounds
+ * is taken.
+ *
+ * @author jjoe64
+ */
+public final class Benchmark {
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 30;
+
+    /**
+     * a frame at 60 fps in ns, the budget of a redraw
+     */
+    public static final double FRAME_NS = 1e9 / 60;
+
+    /**
+     * anything the operation returns goes here,
+     * so the JIT can't drop the work
+     */
+    public static volatile double sink;
+
+    private Benchmark() {
+    }
+
+    /**
+     * @param op the operation
+     * @param calls calls of op per round
+     * @return median time of one call of op in ns
+     */
+    public static double median(Runnable op, int calls) {
+        for (int r = 0; r < WARMUP_ROUNDS; r++) {
+            for (int i = 0; i < calls; i++) {
+                op.run();
+            }
+        }
+        double[] ns = new double[ROUNDS];
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                op.run();
+            }
+            ns[r] = (double) (System.nanoTime() - start) / calls;
+        }
+        Arrays.sort(ns);
+        return ns[ROUNDS / 2];
+    }
+
+    /**
+     * prints the time against the budget
+     *
+     * @param name what was timed
+     * @param ns time in ns
+     * @param budgetNs the time available in ns
+     */
+    public static void report(String name, double ns, double budgetNs) {
+        System.out.println(String.format("%-48s %12.2f us  %7.3f%% of %.1f ms",
+                name, ns / 1e3, 100 * ns / budgetNs, budgetNs / 1e6));
+    }
+}
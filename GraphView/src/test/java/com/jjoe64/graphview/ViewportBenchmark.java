@@ -0,0 +1,155 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview;
+
+import android.graphics.Canvas;
+import android.graphics.RectF;
+
+import com.jjoe64.graphview.series.BaseSeries;
+import com.jjoe64.graphview.series.DataPoint;
+import com.jjoe64.graphview.series.Series;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * times the complete range of the viewport with many series
+ * and long histories, against a frame at 60 fps.
+ * calcCompleteRange runs on every redraw, so the cases are
+ * a redraw without new data, a redraw after a point was
+ * appended to one series (trimming the oldest one), and
+ * the four scans per series that were done before the
+ * bounds of the series were cached.
+ *
+ * @author jjoe64
+ */
+public class ViewportBenchmark {
+    /**
+     * a series that only holds data
+     */
+    private static class DataSeries extends BaseSeries<DataPoint> {
+        @Override
+        public void draw(GraphView graphView, Canvas canvas, boolean isSecondScale) {
+        }
+    }
+
+    private static double y(int series, double x) {
+        return Math.sin(x * 0.01 + series) * 100 + series;
+    }
+
+    /**
+     * @return the range the way calcCompleteRange did before
+     *         the bounds were cached, one scan per value
+     */
+    private static double scan(List<DataSeries> series) {
+        double r = 0;
+        for (DataSeries s : series) {
+            double lowestX = Double.MAX_VALUE;
+            double highestX = -Double.MAX_VALUE;
+            double lowestY = Double.MAX_VALUE;
+            double highestY = -Double.MAX_VALUE;
+            Iterator<DataPoint> it = s.getValues(-Double.MAX_VALUE, Double.MAX_VALUE);
+            while (it.hasNext()) {
+                lowestX = Math.min(lowestX, it.next().getX());
+            }
+            it = s.getValues(-Double.MAX_VALUE, Double.MAX_VALUE);
+            while (it.hasNext()) {
+                highestX = Math.max(highestX, it.next().getX());
+            }
+            it = s.getValues(-Double.MAX_VALUE, Double.MAX_VALUE);
+            while (it.hasNext()) {
+                lowestY = Math.min(lowestY, it.next().getY());
+            }
+            it = s.getValues(-Double.MAX_VALUE, Double.MAX_VALUE);
+            while (it.hasNext()) {
+                highestY = Math.max(highestY, it.next().getY());
+            }
+            r += lowestX + highestX + lowestY + highestY;
+        }
+        return r;
+    }
+
+    private static void run(int seriesCount, final int history) {
+        final List<Series> series = new ArrayList<Series>();
+        final List<DataSeries> data = new ArrayList<DataSeries>();
+        for (int s = 0; s < seriesCount; s++) {
+            DataSeries d = new DataSeries();
+            for (int i = 0; i < history; i++) {
+                d.appendData(new DataPoint(i, y(s, i)), false, history);
+            }
+            data.add(d);
+            series.add(d);
+        }
+        final CompleteRange cache = new CompleteRange();
+        final RectF range = new RectF();
+        String name = seriesCount + " series x " + history + " points: ";
+
+        double ns = Benchmark.median(new Runnable() {
+            @Override
+            public void run() {
+                cache.update(series, range);
+                Benchmark.sink += range.right;
+            }
+        }, 10000);
+        Benchmark.report(name + "unchanged", ns, Benchmark.FRAME_NS);
+
+        // appends the next point to one series after the other
+        final Runnable append = new Runnable() {
+            int s = 0;
+            int x = history;
+
+            @Override
+            public void run() {
+                data.get(s).appendData(new DataPoint(x, y(s, x)), false, history);
+                if (++s == data.size()) {
+                    s = 0;
+                    x++;
+                }
+            }
+        };
+        ns = Benchmark.median(new Runnable() {
+            @Override
+            public void run() {
+                append.run();
+                cache.update(series, range);
+                Benchmark.sink += range.right;
+            }
+        }, 1000);
+        Benchmark.report(name + "append + update", ns, Benchmark.FRAME_NS);
+        ns = Benchmark.median(append, 1000);
+        Benchmark.report(name + "append alone", ns, Benchmark.FRAME_NS);
+
+        ns = Benchmark.median(new Runnable() {
+            @Override
+            public void run() {
+                Benchmark.sink += scan(data);
+            }
+        }, Math.max(1, 200000 / (seriesCount * history)));
+        Benchmark.report(name + "full scans", ns, Benchmark.FRAME_NS);
+    }
+
+    public static void main(String[] args) {
+        run(4, 1000);
+        run(4, 100000);
+        run(32, 1000);
+        run(32, 100000);
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+import android.graphics.Canvas;
+
+import com.jjoe64.graphview.GraphView;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests the snapshots and bounds of {@link BaseSeries}
+ *
+ * @author jjoe64
+ */
+public class BaseSeriesTest {
+    /**
+     * a series that only holds data
+     */
+    private static class TestSeries extends BaseSeries<DataPoint> {
+        @Override
+        public void draw(GraphView graphView, Canvas canvas, boolean isSecondScale) {
+        }
+    }
+
+    private static TestSeries series(int count) {
+        TestSeries s = new TestSeries();
+        for (int i = 0; i < count; i++) {
+            s.appendData(new DataPoint(i, i * i), false, count);
+        }
+        return s;
+    }
+
+    /**
+     * y value of the stress test data, only depends on x
+     */
+    private static double f(double x) {
+        return Math.sin(x * 0.37) * 100 + x % 7;
+    }
+
+    private static double[] xs(Iterator<DataPoint> it) {
+        double[] xs = new double[0];
+        while (it.hasNext()) {
+            double[] n = new double[xs.length + 1];
+            System.arraycopy(xs, 0, n, 0, xs.length);
+            n[xs.length] = it.next().getX();
+            xs = n;
+        }
+        return xs;
+    }
+
+    @Test
+    public void boundsFollowTheWindowOfAppends() {
+        TestSeries s = new TestSeries();
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            s.appendData(new DataPoint(i * 0.01, Math.sin(i / 50.0) + random.nextGaussian() * 0.1), false, 500);
+
+            double lowestX = Double.MAX_VALUE, highestX = -Double.MAX_VALUE;
+            double lowestY = Double.MAX_VALUE, highestY = -Double.MAX_VALUE;
+            Iterator<DataPoint> it = s.getValues(-Double.MAX_VALUE, Double.MAX_VALUE);
+            while (it.hasNext()) {
+                DataPoint p = it.next();
+                lowestX = Math.min(lowestX, p.getX());
+                highestX = Math.max(highestX, p.getX());
+                lowestY = Math.min(lowestY, p.getY());
+                highestY = Math.max(highestY, p.getY());
+            }
+            assertEquals(lowestX, s.getLowestValueX(), 0);
+            assertEquals(highestX, s.getHighestValueX(), 0);
+            assertEquals(lowestY, s.getLowestValueY(), 0);
+            assertEquals(highestY, s.getHighestValueY(), 0);
+        }
+    }
+
+    @Test
+    public void appendTrimsTheOldestData() {
+        TestSeries s = series(10);
+        s.appendData(new DataPoint(10, 100), false, 10);
+        double[] xs = xs(s.getValues(-Double.MAX_VALUE, Double.MAX_VALUE));
+        assertEquals(10, xs.length);
+        assertEquals(1, xs[0], 0);
+        assertEquals(10, xs[9], 0);
+        assertEquals(1, s.getLowestValueY(), 0);
+    }
+
+    @Test
+    public void getValuesIncludesOnePointBeforeAndAfter() {
+        double[] xs = xs(series(10).getValues(3.5, 6.5));
+        assertEquals(5, xs.length);
+        assertEquals(3, xs[0], 0);
+        assertEquals(7, xs[4], 0);
+    }
+
+    @Test
+    public void getValuesAfterReturnsTheNewerPoints() {
+        TestSeries s = series(10);
+        double[] xs = xs(s.getValuesAfter(6));
+        assertEquals(3, xs.length);
+        assertEquals(7, xs[0], 0);
+        assertFalse(s.getValuesAfter(9).hasNext());
+    }
+
+    @Test
+    public void iteratorKeepsItsSnapshot() {
+        TestSeries s = series(10);
+        Iterator<DataPoint> it = s.getValues(-Double.MAX_VALUE, Double.MAX_VALUE);
+        long version = s.getDataVersion();
+        // appends and trims while iterating, growing the arrays too
+        for (int i = 10; i < 100; i++) {
+            s.appendData(new DataPoint(i, i * i), false, 10);
+        }
+        assertEquals(version + 90, s.getDataVersion());
+        double[] xs = xs(it);
+        assertEquals(10, xs.length);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, xs[i], 0);
+        }
+    }
+
+    /**
+     * a writer appends and trims while a reader iterates,
+     * reads the bounds and projects. Every read has to
+     * see one consistent window of the data.
+     */
+    @Test
+    public void readersSeeConsistentSnapshotsWhileAppending() throws Throwable {
+        final int count = 200000;
+        final int max = 500;
+        final TestSeries s = new TestSeries();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        s.appendData(new DataPoint(i, f(i)), false, max);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                } finally {
+                    done.set(true);
+                }
+            }
+        });
+        writer.start();
+
+        int reads = 0;
+        int sameVersion = 0;
+        while (!done.get() || reads == 0) {
+            long version = s.getDataVersion();
+            Iterator<DataPoint> it = s.getValues(-Double.MAX_VALUE, Double.MAX_VALUE);
+            SeriesBounds bounds = s.getBounds();
+            boolean sameSnapshot = version == s.getDataVersion();
+            if (!it.hasNext()) {
+                // nothing appended yet
+                continue;
+            }
+            reads++;
+
+            // the iteration is one contiguous window of the appends
+            int n = 0;
+            double first = 0, lastX = 0;
+            double lowestY = Double.MAX_VALUE, highestY = -Double.MAX_VALUE;
+            while (it.hasNext()) {
+                DataPoint p = it.next();
+                if (n == 0) {
+                    first = p.getX();
+                } else {
+                    assertEquals(lastX + 1, p.getX(), 0);
+                }
+                assertEquals(f(p.getX()), p.getY(), 0);
+                lastX = p.getX();
+                lowestY = Math.min(lowestY, p.getY());
+                highestY = Math.max(highestY, p.getY());
+                n++;
+            }
+            assertTrue(n >= 1 && n <= max);
+            if (sameSnapshot) {
+                sameVersion++;
+                assertEquals(first, bounds.getLowestX(), 0);
+                assertEquals(lastX, bounds.getHighestX(), 0);
+                assertEquals(lowestY, bounds.getLowestY(), 0);
+                assertEquals(highestY, bounds.getHighestY(), 0);
+            }
+
+            // the bounds are those of a full scan of their own window
+            double low = Double.MAX_VALUE, high = -Double.MAX_VALUE;
+            for (double x = bounds.getLowestX(); x <= bounds.getHighestX(); x++) {
+                low = Math.min(low, f(x));
+                high = Math.max(high, f(x));
+            }
+            assertTrue(bounds.getHighestX() - bounds.getLowestX() < max);
+            assertEquals(low, bounds.getLowestY(), 0);
+            assertEquals(high, bounds.getHighestY(), 0);
+
+            // the projected pixels belong to the projected points
+            s.saveProjection(bounds.getLowestX(), bounds.getHighestX(), bounds.getLowestY(), bounds.getHighestY(), 0, 0, 1000, 500);
+            Projection projection = s.getProjection();
+            int projected = s.projectValues(bounds.getLowestX(), bounds.getHighestX());
+            float[] pixels = s.getProjectedPixels();
+            if (!(projected >= 1 && projected <= max)) System.out.println("DBG " + projected + " " + bounds + " " + s.getBounds());
+            assertTrue(projected >= 1 && projected <= max);
+            for (int i = 0; i < projected; i++) {
+                DataPoint p = s.getProjectedValue(i);
+                if (i > 0) {
+                    assertEquals(s.getProjectedValue(i - 1).getX() + 1, p.getX(), 0);
+                }
+                assertEquals(projection.toPixelX(p.getX()), pixels[2*i], 0.01);
+                assertEquals(projection.toPixelY(p.getY()), pixels[2*i+1], 0.01);
+            }
+        }
+        writer.join();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertTrue(reads > 0);
+        assertTrue(sameVersion > 0);
+        assertEquals(count, s.getDataVersion());
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests the bucket cache and the selection of
+ * {@link LttbDownsampler}
+ *
+ * @author jjoe64
+ */
+public class LttbDownsamplerTest {
+    /**
+     * x is the index, so points can be looked up
+     */
+    private static double[] xs(int count) {
+        double[] xs = new double[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = i;
+        }
+        return xs;
+    }
+
+    private static double[] noise(int count, long seed) {
+        Random random = new Random(seed);
+        double[] ys = new double[count];
+        for (int i = 0; i < count; i++) {
+            ys[i] = Math.sin(i / 300.0) + random.nextGaussian() * 0.1;
+        }
+        return ys;
+    }
+
+    /**
+     * the output has to be points of the input, ascending
+     */
+    private static void assertSelection(LttbDownsampler ds, int n, double[] ys) {
+        double lastX = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            double x = ds.getX()[i];
+            assertTrue("ascending at " + i, x > lastX);
+            assertEquals("y at " + x, ys[(int) x], ds.getY()[i], 0);
+            lastX = x;
+        }
+    }
+
+    @Test
+    public void bucketWidthIsAPowerOfTwo() {
+        double[] ranges = {0.001, 1, 37.5, 1000, 123456};
+        int[] targets = {1, 50, 333, 1024};
+        for (double range : ranges) {
+            for (int target : targets) {
+                double width = LttbDownsampler.bucketWidth(10, 10 + range, target);
+                double exponent = Math.log(width) / Math.log(2);
+                assertEquals(Math.rint(exponent), exponent, 1e-9);
+                assertTrue(width <= range / target);
+                assertTrue(width > range / target / 2);
+            }
+        }
+    }
+
+    @Test
+    public void keepsEverythingWhenThereAreFewerPointsThanBuckets() {
+        double[] xs = xs(10);
+        double[] ys = noise(10, 1);
+        LttbDownsampler ds = new LttbDownsampler(false);
+        int n = ds.downsample(xs, ys, 0, 10, 0, 9, 100, 1);
+        assertEquals(10, n);
+        assertSelection(ds, n, ys);
+    }
+
+    @Test
+    public void selectsAboutOnePointPerBucket() {
+        int count = 100000;
+        double[] xs = xs(count);
+        double[] ys = noise(count, 2);
+        for (boolean minMax : new boolean[] {false, true}) {
+            LttbDownsampler ds = new LttbDownsampler(minMax);
+            int n = ds.downsample(xs, ys, 0, count, 0, count - 1, 200, 1);
+            assertTrue(n > 200);
+            assertTrue(n <= 2 * 200 + 3);
+            assertSelection(ds, n, ys);
+            // the first and the last point are kept
+            assertEquals(0, ds.getX()[0], 0);
+            assertEquals(count - 1, ds.getX()[n - 1], 0);
+        }
+    }
+
+    @Test
+    public void keepsASpike() {
+        int count = 100000;
+        double[] xs = xs(count);
+        double[] ys = noise(count, 3);
+        ys[54321] = 100;
+        for (boolean minMax : new boolean[] {false, true}) {
+            LttbDownsampler ds = new LttbDownsampler(minMax);
+            int n = ds.downsample(xs, ys, 0, count, 0, count - 1, 100, 1);
+            boolean found = false;
+            for (int i = 0; i < n; i++) {
+                found |= ds.getY()[i] == 100;
+            }
+            assertTrue(found);
+        }
+    }
+
+    @Test
+    public void panningKeepsTheSelectionOfTheBuckets() {
+        int count = 100000;
+        double[] xs = xs(count);
+        double[] ys = noise(count, 4);
+        LttbDownsampler ds = new LttbDownsampler(true);
+        int n = ds.downsample(xs, ys, 0, count, 20000, 60000, 100, 1);
+        double[] firstX = new double[n];
+        System.arraycopy(ds.getX(), 0, firstX, 0, n);
+
+        // a little to the right, the bucket width stays the same
+        int m = ds.downsample(xs, ys, 0, count, 25000, 65000, 100, 1);
+        assertSelection(ds, m, ys);
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (firstX[i] < 30000 || firstX[i] > 55000) {
+                continue;
+            }
+            while (j < m && ds.getX()[j] < firstX[i]) {
+                j++;
+            }
+            assertEquals("kept " + firstX[i], firstX[i], ds.getX()[j], 0);
+        }
+    }
+
+    @Test
+    public void appendedDataIsSelected() {
+        int count = 20000;
+        double[] xs = xs(count);
+        double[] ys = noise(count, 5);
+        LttbDownsampler ds = new LttbDownsampler(false);
+        ds.downsample(xs, ys, 0, count / 2, 0, count, 100, 1);
+        // the same data source with more points
+        int n = ds.downsample(xs, ys, 0, count, 0, count, 100, 1);
+        assertSelection(ds, n, ys);
+        assertEquals(count - 1, ds.getX()[n - 1], 0);
+
+        LttbDownsampler fresh = new LttbDownsampler(false);
+        int m = fresh.downsample(xs, ys, 0, count, 0, count, 100, 1);
+        assertEquals(m, n);
+    }
+
+    @Test
+    public void anotherSourceIsNotTakenFromTheCache() {
+        int count = 20000;
+        double[] xs = xs(count);
+        double[] ys = noise(count, 6);
+        LttbDownsampler ds = new LttbDownsampler(false);
+        ds.downsample(xs, noise(count, 7), 0, count, 0, count, 100, 1);
+        int n = ds.downsample(xs, ys, 0, count, 0, count, 100, 2);
+        assertSelection(ds, n, ys);
+    }
+}
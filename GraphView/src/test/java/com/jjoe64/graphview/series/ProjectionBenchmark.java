@@ -0,0 +1,158 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+import android.graphics.Canvas;
+
+import com.jjoe64.graphview.Benchmark;
+import com.jjoe64.graphview.GraphView;
+
+import java.util.Iterator;
+
+/**
+ * times the projection stage each series type draws with,
+ * against a frame at 60 fps. Every call appends a sample,
+ * trimming the oldest one, and projects the window that
+ * follows the data, like a trend plot does per redraw.
+ * Points and bars project all visible data, lines with
+ * level of detail project a summary level, and lines with
+ * LTTB downsample on top of that. The per point loop with
+ * getX()/getY() the series did before is timed as well.
+ * The series types themselves need a Paint, so their draw
+ * loops after the projection are not timed.
+ *
+ * @author jjoe64
+ */
+public class ProjectionBenchmark {
+    private static final float WIDTH = 1000;
+    private static final float HEIGHT = 500;
+
+    /**
+     * a series that only holds data
+     */
+    private static class DataSeries extends BaseSeries<DataPoint> {
+        @Override
+        public void draw(GraphView graphView, Canvas canvas, boolean isSecondScale) {
+        }
+    }
+
+    /**
+     * a stage of drawing a frame, after the new sample
+     * was appended
+     */
+    private interface Stage {
+        int project(DataSeries series, double minX, double maxX);
+    }
+
+    private static double y(double x) {
+        return Math.sin(x * 0.01) * 100 + Math.sin(x * 0.37) * 5;
+    }
+
+    /**
+     * the level of the summary, like
+     * {@link com.jjoe64.graphview.Viewport#getLevelOfDetail(double)}
+     */
+    private static int level(int visible) {
+        double budget = 2 * WIDTH;
+        if (visible <= budget) {
+            return 0;
+        }
+        int level = (int) Math.ceil(Math.log(visible / budget) / Math.log(2));
+        return Math.min(level, SeriesPyramid.MAX_LEVEL);
+    }
+
+    /**
+     * the projection the way the series drew before the
+     * projection stage, per data point through the iterator
+     */
+    private static int perPoint(DataSeries series, double minX, double maxX, float[] pixels) {
+        double minY = -110;
+        double diffX = maxX - minX;
+        double diffY = 220;
+        int i = 0;
+        Iterator<DataPoint> values = series.getValues(minX, maxX);
+        while (values.hasNext() && i < pixels.length) {
+            DataPoint v = values.next();
+            double x = (v.getX() - minX) / diffX * WIDTH;
+            double y = (v.getY() - minY) / diffY * HEIGHT;
+            pixels[i++] = (float) x;
+            pixels[i++] = (float) (HEIGHT - y);
+        }
+        return i / 2;
+    }
+
+    private static void run(final int count, final double visible, String name, final Stage stage) {
+        final DataSeries series = new DataSeries();
+        for (int i = 0; i < count; i++) {
+            series.appendData(new DataPoint(i, y(i)), false, count);
+        }
+        double ns = Benchmark.median(new Runnable() {
+            int x = count;
+
+            @Override
+            public void run() {
+                series.appendData(new DataPoint(x, y(x)), false, count);
+                double maxX = x++;
+                double minX = maxX - (count - 1) * visible;
+                series.saveProjection(minX, maxX, -110, 110, 0, 0, WIDTH, HEIGHT);
+                Benchmark.sink += stage.project(series, minX, maxX);
+            }
+        }, Math.max(1, 1000000 / count));
+        Benchmark.report(count + " points, " + (int) (visible * 100) + "% visible: " + name, ns, Benchmark.FRAME_NS);
+    }
+
+    private static void run(final int count, final double visible) {
+        run(count, visible, "points/bars", new Stage() {
+            @Override
+            public int project(DataSeries series, double minX, double maxX) {
+                return series.projectValues(minX, maxX);
+            }
+        });
+        final int level = level((int) (count * visible));
+        run(count, visible, "line, level " + level, new Stage() {
+            @Override
+            public int project(DataSeries series, double minX, double maxX) {
+                return series.projectLevelOfDetail(minX, maxX, level);
+            }
+        });
+        final LttbDownsampler downsampler = new LttbDownsampler(false);
+        run(count, visible, "line, LTTB", new Stage() {
+            @Override
+            public int project(DataSeries series, double minX, double maxX) {
+                return series.projectDownsampled(minX, maxX, (int) WIDTH, level, downsampler);
+            }
+        });
+        final float[] pixels = new float[2 * count];
+        run(count, visible, "per point getX/getY", new Stage() {
+            @Override
+            public int project(DataSeries series, double minX, double maxX) {
+                return perPoint(series, minX, maxX, pixels);
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        run(1000, 1);
+        run(10000, 1);
+        run(100000, 1);
+        run(100000, 0.1);
+        run(1000000, 1);
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * GraphView
+ * Copyright (C) 2014  Jonas Gehring
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License,
+ * with the "Linking Exception", which can be found at the license.txt
+ * file in this program.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * with the "Linking Exception" along with this program; if not,
+ * write to the author Jonas Gehring <g.jjoe64@gmail.com>.
+ */
+package com.jjoe64.graphview.series;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * tests the levels of {@link SeriesPyramid}
+ *
+ * @author jjoe64
+ */
+public class SeriesPyramidTest {
+    private static final int COUNT = 10000;
+
+    private static double[] xs(int count) {
+        double[] xs = new double[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = i * 0.5;
+        }
+        return xs;
+    }
+
+    private static double[] noise(int count, long seed) {
+        Random random = new Random(seed);
+        double[] ys = new double[count];
+        for (int i = 0; i < count; i++) {
+            ys[i] = random.nextGaussian();
+        }
+        return ys;
+    }
+
+    /**
+     * the points of a level for the whole data
+     */
+    private static double[][] gather(SeriesPyramid p, double[] xs, double[] ys, int start, int end, int level) {
+        int n = p.gather(xs, ys, start, end, start, level, xs[start], xs[end - 1]);
+        double[][] points = new double[2][n];
+        System.arraycopy(p.getX(), 0, points[0], 0, n);
+        System.arraycopy(p.getY(), 0, points[1], 0, n);
+        return points;
+    }
+
+    private static void assertSamePoints(double[][] expected, double[][] actual) {
+        assertArrayEquals("x", expected[0], actual[0], 0);
+        assertArrayEquals("y", expected[1], actual[1], 0);
+    }
+
+    @Test
+    public void binsKeepTheLowestAndHighestPointInOrder() {
+        double[] xs = xs(8);
+        double[] ys = {1, 5, -2, 0, 3, 3, 4, 2};
+        SeriesPyramid p = new SeriesPyramid();
+        p.update(xs, ys, 0, 8, 0, 0, 1);
+        double[][] points = gather(p, xs, ys, 0, 8, 1);
+        assertArrayEquals(new double[] {0.5, 1, 3, 3.5}, points[0], 0);
+        assertArrayEquals(new double[] {5, -2, 4, 2}, points[1], 0);
+    }
+
+    @Test
+    public void levelsHalveTheDataAndKeepThePeaks() {
+        double[] xs = xs(COUNT);
+        double[] ys = noise(COUNT, 1);
+        double lowest = Double.MAX_VALUE, highest = -Double.MAX_VALUE;
+        for (double y : ys) {
+            lowest = Math.min(lowest, y);
+            highest = Math.max(highest, y);
+        }
+        SeriesPyramid p = new SeriesPyramid();
+        p.update(xs, ys, 0, COUNT, 0, 0, 8);
+        for (int level = 1; level <= 8; level++) {
+            double[][] points = gather(p, xs, ys, 0, COUNT, level);
+            int expected = COUNT >> level;
+            assertTrue("level " + level, points[0].length >= expected && points[0].length <= expected + (2 << level));
+            double low = Double.MAX_VALUE, high = -Double.MAX_VALUE;
+            for (int i = 0; i < points[0].length; i++) {
+                if (i > 0) {
+                    assertTrue(points[0][i] > points[0][i - 1]);
+                }
+                low = Math.min(low, points[1][i]);
+                high = Math.max(high, points[1][i]);
+            }
+            assertEquals(lowest, low, 0);
+            assertEquals(highest, high, 0);
+        }
+    }
+
+    @Test
+    public void appendingBuildsTheSameLevels() {
+        double[] xs = xs(COUNT);
+        double[] ys = noise(COUNT, 2);
+        SeriesPyramid appended = new SeriesPyramid();
+        for (int end = 37; end < COUNT; end += 37) {
+            appended.update(xs, ys, 0, end, 0, 0, 6);
+        }
+        appended.update(xs, ys, 0, COUNT, 0, 0, 6);
+        SeriesPyramid fresh = new SeriesPyramid();
+        fresh.update(xs, ys, 0, COUNT, 0, 0, 6);
+        for (int level = 1; level <= 6; level++) {
+            assertSamePoints(gather(fresh, xs, ys, 0, COUNT, level), gather(appended, xs, ys, 0, COUNT, level));
+        }
+    }
+
+    @Test
+    public void trimmingDropsTheOldBins() {
+        double[] xs = xs(COUNT);
+        double[] ys = noise(COUNT, 3);
+        SeriesPyramid trimmed = new SeriesPyramid();
+        trimmed.update(xs, ys, 0, COUNT / 2, 0, 0, 6);
+        // the oldest data is gone, the positions are those of the data
+        for (int start = 1000; start <= 5000; start += 1000) {
+            trimmed.update(xs, ys, start, COUNT / 2 + start, start, 0, 6);
+        }
+        SeriesPyramid fresh = new SeriesPyramid();
+        fresh.update(xs, ys, 5000, COUNT, 5000, 0, 6);
+        for (int level = 1; level <= 6; level++) {
+            assertSamePoints(gather(fresh, xs, ys, 5000, COUNT, level), gather(trimmed, xs, ys, 5000, COUNT, level));
+        }
+    }
+
+    @Test
+    public void resetDataIsNotTakenFromTheBins() {
+        double[] xs = xs(COUNT);
+        double[] ys = noise(COUNT, 4);
+        SeriesPyramid reset = new SeriesPyramid();
+        reset.update(xs, noise(COUNT, 5), 0, COUNT, 0, 0, 4);
+        reset.update(xs, ys, 0, COUNT, 0, 1, 4);
+        SeriesPyramid fresh = new SeriesPyramid();
+        fresh.update(xs, ys, 0, COUNT, 0, 1, 4);
+        assertSamePoints(gather(fresh, xs, ys, 0, COUNT, 4), gather(reset, xs, ys, 0, COUNT, 4));
+    }
+
+    @Test
+    public void gatherIncludesOnePointAroundTheRange() {
+        double[] xs = xs(COUNT);
+        double[] ys = noise(COUNT, 6);
+        SeriesPyramid p = new SeriesPyramid();
+        p.update(xs, ys, 0, COUNT, 0, 0, 3);
+        int n = p.gather(xs, ys, 0, COUNT, 0, 3, 1000, 2000);
+        assertTrue(p.getX()[0] < 1000);
+        assertTrue(p.getX()[1] >= 1000);
+        assertTrue(p.getX()[n - 1] > 2000);
+        assertTrue(p.getX()[n - 2] <= 2000);
+    }
+}
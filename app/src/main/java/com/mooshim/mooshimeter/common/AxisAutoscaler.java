@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+/**
+ * Chooses the range of one graph axis from the bounds of the data, with hysteresis.
+ *
+ * The range only changes when the data leaves it, or when the data has shrunk to a small part
+ * of it.  Every change leaves some room around the data, so a signal that wanders a little, or
+ * a trend that keeps growing, does not rescale the axis (and relayout the labels) on every
+ * sample.  update() is cheap and can be called from any thread for every sample; the caller
+ * applies the range to the graph only when update() reports a change.
+ */
+public class AxisAutoscaler {
+    public enum Mode {
+        // Six ticks of 1 or 5 times a power of ten around the data, for measured values
+        NICE,
+        // Whole seconds with a lead ahead of the newest sample, for a scrolling time axis
+        ROLLING,
+        // Exactly the bounds of the data, for data that doesn't change once shown
+        FIT,
+    }
+
+    // Rescale when the data spans less than this fraction of the axis
+    private static final double SHRINK_FRACTION = 0.25;
+    // Room left around the data on a rescale, as a fraction of its span
+    private static final double MARGIN = 0.1;
+    // Smallest tick of a NICE axis
+    private static final double MIN_TICK = 1e-6;
+
+    private final Mode mMode;
+    private boolean mValid = false;
+    private double mMin = 0;
+    private double mMax = 0;
+    // Data bounds seen by the last update
+    private double mLastLo = Double.NaN;
+    private double mLastHi = Double.NaN;
+
+    public AxisAutoscaler(Mode mode) {
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Forget the current range, the next update will choose a new one
+     */
+    public synchronized void reset() {
+        mValid = false;
+        mLastLo = Double.NaN;
+        mLastHi = Double.NaN;
+    }
+
+    /**
+     * @param lo    Lowest value of the data
+     * @param hi    Highest value of the data
+     * @return      true if the range changed
+     */
+    public synchronized boolean update(double lo, double hi) {
+        if(Double.isNaN(lo) || Double.isNaN(hi) || Double.isInfinite(hi - lo)) {
+            return false;
+        }
+        if(lo == mLastLo && hi == mLastHi) {
+            // Nothing new at the edges
+            return false;
+        }
+        mLastLo = lo;
+        mLastHi = hi;
+        if(mValid && lo >= mMin && hi <= mMax) {
+            if(mMode == Mode.FIT) {
+                if(lo == mMin && hi == mMax) {
+                    return false;
+                }
+            } else if(hi - lo >= SHRINK_FRACTION * (mMax - mMin)) {
+                // Inside the band and not shrunk
+                return false;
+            }
+        }
+        final double old_min = mMin;
+        final double old_max = mMax;
+        choose(lo, hi);
+        final boolean changed = !mValid || mMin != old_min || mMax != old_max;
+        mValid = true;
+        return changed;
+    }
+
+    public synchronized double getMin() {
+        return mMin;
+    }
+
+    public synchronized double getMax() {
+        return mMax;
+    }
+
+    private void choose(double lo, double hi) {
+        final double margin = MARGIN * (hi - lo);
+        switch(mMode) {
+            case ROLLING:
+                mMin = Math.floor(lo);
+                mMax = Math.ceil(hi + Math.max(1, margin));
+                break;
+            case FIT:
+                mMin = lo;
+                mMax = hi;
+                break;
+            default:
+                niceRange(lo - margin, hi + margin);
+                break;
+        }
+    }
+
+    // Six ticks of 1 or 5 times a power of ten, centered on the data, wide enough to hold it
+    private void niceRange(double lo, double hi) {
+        final double range = hi - lo;
+        final double avg   = lo + range / 2;
+        double tick = MIN_TICK;
+        boolean b = false;
+        while(true) {
+            if(tick >= range / 6) {
+                final double center = tick * Math.floor((avg + tick / 2) / tick);
+                mMin = center - 3 * tick;
+                mMax = center + 3 * tick;
+                if(mMin <= lo && mMax >= hi) {
+                    return;
+                }
+            }
+            if( b ){ tick *= 2; }
+            else   { tick *= 5; }
+            b ^= true;
+        }
+    }
+}
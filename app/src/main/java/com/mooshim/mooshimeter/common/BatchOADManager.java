@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Uploads a firmware image to several meters, running an OADEngine on a few of them at a time.
+ *
+ * All uploads go through the same radio, so the TOTAL_WINDOW blocks in flight are shared out
+ * between the running engines by capping their windows.  The shares aim for equal throughput:
+ * an engine moves about window / RTT blocks per second, so each gets a share in proportion to
+ * its smoothed acknowledgement latency.  An engine that its own congestion control holds below
+ * its cap only gets what it uses plus a block to grow into, and the rest goes to the others.
+ * The caps are worked out again as the acknowledgements come in.  This only shares blocks in
+ * flight: how the stack splits airtime between the connections is out of our hands.
+ *
+ * A meter that drops out is reconnected and its upload resumed, up to MAX_ATTEMPTS times.
+ *
+ * The manager outlives the activity that started it, so the listener can be swapped or removed
+ * while the batch runs, see setListener.
+ */
+public class BatchOADManager {
+    private static final String TAG = "BatchOADManager";
+
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+    private static final int MAX_ATTEMPTS = 3;
+    // Blocks in flight across all uploads
+    private static final int TOTAL_WINDOW = OADEngine.MAX_WINDOW;
+    // Seconds between working out the window caps from the progress
+    private static final double REBALANCE_INTERVAL = 0.5;
+
+    // Outcomes of connect()
+    private static final int CONNECT_FAILED = 0;
+    private static final int CONNECT_OAD    = 1;
+    private static final int CONNECT_NORMAL = 2;
+
+    public static abstract class Listener {
+        // Called from the BLE dispatch thread, or from setListener for a batch that finished
+        // while no listener was set
+        public abstract void onProgress(MooshimeterDevice meter, int acked_blocks, int n_blocks);
+        public abstract void onDeviceFinished(MooshimeterDevice meter, Result result);
+        // Called once after every meter has finished, results are in the order the meters were given
+        public abstract void onFinished(List<Result> results);
+    }
+
+    public static class Result {
+        public final String address;
+        public boolean success = false;
+        public int attempts = 0;
+        public double timeStart = 0;
+        public double duration = 0;  // seconds
+
+        Result(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s after %d attempt%s, %d s", address, success ? "OK" : "FAILED",
+                    attempts, attempts == 1 ? "" : "s", (int) duration);
+        }
+    }
+
+    private final FirmwareImage mImage;
+    private final int mMaxConcurrent;
+    private final int mMeterCount;
+    private volatile Listener mListener;
+
+    // All of the following is guarded by this
+    private final LinkedList<MooshimeterDevice> mPending = new LinkedList<MooshimeterDevice>();
+    private final List<MooshimeterDevice> mInProgress = new ArrayList<MooshimeterDevice>();
+    private final Map<MooshimeterDevice,OADEngine> mEngines = new HashMap<MooshimeterDevice, OADEngine>();
+    private final Map<MooshimeterDevice,Result> mResults = new LinkedHashMap<MooshimeterDevice, Result>();
+    // Meters whose last attempt sent every block without seeing the last acknowledgement
+    private final Set<MooshimeterDevice> mAllSent = new HashSet<MooshimeterDevice>();
+    private boolean mStarted = false;
+    private boolean mCancelled = false;
+    private boolean mFinished = false;
+    // Results of a batch that finished while no listener was set
+    private List<Result> mUnreported = null;
+    private double mLastRebalance = 0;
+
+    public BatchOADManager(Collection<MooshimeterDevice> meters, FirmwareImage image, int max_concurrent, Listener listener) {
+        mImage = image;
+        mMaxConcurrent = Math.max(1, max_concurrent);
+        mListener = listener;
+        for(MooshimeterDevice m : meters) {
+            mPending.add(m);
+            mResults.put(m, new Result(m.getAddress()));
+        }
+        mMeterCount = mResults.size();
+    }
+
+    /**
+     * Swaps the listener, for instance when the activity showing the progress is paused or
+     * resumed.  null drops the progress reports.  If the batch finished while no listener was
+     * set, the new one's onFinished is called right away.
+     */
+    public void setListener(Listener listener) {
+        final List<Result> unreported;
+        synchronized (this) {
+            mListener = listener;
+            unreported = listener != null ? mUnreported : null;
+            if(unreported != null) {
+                mUnreported = null;
+            }
+        }
+        if(unreported != null) {
+            listener.onFinished(unreported);
+        }
+    }
+
+    public int getMeterCount() {
+        return mMeterCount;
+    }
+
+    public synchronized boolean isRunning() {
+        return mStarted && !(mPending.isEmpty() && mInProgress.isEmpty());
+    }
+
+    public void start() {
+        synchronized (this) {
+            if(mStarted) {
+                Log.e(TAG, "start called, but batch already underway!");
+                return;
+            }
+            mStarted = true;
+        }
+        if(!fillSlots()) {
+            // Nothing to do
+            finishBatch();
+        }
+    }
+
+    public void cancel() {
+        final List<OADEngine> engines;
+        synchronized (this) {
+            mCancelled = true;
+            mPending.clear();
+            engines = new ArrayList<OADEngine>(mEngines.values());
+        }
+        // Each engine reports back through onFinished, which completes its meter
+        for(OADEngine e : engines) {
+            e.stop();
+        }
+        synchronized (this) {
+            if(!mInProgress.isEmpty()) {
+                return;
+            }
+        }
+        finishBatch();
+    }
+
+    ////////////////////////////////
+    // Scheduling
+    ////////////////////////////////
+
+    // Starts pending meters while there are free slots.  Returns true if anything is in progress.
+    private boolean fillSlots() {
+        final List<MooshimeterDevice> to_launch = new ArrayList<MooshimeterDevice>();
+        final boolean busy;
+        synchronized (this) {
+            while(!mCancelled && !mPending.isEmpty() && mInProgress.size() < mMaxConcurrent) {
+                final MooshimeterDevice m = mPending.removeFirst();
+                mInProgress.add(m);
+                mResults.get(m).timeStart = Util.getUTCTime();
+                to_launch.add(m);
+            }
+            busy = !mInProgress.isEmpty();
+        }
+        for(MooshimeterDevice m : to_launch) {
+            launch(m);
+        }
+        return busy;
+    }
+
+    // Guarded by this.  Caps the windows of the running engines, see the class comment.
+    private void rebalance() {
+        final int n = mEngines.size();
+        if(n == 0) {
+            return;
+        }
+        mLastRebalance = Util.getNanoTime();
+        final OADEngine[] engines = mEngines.values().toArray(new OADEngine[n]);
+        final double[] weight = new double[n];
+        final int[] demand = new int[n];
+        double srtt_sum = 0;
+        int measured = 0;
+        for(int i = 0; i < n; i++) {
+            weight[i] = engines[i].getSrtt();
+            if(weight[i] > 0) {
+                srtt_sum += weight[i];
+                measured++;
+            }
+            // At its cap an engine could use more, below it its own link holds it back
+            final int window = engines[i].getWindow();
+            demand[i] = window < engines[i].getMaxWindow() ? window + 1 : OADEngine.MAX_WINDOW;
+        }
+        // Engines without an acknowledgement yet count as average
+        for(int i = 0; i < n; i++) {
+            if(weight[i] <= 0) {
+                weight[i] = measured > 0 ? srtt_sum / measured : 1;
+            }
+        }
+        final int[] share = shares(weight, demand, TOTAL_WINDOW);
+        for(int i = 0; i < n; i++) {
+            engines[i].setMaxWindow(share[i]);
+        }
+    }
+
+    // Weighted water filling: engines that want less than their share get what they want, and
+    // the rest is shared out again between the others.  Returns the share of each engine.
+    static int[] shares(double[] weight, int[] demand, int total) {
+        final int n = weight.length;
+        final int[] share = new int[n];
+        final boolean[] fixed = new boolean[n];
+        int remaining = total;
+        int open = n;
+        while(open > 0) {
+            double weight_sum = 0;
+            for(int i = 0; i < n; i++) {
+                if(!fixed[i]) {
+                    weight_sum += weight[i];
+                }
+            }
+            int given = 0;
+            for(int i = 0; i < n; i++) {
+                if(!fixed[i] && demand[i] <= remaining * weight[i] / weight_sum) {
+                    share[i] = demand[i];
+                    fixed[i] = true;
+                    given += demand[i];
+                    open--;
+                }
+            }
+            if(given == 0) {
+                for(int i = 0; i < n; i++) {
+                    if(!fixed[i]) {
+                        share[i] = (int) (remaining * weight[i] / weight_sum);
+                        fixed[i] = true;
+                    }
+                }
+                break;
+            }
+            remaining -= given;
+        }
+        return share;
+    }
+
+    private void launch(final MooshimeterDevice m) {
+        synchronized (this) {
+            mResults.get(m).attempts++;
+        }
+        // Connecting blocks for a while, keep it off the dispatch thread so the other uploads keep going
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final int connected = connect(m);
+                final boolean all_sent;
+                synchronized (BatchOADManager.this) {
+                    all_sent = mAllSent.remove(m);
+                }
+                if(connected == CONNECT_NORMAL && all_sent) {
+                    // Every block went out and the meter came back running a valid image,
+                    // the last acknowledgements were only lost to the reboot
+                    Log.d(TAG, m.getAddress() + ": rebooted with the new image");
+                    OADEngine.forgetProgress(m);
+                    m.disconnect();
+                    complete(m, true);
+                    return;
+                }
+                if(connected != CONNECT_OAD) {
+                    Log.e(TAG, m.getAddress() + ": could not connect in OAD mode");
+                    if(connected == CONNECT_NORMAL) {
+                        m.disconnect();
+                    }
+                    attemptFailed(m);
+                    return;
+                }
+                final OADEngine engine = new OADEngine(m, mImage, false, new OADEngine.Listener() {
+                    @Override
+                    public void onProgress(int acked_blocks, int n_blocks, int window) {
+                        synchronized (BatchOADManager.this) {
+                            if(Util.getNanoTime() - mLastRebalance >= REBALANCE_INTERVAL) {
+                                rebalance();
+                            }
+                        }
+                        final Listener l = mListener;
+                        if(l != null) {
+                            l.onProgress(m, acked_blocks, n_blocks);
+                        }
+                    }
+
+                    @Override
+                    public void onFinished(boolean success) {
+                        synchronized (BatchOADManager.this) {
+                            final OADEngine e = mEngines.remove(m);
+                            if(!success && e != null && e.isAllSent()) {
+                                mAllSent.add(m);
+                            }
+                            rebalance();
+                        }
+                        if(success) {
+                            complete(m, true);
+                        } else {
+                            attemptFailed(m);
+                        }
+                    }
+                });
+                final boolean cancelled;
+                synchronized (BatchOADManager.this) {
+                    cancelled = mCancelled;
+                    if(!cancelled) {
+                        mEngines.put(m, engine);
+                        rebalance();
+                    }
+                }
+                if(cancelled) {
+                    complete(m, false);
+                    return;
+                }
+                engine.start();
+            }
+        });
+        t.start();
+    }
+
+    // Connects and discovers.  A meter that comes back in normal mode is left connected.
+    private int connect(MooshimeterDevice m) {
+        if(m.isConnected() && m.isInOADMode()) {
+            return CONNECT_OAD;
+        }
+        int rval = BluetoothGatt.GATT_FAILURE;
+        int attempts = 0;
+        while(attempts++ < 3 && rval != BluetoothGatt.GATT_SUCCESS) {
+            rval = m.connect();
+        }
+        if(rval != BluetoothGatt.GATT_SUCCESS) {
+            return CONNECT_FAILED;
+        }
+        rval = m.discover();
+        if(rval != BluetoothGatt.GATT_SUCCESS) {
+            if(m.isConnected()) {
+                m.disconnect();
+            }
+            return CONNECT_FAILED;
+        }
+        return m.isInOADMode() ? CONNECT_OAD : CONNECT_NORMAL;
+    }
+
+    private void attemptFailed(MooshimeterDevice m) {
+        final boolean retry;
+        synchronized (this) {
+            retry = !mCancelled && mResults.get(m).attempts < MAX_ATTEMPTS;
+        }
+        if(retry) {
+            // The engine saved its progress, the next attempt picks up where this one stopped
+            Log.d(TAG, m.getAddress() + ": upload interrupted, retrying");
+            launch(m);
+        } else {
+            complete(m, false);
+        }
+    }
+
+    private void complete(MooshimeterDevice m, boolean success) {
+        final Result result;
+        synchronized (this) {
+            if(!mInProgress.remove(m)) {
+                return;
+            }
+            result = mResults.get(m);
+            result.success = success;
+            result.duration = Util.getUTCTime() - result.timeStart;
+        }
+        Log.d(TAG, result.toString());
+        final Listener l = mListener;
+        if(l != null) {
+            l.onDeviceFinished(m, result);
+        }
+        if(!fillSlots()) {
+            finishBatch();
+        }
+    }
+
+    private void finishBatch() {
+        final List<Result> results;
+        final Listener l;
+        synchronized (this) {
+            if(mFinished) {
+                return;
+            }
+            mFinished = true;
+            results = new ArrayList<Result>(mResults.values());
+            l = mListener;
+            if(l == null) {
+                // Reported when a listener is set again
+                mUnreported = results;
+            }
+        }
+        if(l != null) {
+            l.onFinished(results);
+        }
+    }
+
+    /**
+     * @return a line per meter, suitable for showing to the user
+     */
+    public static String summarize(List<Result> results) {
+        int n_ok = 0;
+        StringBuilder sb = new StringBuilder();
+        for(Result r : results) {
+            if(r.success) {
+                n_ok++;
+            }
+            sb.append(r.toString()).append('\n');
+        }
+        return String.format("%d of %d meters updated\n\n", n_ok, results.size()) + sb.toString();
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A firmware image for OAD upload, backed by a read-only ByteBuffer.
+ *
+ * Images are memory mapped where possible so nothing is read until the blocks are actually sent.
+ * Bundled assets can only be mapped when stored uncompressed in the APK (see aaptOptions in
+ * build.gradle), otherwise the asset is read into a buffer once.
+ */
+public class FirmwareImage {
+    private static final String TAG = "FirmwareImage";
+
+    private static final String BUNDLED_ASSET = "Mooshimeter.bin";
+    public static final int HEADER_SIZE = 16;
+    private static final int HAL_FLASH_WORD_SIZE = 4;
+
+    private static FirmwareImage mBundled = null;
+
+    // CRC-16 as computed by the meter's bootloader: polynomial 0x8005, initial value 0, not reflected
+    private static final int CRC_POLY = 0x8005;
+    private static final int CRC_OFFSET = 4;     // crc0 and crc1 are not covered
+    private static final char[] CRC_TABLE = new char[256];
+    static {
+        for(int i = 0; i < 256; i++) {
+            int c = i << 8;
+            for(int j = 0; j < 8; j++) {
+                c = (c & 0x8000) != 0 ? (c << 1) ^ CRC_POLY : c << 1;
+            }
+            CRC_TABLE[i] = (char) c;
+        }
+    }
+    private final String mName;
+    private final ByteBuffer mImage;
+
+    // Header fields
+    private final short mCrc0;
+    private final short mCrc1;
+    private final short mVer;
+    private final int mLen;          // In flash words
+    private final int mBuildTime;
+
+    // Result of verify(), null until it has run.  Kept per instance: the key only covers the
+    // header, and two images with the same header can differ in their contents.
+    private Boolean mVerified = null;
+
+    public FirmwareImage(String name, ByteBuffer image) {
+        mName = name;
+        mImage = image.asReadOnlyBuffer();
+        mImage.order(ByteOrder.LITTLE_ENDIAN);
+        if(mImage.capacity() < HEADER_SIZE) {
+            Log.e(TAG, "Image " + name + " is too short for a header");
+            mCrc0 = mCrc1 = mVer = 0;
+            mLen = mBuildTime = 0;
+            return;
+        }
+        mCrc0      = mImage.getShort(0);
+        mCrc1      = mImage.getShort(2);
+        mVer       = mImage.getShort(4);
+        mLen       = 0xFFFF & ((int) mImage.getShort(6));
+        mBuildTime = mImage.getInt(8);
+        if(mImage.capacity() < getSize()) {
+            // Blocks past the end of the buffer are padded with zeros
+            Log.e(TAG, "Image " + name + " is shorter than its header claims");
+        }
+    }
+
+    /**
+     * Memory maps an image file, for instance a downloaded firmware update
+     */
+    public static FirmwareImage fromFile(File f) throws IOException {
+        FileInputStream stream = new FileInputStream(f);
+        try {
+            FileChannel channel = stream.getChannel();
+            return new FirmwareImage(f.getName(), channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // The mapping stays valid after the channel is closed
+            stream.close();
+        }
+    }
+
+    /**
+     * Opens an image from the app's assets
+     */
+    public static FirmwareImage fromAsset(Context context, String name) throws IOException {
+        try {
+            AssetFileDescriptor afd = context.getAssets().openFd(name);
+            FileInputStream stream = afd.createInputStream();
+            try {
+                FileChannel channel = stream.getChannel();
+                return new FirmwareImage(name, channel.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength()));
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            // openFd fails for compressed assets, fall back to reading it in
+            Log.d(TAG, "Could not map asset " + name + ", reading it instead");
+        }
+        InputStream stream = context.getAssets().open(name);
+        try {
+            byte[] buf = new byte[stream.available()];
+            int n = 0;
+            while(n < buf.length) {
+                int r = stream.read(buf, n, buf.length - n);
+                if(r < 0) {
+                    break;
+                }
+                n += r;
+            }
+            return new FirmwareImage(name, ByteBuffer.wrap(buf, 0, n).slice());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return the image bundled with the app, opened on first use.  null if the asset can't be read.
+     */
+    public static synchronized FirmwareImage getBundled() {
+        if(mBundled == null) {
+            try {
+                mBundled = fromAsset(Util.getRootContext(), BUNDLED_ASSET);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open the firmware asset");
+            }
+        }
+        return mBundled;
+    }
+
+    /**
+     * Opens and verifies the bundled image on the worker thread, so the screens that check it on
+     * the UI thread find the result cached.  The first verify runs before the CRC loop is compiled
+     * and takes several milliseconds, a good part of a frame.
+     */
+    public static void prepareBundled() {
+        Util.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                final FirmwareImage image = getBundled();
+                if(image != null) {
+                    image.verify();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return a string identifying the image by its header
+     */
+    public String getKey() {
+        return String.format("%04X-%04X-%04X-%d-%d", mCrc0 & 0xFFFF, mCrc1 & 0xFFFF, mVer & 0xFFFF, mLen, mBuildTime);
+    }
+
+    /**
+     * Computes the CRC over the image the same way the meter does after the upload
+     * @return the CRC, or -1 if the image is shorter than its header claims
+     */
+    public int calculateCrc() {
+        final int end = getSize();
+        if(end > mImage.capacity() || end < CRC_OFFSET) {
+            return -1;
+        }
+        final ByteBuffer b = mImage.duplicate();
+        b.position(CRC_OFFSET);
+        b.limit(end);
+        // Bulk reads are much faster than get() per byte on a mapped buffer
+        final byte[] chunk = new byte[4096];
+        int crc = 0;
+        while(b.hasRemaining()) {
+            final int n = Math.min(chunk.length, b.remaining());
+            b.get(chunk, 0, n);
+            for(int i = 0; i < n; i++) {
+                crc = ((crc << 8) & 0xFFFF) ^ CRC_TABLE[((crc >> 8) ^ chunk[i]) & 0xFF];
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * Checks the CRC in the header against the image contents, so a corrupted image is caught
+     * before a multi-minute upload.  The buffer is read-only, so the result is cached.
+     * @return true if the image is intact
+     */
+    public synchronized boolean verify() {
+        if(mVerified != null) {
+            return mVerified;
+        }
+        final int crc = calculateCrc();
+        final boolean rval = crc == (mCrc0 & 0xFFFF);
+        if(!rval) {
+            Log.e(TAG, String.format("Image %s failed verification: CRC %04X, header says %04X", mName, crc, mCrc0 & 0xFFFF));
+        }
+        mVerified = rval;
+        return rval;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return a new read-only view of the whole image, positioned at 0
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer rval = mImage.duplicate();
+        rval.order(ByteOrder.LITTLE_ENDIAN);
+        return rval;
+    }
+
+    /**
+     * @return a view of the image header, as expected by OADIdentity.unpackFromFile
+     */
+    public ByteBuffer getHeader() {
+        return getSlice(0, HEADER_SIZE);
+    }
+
+    /**
+     * Zero-copy view of one OAD block.  The view is shorter than Util.OAD_BLOCK_SIZE
+     * only if the image file is truncated.
+     */
+    public ByteBuffer getBlock(int bnum) {
+        return getSlice(bnum * Util.OAD_BLOCK_SIZE, Util.OAD_BLOCK_SIZE);
+    }
+
+    private ByteBuffer getSlice(int offset, int len) {
+        ByteBuffer rval = mImage.duplicate();
+        offset = Math.min(offset, rval.capacity());
+        rval.position(offset);
+        rval.limit(Math.min(offset + len, rval.capacity()));
+        return rval.slice();
+    }
+
+    public short getCrc0() {
+        return mCrc0;
+    }
+
+    public short getCrc1() {
+        return mCrc1;
+    }
+
+    public short getVer() {
+        return mVer;
+    }
+
+    /**
+     * @return length of the image in flash words, as in the header
+     */
+    public int getLen() {
+        return mLen;
+    }
+
+    /**
+     * @return length of the image in bytes, as in the header
+     */
+    public int getSize() {
+        return mLen * HAL_FLASH_WORD_SIZE;
+    }
+
+    public int getNBlocks() {
+        return getSize() / Util.OAD_BLOCK_SIZE;
+    }
+
+    public int getBuildTime() {
+        return mBuildTime;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import android.bluetooth.BluetoothProfile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The master list of all Mooshimeters the app knows about, keyed by address.
+ *
+ * Safe to use from any thread.  The registry follows each meter through its lifecycle (scanned,
+ * connecting, connected, streaming) and tells registered listeners about changes.  It also keeps
+ * aggregate notification throughput over all meters, for when several meters are streaming.
+ */
+public class MeterRegistry {
+    public enum State {
+        SCANNED,        // Known from a scan, not connected
+        CONNECTING,
+        CONNECTED,
+        STREAMING,
+    }
+
+    public static abstract class Listener {
+        // Called from whichever thread caused the change, keep it short
+        public void onMeterAdded(MooshimeterDevice m) {}
+        public void onMeterRemoved(MooshimeterDevice m) {}
+        public void onStateChanged(MooshimeterDevice m, State state) {}
+    }
+
+    public static class Metrics {
+        public final int nMeters;
+        public final int nConnected;         // Including streaming meters
+        public final int nStreaming;
+        public final double notificationsPerSecond;
+        public final double bytesPerSecond;
+
+        Metrics(int n_meters, int n_connected, int n_streaming, double notifications_per_second, double bytes_per_second) {
+            nMeters = n_meters;
+            nConnected = n_connected;
+            nStreaming = n_streaming;
+            notificationsPerSecond = notifications_per_second;
+            bytesPerSecond = bytes_per_second;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d meters, %d streaming, %.1f notifications/s, %.0f B/s",
+                    nMeters, nStreaming, notificationsPerSecond, bytesPerSecond);
+        }
+    }
+
+    private static class Record {
+        final MooshimeterDevice meter;
+        final int[] cbHandles = new int[3];
+        State state;
+        // Counters at the last metrics sample
+        long lastCount;
+        long lastBytes;
+
+        Record(MooshimeterDevice meter) {
+            this.meter = meter;
+            lastCount = meter.getNotificationCount();
+            lastBytes = meter.getNotificationBytes();
+        }
+    }
+
+    private static final MeterRegistry mInstance = new MeterRegistry();
+
+    public static MeterRegistry getInstance() {
+        return mInstance;
+    }
+
+    private final ConcurrentHashMap<String,Record> mRecords = new ConcurrentHashMap<String, Record>();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private double mLastSampleTime = Util.getNanoTime();
+    // Notifications counted by meters that were removed since the last sample
+    private long mRemovedCount = 0;
+    private long mRemovedBytes = 0;
+
+    private MeterRegistry() {}
+
+    ////////////////////////////////
+    // Membership
+    ////////////////////////////////
+
+    /**
+     * @return the meter with the given address, or null if there is none
+     */
+    public MooshimeterDevice get(String address) {
+        final Record r = mRecords.get(address);
+        return r == null ? null : r.meter;
+    }
+
+    public boolean contains(String address) {
+        return mRecords.containsKey(address);
+    }
+
+    public int size() {
+        return mRecords.size();
+    }
+
+    public boolean isEmpty() {
+        return mRecords.isEmpty();
+    }
+
+    /**
+     * @return a snapshot of all meters, safe to iterate while the registry changes
+     */
+    public List<MooshimeterDevice> getAll() {
+        final List<MooshimeterDevice> rval = new ArrayList<MooshimeterDevice>(mRecords.size());
+        for(Record r : mRecords.values()) {
+            rval.add(r.meter);
+        }
+        return rval;
+    }
+
+    /**
+     * @return a snapshot of the meters in the given state
+     */
+    public List<MooshimeterDevice> getAll(State state) {
+        final List<MooshimeterDevice> rval = new ArrayList<MooshimeterDevice>();
+        for(Record r : mRecords.values()) {
+            if(stateOf(r.meter) == state) {
+                rval.add(r.meter);
+            }
+        }
+        return rval;
+    }
+
+    /**
+     * Adds a meter unless one with the same address is already registered
+     * @return the registered meter with the address of m
+     */
+    public MooshimeterDevice add(final MooshimeterDevice m) {
+        final Record r = new Record(m);
+        final Record existing = mRecords.putIfAbsent(m.getAddress(), r);
+        if(existing != null) {
+            return existing.meter;
+        }
+        final Runnable on_change = new Runnable() {
+            @Override
+            public void run() {
+                refresh(m);
+            }
+        };
+        synchronized (r) {
+            r.state = stateOf(m);
+            r.cbHandles[0] = m.addConnectionStateCB(BluetoothProfile.STATE_CONNECTING, on_change);
+            r.cbHandles[1] = m.addConnectionStateCB(BluetoothProfile.STATE_CONNECTED, on_change);
+            r.cbHandles[2] = m.addConnectionStateCB(BluetoothProfile.STATE_DISCONNECTED, on_change);
+        }
+        for(Listener l : mListeners) {
+            l.onMeterAdded(m);
+        }
+        return m;
+    }
+
+    public void remove(MooshimeterDevice m) {
+        final Record r = mRecords.get(m.getAddress());
+        if(r == null || r.meter != m || !mRecords.remove(m.getAddress(), r)) {
+            return;
+        }
+        synchronized (r) {
+            for(int handle : r.cbHandles) {
+                m.cancelConnectionStateCB(handle);
+            }
+        }
+        synchronized (this) {
+            mRemovedCount += m.getNotificationCount() - r.lastCount;
+            mRemovedBytes += m.getNotificationBytes() - r.lastBytes;
+        }
+        for(Listener l : mListeners) {
+            l.onMeterRemoved(m);
+        }
+    }
+
+    ////////////////////////////////
+    // Lifecycle
+    ////////////////////////////////
+
+    private static State stateOf(MooshimeterDevice m) {
+        if(m.isConnected()) {
+            // Only a discovered meter in application mode has a sample stream to ask about
+            final boolean streaming = m.mInitialized && !m.isInOADMode() && m.isStreaming();
+            return streaming ? State.STREAMING : State.CONNECTED;
+        }
+        if(m.isConnecting()) {
+            return State.CONNECTING;
+        }
+        return State.SCANNED;
+    }
+
+    public State getState(MooshimeterDevice m) {
+        final Record r = mRecords.get(m.getAddress());
+        if(r == null) {
+            return stateOf(m);
+        }
+        synchronized (r) {
+            return r.state;
+        }
+    }
+
+    /**
+     * Re-reads the state of a meter and tells the listeners if it changed.  Connection changes
+     * are picked up automatically, MooshimeterDevice calls this when streaming starts or stops.
+     */
+    public void refresh(MooshimeterDevice m) {
+        final Record r = mRecords.get(m.getAddress());
+        if(r == null || r.meter != m) {
+            return;
+        }
+        final State state = stateOf(m);
+        synchronized (r) {
+            if(state == r.state) {
+                return;
+            }
+            r.state = state;
+        }
+        for(Listener l : mListeners) {
+            l.onStateChanged(m, state);
+        }
+    }
+
+    public void addListener(Listener l) {
+        mListeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        mListeners.remove(l);
+    }
+
+    ////////////////////////////////
+    // Metrics
+    ////////////////////////////////
+
+    /**
+     * Counts the meters in each state and computes the notification throughput since the
+     * previous call.  Call periodically, for instance once a second.
+     */
+    public synchronized Metrics sampleMetrics() {
+        final double now = Util.getNanoTime();
+        final double dt = now - mLastSampleTime;
+        mLastSampleTime = now;
+        int n_meters = 0;
+        int n_connected = 0;
+        int n_streaming = 0;
+        long d_count = mRemovedCount;
+        long d_bytes = mRemovedBytes;
+        mRemovedCount = 0;
+        mRemovedBytes = 0;
+        for(Record r : mRecords.values()) {
+            n_meters++;
+            final State state = stateOf(r.meter);
+            if(state == State.CONNECTED || state == State.STREAMING) {
+                n_connected++;
+            }
+            if(state == State.STREAMING) {
+                n_streaming++;
+            }
+            final long count = r.meter.getNotificationCount();
+            final long bytes = r.meter.getNotificationBytes();
+            d_count += count - r.lastCount;
+            d_bytes += bytes - r.lastBytes;
+            r.lastCount = count;
+            r.lastBytes = bytes;
+        }
+        if(dt <= 0) {
+            return new Metrics(n_meters, n_connected, n_streaming, 0, 0);
+        }
+        return new Metrics(n_meters, n_connected, n_streaming, d_count / dt, d_bytes / dt);
+    }
+}
@@ -64,7 +64,9 @@ public class MooshimeterDevice extends PeripheralWrapper {
 
     public static final class mPreferenceKeys {
         public static final String
-                AUTOCONNECT = "AUTOCONNECT";
+                AUTOCONNECT = "AUTOCONNECT",
+                OAD_IMAGE   = "OAD_IMAGE",   // Identifies the image of an interrupted firmware upload
+                OAD_BLOCK   = "OAD_BLOCK";   // Last block the meter acknowledged for that image
     }
 
     private static final String TAG="MooshimeterDevice";
@@ -183,6 +185,14 @@ public class MooshimeterDevice extends PeripheralWrapper {
             return mInstance.send(getUUID(), pack());
         }
 
+        /**
+         * Sends the struct to the Mooshimeter without waiting for the write to be acknowledged.
+         * @return 0 if the packet was queued, -1 if the stack was busy and the call should be retried
+         */
+        public int sendWithoutResponse() {
+            return mInstance.sendWithoutResponse(getUUID(), pack());
+        }
+
         /**
          * Tells you whether notifications are enabled for this characteristic
          * @return boolean Is it enabled or aint it
@@ -493,13 +503,16 @@ public class MooshimeterDevice extends PeripheralWrapper {
             // Nasty synchonization hack
             meter_ch2_buf.buf_i = 0;
             final int nBytes = getBufLen()*3;
-            for(byte b : arg) {
-                if(buf_i >= nBytes) {
-                    Log.e(TAG,"CH1 OVERFLOW");
-                    break;
-                }
-                buf[buf_i++] = b;
+            if(buf_i == 0) {
+                mBufferStartTime = Util.getNanoTime();
             }
+            // Copy the whole chunk, however large the negotiated MTU made it
+            final int n = Math.max(0, Math.min(arg.length, nBytes - buf_i));
+            if(n < arg.length) {
+                Log.e(TAG,"CH1 OVERFLOW");
+            }
+            System.arraycopy(arg, 0, buf, buf_i, n);
+            buf_i += n;
             if(buf_i >= nBytes) {
                 // Sample buffer is full
                 Log.d(TAG,"CH1 full");
@@ -512,8 +525,6 @@ public class MooshimeterDevice extends PeripheralWrapper {
                     floatBuf[i] = (float)lsbToNativeUnits(getInt24(bb),0);
                 }
             }
-            String s = String.format("CH1 Progress: %d of %d", buf_i, nBytes);
-            Log.i(TAG,s);
         }
     }
     public class MeterCH2Buf      extends MeterStructure {
@@ -535,13 +546,13 @@ public class MooshimeterDevice extends PeripheralWrapper {
             // Nasty synchonization hack
             meter_ch1_buf.buf_i = 0;
             final int nBytes = getBufLen()*3;
-            for(byte b : arg) {
-                if(buf_i >= nBytes) {
-                    Log.e(TAG,"CH2 OVERFLOW");
-                    break;
-                }
-                buf[buf_i++] = b;
+            // Copy the whole chunk, however large the negotiated MTU made it
+            final int n = Math.max(0, Math.min(arg.length, nBytes - buf_i));
+            if(n < arg.length) {
+                Log.e(TAG,"CH2 OVERFLOW");
             }
+            System.arraycopy(arg, 0, buf, buf_i, n);
+            buf_i += n;
             if(buf_i >= nBytes) {
                 // Sample buffer is full
                 Log.d(TAG, "CH2 full");
@@ -553,12 +564,11 @@ public class MooshimeterDevice extends PeripheralWrapper {
                 for (int i = 0; i < getBufLen(); i++) {
                     floatBuf[i] = (float) lsbToNativeUnits(getInt24(bb), 1);
                 }
+                logBufferThroughput(2*nBytes);
                 if (buf_full_cb != null) {
                     buf_full_cb.run();
                 }
             }
-            String s = String.format("CH2 Progress: %d of %d", buf_i, nBytes);
-            Log.i(TAG,s);
         }
     }
 
@@ -578,8 +588,8 @@ public class MooshimeterDevice extends PeripheralWrapper {
 
         }
 
-        public void unpackFromFile(byte[] fbuf) {
-            ByteBuffer b = ByteBuffer.wrap(fbuf);
+        public void unpackFromFile(ByteBuffer header) {
+            ByteBuffer b = header.duplicate();
             b.order(ByteOrder.LITTLE_ENDIAN);
             crc0 = b.getShort();
             crc1 = b.getShort();
@@ -621,7 +631,7 @@ public class MooshimeterDevice extends PeripheralWrapper {
         public short requestedBlock;
 
         public short blockNum;
-        public byte[] bytes;
+        public ByteBuffer bytes;    // View of the block in the image, copied straight into the payload
 
         @Override
         public UUID getUUID() { return mUUID.OAD_IMAGE_BLOCK; }
@@ -631,9 +641,7 @@ public class MooshimeterDevice extends PeripheralWrapper {
             ByteBuffer b = wrap(new byte[18]);
             b.order(ByteOrder.LITTLE_ENDIAN);
             b.putShort(blockNum);
-            for( byte c : bytes ) {
-                b.put(c);
-            }
+            b.put(bytes.duplicate());
             return b.array();
         }
 
@@ -652,6 +660,10 @@ public class MooshimeterDevice extends PeripheralWrapper {
     public boolean          mOADMode;
     public boolean          mInitialized = false;
 
+    // Sample buffer download timing
+    private double          mBufferStartTime = 0;
+    private double          mBufferBytesPerSecond = 0;
+
     public MeterSettings    meter_settings;
     public MeterLogSettings meter_log_settings;
     public MeterInfo        meter_info;
@@ -684,6 +696,23 @@ public class MooshimeterDevice extends PeripheralWrapper {
         oad_block           = new OADBlock();
     }
 
+    private void logBufferThroughput(int n_bytes) {
+        final double dt = Util.getNanoTime() - mBufferStartTime;
+        if(dt <= 0) {
+            return;
+        }
+        mBufferBytesPerSecond = n_bytes / dt;
+        Log.i(TAG, String.format("Buffer of %d bytes in %.0f ms, %.0f B/s (MTU %d)",
+                n_bytes, dt * 1000, mBufferBytesPerSecond, getMtu()));
+    }
+
+    /**
+     * @return bytes per second achieved by the last complete sample buffer download, 0 if none yet
+     */
+    public double getBufferThroughput() {
+        return mBufferBytesPerSecond;
+    }
+
     public int discover() {
         int rval = super.discover();
         if(rval != 0) {
@@ -737,6 +766,28 @@ public class MooshimeterDevice extends PeripheralWrapper {
         e.commit();
     }
 
+    public int getPreference(String key, int default_val) {
+        return getSharedPreferences().getInt(key, default_val);
+    }
+
+    public String getPreference(String key, String default_val) {
+        return getSharedPreferences().getString(key, default_val);
+    }
+
+    public void setPreference(String key, int val) {
+        SharedPreferences sp = getSharedPreferences();
+        SharedPreferences.Editor e = sp.edit();
+        e.putInt(key,val);
+        e.commit();
+    }
+
+    public void setPreference(String key, String val) {
+        SharedPreferences sp = getSharedPreferences();
+        SharedPreferences.Editor e = sp.edit();
+        e.putString(key,val);
+        e.commit();
+    }
+
     ////////////////////////////////
     // Convenience functions
     ////////////////////////////////
@@ -809,6 +860,7 @@ public class MooshimeterDevice extends PeripheralWrapper {
             meter_settings.target_meter_state = METER_PAUSED;
             meter_settings.send();
         }
+        MeterRegistry.getInstance().refresh(this);
     }
 
     /**
@@ -822,6 +874,7 @@ public class MooshimeterDevice extends PeripheralWrapper {
 
         meter_sample.enableNotify(true, on_notify);
         meter_settings.send();
+        MeterRegistry.getInstance().refresh(this);
     }
 
     public boolean isStreaming() {
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+/**
+ * Uploads a firmware image to a meter over the OAD service.
+ *
+ * Blocks are pipelined as writes without response inside a sliding window.  The meter notifies
+ * the block it wants next after every block it received in order, which acknowledges everything
+ * before it.  The window grows by one block per window of acknowledgements and shrinks when the
+ * acknowledgement latency rises above twice the best latency seen, so the queue in the BLE stack
+ * stays short.  A request repeated twice means a block was lost: the window is halved and sending
+ * restarts at the requested block right away.  If no acknowledgement arrives for a few round
+ * trips, the window collapses to one block and the oldest unacknowledged block is resent.
+ * Resent blocks don't update the latency, and every stall doubles the timeout until a block
+ * that was sent once is acknowledged.
+ *
+ * In legacy mode the window stays at one block and every block is written with response.
+ *
+ * Progress is saved in the meter's preferences along with a key identifying the image.  When an
+ * upload of the same image is started again, the identity is not resent (that would make the
+ * meter start over at block zero).  Sending continues at the saved block instead and the meter's
+ * requested block takes over from the first notification.  If the meter stays silent, it lost its
+ * upload state and the engine falls back to sending the identity and starting from block zero.
+ */
+public class OADEngine {
+    private static final String TAG = "OADEngine";
+
+    private static final int MIN_WINDOW = 1;
+    private static final int INITIAL_WINDOW = 4;
+    public static final int MAX_WINDOW = 32;
+
+    // Bounds for the time without acknowledgement after which the window is resent
+    private static final double MIN_STALL_TIMEOUT = 0.2;
+    private static final double MAX_STALL_TIMEOUT = 2.0;
+
+    // Requests for the same block in a row after which it counts as lost.  One repeat can be the
+    // answer to a block that was resent while its acknowledgement was on the way.
+    private static final int LOSS_REPEATS = 2;
+
+    // Save the progress every this many acknowledged blocks, on top of saving when finishing
+    private static final int CHECKPOINT_INTERVAL = 256;
+
+    public static abstract class Listener {
+        // Called after acknowledgements, from the BLE dispatch thread
+        public abstract void onProgress(int acked_blocks, int n_blocks, int window);
+        // Called once when the upload is over.  success is false if it was cancelled or the
+        // meter disconnected before it acknowledged the last block.
+        public abstract void onFinished(boolean success);
+    }
+
+    private final MooshimeterDevice mMeter;
+    private final FirmwareImage mImage;
+    private final boolean mLegacyMode;
+    private final Listener mListener;
+    private final int mNBlocks;
+    // Time each block was sent, to measure the acknowledgement latency; -1 once it was resent
+    private final double[] mSendTime;
+    private final String mImageKey;
+
+    // All of the following is guarded by this
+    private boolean mRunning = false;
+    private boolean mFinished = false;
+    private int mNextBlock = 0;      // Next block to send
+    private int mAckedBlock = 0;     // Block the meter requested last, everything before is acknowledged
+    private int mWindow;             // Max number of unacknowledged blocks
+    private int mMaxWindow = MAX_WINDOW;
+    private int mAcksSinceGrow = 0;
+    private int mLostBlock = -1;     // While recovering: the block that was lost, -1 otherwise
+    private int mLastRequest = -1;   // Block of the last notification, -1 before the first
+    private int mRepeats = 0;        // Times in a row the meter asked again for mLastRequest
+    private double mSrtt = 0;        // Smoothed acknowledgement latency
+    private double mMinRtt = 0;      // Best acknowledgement latency seen
+    private int mBackoff = 1;        // Stall timeout multiplier, reset by the next latency measured
+    private double mLastProgress;
+    private double mTimeStart;
+    private int mResumeBlock = 0;    // Block the upload was resumed at, 0 if it started over
+    private boolean mResuming = false;   // Resumed without identity and no notification yet
+    private int mLastCheckpoint = 0;
+
+    private int mDisconnectHandle = -1;
+
+    public OADEngine(MooshimeterDevice meter, FirmwareImage image, boolean legacy_mode, Listener listener) {
+        mMeter = meter;
+        mImage = image;
+        mLegacyMode = legacy_mode;
+        mListener = listener;
+        mNBlocks = image.getNBlocks();
+        mSendTime = new double[mNBlocks];
+        mWindow = legacy_mode ? MIN_WINDOW : INITIAL_WINDOW;
+        mImageKey = image.getKey();
+        mMeter.oad_identity.unpackFromFile(image.getHeader());
+    }
+
+    public int getNBlocks() {
+        return mNBlocks;
+    }
+
+    public synchronized int getAckedBlock() {
+        return mAckedBlock;
+    }
+
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    public synchronized int getMaxWindow() {
+        return mMaxWindow;
+    }
+
+    /**
+     * @return smoothed acknowledgement latency in seconds, 0 before the first acknowledgement
+     */
+    public synchronized double getSrtt() {
+        return mSrtt;
+    }
+
+    public synchronized int getResumeBlock() {
+        return mResumeBlock;
+    }
+
+    /**
+     * @return whether every block was sent, acknowledged or not
+     */
+    public synchronized boolean isAllSent() {
+        return mNextBlock >= mNBlocks;
+    }
+
+    /**
+     * Drops the progress saved for a meter, for when an upload turned out complete without the
+     * meter acknowledging the last block (it came back running the new image).
+     */
+    public static void forgetProgress(MooshimeterDevice meter) {
+        meter.setPreference(MooshimeterDevice.mPreferenceKeys.OAD_BLOCK, 0);
+    }
+
+    /**
+     * Caps the window, for sharing the link between several uploads
+     */
+    public synchronized void setMaxWindow(int max_window) {
+        mMaxWindow = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, max_window));
+        if(mWindow > mMaxWindow) {
+            mWindow = mMaxWindow;
+        }
+    }
+
+    public synchronized double getTimeStart() {
+        return mTimeStart;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    // Enables the OAD notifications, sends the image identity and starts the sender thread.
+    public void start() {
+        synchronized (this) {
+            if(mRunning) {
+                Log.e(TAG, "start called, but upload already underway!");
+                return;
+            }
+            mRunning = true;
+            mTimeStart = Util.getUTCTime();
+            mLastProgress = Util.getNanoTime();
+            final int saved_block = mImageKey.equals(mMeter.getPreference(MooshimeterDevice.mPreferenceKeys.OAD_IMAGE, ""))
+                    ? mMeter.getPreference(MooshimeterDevice.mPreferenceKeys.OAD_BLOCK, 0) : 0;
+            if(saved_block > 0 && saved_block < mNBlocks) {
+                Log.d(TAG, "Resuming upload at block " + saved_block);
+                mResumeBlock = saved_block;
+                mResuming = true;
+                mAckedBlock = saved_block;
+                mNextBlock = saved_block;
+                mLastCheckpoint = saved_block;
+            }
+        }
+
+        mMeter.oad_block.enableNotify(true, new PeripheralWrapper.NotifyCallback() {
+            @Override
+            public void notify(double timestamp_utc, byte[] payload) {
+                onBlockRequested(0xFFFF & mMeter.oad_block.requestedBlock, timestamp_utc);
+            }
+        });
+        mMeter.oad_identity.enableNotify(true, new PeripheralWrapper.NotifyCallback() {
+            @Override
+            public void notify(double timestamp_utc, byte[] payload) {
+                Log.d(TAG, "OAD Image identify notification!");
+            }
+        });
+        mDisconnectHandle = mMeter.addConnectionStateCB(BluetoothGatt.STATE_DISCONNECTED, new Runnable() {
+            @Override
+            public void run() {
+                final boolean all_acked;
+                final boolean all_sent;
+                synchronized (OADEngine.this) {
+                    // Blocks written without response may still have been sitting in the stack,
+                    // only an acknowledgement tells they arrived.  If the meter rebooted before
+                    // we saw the last one, the progress is kept and a retry finds out.
+                    all_acked = mAckedBlock >= mNBlocks;
+                    all_sent = mNextBlock >= mNBlocks;
+                }
+                Log.d(TAG, "Meter disconnected, all blocks acknowledged: " + all_acked + ", all sent: " + all_sent);
+                finish(all_acked);
+            }
+        });
+
+        if(mResumeBlock == 0) {
+            // The meter will request block zero when the identity is received.
+            mMeter.oad_identity.send();
+        }
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        });
+        t.start();
+    }
+
+    public void stop() {
+        finish(false);
+    }
+
+    private void finish(boolean success) {
+        synchronized (this) {
+            if(mFinished) {
+                return;
+            }
+            mFinished = true;
+            mRunning = false;
+            notifyAll();
+        }
+        saveProgress(success);
+        mMeter.cancelConnectionStateCB(mDisconnectHandle);
+        mListener.onFinished(success);
+    }
+
+    ////////////////////////////////
+    // Sender
+    ////////////////////////////////
+
+    private void sendLoop() {
+        while(true) {
+            final int bnum;
+            boolean restart = false;
+            synchronized (this) {
+                while(mRunning && !canSend() && !restart) {
+                    final double timeout = stallTimeout();
+                    try {
+                        wait((long) (timeout * 1000) + 1);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    if(mRunning && mResuming && Util.getNanoTime() - mLastProgress > MAX_STALL_TIMEOUT) {
+                        // The meter ignores the blocks, so it no longer knows about our upload
+                        Log.e(TAG, "No response to resumed upload, starting over");
+                        mResuming = false;
+                        mResumeBlock = 0;
+                        mAckedBlock = 0;
+                        mNextBlock = 0;
+                        mLastCheckpoint = 0;
+                        mLastRequest = -1;
+                        mLastProgress = Util.getNanoTime();
+                        restart = true;
+                    } else if(mRunning && !mResuming && mNextBlock > mAckedBlock && Util.getNanoTime() - mLastProgress > timeout) {
+                        // Nothing acknowledged for a while, resend from the oldest block
+                        Log.e(TAG, "Upload stalled at block " + mAckedBlock + ", resending");
+                        mWindow = MIN_WINDOW;
+                        // The acknowledgements may just be slower than the timeout, and the
+                        // resent blocks can't tell us, so wait longer next time
+                        if(timeout < MAX_STALL_TIMEOUT) {
+                            mBackoff *= 2;
+                        }
+                        mAcksSinceGrow = 0;
+                        mNextBlock = mAckedBlock;
+                        mLostBlock = -1;
+                        mLastProgress = Util.getNanoTime();
+                    }
+                }
+                if(!mRunning) {
+                    return;
+                }
+                if(restart) {
+                    bnum = -1;
+                } else {
+                    bnum = mNextBlock++;
+                    // An acknowledgement can't tell a resent block from the first copy, so
+                    // resent blocks give no round trip time
+                    mSendTime[bnum] = mSendTime[bnum] == 0 ? Util.getNanoTime() : -1;
+                }
+            }
+            if(restart) {
+                mMeter.oad_identity.send();
+                continue;
+            }
+            sendBlock(bnum);
+        }
+    }
+
+    // Guarded by this
+    private boolean canSend() {
+        return mNextBlock < mNBlocks && mNextBlock - mAckedBlock < mWindow;
+    }
+
+    // Guarded by this
+    private double stallTimeout() {
+        return Math.min(MAX_STALL_TIMEOUT, Math.max(MIN_STALL_TIMEOUT, 4 * mSrtt) * mBackoff);
+    }
+
+    private void sendBlock(int bnum) {
+        // Only this thread touches the outgoing fields of oad_block
+        mMeter.oad_block.blockNum = (short) bnum;
+        mMeter.oad_block.bytes = mImage.getBlock(bnum);
+        int rval;
+        while(isRunning()) {
+            if(mLegacyMode) {
+                rval = mMeter.oad_block.send();
+            } else {
+                rval = mMeter.oad_block.sendWithoutResponse();
+            }
+            if(rval == 0) {
+                return;
+            }
+            if(!mMeter.isConnected()) {
+                return;
+            }
+            // The stack is still busy with the previous packet
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Acknowledgements
+    ////////////////////////////////
+
+    private void onBlockRequested(int rb, double timestamp) {
+        final int acked;
+        final int window;
+        final boolean done;
+        final boolean checkpoint;
+        synchronized (this) {
+            if(!mRunning) {
+                return;
+            }
+            mResuming = false;
+            // The first request, for block zero after the identity, comes in while the first
+            // window is on the way and is no repeat
+            mRepeats = rb == mLastRequest ? mRepeats + 1 : 0;
+            mLastRequest = rb;
+            if(rb > mAckedBlock) {
+                // Progress
+                // Blocks acknowledged on resume may have been sent before we reconnected
+                final double sent = mSendTime[Math.min(rb, mNBlocks) - 1];
+                final double rtt = sent > 0 ? timestamp - sent : 0;
+                if(rtt > 0) {
+                    mSrtt = mSrtt == 0 ? rtt : 0.875 * mSrtt + 0.125 * rtt;
+                    mBackoff = 1;
+                    mMinRtt = mMinRtt == 0 ? rtt : Math.min(mMinRtt, rtt);
+                }
+                final int n_acked = rb - mAckedBlock;
+                mAckedBlock = rb;
+                mLastProgress = timestamp;
+                if(mNextBlock < mAckedBlock) {
+                    mNextBlock = mAckedBlock;
+                }
+                if(mLostBlock >= 0 && rb > mLostBlock) {
+                    // The resent block made it, recovery is over
+                    mLostBlock = -1;
+                }
+                if(!mLegacyMode && mLostBlock < 0 && rtt > 0) {
+                    if(rtt > 2 * mMinRtt && mWindow > MIN_WINDOW) {
+                        // Packets are queueing up in the stack, back off
+                        mWindow--;
+                        mAcksSinceGrow = 0;
+                    } else {
+                        mAcksSinceGrow += n_acked;
+                        if(mAcksSinceGrow >= mWindow) {
+                            mAcksSinceGrow = 0;
+                            if(mWindow < mMaxWindow) {
+                                mWindow++;
+                            }
+                        }
+                    }
+                }
+                notifyAll();
+            } else if(mRepeats == LOSS_REPEATS && rb < mNextBlock && mLostBlock < 0) {
+                // The meter keeps asking for a block we already sent, so it was lost.  Blocks sent
+                // after it will be requested again as well, ignore those until it is acknowledged.
+                Log.e(TAG, "Meter requested discontinuous block: " + rb);
+                mAckedBlock = rb;
+                mLostBlock = rb;
+                mNextBlock = rb;
+                if(!mLegacyMode) {
+                    mWindow = Math.max(MIN_WINDOW, mWindow / 2);
+                    mAcksSinceGrow = 0;
+                }
+                notifyAll();
+            } else if(mLegacyMode && rb == mAckedBlock) {
+                // In legacy mode we always send only the block that has been requested
+                mNextBlock = rb;
+                notifyAll();
+            }
+            acked = mAckedBlock;
+            window = mWindow;
+            done = mAckedBlock >= mNBlocks;
+            checkpoint = !done && mAckedBlock - mLastCheckpoint >= CHECKPOINT_INTERVAL;
+            if(checkpoint) {
+                mLastCheckpoint = mAckedBlock;
+            }
+        }
+        if(checkpoint) {
+            saveProgress(false);
+        }
+        mListener.onProgress(acked, mNBlocks, window);
+        if(done) {
+            finish(true);
+        }
+    }
+
+    ////////////////////////////////
+    // Persistence
+    ////////////////////////////////
+
+    private void saveProgress(boolean complete) {
+        final int acked;
+        synchronized (this) {
+            acked = complete ? 0 : mAckedBlock;
+        }
+        mMeter.setPreference(MooshimeterDevice.mPreferenceKeys.OAD_IMAGE, mImageKey);
+        mMeter.setPreference(MooshimeterDevice.mPreferenceKeys.OAD_BLOCK, acked);
+    }
+}
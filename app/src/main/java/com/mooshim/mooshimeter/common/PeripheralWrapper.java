@@ -37,6 +37,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,6 +47,13 @@ public class PeripheralWrapper {
 
     private static final Lock conditionLock= new ReentrantLock();
 
+    // ATT MTU before any exchange, giving 20 byte notifications
+    public static final int DEFAULT_MTU = 23;
+    // Large enough for a whole sample buffer chunk, small enough to fit one extended LE packet
+    private static final int REQUESTED_MTU = 247;
+    // BluetoothGatt.CONNECTION_PRIORITY_HIGH, only in API 21 and later
+    private static final int CONNECTION_PRIORITY_HIGH = 1;
+
     protected Context mContext;
     private BluetoothGatt mBluetoothGatt;
     private BluetoothDevice mDevice;
@@ -68,10 +76,24 @@ public class PeripheralWrapper {
     private StatLockManager bleDWriteCondition   ;
     private StatLockManager bleRWriteCondition   ;
     private StatLockManager bleRSSICondition     ;
+    private StatLockManager bleMtuCondition      ;
 
     public int mRssi;
     public int mConnectionState;
 
+    // Notification counters for throughput metrics, only written from the GATT callback
+    private volatile long mNotifyCount = 0;
+    private volatile long mNotifyBytes = 0;
+
+    // Negotiated link parameters, back to the defaults on disconnect
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile boolean mHighPriority = false;
+
+    // Writes without response the stack has queued but not yet reported done.  Their completions
+    // come through onCharacteristicWrite as well, and must not wake a blocking send() waiting on
+    // bleWriteCondition for its own write.
+    private final AtomicInteger mUnackedWrites = new AtomicInteger(0);
+
     public static abstract class NotifyCallback {
         public abstract void notify(double timestamp_utc, byte[] payload);
     }
@@ -128,11 +150,21 @@ public class PeripheralWrapper {
         bleDWriteCondition   = new StatLockManager(conditionLock);
         bleRWriteCondition   = new StatLockManager(conditionLock);
         bleRSSICondition     = new StatLockManager(conditionLock);
-        
+        bleMtuCondition      = new StatLockManager(conditionLock);
+
         mGattCallbacks = new BluetoothGattCallback() {
             @Override public void onServicesDiscovered(BluetoothGatt g, int stat)                                 { Log.d(TAG,"GATTCB:DISCOVER");bleDiscoverCondition.l(stat);               bleDiscoverCondition.sig(); bleDiscoverCondition.ul();}
             @Override public void onCharacteristicRead(BluetoothGatt g, BluetoothGattCharacteristic c, int stat)  { Log.d(TAG,"GATTCB:READ");    bleReadCondition    .l(stat);               bleReadCondition    .sig(); bleReadCondition    .ul();}
-            @Override public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int stat) { Log.d(TAG,"GATTCB:WRITE");   bleWriteCondition   .l(stat);               bleWriteCondition   .sig(); bleWriteCondition   .ul();}
+            @Override public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int stat) {
+                if(takeUnackedWrite()) {
+                    // Completion of a write without response, nobody is waiting for it
+                    return;
+                }
+                Log.d(TAG,"GATTCB:WRITE");
+                bleWriteCondition   .l(stat);
+                bleWriteCondition   .sig();
+                bleWriteCondition   .ul();
+            }
             @Override public void onDescriptorRead(BluetoothGatt g, BluetoothGattDescriptor d, int stat)          { Log.d(TAG,"GATTCB:DREAD");   bleDReadCondition   .l(stat);               bleDReadCondition   .sig(); bleDReadCondition   .ul();}
             @Override public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int stat)         { Log.d(TAG,"GATTCB:DWRITE");  bleDWriteCondition  .l(stat);               bleDWriteCondition  .sig(); bleDWriteCondition  .ul();}
             @Override public void onReliableWriteCompleted(BluetoothGatt g, int stat)                             { Log.d(TAG,"GATTCB:RWRITE");  bleRWriteCondition  .l(stat);               bleRWriteCondition  .sig(); bleRWriteCondition  .ul();}
@@ -142,6 +174,8 @@ public class PeripheralWrapper {
                 final byte[] val = c.getValue();
                 // The BLE stack sometimes gives us a null here, unclear why.
                 if( val != null ) {
+                    mNotifyCount++;
+                    mNotifyBytes += val.length;
                     final NotifyCallback cb = mNotifyCB.get(c.getUuid());
                     if (cb != null) {
                         final byte[] payload = val.clone();
@@ -161,6 +195,11 @@ public class PeripheralWrapper {
                 Log.d(TAG,"GATTCB:CONN");
                 bleStateCondition   .l(stat);
                 mConnectionState = newState;
+                if(newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    mMtu = DEFAULT_MTU;
+                    mHighPriority = false;
+                    mUnackedWrites.set(0);
+                }
                 synchronized (mConnectionStateCB) {
                     List<Runnable> cbs = mConnectionStateCB.get(mConnectionState);
                     for(Runnable cb : cbs) {
@@ -170,17 +209,29 @@ public class PeripheralWrapper {
                 bleStateCondition   .sig();
                 bleStateCondition   .ul();
             }
+            // Only called on API 21 and later.  BluetoothGattCallback in our compile SDK (19)
+            // doesn't declare it, so @Override would not compile; newer platforms still call it
+            // through the virtual dispatch.
+            public void onMtuChanged(BluetoothGatt g, int mtu, int stat) {
+                Log.d(TAG,"GATTCB:MTU");
+                bleMtuCondition     .l(stat);
+                if(stat == BluetoothGatt.GATT_SUCCESS) {
+                    mMtu = mtu;
+                }
+                bleMtuCondition     .sig();
+                bleMtuCondition     .ul();
+            }
         };
     }
 
     public int addConnectionStateCB(int state,Runnable cb) {
         synchronized (mConnectionStateCB) {
+            final int handle = connectionStateCBHandle++;
             List<Runnable> l = mConnectionStateCB.get(state);
             l.add(cb);
-            mConnectionStateCBByHandle.put(connectionStateCBHandle, cb);
+            mConnectionStateCBByHandle.put(handle, cb);
+            return handle;
         }
-        connectionStateCBHandle++;
-        return connectionStateCBHandle;
     }
 
     public void cancelConnectionStateCB(int handle) {
@@ -200,6 +251,41 @@ public class PeripheralWrapper {
         }
     }
 
+    /**
+     * @return number of notifications received since this object was created
+     */
+    public long getNotificationCount() {
+        return mNotifyCount;
+    }
+
+    /**
+     * @return number of payload bytes received in notifications since this object was created
+     */
+    public long getNotificationBytes() {
+        return mNotifyBytes;
+    }
+
+    /**
+     * @return the negotiated ATT MTU, DEFAULT_MTU if none was negotiated
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return the largest payload the peripheral can put in one notification
+     */
+    public int getMaxNotificationPayload() {
+        return mMtu - 3;
+    }
+
+    /**
+     * @return true if high connection priority (a short connection interval) was granted
+     */
+    public boolean isHighPriority() {
+        return mHighPriority;
+    }
+
     public boolean isConnected() {
         return (mConnectionState == BluetoothProfile.STATE_CONNECTED);
     }
@@ -293,7 +379,43 @@ public class PeripheralWrapper {
                 mCharacteristics.put(c.getUuid(), c);
             }
         }
-        return bleDiscoverCondition.stat;
+        final int rval = bleDiscoverCondition.stat;
+        if(rval == BluetoothGatt.GATT_SUCCESS) {
+            negotiateLinkParameters();
+        }
+        return rval;
+    }
+
+    // Asks for a short connection interval and a large MTU so notifications carry more per
+    // connection event.  Both calls only exist from API 21, so they are looked up by reflection
+    // and skipped where missing.  A peripheral may refuse either, in which case we keep the defaults.
+    private void negotiateLinkParameters() {
+        protectedCall(new Interruptable() {
+            @Override
+            public Void call() throws InterruptedException {
+                try {
+                    Method m = mBluetoothGatt.getClass().getMethod("requestConnectionPriority", int.class);
+                    mHighPriority = (Boolean) m.invoke(mBluetoothGatt, CONNECTION_PRIORITY_HIGH);
+                } catch (NoSuchMethodException e) {
+                    Log.d(TAG, "Connection priority not supported on this platform");
+                } catch (Exception e) {
+                    Log.e(TAG, "Connection priority request failed");
+                }
+                try {
+                    Method m = mBluetoothGatt.getClass().getMethod("requestMtu", int.class);
+                    Log.d(TAG, "MTU");
+                    if((Boolean) m.invoke(mBluetoothGatt, REQUESTED_MTU)) {
+                        bleMtuCondition.awaitMilli(1000);
+                    }
+                } catch (NoSuchMethodException e) {
+                    Log.d(TAG, "MTU exchange not supported on this platform");
+                } catch (Exception e) {
+                    Log.e(TAG, "MTU request failed");
+                }
+                return null;
+            }
+        });
+        Log.i(TAG, String.format("%s: MTU %d, %s connection priority", getAddress(), mMtu, mHighPriority ? "high" : "default"));
     }
 
     public int disconnect() {
@@ -360,6 +482,47 @@ public class PeripheralWrapper {
         });
     }
 
+    // Write without response.  Returns as soon as the stack has queued the packet instead of
+    // waiting for the write callback, so it can be called at a high rate from a worker thread.
+    // Returns -1 if the stack is still busy with the previous write; the caller should retry.
+    public int sendWithoutResponse(final UUID uuid, final byte[] value) {
+        if(!isConnected()) {
+            Log.e(TAG,"Trying to send to a disconnected peripheral");
+            return -1;
+        }
+        final BluetoothGattCharacteristic c = getChar(uuid);
+        // Hold the BLE lock so we don't interleave with a blocking call in progress.  The write
+        // type is passed down synchronously by writeCharacteristic, so it can be restored right away.
+        bleLock.lock();
+        try {
+            c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            c.setValue(value);
+            // Counted before queueing, the completion may come before writeCharacteristic returns
+            mUnackedWrites.incrementAndGet();
+            final boolean queued = mBluetoothGatt.writeCharacteristic(c);
+            c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            if(!queued) {
+                takeUnackedWrite();
+            }
+            return queued ? 0 : -1;
+        } finally {
+            bleLock.unlock();
+        }
+    }
+
+    // Counts down a pending write without response, returns false if there was none
+    private boolean takeUnackedWrite() {
+        while(true) {
+            final int n = mUnackedWrites.get();
+            if(n == 0) {
+                return false;
+            }
+            if(mUnackedWrites.compareAndSet(n, n - 1)) {
+                return true;
+            }
+        }
+    }
+
     public NotifyCallback getNotificationCallback(UUID uuid) {
         return mNotifyCB.get(uuid);
     }
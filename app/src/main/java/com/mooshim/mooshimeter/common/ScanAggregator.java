@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects scan results and hands them to the UI in batches.
+ *
+ * Advertisements can arrive many times per second per meter.  Instead of posting a tile refresh
+ * for each one, the scan thread only updates an entry per device here.  Every PUBLISH_INTERVAL_MS
+ * the main thread gets the devices that appeared, changed or were not seen for AGE_OUT_S.
+ */
+public class ScanAggregator {
+    private static final int PUBLISH_INTERVAL_MS = 100;
+    private static final double AGE_OUT_S = 3.0;
+    // Weight of a new RSSI reading in the smoothed RSSI
+    private static final double RSSI_ALPHA = 0.25;
+    // Smoothed RSSI changes smaller than this are not worth a redraw
+    private static final double RSSI_DEADBAND = 1.0;
+
+    public static class Entry {
+        public final BluetoothDevice device;
+        private double mRssi;
+        private double mPublishedRssi;
+        private double mLastSeen;
+        private boolean mOADMode;
+        private int mBuildTime;
+        private boolean mNew = true;
+        private boolean mDirty = true;
+
+        Entry(BluetoothDevice device, int rssi) {
+            this.device = device;
+            mRssi = rssi;
+            mPublishedRssi = rssi;
+        }
+
+        public synchronized int getRssi() {
+            return (int) Math.round(mRssi);
+        }
+
+        public synchronized double getLastSeen() {
+            return mLastSeen;
+        }
+
+        public synchronized boolean isInOADMode() {
+            return mOADMode;
+        }
+
+        public synchronized int getBuildTime() {
+            return mBuildTime;
+        }
+
+        synchronized void update(int rssi, boolean oad_mode, int build_time, double now) {
+            mRssi += RSSI_ALPHA * (rssi - mRssi);
+            mLastSeen = now;
+            if(Math.abs(mRssi - mPublishedRssi) >= RSSI_DEADBAND || oad_mode != mOADMode || build_time != mBuildTime) {
+                mDirty = true;
+            }
+            mOADMode = oad_mode;
+            mBuildTime = build_time;
+        }
+    }
+
+    public static abstract class Listener {
+        // Called on the main thread with the changes since the last call.  Lists are never null.
+        public abstract void onScanUpdate(List<Entry> added, List<Entry> updated, List<Entry> removed);
+    }
+
+    private final ConcurrentHashMap<String,Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Listener mListener;
+    private boolean mRunning = false;
+
+    private final Runnable mPublisher = new Runnable() {
+        @Override
+        public void run() {
+            if(!mRunning) {
+                return;
+            }
+            publish();
+            mHandler.postDelayed(this, PUBLISH_INTERVAL_MS);
+        }
+    };
+
+    public ScanAggregator(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts publishing, forgetting anything seen before.  Call from the main thread.
+     */
+    public void start() {
+        mEntries.clear();
+        if(!mRunning) {
+            mRunning = true;
+            mHandler.postDelayed(mPublisher, PUBLISH_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Stops publishing after one last batch.  Call from the main thread.
+     */
+    public void stop() {
+        if(mRunning) {
+            mRunning = false;
+            mHandler.removeCallbacks(mPublisher);
+            // Posted rather than run here, stop may be called from within onScanUpdate
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    publish();
+                }
+            });
+        }
+    }
+
+    /**
+     * Records an advertisement from a meter.  Safe to call from the scan callback thread.
+     */
+    public void onAdvertisement(BluetoothDevice device, int rssi, boolean oad_mode, int build_time) {
+        Entry e = mEntries.get(device.getAddress());
+        if(e == null) {
+            final Entry new_entry = new Entry(device, rssi);
+            e = mEntries.putIfAbsent(device.getAddress(), new_entry);
+            if(e == null) {
+                e = new_entry;
+            }
+        }
+        e.update(rssi, oad_mode, build_time, Util.getNanoTime());
+    }
+
+    private void publish() {
+        final List<Entry> added   = new ArrayList<Entry>();
+        final List<Entry> updated = new ArrayList<Entry>();
+        final List<Entry> removed = new ArrayList<Entry>();
+        final double now = Util.getNanoTime();
+        Iterator<Entry> it = mEntries.values().iterator();
+        while(it.hasNext()) {
+            final Entry e = it.next();
+            synchronized (e) {
+                if(now - e.mLastSeen > AGE_OUT_S) {
+                    it.remove();
+                    removed.add(e);
+                } else if(e.mNew) {
+                    e.mNew = false;
+                    e.mDirty = false;
+                    e.mPublishedRssi = e.mRssi;
+                    added.add(e);
+                } else if(e.mDirty) {
+                    e.mDirty = false;
+                    e.mPublishedRssi = e.mRssi;
+                    updated.add(e);
+                }
+            }
+        }
+        if(added.isEmpty() && updated.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        mListener.onScanUpdate(added, updated, removed);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+/**
+ * Picks Mooshimeters out of BLE advertisements.
+ *
+ * Scan callbacks fire for every advertisement in range, most of them from other devices, so
+ * parse() walks the AD structures in place without allocating anything.  128-bit service UUIDs
+ * are compared as two longs against the meter's service UUIDs, and the build time is taken from
+ * the manufacturer data in the same pass.  An instance keeps the result of the last parse, so
+ * use one per scan callback.
+ */
+public class ScanRecordParser {
+    // AD structure types
+    private static final int AD_UUID128_INCOMPLETE = 0x06;
+    private static final int AD_UUID128_COMPLETE   = 0x07;
+    private static final int AD_MANUFACTURER_DATA  = 0xFF;
+
+    private static final long METER_MSB = MooshimeterDevice.mUUID.METER_SERVICE.getMostSignificantBits();
+    private static final long METER_LSB = MooshimeterDevice.mUUID.METER_SERVICE.getLeastSignificantBits();
+    private static final long OAD_MSB   = MooshimeterDevice.mUUID.OAD_SERVICE_UUID.getMostSignificantBits();
+    private static final long OAD_LSB   = MooshimeterDevice.mUUID.OAD_SERVICE_UUID.getLeastSignificantBits();
+
+    private boolean mIsMeter;
+    private boolean mOADMode;
+    private int mBuildTime;
+
+    /**
+     * @param record raw scan record as passed to onLeScan
+     * @return true if the advertisement is from a Mooshimeter
+     */
+    public boolean parse(final byte[] record) {
+        mIsMeter = false;
+        mOADMode = false;
+        mBuildTime = 0;
+        int i = 0;
+        while(i < record.length) {
+            final int field_length = record[i] & 0xFF;
+            if(field_length == 0) {
+                // Padding after the last structure
+                break;
+            }
+            final int start = i + 2;                 // First byte of the data
+            final int end   = i + 1 + field_length;  // One past the last byte of the data
+            if(end > record.length) {
+                // Truncated record
+                break;
+            }
+            switch(record[i + 1] & 0xFF) {
+                case AD_UUID128_INCOMPLETE:
+                case AD_UUID128_COMPLETE:
+                    // UUIDs are little endian in the scan record
+                    for(int j = start; j + 16 <= end; j += 16) {
+                        final long lsb = getLongLE(record, j);
+                        final long msb = getLongLE(record, j + 8);
+                        if(msb == METER_MSB && lsb == METER_LSB) {
+                            mIsMeter = true;
+                        } else if(msb == OAD_MSB && lsb == OAD_LSB) {
+                            mIsMeter = true;
+                            mOADMode = true;
+                        }
+                    }
+                    break;
+                case AD_MANUFACTURER_DATA:
+                    // In the case of the Mooshimeter this is the build time in UTC seconds
+                    if(end - start == 4) {
+                        mBuildTime =  (record[start    ] & 0xFF)
+                                   | ((record[start + 1] & 0xFF) << 8)
+                                   | ((record[start + 2] & 0xFF) << 16)
+                                   | ((record[start + 3] & 0xFF) << 24);
+                    }
+                    break;
+            }
+            i = end;
+        }
+        return mIsMeter;
+    }
+
+    private static long getLongLE(final byte[] b, final int offset) {
+        long rval = 0;
+        for(int k = 7; k >= 0; k--) {
+            rval = (rval << 8) | (b[offset + k] & 0xFF);
+        }
+        return rval;
+    }
+
+    public boolean isMeter() {
+        return mIsMeter;
+    }
+
+    public boolean isInOADMode() {
+        return mOADMode;
+    }
+
+    /**
+     * @return the build time advertised by the meter, 0 if there was none
+     */
+    public int getBuildTime() {
+        return mBuildTime;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Amplitude spectrum, fundamental frequency and THD of a sample buffer.
+ *
+ * The buffer is Hann windowed and run through a radix-2 real FFT: the N real samples are
+ * packed as N/2 complex ones, transformed in place, and split back into the N/2+1 bins of the
+ * real spectrum.  The bit reversal, twiddle and window tables depend only on N and are shared
+ * by all analyzers through a cache, and each analyzer keeps its work arrays, so after the first
+ * buffer of a length analyze() allocates nothing.  One analyzer per channel, they aren't
+ * thread safe.
+ */
+public class SpectrumAnalyzer {
+    // Harmonics counted in the THD, the fundamental being the first
+    private static final int MAX_HARMONIC = 10;
+
+    // Everything that only depends on the buffer length
+    private static class Tables {
+        final int n;
+        final int[] bitrev;        // Bit reversal permutation of the n/2 point complex FFT
+        final float[] cos;         // Twiddles of the n/2 point complex FFT
+        final float[] sin;
+        final float[] splitCos;    // Twiddles splitting it into the n point real FFT
+        final float[] splitSin;
+        final float[] window;
+        final float scale;         // Bin magnitude to sine amplitude
+
+        Tables(int n) {
+            this.n = n;
+            final int m = n / 2;
+            int bits = 0;
+            while((1 << bits) < m) {
+                bits++;
+            }
+            bitrev = new int[m];
+            for(int i = 0; i < m; i++) {
+                bitrev[i] = Integer.reverse(i) >>> (32 - bits);
+            }
+            cos = new float[m / 2];
+            sin = new float[m / 2];
+            for(int i = 0; i < m / 2; i++) {
+                cos[i] = (float) Math.cos(2 * Math.PI * i / m);
+                sin[i] = (float)-Math.sin(2 * Math.PI * i / m);
+            }
+            splitCos = new float[m + 1];
+            splitSin = new float[m + 1];
+            for(int i = 0; i <= m; i++) {
+                splitCos[i] = (float) Math.cos(2 * Math.PI * i / n);
+                splitSin[i] = (float)-Math.sin(2 * Math.PI * i / n);
+            }
+            window = new float[n];
+            double sum = 0;
+            for(int i = 0; i < n; i++) {
+                window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / n));
+                sum += window[i];
+            }
+            // A sine of amplitude A peaks at A/2 times the window sum
+            scale = (float) (2 / sum);
+        }
+    }
+
+    private static final Map<Integer,Tables> sTables = new HashMap<Integer, Tables>();
+
+    private static synchronized Tables getTables(int n) {
+        Tables t = sTables.get(n);
+        if(t == null) {
+            t = new Tables(n);
+            sTables.put(n, t);
+        }
+        return t;
+    }
+
+    private Tables mTables;
+    // Interleaved re/im of the complex FFT
+    private float[] mWork;
+    private float[] mMagnitude;
+    private int mBins = 0;
+    private double mBinWidth = 0;
+    private double mFundamental = Double.NaN;
+    private double mThd = Double.NaN;
+
+    /**
+     * Analyzes a buffer
+     * @param buf           Samples
+     * @param len           Number of samples, a power of two of at least 4
+     * @param sample_rate   Samples per second
+     */
+    public void analyze(float[] buf, int len, double sample_rate) {
+        if(len < 4 || (len & (len - 1)) != 0) {
+            throw new IllegalArgumentException("Buffer length must be a power of two: " + len);
+        }
+        if(mTables == null || mTables.n != len) {
+            mTables = getTables(len);
+            mWork = new float[len];
+            mMagnitude = new float[len / 2 + 1];
+        }
+        final Tables t = mTables;
+        final float[] w = mWork;
+        // Even samples to the real parts, odd ones to the imaginary parts
+        for(int i = 0; i < len; i++) {
+            w[i] = buf[i] * t.window[i];
+        }
+        fft(t, w);
+        split(t, w, mMagnitude);
+        mBins = len / 2 + 1;
+        mBinWidth = sample_rate / len;
+        measure();
+    }
+
+    /**
+     * @return Amplitude of each bin, in the units of the samples.  Reused by the next analyze().
+     */
+    public float[] getMagnitude() {
+        return mMagnitude;
+    }
+
+    /**
+     * @return Number of bins in getMagnitude(), from DC to half the sample rate
+     */
+    public int getBins() {
+        return mBins;
+    }
+
+    /**
+     * @return Hz between bins
+     */
+    public double getBinWidth() {
+        return mBinWidth;
+    }
+
+    /**
+     * @return Frequency of the largest non-DC bin, interpolated between bins, in Hz
+     */
+    public double getFundamental() {
+        return mFundamental;
+    }
+
+    /**
+     * @return Total harmonic distortion, RMS of the harmonics over the fundamental
+     */
+    public double getThd() {
+        return mThd;
+    }
+
+    // In place radix-2 FFT of the n/2 complex values in w
+    private static void fft(Tables t, float[] w) {
+        final int m = t.n / 2;
+        for(int i = 0; i < m; i++) {
+            final int j = t.bitrev[i];
+            if(j > i) {
+                float tmp;
+                tmp = w[2*i];   w[2*i]   = w[2*j];   w[2*j]   = tmp;
+                tmp = w[2*i+1]; w[2*i+1] = w[2*j+1]; w[2*j+1] = tmp;
+            }
+        }
+        for(int size = 2; size <= m; size *= 2) {
+            final int half = size / 2;
+            final int step = m / size;
+            for(int start = 0; start < m; start += size) {
+                for(int k = 0; k < half; k++) {
+                    final float c = t.cos[k * step];
+                    final float s = t.sin[k * step];
+                    final int a = 2 * (start + k);
+                    final int b = 2 * (start + k + half);
+                    final float re = w[b] * c - w[b+1] * s;
+                    final float im = w[b] * s + w[b+1] * c;
+                    w[b]   = w[a]   - re;
+                    w[b+1] = w[a+1] - im;
+                    w[a]   += re;
+                    w[a+1] += im;
+                }
+            }
+        }
+    }
+
+    // Magnitudes of the real FFT from the complex FFT of the packed samples
+    private static void split(Tables t, float[] w, float[] mag) {
+        final int m = t.n / 2;
+        for(int k = 0; k <= m; k++) {
+            final int a = 2 * (k == m ? 0 : k);
+            final int b = 2 * (k == 0 ? 0 : m - k);
+            // Transforms of the even and the odd samples
+            final float er = (w[a]   + w[b])   / 2;
+            final float ei = (w[a+1] - w[b+1]) / 2;
+            final float or = (w[a+1] + w[b+1]) / 2;
+            final float oi = (w[b]   - w[a])   / 2;
+            final float c = t.splitCos[k];
+            final float s = t.splitSin[k];
+            final float re = er + or * c - oi * s;
+            final float im = ei + or * s + oi * c;
+            mag[k] = (float) Math.sqrt(re * re + im * im) * t.scale;
+        }
+        // DC and Nyquist have no negative frequency to share their energy with
+        mag[0] /= 2;
+        mag[m] /= 2;
+    }
+
+    // Finds the fundamental and the THD in the spectrum
+    private void measure() {
+        final float[] mag = mMagnitude;
+        final int last = mBins - 1;
+        int peak = 1;
+        for(int k = 2; k <= last; k++) {
+            if(mag[k] > mag[peak]) {
+                peak = k;
+            }
+        }
+        if(mag[peak] == 0) {
+            mFundamental = Double.NaN;
+            mThd = Double.NaN;
+            return;
+        }
+        // Parabola through the peak and its neighbours
+        double offset = 0;
+        if(peak < last) {
+            final double l = mag[peak - 1];
+            final double c = mag[peak];
+            final double r = mag[peak + 1];
+            final double d = l - 2 * c + r;
+            if(d != 0) {
+                offset = 0.5 * (l - r) / d;
+            }
+        }
+        final double f_bin = peak + offset;
+        mFundamental = f_bin * mBinWidth;
+        // The window spreads each tone over three bins
+        final double fundamental = power(peak);
+        double harmonics = 0;
+        for(int h = 2; h <= MAX_HARMONIC; h++) {
+            final int k = (int) Math.round(h * f_bin);
+            if(k >= last) {
+                break;
+            }
+            harmonics += power(k);
+        }
+        mThd = Math.sqrt(harmonics / fundamental);
+    }
+
+    // Power of the bins around k
+    private double power(int k) {
+        final float[] mag = mMagnitude;
+        double p = 0;
+        for(int i = Math.max(1, k - 1); i <= Math.min(mBins - 1, k + 1); i++) {
+            p += mag[i] * mag[i];
+        }
+        return p;
+    }
+}
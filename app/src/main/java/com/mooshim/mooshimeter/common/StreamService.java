@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import android.app.Notification;
+import android.app.Service;
+import android.bluetooth.BluetoothGatt;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.mooshim.mooshimeter.R;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Owns the live sample streams of the meters, so they outlive the activities that show them.
+ *
+ * Activities bind to the service and subscribe to a meter instead of calling playSampleStream
+ * themselves.  The first subscriber starts the stream, and it keeps running for a while after
+ * the last one leaves, so moving from one activity to the next (on rotation, say) costs no BLE
+ * traffic and loses no samples.  The service keeps the recent samples of each stream, and a new
+ * subscriber can have them replayed before the live samples.  While a stream runs the service
+ * is started and in the foreground, so it is not stopped when no activity is bound.
+ */
+public class StreamService extends Service {
+    private static final String TAG = "StreamService";
+
+    // Samples kept per meter for replay
+    public static final int HISTORY = 2048;
+    // Keep streaming this long after the last subscriber left
+    private static final int LINGER_MS = 3000;
+    private static final int NOTIFICATION_ID = 1;
+
+    public static abstract class Listener {
+        // Called from the BLE dispatch thread for live samples, and from the thread that called
+        // subscribe for replayed ones.  t is Util.getNanoTime() at arrival, values in native units.
+        public abstract void onSample(MooshimeterDevice m, double t, double v0, double v1);
+        // Called when the meter disconnected and the stream is gone, from the thread reporting
+        // the disconnect.  The listener is unsubscribed already, subscribe again after reconnecting.
+        public void onStreamLost(MooshimeterDevice m) {}
+    }
+
+    public class LocalBinder extends Binder {
+        public StreamService getService() {
+            return StreamService.this;
+        }
+    }
+
+    // The stream of one meter and its history
+    private class Stream {
+        final MooshimeterDevice meter;
+        final List<Listener> listeners = new ArrayList<Listener>();
+        // Ring of the recent samples
+        final double[] t  = new double[HISTORY];
+        final double[] v0 = new double[HISTORY];
+        final double[] v1 = new double[HISTORY];
+        int head = 0;                  // Index of the next sample
+        int count = 0;
+        long total = 0;                // Samples ever added
+        int disconnectHandle;
+        // Bumped whenever the listeners change, so a stale linger timeout does nothing
+        int generation = 0;
+
+        Stream(MooshimeterDevice meter) {
+            this.meter = meter;
+        }
+
+        // Called with the stream locked
+        void add(double time, double a, double b) {
+            t[head] = time;
+            v0[head] = a;
+            v1[head] = b;
+            head = (head + 1) % HISTORY;
+            count = Math.min(count + 1, HISTORY);
+            total++;
+            for(int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onSample(meter, time, a, b);
+            }
+        }
+
+        // Called with the stream locked.  Copies the samples added since sample number from
+        // (as far as they are still kept) to the arrays, in order, and returns how many.
+        int copy(long from, double[] t_out, double[] v0_out, double[] v1_out) {
+            final int n = (int) Math.min(total - from, count);
+            int i = (head - n + HISTORY) % HISTORY;
+            for(int j = 0; j < n; j++) {
+                t_out[j]  = t[i];
+                v0_out[j] = v0[i];
+                v1_out[j] = v1[i];
+                i = (i + 1) % HISTORY;
+            }
+            return n;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    // Keyed by meter address
+    private final Map<String,Stream> mStreams = new HashMap<String, Stream>();
+    private boolean mForeground = false;
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Only started to outlive the bound activities, nothing to do on restart
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        final List<Stream> streams;
+        synchronized (this) {
+            streams = new ArrayList<Stream>(mStreams.values());
+            mStreams.clear();
+        }
+        for(final Stream s : streams) {
+            s.meter.cancelConnectionStateCB(s.disconnectHandle);
+            Util.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    if(s.meter.isConnected()) {
+                        s.meter.pauseStream();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Subscribes to the samples of a meter, starting its stream if it isn't running
+     * @param replay    Whether to first pass the samples kept from before
+     */
+    public void subscribe(final MooshimeterDevice m, final Listener l, boolean replay) {
+        final Stream s;
+        final boolean start;
+        synchronized (this) {
+            Stream existing = mStreams.get(m.getAddress());
+            start = existing == null;
+            if(start) {
+                existing = new Stream(m);
+                mStreams.put(m.getAddress(), existing);
+            }
+            s = existing;
+        }
+        long replayed = 0;
+        if(replay) {
+            // Replay a copy outside the lock, the stream can't deliver live samples meanwhile
+            final double[] t  = new double[HISTORY];
+            final double[] v0 = new double[HISTORY];
+            final double[] v1 = new double[HISTORY];
+            int n;
+            synchronized (s) {
+                replayed = s.total;
+                n = s.copy(0, t, v0, v1);
+            }
+            for(int i = 0; i < n; i++) {
+                l.onSample(m, t[i], v0[i], v1[i]);
+            }
+            // Then the few that came in while replaying, so the listener sees every sample once
+            synchronized (s) {
+                n = s.copy(replayed, t, v0, v1);
+                for(int i = 0; i < n; i++) {
+                    l.onSample(m, t[i], v0[i], v1[i]);
+                }
+                addListener(s, l);
+            }
+        } else {
+            synchronized (s) {
+                addListener(s, l);
+            }
+        }
+        if(start) {
+            startStream(s);
+        }
+    }
+
+    // Called with the stream locked
+    private static void addListener(Stream s, Listener l) {
+        if(!s.listeners.contains(l)) {
+            s.listeners.add(l);
+        }
+        s.generation++;
+    }
+
+    /**
+     * Stops passing samples to the listener.  The stream keeps running for a few seconds, in
+     * case another activity subscribes.
+     */
+    public void unsubscribe(MooshimeterDevice m, Listener l) {
+        final Stream s;
+        synchronized (this) {
+            s = mStreams.get(m.getAddress());
+        }
+        if(s == null) {
+            return;
+        }
+        final int generation;
+        synchronized (s) {
+            if(!s.listeners.remove(l) || !s.listeners.isEmpty()) {
+                return;
+            }
+            generation = ++s.generation;
+        }
+        Util.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Util.dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (StreamService.this) {
+                            synchronized (s) {
+                                if(s.generation != generation || mStreams.get(s.meter.getAddress()) != s) {
+                                    // Someone subscribed in the meantime
+                                    return;
+                                }
+                            }
+                        }
+                        stop(s.meter);
+                    }
+                });
+            }
+        }, LINGER_MS);
+    }
+
+    /**
+     * Stops the stream of a meter right away and drops its subscribers and history, for when the
+     * meter is needed for something else (like a buffer download).  Does BLE work, don't call it
+     * on the main thread.
+     */
+    public void stop(MooshimeterDevice m) {
+        final Stream s;
+        synchronized (this) {
+            s = mStreams.remove(m.getAddress());
+        }
+        if(s == null) {
+            return;
+        }
+        synchronized (s) {
+            s.listeners.clear();
+            s.generation++;
+        }
+        m.cancelConnectionStateCB(s.disconnectHandle);
+        if(m.isConnected()) {
+            m.pauseStream();
+        }
+        Log.d(TAG, m.getAddress() + ": stream stopped");
+        updateForeground();
+    }
+
+    /**
+     * @return whether the service is streaming from the meter
+     */
+    public synchronized boolean isStreaming(MooshimeterDevice m) {
+        return mStreams.containsKey(m.getAddress());
+    }
+
+    private void startStream(final Stream s) {
+        final MooshimeterDevice m = s.meter;
+        s.disconnectHandle = m.addConnectionStateCB(BluetoothGatt.STATE_DISCONNECTED, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (StreamService.this) {
+                    if(mStreams.get(m.getAddress()) == s) {
+                        mStreams.remove(m.getAddress());
+                    }
+                }
+                final List<Listener> lost;
+                synchronized (s) {
+                    lost = new ArrayList<Listener>(s.listeners);
+                    s.listeners.clear();
+                    s.generation++;
+                }
+                m.cancelConnectionStateCB(s.disconnectHandle);
+                updateForeground();
+                Log.d(TAG, m.getAddress() + ": stream lost");
+                for(Listener l : lost) {
+                    l.onStreamLost(m);
+                }
+            }
+        });
+        updateForeground();
+        Util.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                m.playSampleStream(new PeripheralWrapper.NotifyCallback() {
+                    @Override
+                    public void notify(double timestamp_utc, byte[] payload) {
+                        final double a = toNativeUnits(m, 0);
+                        final double b = toNativeUnits(m, 1);
+                        synchronized (s) {
+                            s.add(timestamp_utc, a, b);
+                        }
+                    }
+                });
+                Log.d(TAG, m.getAddress() + ": stream started");
+            }
+        });
+    }
+
+    // Reading of a channel of the last sample, also used by SyncAcquisition
+    static double toNativeUnits(MooshimeterDevice m, int ch) {
+        final int lsb_int;
+        if(m.disp_ac[ch]) {
+            lsb_int = (int) (Math.sqrt(m.meter_sample.reading_ms[ch]));
+        } else {
+            lsb_int = m.meter_sample.reading_lsb[ch];
+        }
+        return m.lsbToNativeUnits(lsb_int, ch);
+    }
+
+    // In the foreground (and started, so unbinding doesn't destroy us) while there are streams
+    private synchronized void updateForeground() {
+        final int n = mStreams.size();
+        if(n > 0) {
+            if(!mForeground) {
+                startService(new Intent(this, StreamService.class));
+            }
+            final Notification notification = new Notification.Builder(this)
+                    .setSmallIcon(R.mipmap.ic_launcher)
+                    .setContentTitle(getString(R.string.app_name))
+                    .setContentText(String.format("Streaming from %d meter%s", n, n == 1 ? "" : "s"))
+                    .setOngoing(true)
+                    .build();
+            startForeground(NOTIFICATION_ID, notification);
+            mForeground = true;
+        } else if(mForeground) {
+            stopForeground(true);
+            stopSelf();
+            mForeground = false;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams from several meters at once and lines their samples up on a common timebase.
+ *
+ * Samples carry no meter timestamp, so each one is timed by its arrival.  Before streaming, the
+ * link latency of each meter is estimated from round trips to its MeterTime.  The meter clock is
+ * checked on the way and re-set if it is off from ours by more than a second, but only so the
+ * meter's own time agrees with ours: with no meter time in the samples there is nothing to apply
+ * the offset to, so it plays no part in the alignment.
+ * Arrival times are corrected for latency and de-jittered against the meter's sample period,
+ * then every meter is interpolated on to a shared grid of period_s.  Frames are only emitted up
+ * to the time every meter has reached, so a frame always holds a value from each meter.
+ */
+public class SyncAcquisition {
+    private static final String TAG = "SyncAcquisition";
+
+    // Round trips to MeterTime per meter when calibrating
+    private static final int N_TIME_READS = 8;
+    // Give up waiting for the meter clock to tick after this long
+    private static final double MAX_CALIBRATION_S = 2.5;
+    // Re-set a meter's clock if it is off by more than this
+    private static final double MAX_CLOCK_OFFSET_S = 1.0;
+    // Samples kept per meter for interpolation
+    private static final int HISTORY = 32;
+    // How quickly the de-jittered time follows late arrivals, and the sample period follows arrivals
+    private static final double LATE_ALPHA = 0.05;
+    private static final double PERIOD_ALPHA = 0.02;
+    // An arrival this many periods late means samples were dropped, start tracking again
+    private static final double GAP_PERIODS = 4.0;
+
+    public static abstract class Listener {
+        // Called from the BLE dispatch thread.  values is [meter 0 ch 1, meter 0 ch 2, meter 1 ch 1, ...]
+        // in native units, t is in seconds since start.  values is reused between calls.
+        public abstract void onFrame(double t, double[] values);
+        // Called once all meters are calibrated and streaming, or failed to
+        public void onStarted(boolean success) {}
+    }
+
+    // Follows the sample stream of one meter
+    private class Channel {
+        final MooshimeterDevice meter;
+        double latency = 0;            // One way, seconds
+        // De-jittering
+        double lastArrival = -1;
+        double lastEstimate = -1;
+        double period = 0;
+        // Ring of de-jittered sample times and values
+        final double[] t = new double[HISTORY];
+        final double[][] v = new double[HISTORY][2];
+        int head = -1;                 // Index of the newest sample
+        int count = 0;
+
+        Channel(MooshimeterDevice meter) {
+            this.meter = meter;
+        }
+
+        double newest() {
+            return t[head];
+        }
+
+        double oldest() {
+            return t[(head - count + 1 + HISTORY) % HISTORY];
+        }
+
+        void add(double arrival, double v0, double v1) {
+            final double corrected = arrival - latency;
+            double est;
+            if(lastEstimate < 0) {
+                est = corrected;
+            } else {
+                final double gap = corrected - lastArrival;
+                period = period == 0 ? gap : period + PERIOD_ALPHA * (gap - period);
+                final double predicted = lastEstimate + period;
+                if(corrected <= predicted) {
+                    // Arrivals are never early, the earliest one is closest to the truth
+                    est = corrected;
+                } else if(corrected - predicted > GAP_PERIODS * period) {
+                    est = corrected;
+                } else {
+                    est = predicted + LATE_ALPHA * (corrected - predicted);
+                }
+            }
+            lastArrival = corrected;
+            lastEstimate = est;
+            head = (head + 1) % HISTORY;
+            t[head] = est;
+            v[head][0] = v0;
+            v[head][1] = v1;
+            count = Math.min(count + 1, HISTORY);
+        }
+
+        // Linear interpolation at time x, which must lie between oldest() and newest()
+        void interpolate(double x, double[] out, int offset) {
+            int i = head;
+            for(int n = 1; n < count; n++) {
+                final int prev = (i - 1 + HISTORY) % HISTORY;
+                if(t[prev] <= x) {
+                    final double span = t[i] - t[prev];
+                    final double w = span > 0 ? (x - t[prev]) / span : 1;
+                    out[offset    ] = v[prev][0] + w * (v[i][0] - v[prev][0]);
+                    out[offset + 1] = v[prev][1] + w * (v[i][1] - v[prev][1]);
+                    return;
+                }
+                i = prev;
+            }
+            out[offset    ] = v[i][0];
+            out[offset + 1] = v[i][1];
+        }
+    }
+
+    private final List<Channel> mChannels = new ArrayList<Channel>();
+    private final double mPeriod;
+    private final Listener mListener;
+    private final double[] mFrame;
+    private double mStartTime = 0;
+    private double mStartUTC = 0;
+    private double mNextT = -1;        // Next grid point, on the Util.getNanoTime() clock
+    private boolean mRunning = false;
+
+    /**
+     * @param meters    Connected meters to stream from
+     * @param period_s  Spacing of the common timebase
+     */
+    public SyncAcquisition(List<MooshimeterDevice> meters, double period_s, Listener listener) {
+        for(MooshimeterDevice m : meters) {
+            mChannels.add(new Channel(m));
+        }
+        mPeriod = period_s;
+        mListener = listener;
+        mFrame = new double[2 * meters.size()];
+    }
+
+    /**
+     * Calibrates each meter and starts streaming.  Returns immediately, the work runs on its own thread.
+     */
+    public void start() {
+        synchronized (this) {
+            if(mRunning) {
+                Log.e(TAG, "start called, but already running!");
+                return;
+            }
+            mRunning = true;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(Channel c : mChannels) {
+                    if(!isRunning()) {
+                        return;
+                    }
+                    if(!calibrate(c)) {
+                        Log.e(TAG, c.meter.getAddress() + ": could not calibrate");
+                        stop();
+                        mListener.onStarted(false);
+                        return;
+                    }
+                }
+                synchronized (SyncAcquisition.this) {
+                    // stop() may have been called while we were calibrating
+                    if(!mRunning) {
+                        return;
+                    }
+                    mStartTime = Util.getNanoTime();
+                    mStartUTC = Util.getUTCTime();
+                    mNextT = -1;
+                }
+                for(int i = 0; i < mChannels.size(); i++) {
+                    startStream(mChannels.get(i));
+                    if(isRunning()) {
+                        continue;
+                    }
+                    // stop() ran while the streams were starting and may have missed the ones started after it
+                    for(int j = 0; j <= i; j++) {
+                        final MooshimeterDevice m = mChannels.get(j).meter;
+                        if(m.isConnected() && m.isStreaming()) {
+                            m.pauseStream();
+                        }
+                    }
+                    return;
+                }
+                mListener.onStarted(true);
+            }
+        });
+        t.start();
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public void stop() {
+        synchronized (this) {
+            mRunning = false;
+        }
+        for(Channel c : mChannels) {
+            if(c.meter.isConnected() && c.meter.isStreaming()) {
+                c.meter.pauseStream();
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Calibration
+    ////////////////////////////////
+
+    // Estimates latency from round trips to MeterTime, and re-sets the meter clock if it is off.
+    // The meter clock only counts whole seconds, so its offset comes from the read where the count
+    // ticks over.
+    private boolean calibrate(Channel c) {
+        final MooshimeterDevice.MeterTime mt = c.meter.meter_time;
+        double min_rtt = Double.MAX_VALUE;
+        double offset = Double.NaN;
+        long last_count = -1;
+        final double deadline = Util.getNanoTime() + MAX_CALIBRATION_S;
+        int n = 0;
+        while(n < N_TIME_READS || (Double.isNaN(offset) && Util.getNanoTime() < deadline)) {
+            if(!c.meter.isConnected()) {
+                return false;
+            }
+            final double t0 = Util.getNanoTime();
+            final double utc0 = Util.getUTCTime();
+            mt.update();
+            final double rtt = Util.getNanoTime() - t0;
+            min_rtt = Math.min(min_rtt, rtt);
+            if(last_count >= 0 && mt.utc_time != last_count) {
+                // The meter's second started somewhere within this round trip, take the middle
+                offset = mt.utc_time - (utc0 + rtt / 2);
+            }
+            last_count = mt.utc_time;
+            n++;
+        }
+        if(min_rtt == Double.MAX_VALUE) {
+            return false;
+        }
+        c.latency = min_rtt / 2;
+        if(Double.isNaN(offset)) {
+            // Never saw a tick, the last reading is still good to within a second
+            offset = last_count - Util.getUTCTime();
+        }
+        if(Math.abs(offset) > MAX_CLOCK_OFFSET_S) {
+            Log.d(TAG, String.format("%s: clock off by %.1f s, resetting", c.meter.getAddress(), offset));
+            mt.utc_time = (int)Util.getUTCTime();
+            mt.send();
+            offset = 0;
+        }
+        Log.d(TAG, String.format("%s: latency %.1f ms, clock offset %.2f s", c.meter.getAddress(), c.latency * 1000, offset));
+        return true;
+    }
+
+    ////////////////////////////////
+    // Alignment
+    ////////////////////////////////
+
+    private void startStream(final Channel c) {
+        final MooshimeterDevice m = c.meter;
+        m.playSampleStream(new PeripheralWrapper.NotifyCallback() {
+            @Override
+            public void notify(double timestamp_utc, byte[] payload) {
+                // Called for every sample, so nothing is allocated here
+                onSample(c, timestamp_utc, StreamService.toNativeUnits(m, 0), StreamService.toNativeUnits(m, 1));
+            }
+        });
+    }
+
+    private synchronized void onSample(Channel c, double arrival, double v0, double v1) {
+        if(!mRunning) {
+            return;
+        }
+        c.add(arrival, v0, v1);
+        // The grid can only advance as far as every meter has reported
+        double reached = Double.MAX_VALUE;
+        double earliest = -Double.MAX_VALUE;
+        for(Channel other : mChannels) {
+            if(other.count < 2) {
+                return;
+            }
+            reached = Math.min(reached, other.newest());
+            earliest = Math.max(earliest, other.oldest());
+        }
+        if(mNextT < earliest) {
+            // First frame, or a meter fell behind by more than its history
+            mNextT = earliest;
+        }
+        while(mNextT <= reached) {
+            for(int i = 0; i < mChannels.size(); i++) {
+                mChannels.get(i).interpolate(mNextT, mFrame, 2 * i);
+            }
+            mListener.onFrame(mNextT - mStartTime, mFrame);
+            mNextT += mPeriod;
+        }
+    }
+
+    /**
+     * @return the system time at which t = 0, for labelling recordings
+     */
+    public synchronized double getStartUTC() {
+        return mStartUTC;
+    }
+
+    public MooshimeterDevice getMeter(int i) {
+        return mChannels.get(i).meter;
+    }
+
+    /**
+     * @return the estimated one way link latency to meter i in seconds
+     */
+    public double getLatency(int i) {
+        return mChannels.get(i).latency;
+    }
+
+    /**
+     * @return the sample period of meter i as measured from the stream, 0 if not known yet
+     */
+    public synchronized double getSamplePeriod(int i) {
+        return mChannels.get(i).period;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+/**
+ * Software trigger over a stream of sample buffers, like the trigger of a scope.
+ *
+ * Buffers of both channels are fed to process() as they arrive.  The engine keeps the most
+ * recent samples in a ring a few buffers deep, watches one channel for the trigger condition,
+ * and once it fires and the post-trigger samples are in, hands the capture around the trigger
+ * to the listener.  Then it rearms.  Nothing is allocated after construction: the ring and the
+ * capture are preallocated, and the capture arrays are reused for every capture.
+ */
+public class TriggerEngine {
+    public enum Mode {
+        // Every buffer is a capture, no trigger
+        FREE_RUN,
+        // The source crosses the level going up
+        RISING,
+        // The source crosses the level going down
+        FALLING,
+        // The source is at or above the level
+        LEVEL,
+        // The source leaves the window between the low and high bounds
+        WINDOW,
+    }
+
+    public static abstract class Listener {
+        // Called from the thread calling process().  The arrays are reused for the next
+        // capture, copy what you need before returning.  The trigger sample is at trigger_i.
+        public abstract void onCapture(float[] ch1, float[] ch2, int len, int trigger_i);
+    }
+
+    private final int mCapacity;
+    // Ring of the recent samples of both channels
+    private final float[][] mRing;
+    private int mHead = 0;                 // Index of the next sample
+    private int mCount = 0;
+    // The capture handed to the listener
+    private final float[][] mCapture;
+
+    private Mode mMode = Mode.FREE_RUN;
+    private int mSource = 0;
+    private float mLevel = 0;
+    private float mWindowLo = 0;
+    private float mWindowHi = 0;
+    private float mHysteresis = 0;
+    private int mPre = 0;
+    private int mPost = 1;
+    private Listener mListener;
+
+    // An edge trigger is armed once the source has been on the far side of the level
+    private boolean mArmed = false;
+    // Post-trigger samples still to come, 0 while waiting for a trigger
+    private int mRemaining = 0;
+
+    /**
+     * @param capacity  Depth of the ring in samples, the most pre + post can be
+     */
+    public TriggerEngine(int capacity) {
+        mCapacity = capacity;
+        mRing    = new float[2][capacity];
+        mCapture = new float[2][capacity];
+    }
+
+    public synchronized void setListener(Listener l) {
+        mListener = l;
+    }
+
+    public synchronized Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * @param mode      What fires the trigger
+     * @param source    Channel watched for the trigger, 0 or 1
+     */
+    public synchronized void setMode(Mode mode, int source) {
+        mMode = mode;
+        mSource = source;
+        reset();
+    }
+
+    /**
+     * @param level         Level of the edge and level triggers
+     * @param hysteresis    How far back past the level the source has to go before an edge
+     *                      trigger rearms, so noise on a slow edge doesn't fire it again
+     */
+    public synchronized void setLevel(float level, float hysteresis) {
+        mLevel = level;
+        mHysteresis = Math.abs(hysteresis);
+        reset();
+    }
+
+    public synchronized void setWindow(float lo, float hi) {
+        mWindowLo = Math.min(lo, hi);
+        mWindowHi = Math.max(lo, hi);
+        reset();
+    }
+
+    /**
+     * @param pre   Samples kept from before the trigger
+     * @param post  Samples captured from the trigger on, at least 1
+     */
+    public synchronized void setDepth(int pre, int post) {
+        if(pre < 0 || post < 1 || pre + post > mCapacity) {
+            throw new IllegalArgumentException("Bad trigger depth " + pre + "/" + post);
+        }
+        mPre = pre;
+        mPost = post;
+        reset();
+    }
+
+    /**
+     * Forget the samples seen so far and wait for a new trigger
+     */
+    public synchronized void reset() {
+        mHead = 0;
+        mCount = 0;
+        mArmed = false;
+        mRemaining = 0;
+    }
+
+    /**
+     * Feeds a buffer of both channels to the trigger.  May call the listener, more than once if
+     * the buffer holds more than one capture.
+     */
+    public synchronized void process(float[] ch1, float[] ch2, int len) {
+        if(mMode == Mode.FREE_RUN) {
+            final int n = Math.min(len, mCapacity);
+            System.arraycopy(ch1, 0, mCapture[0], 0, n);
+            System.arraycopy(ch2, 0, mCapture[1], 0, n);
+            if(mListener != null) {
+                mListener.onCapture(mCapture[0], mCapture[1], n, 0);
+            }
+            return;
+        }
+        final float[] src = mSource == 0 ? ch1 : ch2;
+        for(int i = 0; i < len; i++) {
+            mRing[0][mHead] = ch1[i];
+            mRing[1][mHead] = ch2[i];
+            mHead = mHead + 1 == mCapacity ? 0 : mHead + 1;
+            if(mCount < mCapacity) {
+                mCount++;
+            }
+            if(mRemaining > 0) {
+                if(--mRemaining == 0) {
+                    deliver();
+                }
+            } else if(fired(src[i], mCount > mPre)) {
+                // The trigger sample is the first of the post-trigger samples
+                mRemaining = mPost - 1;
+                if(mRemaining == 0) {
+                    deliver();
+                }
+            }
+        }
+    }
+
+    // Updates the edge state for a source sample, true if the trigger fires on it.  Until the
+    // ring holds the pre-trigger samples (ready false) nothing fires.  An edge seen then keeps
+    // the trigger armed, so it fires on the first ready sample if the source is still past the
+    // level.  The capture then has the pre-trigger samples, with the edge among them.
+    private boolean fired(float v, boolean ready) {
+        switch(mMode) {
+            case RISING:
+                if(mArmed && v >= mLevel) {
+                    if(!ready) {
+                        return false;
+                    }
+                    mArmed = false;
+                    return true;
+                }
+                if(v < mLevel - mHysteresis) {
+                    mArmed = true;
+                }
+                return false;
+            case FALLING:
+                if(mArmed && v <= mLevel) {
+                    if(!ready) {
+                        return false;
+                    }
+                    mArmed = false;
+                    return true;
+                }
+                if(v > mLevel + mHysteresis) {
+                    mArmed = true;
+                }
+                return false;
+            case LEVEL:
+                return ready && v >= mLevel;
+            case WINDOW:
+                return ready && (v < mWindowLo || v > mWindowHi);
+            default:
+                return false;
+        }
+    }
+
+    // Copies the last pre + post samples out of the ring and hands them over
+    private void deliver() {
+        final int len = mPre + mPost;
+        int start = mHead - len;
+        if(start < 0) {
+            start += mCapacity;
+        }
+        final int first = Math.min(len, mCapacity - start);
+        for(int ch = 0; ch < 2; ch++) {
+            System.arraycopy(mRing[ch], start, mCapture[ch], 0, first);
+            System.arraycopy(mRing[ch], 0, mCapture[ch], first, len - first);
+        }
+        if(mListener != null) {
+            mListener.onCapture(mCapture[0], mCapture[1], len, mPre);
+        }
+    }
+}
@@ -27,10 +27,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -53,50 +50,16 @@ public class Util {
 
     public static void init(Context context) {
         mContext = context;
-        loadFile();
         mHandler = new Handler(mContext.getMainLooper());
     }
 
-    // Singleton resources for accessing the bundled firmware image
-    private static final int FILE_BUFFER_SIZE = 0x40000;
+    // The bundled firmware image is opened lazily by FirmwareImage.getBundled()
     public static final int OAD_BLOCK_SIZE = 16;
     public static final int OAD_BUFFER_SIZE = 2 + OAD_BLOCK_SIZE;
-    private static final byte[] mFileBuffer = new byte[FILE_BUFFER_SIZE];
-    private static int mFirmwareVersion;
 
     public static int getBundledFirmwareVersion() {
-        return mFirmwareVersion;
-    }
-
-    public static byte[] getFileBuffer() {
-        return mFileBuffer;
-    }
-
-    public static byte[] getFileBlock(short bnum) {
-        final byte rval[] = new byte[OAD_BLOCK_SIZE];
-        System.arraycopy(mFileBuffer, bnum*OAD_BLOCK_SIZE, rval, 0, OAD_BLOCK_SIZE);
-        return rval;
-    }
-
-    private static void loadFile() {
-        InputStream stream;
-        try {
-            // Read the file raw into a buffer
-            stream = mContext.getAssets().open("Mooshimeter.bin");
-            stream.read(mFileBuffer, 0, mFileBuffer.length);
-            stream.close();
-
-            ByteBuffer b = ByteBuffer.wrap(mFileBuffer);
-            b.order(ByteOrder.LITTLE_ENDIAN);
-            b.getShort(); // Skip crc0
-            b.getShort(); // Skip crc1
-            b.getShort(); // Skip user version (unused)
-            b.getShort(); // Skip len
-            mFirmwareVersion = b.getInt();
-        } catch (IOException e) {
-            // Handle exceptions here
-            Log.e(TAG, "Failed to unpack the firmware asset");
-        }
+        final FirmwareImage image = FirmwareImage.getBundled();
+        return image == null ? 0 : image.getBuildTime();
     }
 
     // Worker thread
@@ -110,6 +110,38 @@ public class DeviceActivity extends MyActivity {
 
     private int count_since_settings_sent = 0;
 
+    // Live samples from the StreamService
+    private final StreamService.Listener mSampleListener = new StreamService.Listener() {
+        @Override
+        public void onSample(MooshimeterDevice m, double t, double v0, double v1) {
+            valueLabelRefresh(0);
+            valueLabelRefresh(1);
+
+            // Handle autoranging
+            // Save a local copy of settings
+            byte[] save = mMeter.meter_settings.pack();
+            // This switch provides settling time
+            if (count_since_settings_sent > 0) {
+                mMeter.applyAutorange();
+            }
+            byte[] compare = mMeter.meter_settings.pack();
+            // TODO: There must be a more efficient way to do this.  But I think like a c-person
+            // Check if anything changed, and if so apply changes
+            if (!Arrays.equals(save, compare)) {
+                count_since_settings_sent = 0;
+                Util.dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        mMeter.meter_settings.send();
+                    }
+                });
+                refreshAllControls();
+            } else {
+                count_since_settings_sent++;
+            }
+        }
+    };
+
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -187,12 +219,18 @@ public class DeviceActivity extends MyActivity {
     protected void onPause() {
         super.onPause();
         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
-        Util.dispatch(new Runnable() {
-            @Override
-            public void run() {
-                mMeter.pauseStream();
-            }
-        });
+        // The stream keeps running for a moment, the trend view picks it up on rotation
+        if(mStreamService != null && mMeter != null) {
+            mStreamService.unsubscribe(mMeter, mSampleListener);
+        }
+    }
+
+    @Override
+    protected void onStreamServiceReady(StreamService service) {
+        if(mMeter != null && Configuration.ORIENTATION_PORTRAIT == this.getResources().getConfiguration().orientation) {
+            service.subscribe(mMeter, mSampleListener, false);
+            Log.i(TAG, "Stream requested");
+        }
     }
 
 	@Override
@@ -252,43 +290,7 @@ public class DeviceActivity extends MyActivity {
                 finish();
             }
         });
-        Util.dispatch(new Runnable() {
-            @Override
-            public void run() {
-                mMeter.playSampleStream(new PeripheralWrapper.NotifyCallback() {
-                    @Override
-                    public void notify(double timestamp_utc, byte[] payload) {
-                        valueLabelRefresh(0);
-                        valueLabelRefresh(1);
-
-                        // Handle autoranging
-                        // Save a local copy of settings
-                        byte[] save = mMeter.meter_settings.pack();
-                        // This switch provides settling time
-                        if (count_since_settings_sent > 0) {
-                            mMeter.applyAutorange();
-                        }
-                        byte[] compare = mMeter.meter_settings.pack();
-                        // TODO: There must be a more efficient way to do this.  But I think like a c-person
-                        // Check if anything changed, and if so apply changes
-                        if (!Arrays.equals(save, compare)) {
-                            count_since_settings_sent = 0;
-                            Util.dispatch(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mMeter.meter_settings.send();
-                                }
-                            });
-                            refreshAllControls();
-                        } else {
-                            count_since_settings_sent++;
-                        }
-                    }
-                });
-                Log.i(TAG, "Stream requested");
-                refreshAllControls();
-            }
-        });
+        refreshAllControls();
     }
 
 	private void startPreferenceActivity() {
@@ -72,16 +72,15 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.mooshim.mooshimeter.R;
+import com.mooshim.mooshimeter.common.FirmwareImage;
 import com.mooshim.mooshimeter.common.MooshimeterDevice;
-import com.mooshim.mooshimeter.common.PeripheralWrapper;
+import com.mooshim.mooshimeter.common.OADEngine;
 import com.mooshim.mooshimeter.common.Util;
 
-import java.util.concurrent.Semaphore;
-
 public class FwUpdateActivity extends MyActivity {
     // Activity
-    private static final int FILE_BUFFER_SIZE = 0x40000;
     private static final int HAL_FLASH_WORD_SIZE = 4;
+    private static final int MAX_RECONNECT_ATTEMPTS = 3;
     // Log
     private static String TAG = "FwUpdateActivity";
     // GUI
@@ -93,6 +92,7 @@ public class FwUpdateActivity extends MyActivity {
     private CheckBox mLegacyMode;
     // BLE
     private MooshimeterDevice mMeter;
+    private FirmwareImage mImage;
     private ProgInfo mProgInfo = new ProgInfo();
     // Housekeeping
     private boolean mProgramming = false;
@@ -194,9 +194,14 @@ public class FwUpdateActivity extends MyActivity {
 
     }
 
-    Semaphore blockPacer;
-    static short nextBlock = 0;
-    static boolean in_recovery;
+    private OADEngine mEngine;
+    private volatile boolean mCancelled = false;
+    private int mReconnectAttempts = 0;
+    // Acknowledgements come in steps of up to a window, so redraw when crossing a multiple of
+    // PROGRESS_STEP rather than when landing on one
+    private static final int PROGRESS_STEP = 32;
+    private int mLastProgressStep = -1;
+    private final Handler mDelayHandler = new Handler();
 
     ////////////////////////////////
     // State transitions
@@ -217,52 +222,27 @@ public class FwUpdateActivity extends MyActivity {
             }
         }
 
-        in_recovery = false;
         mLog.append("Programming started\n");
         mProgramming = true;
-        nextBlock = 0;
+        mCancelled = false;
+        mReconnectAttempts = 0;
         updateStartButton();
 
-        // If uploading in legacy mode, scale back on the speed substantially.
-        blockPacer = new Semaphore(legacy_mode ? 1:8);
-
-        // Update connection parameters
-        //mMeter.setConnectionInterval((short) 20, (short) 1000);
-
-        final Handler delayed_poster = new Handler();
+        // Initialize stats
+        mProgInfo.reset();
+        startEngine(legacy_mode);
+    }
 
-        // Send image notification
-        mMeter.oad_block.enableNotify(true, new PeripheralWrapper.NotifyCallback() {
+    private void startEngine(final boolean legacy_mode) {
+        mLastProgressStep = -1;
+        mEngine = new OADEngine(mMeter, mImage, legacy_mode, new OADEngine.Listener() {
             @Override
-            public void notify(double timestamp_utc, byte[] payload) {
-                mProgInfo.requestedBlock = mMeter.oad_block.requestedBlock;
-                final short rb = mProgInfo.requestedBlock;
-                Log.d(TAG, "Meter requested block " + rb);
-                if (legacy_mode) {
-                    // In legacy mode, we always send only the block that has been requested
-                    nextBlock = rb;
-                    blockPacer.release();
-                } else {
-                    if (!in_recovery && rb + 10 < nextBlock) {
-                        // Something went wrong and we've skipped ahead
-                        Log.e(TAG, "ERROR: Meter requested discontinuous block: " + rb);
-                        nextBlock = rb;
-                        in_recovery = true;
-                    }
-                    if (in_recovery) {
-                        // Give a 500ms delay for the BLE stack to catch up and clear
-                        delayed_poster.postDelayed(new Runnable() {
-                            @Override
-                            public void run() {
-                                blockPacer.release();
-                                in_recovery = false;
-                            }
-                        }, 500);
-                    } else {
-                        blockPacer.release();
-                    }
-                }
-                if (rb % 32 == 0) {
+            public void onProgress(int acked_blocks, int n_blocks, int window) {
+                mProgInfo.requestedBlock = (short) acked_blocks;
+                final int rb = acked_blocks;
+                Log.d(TAG, "Meter requested block " + rb + ", window " + window);
+                if (rb / PROGRESS_STEP != mLastProgressStep) {
+                    mLastProgressStep = rb / PROGRESS_STEP;
                     runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
@@ -272,59 +252,111 @@ public class FwUpdateActivity extends MyActivity {
                     });
                 }
             }
-        });
-        mMeter.oad_identity.enableNotify(true, new PeripheralWrapper.NotifyCallback() {
-            @Override
-            public void notify(double timestamp_utc, byte[] payload) {
-                Log.d(TAG, "OAD Image identify notification!");
-            }
-        });
 
-        // The meter will request block zero if the identity is received.
-        mMeter.oad_identity.send();
-        // Initialize stats
-        mProgInfo.reset();
-        final Handler delay_handler = new Handler();
-        final int[] cb_handle = new int[1];
-        cb_handle[0] = mMeter.addConnectionStateCB(BluetoothGatt.STATE_DISCONNECTED, new Runnable() {
             @Override
-            public void run() {
+            public void onFinished(final boolean success) {
+                if(!success && !mCancelled && !mMeter.isConnected() && mReconnectAttempts < MAX_RECONNECT_ATTEMPTS) {
+                    // Connection lost mid-upload.  The engine saved its progress, so reconnect and pick up where we left off.
+                    mReconnectAttempts++;
+                    Util.dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            reconnectAndResume(legacy_mode);
+                        }
+                    });
+                    return;
+                }
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        stopProgramming();
-                        mLog.append("Meter disconnected.  Exiting...\n");
+                        stopProgramming(success);
                     }
                 });
-                delay_handler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        mMeter.cancelConnectionStateCB(cb_handle[0]);
-                        transitionToActivity(mMeter, ScanActivity.class);
-                    }
-                }, 3000);
+                if(success || !mMeter.isConnected()) {
+                    // Either way the meter is gone: after a complete upload it reboots into the new firmware
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mLog.append("Meter disconnected.  Exiting...\n");
+                            mDelayHandler.postDelayed(new Runnable() {
+                                @Override
+                                public void run() {
+                                    transitionToActivity(mMeter, ScanActivity.class);
+                                }
+                            }, 3000);
+                        }
+                    });
+                }
             }
         });
-        Thread t = new Thread(new Runnable() {
+        mEngine.start();
+        if(mEngine.getResumeBlock() > 0) {
+            final int resume_block = mEngine.getResumeBlock();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mLog.append("Resuming at block " + resume_block + "\n");
+                }
+            });
+        }
+    }
+
+    private void reconnectAndResume(final boolean legacy_mode) {
+        runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                while(mProgramming) {
-                    try {
-                        blockPacer.acquire();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    programBlock(nextBlock++);
-                    if(nextBlock==mProgInfo.nBlocks) {
-                        nextBlock--;
-                    }
+                mLog.append("Connection lost, reconnecting...\n");
+            }
+        });
+        int rval = BluetoothGatt.GATT_FAILURE;
+        int attempts = 0;
+        while(attempts++ < 3 && rval != BluetoothGatt.GATT_SUCCESS) {
+            rval = mMeter.connect();
+        }
+        if(rval == BluetoothGatt.GATT_SUCCESS) {
+            rval = mMeter.discover();
+        }
+        // An interrupted upload leaves the meter without a valid image, so it should come back in OAD mode
+        if(rval == BluetoothGatt.GATT_SUCCESS && mMeter.isInOADMode() && !mCancelled) {
+            startEngine(legacy_mode);
+            return;
+        }
+        if(rval == BluetoothGatt.GATT_SUCCESS && !mMeter.isInOADMode() && mEngine.isAllSent()) {
+            // Every block went out and the meter rebooted into a valid image, so the last
+            // acknowledgements were only lost to the reboot
+            OADEngine.forgetProgress(mMeter);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    stopProgramming(true);
+                    mLog.append("Meter rebooted with the new image.  Exiting...\n");
+                    mDelayHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            transitionToActivity(mMeter, ScanActivity.class);
+                        }
+                    }, 3000);
                 }
+            });
+            return;
+        }
+        Log.e(TAG, "Failed to reconnect in OAD mode, status " + rval);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                stopProgramming(false);
+                mLog.append("Upload not resumed.  Exiting...\n");
+                mDelayHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        transitionToActivity(mMeter, ScanActivity.class);
+                    }
+                }, 3000);
             }
         });
-        t.start();
     }
 
-    private void stopProgramming() {
+    private void stopProgramming(boolean success) {
         if(!mProgramming) {
             Log.e(TAG, "stopProgramming called, but programming already stopped!");
             return;
@@ -334,11 +366,10 @@ public class FwUpdateActivity extends MyActivity {
         mProgressBar.setProgress(0);
         updateStartButton();
 
-        // NOTE: This is not an entirely accurate completion criteria because the meter disconnects
-        // as soon as it receives the final block.  Since the blocks are sent in gangs, we may not
-        // receive confirmation notifications on the last 4-5 blocks, otherwise I would just check
-        // mProgInfo.requestedBlock here instead of nextBlock
-        if ( nextBlock >= mProgInfo.nBlocks - 1 ) {
+        // NOTE: The meter disconnects as soon as it receives the final block, so the engine may
+        // miss the last acknowledgement.  reconnectAndResume then finds the meter running the
+        // new image and reports success.
+        if ( success ) {
             mLog.append("Programming complete!\n");
         } else {
             mLog.append("Programming cancelled\n");
@@ -351,7 +382,9 @@ public class FwUpdateActivity extends MyActivity {
 
     public void onStart(View v) {
         if (mProgramming) {
-            stopProgramming();
+            // The engine reports back through onFinished
+            mCancelled = true;
+            mEngine.stop();
         } else {
             startProgramming();
         }
@@ -407,14 +440,26 @@ public class FwUpdateActivity extends MyActivity {
     /////////////////////////////
 
     private void unpackFirmwareFileBuffer() {
+        mImage = FirmwareImage.getBundled();
+        if(mImage == null) {
+            mLog.setText("Failed to load the firmware image.\n");
+            return;
+        }
         // Show image info
-        mMeter.oad_identity.unpackFromFile(Util.getFileBuffer());
+        mMeter.oad_identity.unpackFromFile(mImage.getHeader());
         displayImageInfo(mFileImage);
 
         // Verify image types
         int resid = R.style.dataStyle1;
         mFileImage.setTextAppearance(this, resid);
 
+        // Don't waste an upload on a corrupted image
+        if(!mImage.verify()) {
+            mLog.setText("Image failed CRC check!\n");
+            mLog.append("Please reinstall the app.\n");
+            return;
+        }
+
         // Enable programming button only if image types differ
         mBtnStart.setEnabled(true);
 
@@ -422,30 +467,12 @@ public class FwUpdateActivity extends MyActivity {
         displayStats();
 
         // Log
-        mLog.setText("Image Loaded.\n");
+        mLog.setText("Image Loaded, CRC OK.\n");
         mLog.append("Ready to program device!\n");
 
         updateStartButton();
     }
 
-    private synchronized void programBlock(final short bnum){
-        if (!mProgramming)
-            return;
-
-        // Prepare block
-        mMeter.oad_block.blockNum = bnum;
-        mMeter.oad_block.bytes = Util.getFileBlock(bnum);
-
-        Log.d(TAG, "Sending block " + bnum);
-        int rval;
-        do {
-            rval = mMeter.oad_block.send();
-            if(rval!=0) {
-                Log.e("","SEND ERROR OCCURRED:" + rval);
-            }
-        } while(rval!=0);
-    }
-
     /////////////////////////
     // Convenience classes
     /////////////////////////
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.main;
+
+import android.graphics.Color;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.Button;
+import android.widget.Toast;
+
+import com.jjoe64.graphview.GraphView;
+import com.jjoe64.graphview.GridLabelRenderer;
+import com.jjoe64.graphview.Viewport;
+import com.jjoe64.graphview.series.MultiSeries;
+import com.mooshim.mooshimeter.R;
+import com.mooshim.mooshimeter.common.*;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Trends all connected meters on one timebase.  SyncAcquisition lines the meters up, and every
+ * frame it emits is recorded as a row of a MultiSeries: two channels per meter, channel 1 of each
+ * meter on the left axis and channel 2 on the right.  The recording is kept for the whole run, up
+ * to MAX_ROWS, and shown as a strip chart.
+ */
+public class MultiTrendActivity extends MyActivity {
+    private static final String TAG="MultiTrendActivity";
+
+    // Spacing of the common timebase
+    private static final double PERIOD_S = 0.25;
+    // Rows kept in the recording, an hour and a bit at PERIOD_S
+    private static final int MAX_ROWS = 16384;
+    private static final int[] COLORS = {
+            Color.RED, Color.GREEN, Color.CYAN, Color.YELLOW,
+            Color.MAGENTA, Color.WHITE, Color.BLUE, Color.LTGRAY,
+    };
+
+    private GraphView mGraph;
+    private Button mGraphPlayButton;
+
+    private List<MooshimeterDevice> mTrendMeters = new ArrayList<MooshimeterDevice>();
+    // Set and cleared on the BLE thread
+    private volatile SyncAcquisition mAcquisition;
+    private MultiSeries mRecording;
+
+    // Axis ranges: time, channel 1 of all meters on the left, channel 2 on the right
+    private final AxisAutoscaler mXScale  = new AxisAutoscaler(AxisAutoscaler.Mode.ROLLING);
+    private final AxisAutoscaler mY1Scale = new AxisAutoscaler(AxisAutoscaler.Mode.NICE);
+    private final AxisAutoscaler mY2Scale = new AxisAutoscaler(AxisAutoscaler.Mode.NICE);
+    private final AtomicBoolean mScaleChanged = new AtomicBoolean(false);
+
+    private final SyncAcquisition.Listener mFrameListener = new SyncAcquisition.Listener() {
+        @Override
+        public void onFrame(double t, double[] values) {
+            // The recording copies the frame
+            mRecording.appendData(t, values, false, MAX_ROWS);
+            resetViewBounds();
+            runOnUiThread(mRefreshGraph);
+        }
+
+        @Override
+        public void onStarted(final boolean success) {
+            final SyncAcquisition a = mAcquisition;
+            if(a == null) {
+                // Paused while starting
+                return;
+            }
+            if(!success) {
+                // It has stopped itself, play starts over
+                mAcquisition = null;
+            }
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if(success) {
+                        // t = 0 is the start, label the recording with it
+                        final String start = DateFormat.getTimeInstance().format(new Date((long) (a.getStartUTC() * 1000)));
+                        mGraph.getGridLabelRenderer().setHorizontalAxisTitle("Time since " + start + " [s]");
+                        mGraph.forceRefresh(false, false);
+                    } else {
+                        Toast.makeText(MultiTrendActivity.this, "Could not start all meters", Toast.LENGTH_LONG).show();
+                        mGraphPlayButton.setText("Play");
+                    }
+                }
+            });
+        }
+    };
+
+    // Posted for every frame, so allocated once
+    private final Runnable mRefreshGraph = new Runnable() {
+        @Override
+        public void run() {
+            if(mScaleChanged.getAndSet(false)) {
+                applyViewBounds();
+                mGraph.forceRefresh(true, false);
+            } else {
+                // Same scales, keep the labels and grid
+                mGraph.forceRefresh(true, true);
+            }
+        }
+    };
+
+    ///////////////////
+    // Lifecycle management
+    ///////////////////
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_multi_trend);
+        mGraph          = (GraphView) findViewById(R.id.graph);
+        mGraphPlayButton= (Button)    findViewById(R.id.graph_play_button);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Force the screen to stay on
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        if(mAcquisition == null) {
+            if(mTrendMeters.isEmpty()) {
+                mTrendMeters = getConnectedMeters();
+            }
+            mGraph.getViewport().setXAxisBoundsManual(true);
+            mGraph.getViewport().setYAxisBoundsManual(true);
+            mGraph.setExplicitRefreshMode(true);
+            mGraph.setBackgroundColor(Color.BLACK);
+            mGraph.getLegendRenderer().setVisible(true);
+            setupAxisTitles();
+        }
+    }
+
+    @Override
+    protected void onStreamServiceReady(StreamService service) {
+        if(mAcquisition == null) {
+            Util.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    play();
+                }
+            });
+            mGraphPlayButton.setText("Pause");
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        Util.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                pause();
+            }
+        });
+    }
+
+    // Meters in the registry that are connected and running the application firmware
+    private static List<MooshimeterDevice> getConnectedMeters() {
+        final List<MooshimeterDevice> rval = new ArrayList<MooshimeterDevice>();
+        for(MooshimeterDevice m : mMeters.getAll()) {
+            if(m.isConnected() && !m.isInOADMode()) {
+                rval.add(m);
+            }
+        }
+        return rval;
+    }
+
+    ///////////////////
+    // Graph Control Helpers
+    ///////////////////
+
+    private void setupAxisTitles() {
+        final GridLabelRenderer r = mGraph.getGridLabelRenderer();
+        r.setGridStyle(GridLabelRenderer.GridStyle.BOTH);
+        r.setGridColor(Color.GRAY);
+        r.setHorizontalAxisTitleColor(Color.WHITE);
+        r.setHorizontalLabelsColor(Color.WHITE);
+        r.setVerticalLabelsColor(Color.WHITE);
+        r.setVerticalLabelsSecondScaleColor(Color.WHITE);
+        r.setNumVerticalLabels(7);
+        r.setHorizontalAxisTitle("Time [s]");
+        r.setVerticalAxisTitle("CH1");
+        mGraph.getSecondScale().setVerticalAxisTitle("CH2");
+    }
+
+    // Called on the BLE thread, only touches the graph by way of the series
+    private void initializeRecording() {
+        mRecording = new MultiSeries(2 * mTrendMeters.size());
+        for(int i = 0; i < mTrendMeters.size(); i++) {
+            final MooshimeterDevice m = mTrendMeters.get(i);
+            for(int ch = 0; ch < 2; ch++) {
+                final MultiSeries.Channel c = mRecording.getChannel(2 * i + ch);
+                c.setTitle(String.format("%s CH%d [%s]", m.getAddress(), ch + 1, m.getUnits(ch)));
+                c.setColor(COLORS[(2 * i + ch) % COLORS.length]);
+                c.setThickness(3);
+                if(ch == 1) {
+                    c.setAxis(MultiSeries.Axis.SECONDARY);
+                }
+            }
+        }
+        mXScale.reset();
+        mY1Scale.reset();
+        mY2Scale.reset();
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mGraph.removeAllSeries();
+                mGraph.getSecondScale().removeAllSeries();
+                mGraph.setStripChartMode(true);
+                mRecording.addTo(mGraph);
+            }
+        });
+    }
+
+    // Feeds the bounds of all channels of an axis to its autoscaler
+    private void resetViewBounds() {
+        double lo1 = Double.MAX_VALUE, hi1 = -Double.MAX_VALUE;
+        double lo2 = Double.MAX_VALUE, hi2 = -Double.MAX_VALUE;
+        for(int c = 0; c < mRecording.getChannelCount(); c++) {
+            final MultiSeries.Channel s = mRecording.getChannel(c);
+            if(c % 2 == 0) {
+                lo1 = Math.min(lo1, s.getLowestValueY());
+                hi1 = Math.max(hi1, s.getHighestValueY());
+            } else {
+                lo2 = Math.min(lo2, s.getLowestValueY());
+                hi2 = Math.max(hi2, s.getHighestValueY());
+            }
+        }
+        final MultiSeries.Channel first = mRecording.getChannel(0);
+        boolean changed;
+        changed  = mXScale.update(first.getLowestValueX(), first.getHighestValueX());
+        changed |= mY1Scale.update(lo1, hi1);
+        changed |= mY2Scale.update(lo2, hi2);
+        if(changed) {
+            mScaleChanged.set(true);
+        }
+    }
+
+    // Must run on the UI thread, the graph reads its bounds while drawing
+    private void applyViewBounds() {
+        final Viewport vp = mGraph.getViewport();
+        vp.setMinX(mXScale.getMin());
+        vp.setMaxX(mXScale.getMax());
+        vp.setMinY(mY1Scale.getMin());
+        vp.setMaxY(mY1Scale.getMax());
+        mGraph.getSecondScale().setMinY(mY2Scale.getMin());
+        mGraph.getSecondScale().setMaxY(mY2Scale.getMax());
+    }
+
+    /////////////////////
+    // Acquisition Control
+    /////////////////////
+
+    // Does BLE work, call it on the BLE thread
+    private void play() {
+        if(mAcquisition != null) {
+            return;
+        }
+        if(mTrendMeters.isEmpty()) {
+            Log.e(TAG, "No connected meters to trend");
+            return;
+        }
+        // The acquisition streams from the meters itself
+        if(mStreamService != null) {
+            for(MooshimeterDevice m : mTrendMeters) {
+                mStreamService.stop(m);
+            }
+        }
+        initializeRecording();
+        mAcquisition = new SyncAcquisition(mTrendMeters, PERIOD_S, mFrameListener);
+        mAcquisition.start();
+        Log.i(TAG, "Acquisition started for " + mTrendMeters.size() + " meters");
+    }
+
+    private void pause() {
+        if(mAcquisition != null) {
+            mAcquisition.stop();
+            mAcquisition = null;
+        }
+    }
+
+    ///////////////
+    // Button handlers
+    ///////////////
+
+    public void onPlayButtonClick(View v) {
+        if(mAcquisition != null) {
+            Util.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    pause();
+                }
+            });
+            mGraphPlayButton.setText("Play");
+        } else {
+            // A new recording
+            Util.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    play();
+                }
+            });
+            mGraphPlayButton.setText("Pause");
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package com.mooshim.mooshimeter.main;
 
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 
+import com.mooshim.mooshimeter.common.MeterRegistry;
 import com.mooshim.mooshimeter.common.MooshimeterDevice;
-
-import java.util.HashMap;
-import java.util.Map;
+import com.mooshim.mooshimeter.common.StreamService;
+import com.mooshim.mooshimeter.common.Util;
 
 /**
  * Created by First on 12/4/2015.
@@ -16,10 +20,33 @@ import java.util.Map;
 public abstract class MyActivity extends Activity {
 
     // This is the master list of all Mooshimeters
-    protected static final Map<String,MooshimeterDevice> mMeterDict = new HashMap<String, MooshimeterDevice>();
+    protected static final MeterRegistry mMeters = MeterRegistry.getInstance();
+
+    // Owns the sample streams, null until bound
+    protected StreamService mStreamService = null;
+    private boolean mResumed = false;
+    private final ServiceConnection mStreamConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mStreamService = ((StreamService.LocalBinder)binder).getService();
+            if(mResumed) {
+                onStreamServiceReady(mStreamService);
+            }
+        }
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mStreamService = null;
+        }
+    };
+
+    /**
+     * Called on the main thread once the activity is resumed and bound to the StreamService,
+     * on every resume.  Subscribe to streams here, and unsubscribe in onPause.
+     */
+    protected void onStreamServiceReady(StreamService service) {}
 
     public static MooshimeterDevice getDeviceWithAddress(String addr) {
-        return mMeterDict.get(addr);
+        return mMeters.get(addr);
     }
 
     protected void transitionToActivity(MooshimeterDevice d, Class activity_class) {
@@ -33,6 +60,7 @@ public abstract class MyActivity extends Activity {
     protected void onCreate(Bundle bundle) {
         Log.d(this.getClass().getName(), "onCreate");
         super.onCreate(bundle);
+        bindService(new Intent(this, StreamService.class), mStreamConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
@@ -45,12 +73,25 @@ public abstract class MyActivity extends Activity {
     protected void onResume() {
         Log.d(this.getClass().getName(), "onResume");
         super.onResume();
+        mResumed = true;
+        if(mStreamService != null) {
+            // After the subclass has finished its onResume
+            Util.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if(mResumed && mStreamService != null) {
+                        onStreamServiceReady(mStreamService);
+                    }
+                }
+            }, 0);
+        }
     }
 
     @Override
     protected void onPause() {
         Log.d(this.getClass().getName(), "onPause");
         super.onPause();
+        mResumed = false;
     }
 
     @Override
@@ -63,5 +104,6 @@ public abstract class MyActivity extends Activity {
     protected void onDestroy() {
         Log.d(this.getClass().getName(), "onDestroy");
         super.onDestroy();
+        unbindService(mStreamConnection);
     }
 }
@@ -6,13 +6,27 @@ package com.mooshim.mooshimeter.main;
 
 import android.app.Application;
 
+import com.mooshim.mooshimeter.common.BatchOADManager;
+import com.mooshim.mooshimeter.common.FirmwareImage;
 import com.mooshim.mooshimeter.common.Util;
 
 public class MyApplication extends Application {
+    // The batch firmware update, kept here so it outlives the activity showing its progress
+    private BatchOADManager mBatch = null;
+
     @Override
     public void onCreate() {
         super.onCreate();
         Util.init(this);
+        FirmwareImage.prepareBundled();
+    }
+
+    public synchronized BatchOADManager getBatch() {
+        return mBatch;
+    }
+
+    public synchronized void setBatch(BatchOADManager batch) {
+        mBatch = batch;
     }
 }
 
@@ -45,16 +45,19 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.mooshim.mooshimeter.R;
+import com.mooshim.mooshimeter.common.BatchOADManager;
+import com.mooshim.mooshimeter.common.FirmwareImage;
 import com.mooshim.mooshimeter.common.MooshimeterDevice;
 import com.mooshim.mooshimeter.common.PeripheralWrapper;
+import com.mooshim.mooshimeter.common.ScanAggregator;
+import com.mooshim.mooshimeter.common.ScanRecordParser;
+import com.mooshim.mooshimeter.common.StreamService;
 import com.mooshim.mooshimeter.common.Util;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
 public class ScanActivity extends MyActivity {
     // Defines
@@ -69,6 +72,78 @@ public class ScanActivity extends MyActivity {
 
     // Helpers
     private static FilteredScanCallback mScanCb = null;
+    // Seconds between batch progress updates of the status bar
+    private static final double BATCH_STATUS_INTERVAL = 0.25;
+    private double mLastBatchStatus = 0;
+    // Shows the progress of the batch firmware update.  The batch is kept by MyApplication, and
+    // this is only attached to it while we are resumed, so it doesn't keep a paused activity alive.
+    private final BatchOADManager.Listener mBatchListener = new BatchOADManager.Listener() {
+        @Override
+        public void onProgress(MooshimeterDevice meter, int acked_blocks, int n_blocks) {
+            // Acknowledgements jump by up to a window and come from several meters, so
+            // throttle by time rather than by block number
+            final double now = Util.getNanoTime();
+            if(now - mLastBatchStatus >= BATCH_STATUS_INTERVAL) {
+                mLastBatchStatus = now;
+                final BatchOADManager batch = getApp().getBatch();
+                final int n = batch != null ? batch.getMeterCount() : 0;
+                setStatus(String.format("Updating %d meters: %s at %d%%", n, meter.getAddress(), (100 * acked_blocks) / n_blocks));
+            }
+        }
+
+        @Override
+        public void onDeviceFinished(MooshimeterDevice meter, BatchOADManager.Result result) {
+            setStatus(result.toString());
+        }
+
+        @Override
+        public void onFinished(final List<BatchOADManager.Result> results) {
+            getApp().setBatch(null);
+            setStatus("Firmware update finished");
+            final Context context = ScanActivity.this;
+            Util.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    Util.blockOnAlertBox(context, "Firmware update finished", BatchOADManager.summarize(results));
+                }
+            });
+        }
+    };
+    // Subscriptions of the meter tiles to the StreamService, by meter address
+    private final Map<String,StreamService.Listener> mTileListeners = new HashMap<String, StreamService.Listener>();
+    private final ScanAggregator mScanAggregator = new ScanAggregator(new ScanAggregator.Listener() {
+        @Override
+        public void onScanUpdate(List<ScanAggregator.Entry> added, List<ScanAggregator.Entry> updated, List<ScanAggregator.Entry> removed) {
+            for(ScanAggregator.Entry e : removed) {
+                // Meters that stopped advertising, unless they stopped because we connected
+                final MooshimeterDevice m = mMeters.get(e.device.getAddress());
+                if(m != null && m.isDisconnected()) {
+                    final View v = findTileForMeter(m);
+                    if(v != null) {
+                        mDeviceScrollView.removeView(v);
+                    }
+                    mMeters.remove(m);
+                }
+            }
+            final List<ScanAggregator.Entry> changed = new ArrayList<ScanAggregator.Entry>(added);
+            changed.addAll(updated);
+            for(ScanAggregator.Entry e : changed) {
+                MooshimeterDevice m = mMeters.get(e.device.getAddress());
+                if(m == null) {
+                    m = mMeters.add(new MooshimeterDevice(e.device,getApplicationContext()));
+                    addDeviceToTileList(m);
+                }
+                m.mRssi = e.getRssi();
+                m.mOADMode = e.isInOADMode();
+                m.mBuildTime = e.getBuildTime();
+                if(mScanCb != null) {
+                    mScanCb.FilteredCallback(m);
+                } else {
+                    refreshMeterTile((ViewGroup) findTileForMeter(m));
+                }
+            }
+        }
+    });
     private LayoutInflater mInflater;
 
     @Override
@@ -128,25 +203,32 @@ public class ScanActivity extends MyActivity {
     @Override
     public void onPause() {
         super.onPause();
-        // Find if we have any connected meters, if so make sure they stop streaming
-        for(MooshimeterDevice m : mMeterDict.values()) {
-            if(m.isConnected() && m.isStreaming()) {
-                final MooshimeterDevice m_wrap = m;
-                Util.dispatch(new Runnable() {
-                    @Override
-                    public void run() {
-                        m_wrap.pauseStream();
-                    }
-                });
+        final BatchOADManager batch = getApp().getBatch();
+        if(batch != null) {
+            batch.setListener(null);
+        }
+        // Leave the streams of the tiles, the service stops them unless the next activity wants them
+        if(mStreamService != null) {
+            for(Map.Entry<String,StreamService.Listener> e : mTileListeners.entrySet()) {
+                final MooshimeterDevice m = mMeters.get(e.getKey());
+                if(m != null) {
+                    mStreamService.unsubscribe(m, e.getValue());
+                }
             }
         }
+        mTileListeners.clear();
+    }
+
+    @Override
+    protected void onStreamServiceReady(StreamService service) {
+        refreshAllMeterTiles();
     }
 
     @Override
     public void onStart() {
         super.onStart();
         // Find if we have any connected meters, if so make sure they resume streaming
-        for(MooshimeterDevice m : mMeterDict.values()) {
+        for(MooshimeterDevice m : mMeters.getAll()) {
             if(m.isConnected()) {
                 addDeviceToTileList(m);
             }
@@ -156,6 +238,11 @@ public class ScanActivity extends MyActivity {
     @Override
     public void onResume() {
         super.onResume();
+        // Pick up the progress of a batch update started before, or its results
+        final BatchOADManager batch = getApp().getBatch();
+        if(batch != null) {
+            batch.setListener(mBatchListener);
+        }
 
         /*
         * Here I attempted to implement a feature addressing the "persistent connection" bug -
@@ -199,7 +286,7 @@ public class ScanActivity extends MyActivity {
                     if(    Arrays.equals(uuid_bytes, mMeterServiceUUID)
                             || Arrays.equals(uuid_bytes, mOADServiceUUID) ) {
                         // And we weren't the ones to connect to it
-                        if(!mMeterDict.containsKey(device.getAddress())) {
+                        if(!mMeters.contains(device.getAddress())) {
                             MooshimeterDevice newMooshimeter = new MooshimeterDevice(device, this);
                             addDevice(newMooshimeter);
                         }
@@ -223,6 +310,12 @@ public class ScanActivity extends MyActivity {
         switch (item.getItemId()) {
             case R.id.opt_prefs:
                 break;
+            case R.id.opt_trend_all:
+                trendAllMeters();
+                break;
+            case R.id.opt_fwupdate_all:
+                updateAllMeters();
+                break;
             case R.id.opt_exit:
                 Toast.makeText(this, "Goodbye!", Toast.LENGTH_LONG).show();
                 finish();
@@ -255,7 +348,7 @@ public class ScanActivity extends MyActivity {
             mEmptyMsg.setText(R.string.scan_advice);
             refreshAllMeterTiles();
         }
-        if(mMeterDict.size() == 0) {
+        if(mMeters.size() == 0) {
             mEmptyMsg.setVisibility(View.VISIBLE);
             mStatus.setText("No devices found");
         } else {
@@ -333,8 +426,8 @@ public class ScanActivity extends MyActivity {
         mDeviceScrollView.addView(wrapper);
         refreshMeterTile(wrapper);
 
-        if (mMeterDict.size() > 1)
-            setStatus(mMeterDict.size() + " devices");
+        if (mMeters.size() > 1)
+            setStatus(mMeters.size() + " devices");
         else
             setStatus("1 device");
     }
@@ -390,29 +483,46 @@ public class ScanActivity extends MyActivity {
                 // We need to create a new value pane
                 wrapper.addView(mInflater.inflate(R.layout.element_mm_readingsbar, mDeviceScrollView, false));
             }
-            Util.dispatch(new Runnable() {
-                @Override
-                public void run() {
-                    d.playSampleStream(new PeripheralWrapper.NotifyCallback() {
-                        @Override
-                        public void notify(double timestamp_utc, byte[] payload) {
-                            View v = findTileForMeter(d);
-                            if(v==null) {
-                                Log.e(TAG,"Couldn't find tile for meter!");
-                                return;
-                            }
-                            TextView ch1 = (TextView)v.findViewById(R.id.ch1_value_label);
-                            TextView ch2 = (TextView)v.findViewById(R.id.ch2_value_label);
-                            TextView ch1_unit = (TextView)v.findViewById(R.id.ch1_unit_label);
-                            TextView ch2_unit = (TextView)v.findViewById(R.id.ch2_unit_label);
-                            valueLabelRefresh(0,d, ch1, ch1_unit);
-                            valueLabelRefresh(1,d, ch2, ch2_unit);
+            if(mStreamService != null && !mTileListeners.containsKey(d.getAddress())) {
+                final StreamService.Listener l = new StreamService.Listener() {
+                    @Override
+                    public void onSample(MooshimeterDevice m, double t, double v0, double v1) {
+                        View v = findTileForMeter(d);
+                        if(v==null) {
+                            Log.e(TAG,"Couldn't find tile for meter!");
+                            return;
                         }
-                    });
-                }
-            });
+                        TextView ch1 = (TextView)v.findViewById(R.id.ch1_value_label);
+                        TextView ch2 = (TextView)v.findViewById(R.id.ch2_value_label);
+                        TextView ch1_unit = (TextView)v.findViewById(R.id.ch1_unit_label);
+                        TextView ch2_unit = (TextView)v.findViewById(R.id.ch2_unit_label);
+                        valueLabelRefresh(0,d, ch1, ch1_unit);
+                        valueLabelRefresh(1,d, ch2, ch2_unit);
+                    }
+
+                    @Override
+                    public void onStreamLost(MooshimeterDevice m) {
+                        // Forget the subscription, so the tile subscribes again on reconnect
+                        final StreamService.Listener self = this;
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                if(mTileListeners.get(d.getAddress()) == self) {
+                                    mTileListeners.remove(d.getAddress());
+                                }
+                            }
+                        });
+                    }
+                };
+                mTileListeners.put(d.getAddress(), l);
+                mStreamService.subscribe(d, l, false);
+            }
         } else {
             //We are representing a disconnected meter or a meter in OAD mode
+            final StreamService.Listener l = mTileListeners.remove(d.getAddress());
+            if(l != null && mStreamService != null) {
+                mStreamService.unsubscribe(d, l);
+            }
             if(wrapper.getChildCount() == 2) {
                 // We need to eliminate a pane
                 wrapper.removeViewAt(1);
@@ -432,104 +542,30 @@ public class ScanActivity extends MyActivity {
     /////////////////////////////
 
     private abstract class FilteredScanCallback implements BluetoothAdapter.LeScanCallback {
+        // Scan callbacks arrive one at a time, so one parser per callback is enough
+        private final ScanRecordParser mParser = new ScanRecordParser();
+
         public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
             // Filter devices
             // FIXME: Android doesn't seem to be filtering devices correctly based on UUIDs
             // FIXME: For now I will examine the scan record manually
-            boolean is_meter = false;
-            boolean oad_mode = false;
-            int build_time = 0;
-            int field_length = 0;
-            int field_id = 0;
-            for(int i = 0; i < scanRecord.length;) {
-                if(field_length == 0) {
-                    field_length = scanRecord[i] & 0xFF;
-                    field_id = 0;
-                    i++;
-                }
-                else if(field_id == 0) {
-                    field_id = scanRecord[i] & 0xFF;
-                    field_length--;
-                    i++;
-                } else {
-                    switch(field_id) {
-                        case 6:
-                            // Type 6: This is a UUID listing
-                            // Check expected length
-                            if(field_length != 16) { break; }
-                            // Check that there's enough data in the buffer
-                            if(i+field_length >= scanRecord.length) {break;}
-                            // Check the value against the expected service UUID
-                            // Bytes are reversed in the scan record
-                            byte[] uuid_reversed_bytes = Arrays.copyOfRange(scanRecord, i, i + field_length);
-                            for(int j = 0; j < 8; j++) {
-                                uuid_reversed_bytes[   j] ^= uuid_reversed_bytes[15-j];
-                                uuid_reversed_bytes[15-j] ^= uuid_reversed_bytes[   j];
-                                uuid_reversed_bytes[   j] ^= uuid_reversed_bytes[15-j];
-                            }
-                            UUID received_uuid = Util.uuidFromBytes(uuid_reversed_bytes);
-                            if(received_uuid.equals(MooshimeterDevice.mUUID.METER_SERVICE)) {
-                                Log.d(null, "Mooshimeter found");
-                                is_meter = true;
-                            } else if(received_uuid.equals(MooshimeterDevice.mUUID.OAD_SERVICE_UUID)) {
-                                Log.d(null, "Mooshimeter found in OAD mode");
-                                is_meter = true;
-                                oad_mode = true;
-                            } else {
-                                Log.d(null, "Scanned device is not a meter");
-                            }
-                            break;
-                        case 255:
-                            // This is a manufacturer-specific data listing
-                            // In the case of the Mooshimeter this is the build time
-                            // in UTC seconds
-                            // Check expected length
-                            if(field_length != 4) { break; }
-                            // Check that there's enough data in the buffer
-                            if(i+field_length >= scanRecord.length) {break;}
-                            for(int j = 3; j >= 0; j--) {
-                                build_time |= (scanRecord[i+j] & 0xFF) << (8*j);
-                            }
-                            break;
-                    }
-                    // Cleanup
-                    i += field_length;
-                    field_length = 0;
-                    field_id = 0;
-                }
-            }
+            final boolean is_meter = mParser.parse(scanRecord);
+            final boolean oad_mode = mParser.isInOADMode();
+            final int build_time = mParser.getBuildTime();
 
             if(is_meter) {
-                MooshimeterDevice m = mMeterDict.get(device.getAddress());
-                if(m==null) {
-                    m = new MooshimeterDevice(device,getApplicationContext());
-                    mMeterDict.put(m.getAddress(), m);
-                    final MooshimeterDevice wrapped = m;
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            addDeviceToTileList(wrapped);
-                        }
-                    });
-                }
-                m.mRssi = rssi;
-                m.mOADMode = oad_mode;
-                m.mBuildTime = build_time;
-                FilteredCallback(m);
+                // The UI hears about it through onScanUpdate
+                mScanAggregator.onAdvertisement(device, rssi, oad_mode, build_time);
             }
         }
 
+        // Called on the main thread, at most once per publish interval for each meter
         abstract void FilteredCallback(final MooshimeterDevice m);
     }
 
     private class MainScanCallback extends FilteredScanCallback {
         void FilteredCallback(final MooshimeterDevice m) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    refreshMeterTile((ViewGroup) findTileForMeter(m));
-                }
-            });
+            refreshMeterTile((ViewGroup) findTileForMeter(m));
             if(   m.hasPreference(MooshimeterDevice.mPreferenceKeys.AUTOCONNECT)
                && m.getPreference(MooshimeterDevice.mPreferenceKeys.AUTOCONNECT)) {
                 // We've found a meter with the autoconnect feature enabled
@@ -566,7 +602,7 @@ public class ScanActivity extends MyActivity {
         updateScanningButton(false);
         // Prune disconnected meters
         List<MooshimeterDevice> remove = new ArrayList<MooshimeterDevice>();
-        for(MooshimeterDevice m : mMeterDict.values()) {
+        for(MooshimeterDevice m : mMeters.getAll()) {
             if( m.isDisconnected() ) {
                 remove.add(m);
             }
@@ -579,12 +615,13 @@ public class ScanActivity extends MyActivity {
                     break;
                 }
             }
-            mMeterDict.remove(m.getAddress());
+            mMeters.remove(m);
         }
         refreshAllMeterTiles();
 
         final BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         mScanCb = new MainScanCallback();
+        mScanAggregator.start();
 
         if( !bluetoothAdapter.startLeScan(mScanCb) ) {
             // Starting the scan failed!
@@ -613,6 +650,12 @@ public class ScanActivity extends MyActivity {
         final BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         bluetoothAdapter.stopLeScan(mScanCb);
         mScanCb = null;
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mScanAggregator.stop();
+            }
+        });
     }
 
     public void onBtnScan(View view) {
@@ -623,6 +666,55 @@ public class ScanActivity extends MyActivity {
         return Util.offerYesNoDialog(this,"Firmware upgrade available","Would you like to upgrade firmware now?");
     }
 
+    private MyApplication getApp() {
+        return (MyApplication) getApplication();
+    }
+
+    private void updateAllMeters() {
+        final BatchOADManager running = getApp().getBatch();
+        if(running != null && running.isRunning()) {
+            Toast.makeText(this, "Firmware update already underway", Toast.LENGTH_LONG).show();
+            return;
+        }
+        final FirmwareImage image = FirmwareImage.getBundled();
+        if(image == null || !image.verify()) {
+            setError("Firmware image failed CRC check");
+            return;
+        }
+        // Only meters already in bootloader mode can be updated, see reconnectInOADMode
+        final List<MooshimeterDevice> meters = new ArrayList<MooshimeterDevice>();
+        for(MooshimeterDevice m : mMeters.getAll()) {
+            if(m.isInOADMode()) {
+                meters.add(m);
+            }
+        }
+        if(meters.isEmpty()) {
+            Toast.makeText(this, "No meters in OAD mode found", Toast.LENGTH_LONG).show();
+            return;
+        }
+        stopScan();
+        final BatchOADManager batch = new BatchOADManager(meters, image, BatchOADManager.DEFAULT_MAX_CONCURRENT, mBatchListener);
+        getApp().setBatch(batch);
+        setStatus(String.format("Updating %d meters...", meters.size()));
+        batch.start();
+    }
+
+    // Opens the synchronized trend of every connected meter
+    private void trendAllMeters() {
+        int n = 0;
+        for(MooshimeterDevice m : mMeters.getAll()) {
+            if(m.isConnected() && !m.isInOADMode()) {
+                n++;
+            }
+        }
+        if(n == 0) {
+            Toast.makeText(this, "No connected meters to trend", Toast.LENGTH_LONG).show();
+            return;
+        }
+        stopScan();
+        startActivity(new Intent(this, MultiTrendActivity.class));
+    }
+
     private boolean reconnectInOADMode(final MooshimeterDevice m) {
         // Force a reboot on the peripheral side
         m.meter_settings.target_meter_state = MooshimeterDevice.METER_SHUTDOWN;
@@ -685,9 +777,9 @@ public class ScanActivity extends MyActivity {
         // From here on out, the meter we were passed as an argument is no longer valid
         // Remove all references to it, then manually add our new meter
         mMeterList.remove(m);
-        mMeterDict.remove(m.getAddress());
+        mMeters.remove(m);
         mMeterList.add(cb.matchingMeter);
-        mMeterDict.put(cb.matchingMeter.getAddress(), cb.matchingMeter);
+        mMeters.add(cb.matchingMeter);
 
 
         bluetoothAdapter.stopLeScan(cb);
@@ -42,6 +42,8 @@ import com.jjoe64.graphview.series.LineGraphSeries;
 import com.mooshim.mooshimeter.R;
 import com.mooshim.mooshimeter.common.*;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class TrendActivity extends MyActivity {
 
     private static final String TAG="TrendActivity";
@@ -55,6 +57,8 @@ public class TrendActivity extends MyActivity {
     private Button mCH1Button;
     private Button mCH2Button;
     private Button mXYButton;
+    private Button mTriggerButton;
+    private Button mSpectrumButton;
     private Button mGraphPlayButton;
     private ProgressBar mProgressSpinner;
 
@@ -62,6 +66,122 @@ public class TrendActivity extends MyActivity {
     private final LineGraphSeries[] dataSeries = new LineGraphSeries[2];
     private double start_time;
 
+    // Axis ranges: x, ch1 on the left, ch2 on the right.  Updated for every sample on the
+    // stream thread, but only applied to the graph (on the UI thread) when one changed.
+    private AxisAutoscaler mXScale  = new AxisAutoscaler(AxisAutoscaler.Mode.ROLLING);
+    private AxisAutoscaler mY1Scale = new AxisAutoscaler(AxisAutoscaler.Mode.NICE);
+    private AxisAutoscaler mY2Scale = new AxisAutoscaler(AxisAutoscaler.Mode.NICE);
+    private final AtomicBoolean mScaleChanged = new AtomicBoolean(false);
+
+    // Live samples from the StreamService, starting with the ones it kept from before
+    private final StreamService.Listener mSampleListener = new StreamService.Listener() {
+        @Override
+        public void onSample(MooshimeterDevice m, double t, double v0, double v1) {
+            if (!mBufferMode) {
+                if (start_time < 0) {
+                    start_time = t;
+                }
+                // The series accept appends while the UI thread draws,
+                // so only the refresh has to go to the UI thread
+                addDataPoint(t - start_time, v0, v1);
+                resetViewBounds();
+                runOnUiThread(mRefreshGraph);
+            }
+        }
+
+        @Override
+        public void onStreamLost(MooshimeterDevice m) {
+            // The meter disconnected, play subscribes again
+            Log.i(TAG, "Stream lost");
+            if (!mBufferMode) {
+                mPlaying = false;
+            }
+        }
+    };
+
+    // Posted for every sample, so allocated once
+    private final Runnable mRefreshGraph = new Runnable() {
+        @Override
+        public void run() {
+            if(mScaleChanged.getAndSet(false)) {
+                applyViewBounds();
+                mGraph.forceRefresh(true, false);
+            } else {
+                // Same scales, keep the labels and grid
+                mGraph.forceRefresh(true, true);
+            }
+        }
+    };
+
+    // In buffer mode the downloaded buffers go through the trigger, which hands the capture
+    // around the trigger to the graph.  Four full buffers deep.
+    private static final int TRIGGER_DEPTH = 1024;
+    private final TriggerEngine mTrigger = new TriggerEngine(TRIGGER_DEPTH);
+
+    private final TriggerEngine.Listener mCaptureListener = new TriggerEngine.Listener() {
+        @Override
+        public void onCapture(float[] ch1, float[] ch2, int len, int trigger_i) {
+            // One capture per refresh
+            mPlaying = false;
+
+            initializeDataSeries();
+
+            final double dt = getSampleInterval();
+            if(mSpectrumMode) {
+                addSpectrum(ch1, ch2, len, 1 / dt);
+            } else {
+                // Time is zero at the trigger
+                for(int i = 0; i < len; i++) {
+                    addDataPoint((i - trigger_i) * dt, ch1[i], ch2[i]);
+                }
+            }
+            // After the spectrum, the axis title shows its summary
+            setupAxisTitles();
+
+            resetViewBounds();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mProgressSpinner.setVisibility(View.INVISIBLE);
+                    mScaleChanged.set(false);
+                    applyViewBounds();
+                    mGraph.forceRefresh(false,false);
+                }
+            });
+        }
+    };
+
+    // Called on the BLE thread for every downloaded buffer
+    private final Runnable mBufferReceived = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG,"Received full buffer in trendview!");
+            if(!mPlaying || !mBufferMode) {
+                Log.e(TAG,"Received a buffer nobody is waiting for... ignoring");
+                return;
+            }
+            mTrigger.process(mMeter.meter_ch1_buf.floatBuf, mMeter.meter_ch2_buf.floatBuf, mMeter.getBufLen());
+            if(mPlaying) {
+                // Not triggered yet, keep the buffers coming
+                Util.dispatch(mRequestBuffer);
+            }
+        }
+    };
+
+    // Spectra of the captures, one per channel
+    private final SpectrumAnalyzer[] mSpectrum = {new SpectrumAnalyzer(), new SpectrumAnalyzer()};
+    // Set on the BLE thread with the spectrum, shown by setupAxisTitles
+    private volatile String mSpectrumSummary = "";
+
+    private final Runnable mRequestBuffer = new Runnable() {
+        @Override
+        public void run() {
+            if(mPlaying && mBufferMode) {
+                mMeter.getBuffer(mBufferReceived);
+            }
+        }
+    };
+
     ///////////////////
     // Mode control variables
     ///////////////////
@@ -69,6 +189,7 @@ public class TrendActivity extends MyActivity {
     private boolean mBufferMode = false;
     private final boolean mCHXOn[] = {true,true};
     private boolean mXYMode = false;
+    private boolean mSpectrumMode = false;
     private boolean mPlaying = false;
 
     ///////////////////
@@ -85,6 +206,8 @@ public class TrendActivity extends MyActivity {
         mCH1Button    = (Button)       findViewById(R.id.ch1_button);
         mCH2Button    = (Button)       findViewById(R.id.ch2_button);
         mXYButton     = (Button)       findViewById(R.id.xy_button);
+        mTriggerButton= (Button)       findViewById(R.id.trigger_button);
+        mSpectrumButton=(Button)       findViewById(R.id.spectrum_button);
         mGraphPlayButton=(Button)      findViewById(R.id.graph_play_button);
         mProgressSpinner=(ProgressBar) findViewById(R.id.graph_progress_spinner);
     }
@@ -132,17 +255,18 @@ public class TrendActivity extends MyActivity {
             mGraph.setBackgroundColor(Color.BLACK);
 
             setupAxisTitles();
+        }
+    }
 
-            if(mBufferMode) {
-                // Do we want to refresh?  Nah.
-            } else {
-                Util.dispatch(new Runnable() {
-                    @Override
-                    public void run() {
-                        trendViewPlay();
-                    }
-                });
-            }
+    @Override
+    protected void onStreamServiceReady(StreamService service) {
+        if(!mPlaying && !mBufferMode) {
+            Util.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    trendViewPlay();
+                }
+            });
         }
     }
 
@@ -153,7 +277,8 @@ public class TrendActivity extends MyActivity {
         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
         if(mBufferMode) {
-            // Do we want to refresh?  Nah.
+            // Do we want to refresh?  Nah.  Stop waiting for a trigger though.
+            mPlaying = false;
         } else {
             Util.dispatch(new Runnable() {
                 @Override
@@ -175,14 +300,16 @@ public class TrendActivity extends MyActivity {
             case Configuration.ORIENTATION_PORTRAIT:
                 // Return to DeviceActivity
                 mProgressSpinner.setVisibility(View.VISIBLE);
-                Util.dispatch(new Runnable() {
-                    @Override
-                    public void run() {
-                        mMeter.meter_ch1_buf.enableNotify(false, null);
-                        mMeter.meter_ch2_buf.enableNotify(false, null);
-                        mMeter.pauseStream();
-                    }
-                });
+                if(mBufferMode) {
+                    Util.dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            mMeter.meter_ch1_buf.enableNotify(false, null);
+                            mMeter.meter_ch2_buf.enableNotify(false, null);
+                        }
+                    });
+                }
+                // A live stream is left running, DeviceActivity picks it up
                 setResult(RESULT_OK);
                 finish();
                 transitionToActivity(mMeter,DeviceActivity.class);
@@ -194,59 +321,27 @@ public class TrendActivity extends MyActivity {
     // Graph Control Helpers
     ///////////////////
 
+    // Feeds the data bounds to the autoscalers.  The series keep their bounds up to date as
+    // samples come in, so this is cheap enough to call for every sample.
     private void resetViewBounds() {
-        final Viewport vp = mGraph.getViewport();
-
-        // Manually reset axis boundaries
-        double min_x = dataSeries[0].getLowestValueX();
-        double max_x = dataSeries[0].getHighestValueX();
-
-        if(!mXYMode && !mBufferMode) {
-            // Round to the nearest second in trend mode
-            min_x = Math.floor(min_x);
-            max_x = Math.ceil(max_x);
+        boolean changed;
+        changed  = mXScale.update(dataSeries[0].getLowestValueX(), dataSeries[0].getHighestValueX());
+        changed |= mY1Scale.update(dataSeries[0].getLowestValueY(), dataSeries[0].getHighestValueY());
+        changed |= mY2Scale.update(dataSeries[1].getLowestValueY(), dataSeries[1].getHighestValueY());
+        if(changed) {
+            mScaleChanged.set(true);
         }
-        vp.setMinX(min_x);
-        vp.setMaxX(max_x);
-
-        final double min_y1 = dataSeries[0].getLowestValueY();
-        final double max_y1 = dataSeries[0].getHighestValueY();
-        final MinMax m1 = getMinMaxFromRange(min_y1, max_y1);
-        vp.setMinY(m1.min);
-        vp.setMaxY(m1.max);
-
-
-        final double min_y2 = dataSeries[1].getLowestValueY();
-        final double max_y2 = dataSeries[1].getHighestValueY();
-        final MinMax m2 = getMinMaxFromRange(min_y2, max_y2);
-
-        mGraph.getSecondScale().setMinY(m2.min);
-        mGraph.getSecondScale().setMaxY(m2.max);
-        // TODO: variable label widths, hardcoded now
-        mGraph.getGridLabelRenderer().setLabelVerticalWidth(120);
-        mGraph.getGridLabelRenderer().setSecondScaleLabelVerticalWidth(120);
-    }
-
-    private class MinMax {
-        public double min;
-        public double max;
     }
 
-    private MinMax getMinMaxFromRange(double in_min, double in_max) {
-        final double range = in_max - in_min;
-        final double avg   = in_min+(range/2);
-        double tick = 1e-6;
-        boolean b = false;
-        while( tick < range/6.f ) {
-            if( b ){ tick *= 2.f; }
-            else   { tick *= 5.f; }
-            b ^= true;
-        }
-        final double center = tick * (int)((avg+tick/2)/tick);
-        MinMax r = new MinMax();
-        r.min = center-3*tick;
-        r.max = center+3*tick;
-        return r;
+    // Must run on the UI thread, the graph reads its bounds while drawing
+    private void applyViewBounds() {
+        final Viewport vp = mGraph.getViewport();
+        vp.setMinX(mXScale.getMin());
+        vp.setMaxX(mXScale.getMax());
+        vp.setMinY(mY1Scale.getMin());
+        vp.setMaxY(mY1Scale.getMax());
+        mGraph.getSecondScale().setMinY(mY2Scale.getMin());
+        mGraph.getSecondScale().setMaxY(mY2Scale.getMax());
     }
 
     private void setupAxisTitles() {
@@ -272,7 +367,11 @@ public class TrendActivity extends MyActivity {
 
         r.setNumVerticalLabels(7);
 
-        if(mXYMode) {
+        if(mSpectrumMode && mBufferMode) {
+            r.setHorizontalAxisTitle("Frequency [Hz]" + mSpectrumSummary);
+            r.setVerticalAxisTitle(ch0Label);
+            ss.setVerticalAxisTitle(ch1Label);
+        } else if(mXYMode) {
             r.setHorizontalAxisTitle(ch1Label);
             r.setVerticalAxisTitle(ch0Label);
             ss.setVerticalAxisTitle("");
@@ -291,8 +390,30 @@ public class TrendActivity extends MyActivity {
         dataSeries[0].setThickness(5);
         dataSeries[1].setColor(Color.GREEN);
         dataSeries[1].setThickness(5);
+        // Streamed time scrolls, XY data is a measured value, a buffer is shown whole
+        final AxisAutoscaler.Mode x_mode;
+        if(mXYMode) {
+            x_mode = AxisAutoscaler.Mode.NICE;
+        } else if(mBufferMode) {
+            x_mode = AxisAutoscaler.Mode.FIT;
+        } else {
+            x_mode = AxisAutoscaler.Mode.ROLLING;
+        }
+        mXScale = new AxisAutoscaler(x_mode);
+        mY1Scale.reset();
+        mY2Scale.reset();
+        if(!mXYMode) {
+            // Long trends have more points than pixels, thin them without losing the shape.
+            // XY data isn't sorted by x, so it can't be downsampled.
+            dataSeries[0].setDownsampling(LineGraphSeries.Downsampling.LTTB);
+            dataSeries[1].setDownsampling(LineGraphSeries.Downsampling.LTTB);
+        }
+        // Zoomed out, downsample a summary of the trend instead of every point
+        mGraph.getViewport().setLevelOfDetail(!mXYMode);
         mGraph.removeAllSeries();
         ss.removeAllSeries();
+        // Streamed trend data only scrolls, so draw it incrementally
+        mGraph.setStripChartMode(!mXYMode && !mBufferMode);
         if(mCHXOn[0] ||  mXYMode ) {
             mGraph.addSeries(dataSeries[0]);
         }
@@ -311,45 +432,43 @@ public class TrendActivity extends MyActivity {
         }
     }
 
+    // Plots the amplitude spectra of both channels against frequency
+    private void addSpectrum(float[] ch1, float[] ch2, int len, double sample_rate) {
+        final StringBuilder summary = new StringBuilder();
+        for(int ch = 0; ch < 2; ch++) {
+            final SpectrumAnalyzer sa = mSpectrum[ch];
+            sa.analyze(ch == 0 ? ch1 : ch2, len, sample_rate);
+            final float[] mag = sa.getMagnitude();
+            final double df = sa.getBinWidth();
+            for(int k = 0; k < sa.getBins(); k++) {
+                dataSeries[ch].appendData(new DataPoint(k * df, mag[k]), false, len);
+            }
+            summary.append(String.format("  CH%d: %.1fHz THD %.1f%%", ch + 1, sa.getFundamental(), 100 * sa.getThd()));
+        }
+        Log.d(TAG, "Spectrum:" + summary);
+        mSpectrumSummary = summary.toString();
+    }
+
     /////////////////////
     // Graph Control
     /////////////////////
 
     private void trendViewPlay() {
         initializeDataSeries();
-        start_time = Util.getNanoTime();
-        mMeter.playSampleStream(new PeripheralWrapper.NotifyCallback() {
-            @Override
-            public void notify(double timestamp_utc, byte[] payload) {
-                if (!mBufferMode) {
-                    final double new_time = timestamp_utc - start_time;
-                    int lsb_int;
-                    final double[] val = new double[2];
-                    for (int c = 0; c < 2; c++) {
-                        if (mMeter.disp_ac[c]) {
-                            lsb_int = (int) (Math.sqrt(mMeter.meter_sample.reading_ms[c]));
-                        } else {
-                            lsb_int = mMeter.meter_sample.reading_lsb[c];
-                        }
-                        val[c] = mMeter.lsbToNativeUnits(lsb_int, c);
-                    }
-                    resetViewBounds();
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            addDataPoint(new_time, val[0], val[1]);
-                            mGraph.forceRefresh(true, false);
-                        }
-                    });
-                }
-            }
-        });
+        start_time = -1;
+        if(mStreamService == null) {
+            Log.e(TAG, "Not bound to the stream service");
+            return;
+        }
+        mStreamService.subscribe(mMeter, mSampleListener, true);
         Log.i(TAG, "Stream requested");
         mPlaying = true;
     }
 
     private void trendViewPause() {
-        mMeter.pauseStream();
+        if(mStreamService != null) {
+            mStreamService.unsubscribe(mMeter, mSampleListener);
+        }
         mPlaying = false;
     }
 
@@ -364,44 +483,28 @@ public class TrendActivity extends MyActivity {
         Util.dispatch(new Runnable() {
             @Override
             public void run() {
-                mMeter.getBuffer(new Runnable() {
-                    @Override
-                    public void run() {
-                        Log.d(TAG,"Received full buffer in trendview!");
-                        if(!mPlaying) {
-                            Log.e(TAG,"Received multiple buffers for one request... ignoring");
-                            return;
-                        }
-                        mPlaying = false;
-
-                        initializeDataSeries();
-                        setupAxisTitles();
-
-                        final int buf_len = mMeter.getBufLen();
-                        double dt = 1./125;
-                        for(int i = 0; i < (mMeter.meter_settings.adc_settings & MooshimeterDevice.ADC_SETTINGS_SAMPLERATE_MASK); i++) {
-                            dt /= 2;
-                        }
-                        double t = 0.0;
-                        for(int i= 0; i < buf_len; i++) {
-                            addDataPoint(t,mMeter.meter_ch1_buf.floatBuf[i],mMeter.meter_ch2_buf.floatBuf[i]);
-                            t+=dt;
-                        }
-
-                        resetViewBounds();
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                mProgressSpinner.setVisibility(View.INVISIBLE);
-                                mGraph.forceRefresh(false,false);
-                            }
-                        });
-                    }
-                });
+                // The buffer download needs the meter to itself
+                if(mStreamService != null) {
+                    mStreamService.stop(mMeter);
+                }
+                // A capture as long as a buffer, a quarter of it from before the trigger
+                final int buf_len = mMeter.getBufLen();
+                mTrigger.setListener(mCaptureListener);
+                mTrigger.setDepth(buf_len / 4, buf_len - buf_len / 4);
+                mRequestBuffer.run();
             }
         });
     }
 
+    // Seconds between the samples of a buffer
+    private double getSampleInterval() {
+        double dt = 1./125;
+        for(int i = 0; i < (mMeter.meter_settings.adc_settings & MooshimeterDevice.ADC_SETTINGS_SAMPLERATE_MASK); i++) {
+            dt /= 2;
+        }
+        return dt;
+    }
+
     ///////////////
     // Button handlers
     ///////////////
@@ -485,8 +588,51 @@ public class TrendActivity extends MyActivity {
         }
     }
 
+    public void onTriggerButtonClick(View v) {
+        Log.d(TAG, "Trigger Click");
+        final TriggerEngine.Mode[] modes = TriggerEngine.Mode.values();
+        final TriggerEngine.Mode mode = modes[(mTrigger.getMode().ordinal() + 1) % modes.length];
+        // Watch the first channel shown, with the level in the middle of its axis
+        // and the window around the middle half of it
+        final int source = mCHXOn[0] ? 0 : 1;
+        final AxisAutoscaler scale = source == 0 ? mY1Scale : mY2Scale;
+        final double lo = scale.getMin();
+        final double span = scale.getMax() - lo;
+        mTrigger.setLevel((float) (lo + span / 2), (float) (span / 50));
+        mTrigger.setWindow((float) (lo + span / 4), (float) (lo + 3 * span / 4));
+        mTrigger.setMode(mode, source);
+        if(mode == TriggerEngine.Mode.FREE_RUN) {
+            mTriggerButton.setText("Trigger: OFF");
+        } else {
+            mTriggerButton.setText("Trigger: " + mode.name());
+        }
+    }
+
+    public void onSpectrumButtonClick(View v) {
+        Log.d(TAG, "Spectrum Click");
+        mSpectrumMode ^= true;
+        mSpectrumSummary = "";
+        if(mSpectrumMode) {
+            mSpectrumButton.setText("Spectrum: ON");
+        } else {
+            mSpectrumButton.setText("Spectrum: OFF");
+        }
+        if(!mBufferMode) {
+            // Spectra are taken of buffers
+            onTrendButtonClick(v);
+        } else if(!mPlaying) {
+            streamBuffer();
+        }
+    }
+
     public void onPlayButtonClick(View v) {
         if(mBufferMode) {
+            if(mPlaying && mTrigger.getMode() != TriggerEngine.Mode.FREE_RUN) {
+                // Give up waiting for the trigger
+                mPlaying = false;
+                mProgressSpinner.setVisibility(View.INVISIBLE);
+                return;
+            }
             // Start a new refresh
             streamBuffer();
         } else {
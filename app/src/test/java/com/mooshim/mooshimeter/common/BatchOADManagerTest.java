@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchOADManagerTest {
+    private static final int N_BLOCKS = 512;
+    private static final int TOTAL = OADEngine.MAX_WINDOW;
+
+    // Records what the manager reports
+    private static class Batch extends BatchOADManager.Listener {
+        final Map<String, Integer> finishedDevices = new HashMap<String, Integer>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile List<BatchOADManager.Result> results;
+
+        @Override
+        public void onProgress(MooshimeterDevice meter, int acked_blocks, int n_blocks) {
+        }
+
+        @Override
+        public synchronized void onDeviceFinished(MooshimeterDevice meter, BatchOADManager.Result result) {
+            final Integer n = finishedDevices.get(meter.getAddress());
+            finishedDevices.put(meter.getAddress(), n == null ? 1 : n + 1);
+        }
+
+        @Override
+        public void onFinished(List<BatchOADManager.Result> results) {
+            this.results = results;
+            finished.countDown();
+        }
+    }
+
+    private static byte[] bytes(FirmwareImage image) {
+        final ByteBuffer b = image.getBuffer();
+        final byte[] rval = new byte[b.remaining()];
+        b.get(rval);
+        return rval;
+    }
+
+    @Test
+    public void sharesFollowTheLatency() {
+        assertArrayEquals(new int[] {16, 16}, BatchOADManager.shares(new double[] {0.02, 0.02}, new int[] {TOTAL, TOTAL}, TOTAL));
+        // Three times the latency needs three times the window for the same throughput
+        assertArrayEquals(new int[] {8, 24}, BatchOADManager.shares(new double[] {0.01, 0.03}, new int[] {TOTAL, TOTAL}, TOTAL));
+    }
+
+    @Test
+    public void whatAnEngineDoesNotUseGoesToTheOthers() {
+        // The first one is held back by its own link and only wants 3
+        assertArrayEquals(new int[] {3, 14, 14}, BatchOADManager.shares(new double[] {1, 1, 1}, new int[] {3, TOTAL, TOTAL}, TOTAL));
+        // Freed up by the first, the second is below its share now as well
+        assertArrayEquals(new int[] {2, 12, 18}, BatchOADManager.shares(new double[] {1, 1, 1}, new int[] {2, 12, TOTAL}, TOTAL));
+        // Nobody wants the whole window
+        assertArrayEquals(new int[] {2, 5}, BatchOADManager.shares(new double[] {1, 2}, new int[] {2, 5}, TOTAL));
+    }
+
+    @Test
+    public void sharesNeverExceedTheTotalOrTheDemand() {
+        final Random random = new Random(1);
+        for(int k = 0; k < 10000; k++) {
+            final int n = 1 + random.nextInt(6);
+            final double[] weight = new double[n];
+            final int[] demand = new int[n];
+            for(int i = 0; i < n; i++) {
+                weight[i] = 0.005 + random.nextDouble() * 0.1;
+                demand[i] = random.nextBoolean() ? TOTAL : 1 + random.nextInt(TOTAL);
+            }
+            final int[] share = BatchOADManager.shares(weight, demand, TOTAL);
+            int sum = 0;
+            for(int i = 0; i < n; i++) {
+                assertTrue(share[i] >= 0 && share[i] <= demand[i]);
+                sum += share[i];
+            }
+            assertTrue(sum <= TOTAL);
+            // Engines that didn't get their demand split what is left by latency, to a block
+            for(int i = 0; i < n; i++) {
+                for(int j = 0; j < n; j++) {
+                    if(share[i] < demand[i] && share[j] < demand[j]) {
+                        assertEquals(share[i] / weight[i], share[j] / weight[j], 1 / weight[i] + 1 / weight[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void summaryHasALinePerMeter() {
+        final BatchOADManager.Result ok = new BatchOADManager.Result("AA");
+        ok.success = true;
+        ok.attempts = 1;
+        ok.duration = 42.7;
+        final BatchOADManager.Result failed = new BatchOADManager.Result("BB");
+        failed.attempts = 3;
+        failed.duration = 90;
+        assertEquals("1 of 2 meters updated\n\nAA: OK after 1 attempt, 42 s\nBB: FAILED after 3 attempts, 90 s\n",
+                BatchOADManager.summarize(Arrays.asList(ok, failed)));
+    }
+
+    @Test
+    public void batchRetriesAndReports() throws InterruptedException, ExecutionException {
+        final FirmwareImage image = SimulatedMeter.image(N_BLOCKS, 10);
+        // Goes through in one attempt
+        final SimulatedMeter clean = new SimulatedMeter("A", 11);
+        clean.setAckDelay(0.002);
+        // The link drops halfway, the second attempt resumes
+        final SimulatedMeter dropped = new SimulatedMeter("B", 12);
+        dropped.setAckDelay(0.004);
+        dropped.dropLinkAtBlock(N_BLOCKS / 2);
+        // Never comes back
+        final SimulatedMeter gone = new SimulatedMeter("C", 13);
+        gone.dropLink();
+        gone.failConnects(Integer.MAX_VALUE);
+        // Reboots into the new image before the last acknowledgement gets through
+        final SimulatedMeter rebooted = new SimulatedMeter("D", 14);
+        rebooted.setAckDelay(0.002);
+        rebooted.setLoseLastAck(true);
+        final List<MooshimeterDevice> meters = new ArrayList<MooshimeterDevice>();
+        meters.add(clean);
+        meters.add(dropped);
+        meters.add(gone);
+        meters.add(rebooted);
+
+        final Batch batch = new Batch();
+        final BatchOADManager manager = new BatchOADManager(meters, image, 2, batch);
+        assertEquals(4, manager.getMeterCount());
+        manager.start();
+        assertTrue("batch timed out", batch.finished.await(60, TimeUnit.SECONDS));
+        assertFalse(manager.isRunning());
+
+        final List<BatchOADManager.Result> results = batch.results;
+        assertEquals(4, results.size());
+        final int[] attempts = {1, 2, 3, 2};
+        final boolean[] success = {true, true, false, true};
+        for(int i = 0; i < 4; i++) {
+            final BatchOADManager.Result r = results.get(i);
+            assertEquals(meters.get(i).getAddress(), r.address);
+            assertEquals(attempts[i], r.attempts);
+            assertEquals(success[i], r.success);
+            assertEquals(1, (int) batch.finishedDevices.get(r.address));
+        }
+        // None of its connection attempts got through
+        assertEquals(0, gone.getConnects());
+
+        // The dropped upload was resumed, not started over
+        assertEquals(1, dropped.getIdentities());
+        assertTrue(dropped.getFirstBlocks().get(1) > 0);
+        for(SimulatedMeter m : new SimulatedMeter[] {clean, dropped, rebooted}) {
+            // The last one to finish may still be rebooting
+            m.settle();
+            assertTrue(m.isVerified());
+            assertArrayEquals(bytes(image), m.getReceived());
+            assertFalse(m.isInOADMode());
+            assertEquals(0, m.getPreference(MooshimeterDevice.mPreferenceKeys.OAD_BLOCK, -1));
+        }
+
+        final String[] lines = BatchOADManager.summarize(results).split("\n");
+        assertEquals("3 of 4 meters updated", lines[0]);
+        assertEquals("", lines[1]);
+        assertTrue(lines[2].startsWith("A: OK after 1 attempt, "));
+        assertTrue(lines[3].startsWith("B: OK after 2 attempts, "));
+        assertTrue(lines[4].startsWith("C: FAILED after 3 attempts, "));
+        assertTrue(lines[5].startsWith("D: OK after 2 attempts, "));
+        for(SimulatedMeter m : new SimulatedMeter[] {clean, dropped, gone, rebooted}) {
+            m.shutdown();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import java.util.Arrays;
+
+// Timing harness for the benchmarks next to the tests.  They have a main() and no @Test, so the
+// test task doesn't run them; run them by hand against the test classpath.  The JIT is warmed up
+// with a few rounds first, then the median of the timed rounds is taken.
+final class Benchmark {
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 30;
+
+    // Anything the operation returns goes here, so the JIT can't drop the work
+    static volatile long sink;
+
+    private Benchmark() {}
+
+    // Median time of one call of op in nanoseconds, op is called calls times per round
+    static double median(Runnable op, int calls) {
+        for(int r = 0; r < WARMUP_ROUNDS; r++) {
+            for(int i = 0; i < calls; i++) {
+                op.run();
+            }
+        }
+        final double[] ns = new double[ROUNDS];
+        for(int r = 0; r < ROUNDS; r++) {
+            final long start = System.nanoTime();
+            for(int i = 0; i < calls; i++) {
+                op.run();
+            }
+            ns[r] = (double) (System.nanoTime() - start) / calls;
+        }
+        Arrays.sort(ns);
+        return ns[ROUNDS / 2];
+    }
+
+    static void report(String name, double ns, double budget_ns) {
+        System.out.println(String.format("%-40s %12.3f us  %6.3f%% of %.1f ms",
+                name, ns / 1e3, 100 * ns / budget_ns, budget_ns / 1e6));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FirmwareImageTest {
+    // Unit tests run in the module directory
+    private static final File BUNDLED = new File("src/main/assets/Mooshimeter.bin");
+
+    // The bootloader's CRC a bit at a time, to check the table against
+    private static int referenceCrc(byte[] image, int from, int to) {
+        int crc = 0;
+        for(int i = from; i < to; i++) {
+            crc ^= (image[i] & 0xFF) << 8;
+            for(int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x8005 : crc << 1;
+                crc &= 0xFFFF;
+            }
+        }
+        return crc;
+    }
+
+    private static byte[] bundledBytes() throws IOException {
+        final ByteBuffer b = FirmwareImage.fromFile(BUNDLED).getBuffer().duplicate();
+        b.position(0);
+        final byte[] rval = new byte[b.remaining()];
+        b.get(rval);
+        return rval;
+    }
+
+    @Test
+    public void bundledImagePassesItsCrc() throws IOException {
+        final FirmwareImage image = FirmwareImage.fromFile(BUNDLED);
+        assertTrue(image.getSize() <= BUNDLED.length());
+        assertEquals(image.getCrc0() & 0xFFFF, image.calculateCrc());
+        assertTrue(image.verify());
+    }
+
+    @Test
+    public void tableCrcMatchesBitwiseCrc() throws IOException {
+        final byte[] bytes = bundledBytes();
+        final FirmwareImage image = new FirmwareImage("bundled", ByteBuffer.wrap(bytes));
+        assertEquals(referenceCrc(bytes, 4, image.getSize()), image.calculateCrc());
+    }
+
+    @Test
+    public void corruptedImageFailsVerification() throws IOException {
+        final byte[] bytes = bundledBytes();
+        bytes[bytes.length / 2] ^= 0x01;
+        assertFalse(new FirmwareImage("corrupted", ByteBuffer.wrap(bytes)).verify());
+    }
+
+    @Test
+    public void verificationIsKeptPerImage() throws IOException {
+        // Same header, different contents
+        final byte[] bytes = bundledBytes();
+        assertTrue(new FirmwareImage("bundled", ByteBuffer.wrap(bytes.clone())).verify());
+        bytes[FirmwareImage.HEADER_SIZE] ^= 0x01;
+        assertFalse(new FirmwareImage("corrupted", ByteBuffer.wrap(bytes)).verify());
+    }
+
+    @Test
+    public void truncatedImageHasNoCrc() throws IOException {
+        final byte[] bytes = bundledBytes();
+        final ByteBuffer truncated = ByteBuffer.wrap(bytes, 0, bytes.length / 2).slice();
+        final FirmwareImage image = new FirmwareImage("truncated", truncated);
+        assertEquals(-1, image.calculateCrc());
+        assertFalse(image.verify());
+    }
+}
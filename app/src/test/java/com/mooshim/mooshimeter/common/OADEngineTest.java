@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OADEngineTest {
+    private static final int N_BLOCKS = 1024;
+    private static final long TIMEOUT_S = 30;
+
+    // Records what the engine reports
+    private static class Upload extends OADEngine.Listener {
+        final List<Integer> acked = new ArrayList<Integer>();
+        final List<Integer> windows = new ArrayList<Integer>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile boolean success = false;
+        volatile int finishes = 0;
+        // Acknowledged blocks when onFinished was called
+        volatile int ackedAtFinish = -1;
+
+        @Override
+        public synchronized void onProgress(int acked_blocks, int n_blocks, int window) {
+            acked.add(acked_blocks);
+            windows.add(window);
+        }
+
+        @Override
+        public synchronized void onFinished(boolean success) {
+            this.success = success;
+            ackedAtFinish = acked.isEmpty() ? 0 : acked.get(acked.size() - 1);
+            finishes++;
+            finished.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("upload timed out", finished.await(TIMEOUT_S, TimeUnit.SECONDS));
+        }
+    }
+
+    private static byte[] bytes(FirmwareImage image) {
+        final ByteBuffer b = image.getBuffer();
+        final byte[] rval = new byte[b.remaining()];
+        b.get(rval);
+        return rval;
+    }
+
+    private static Upload upload(SimulatedMeter meter, FirmwareImage image) throws InterruptedException {
+        final Upload u = new Upload();
+        final OADEngine e = new OADEngine(meter, image, false, u);
+        e.start();
+        u.await();
+        return u;
+    }
+
+    @Test
+    public void uploadsTheImage() throws InterruptedException {
+        final FirmwareImage image = SimulatedMeter.image(N_BLOCKS, 1);
+        final SimulatedMeter meter = new SimulatedMeter("sim", 1);
+        meter.setAckDelay(0.002);
+        final Upload u = upload(meter, image);
+        assertTrue(u.success);
+        assertEquals(1, meter.getIdentities());
+        assertTrue(meter.isVerified());
+        assertArrayEquals(bytes(image), meter.getReceived());
+        // Nothing left to resume
+        assertEquals(0, meter.getPreference(MooshimeterDevice.mPreferenceKeys.OAD_BLOCK, -1));
+        meter.shutdown();
+    }
+
+    @Test
+    public void droppedLinkResumesAtTheSavedBlock() throws InterruptedException {
+        final FirmwareImage image = SimulatedMeter.image(N_BLOCKS, 2);
+        final SimulatedMeter meter = new SimulatedMeter("sim", 2);
+        meter.setAckDelay(0.002);
+        meter.dropLinkAtBlock(N_BLOCKS / 2);
+        final Upload first = upload(meter, image);
+        assertFalse(first.success);
+        // The progress is saved with the image it belongs to
+        final int saved = meter.getPreference(MooshimeterDevice.mPreferenceKeys.OAD_BLOCK, 0);
+        assertEquals(image.getKey(), meter.getPreference(MooshimeterDevice.mPreferenceKeys.OAD_IMAGE, ""));
+        assertEquals(first.ackedAtFinish, saved);
+        assertTrue(saved > 0 && saved <= N_BLOCKS / 2 + 1);
+        assertTrue(meter.getExpected() >= saved);
+
+        meter.reconnect();
+        final Upload second = new Upload();
+        final OADEngine e = new OADEngine(meter, image, false, second);
+        e.start();
+        second.await();
+        assertTrue(second.success);
+        assertEquals(saved, e.getResumeBlock());
+        // No identity the second time, that would have started the meter over at block zero
+        assertEquals(1, meter.getIdentities());
+        assertEquals(saved, (int) meter.getFirstBlocks().get(1));
+        assertTrue(meter.getWrites() < N_BLOCKS + N_BLOCKS / 2);
+        assertTrue(meter.isVerified());
+        assertArrayEquals(bytes(image), meter.getReceived());
+        assertEquals(0, meter.getPreference(MooshimeterDevice.mPreferenceKeys.OAD_BLOCK, -1));
+        meter.shutdown();
+    }
+
+    @Test
+    public void meterThatForgotTheUploadStartsOver() throws InterruptedException {
+        final FirmwareImage image = SimulatedMeter.image(N_BLOCKS, 3);
+        final SimulatedMeter meter = new SimulatedMeter("sim", 3);
+        meter.setAckDelay(0.002);
+        meter.dropLinkAtBlock(N_BLOCKS / 4);
+        assertFalse(upload(meter, image).success);
+        assertTrue(meter.getPreference(MooshimeterDevice.mPreferenceKeys.OAD_BLOCK, 0) > 0);
+
+        // Power cycled in between, it ignores the blocks until the identity comes again
+        meter.forgetUpload();
+        meter.reconnect();
+        final Upload second = upload(meter, image);
+        assertTrue(second.success);
+        assertEquals(2, meter.getIdentities());
+        assertTrue(meter.isVerified());
+        assertArrayEquals(bytes(image), meter.getReceived());
+        meter.shutdown();
+    }
+
+    @Test
+    public void progressOfAnotherImageIsNotResumed() throws InterruptedException {
+        final FirmwareImage image = SimulatedMeter.image(N_BLOCKS, 4);
+        final SimulatedMeter meter = new SimulatedMeter("sim", 4);
+        meter.setAckDelay(0.002);
+        meter.dropLinkAtBlock(N_BLOCKS / 2);
+        assertFalse(upload(meter, image).success);
+
+        meter.reconnect();
+        final FirmwareImage other = SimulatedMeter.image(N_BLOCKS, 5);
+        final Upload second = new Upload();
+        final OADEngine e = new OADEngine(meter, other, false, second);
+        e.start();
+        second.await();
+        assertTrue(second.success);
+        assertEquals(0, e.getResumeBlock());
+        assertEquals(2, meter.getIdentities());
+        assertArrayEquals(bytes(other), meter.getReceived());
+        meter.shutdown();
+    }
+
+    @Test
+    public void corruptedBlockFailsTheCrcOfTheMeter() throws InterruptedException {
+        // The header CRC doesn't match the contents, like a block damaged on the way
+        final byte[] bytes = bytes(SimulatedMeter.image(N_BLOCKS, 6));
+        bytes[N_BLOCKS * Util.OAD_BLOCK_SIZE / 2] ^= 0x10;
+        final FirmwareImage damaged = new FirmwareImage("damaged", ByteBuffer.wrap(bytes));
+        final SimulatedMeter meter = new SimulatedMeter("sim", 6);
+        final Upload u = upload(meter, damaged);
+        // Every block was acknowledged, but the meter stays in the bootloader
+        assertTrue(u.success);
+        assertFalse(meter.isVerified());
+        assertFalse(damaged.verify());
+        meter.shutdown();
+    }
+
+    @Test
+    public void windowGrowsShrinksWithTheLatencyAndRecovers() throws InterruptedException {
+        final FirmwareImage image = SimulatedMeter.image(N_BLOCKS, 7);
+        final SimulatedMeter meter = new SimulatedMeter("sim", 7);
+        meter.setAckDelay(0.01);
+        // Queueing in the stack: the latency goes up once the window is open, and back down
+        // once the engine has backed off
+        // Reports at which the latency went up and back down
+        final int[] step = new int[2];
+        final Upload u = new Upload() {
+            @Override
+            public synchronized void onProgress(int acked_blocks, int n_blocks, int window) {
+                super.onProgress(acked_blocks, n_blocks, window);
+                if(step[0] == 0 && window >= 16) {
+                    step[0] = windows.size();
+                    meter.setAckDelay(0.05);
+                } else if(step[0] > 0 && step[1] == 0 && window <= 2) {
+                    step[1] = windows.size();
+                    meter.setAckDelay(0.01);
+                }
+            }
+        };
+        new OADEngine(meter, image, false, u).start();
+        u.await();
+        assertTrue(u.success);
+        assertTrue(step[0] > 0);
+        assertTrue(step[1] > step[0]);
+        // Starts at the initial window, the request for block zero is no loss
+        assertEquals(4, (int) u.windows.get(0));
+        // Opens and backs off a block at a time, nothing was lost so it never halves
+        for(int i = 1; i < u.windows.size(); i++) {
+            assertTrue(Math.abs(u.windows.get(i) - u.windows.get(i - 1)) <= 1);
+        }
+        // And opens up again once the latency is back down
+        int max = 0;
+        for(int i = step[1]; i < u.windows.size(); i++) {
+            max = Math.max(max, u.windows.get(i));
+        }
+        assertTrue(max > 2 + 4);
+        assertArrayEquals(bytes(image), meter.getReceived());
+        meter.shutdown();
+    }
+
+    @Test
+    public void lostBlockHalvesTheWindow() throws InterruptedException {
+        final FirmwareImage image = SimulatedMeter.image(N_BLOCKS, 8);
+        final SimulatedMeter meter = new SimulatedMeter("sim", 8);
+        meter.setAckDelay(0.002);
+        meter.setBlockLoss(0.01);
+        final Upload u = upload(meter, image);
+        assertTrue(u.success);
+        int halved = 0;
+        for(int i = 1; i < u.windows.size(); i++) {
+            final int before = u.windows.get(i - 1);
+            if(before >= 4 && u.windows.get(i) == before / 2) {
+                halved++;
+            }
+        }
+        assertTrue(halved > 0);
+        assertTrue(meter.isVerified());
+        assertArrayEquals(bytes(image), meter.getReceived());
+        meter.shutdown();
+    }
+
+    @Test
+    public void lostAcksAreCoveredByTheNextOne() throws InterruptedException {
+        final FirmwareImage image = SimulatedMeter.image(N_BLOCKS, 9);
+        final SimulatedMeter meter = new SimulatedMeter("sim", 9);
+        meter.setAckDelay(0.002);
+        meter.setAckLoss(0.2);
+        final Upload u = upload(meter, image);
+        assertTrue(u.success);
+        assertEquals(1, u.finishes);
+        // Only the acknowledgement of the last block completes the upload
+        assertEquals(N_BLOCKS, u.ackedAtFinish);
+        for(int i = 1; i < u.acked.size(); i++) {
+            assertTrue(u.acked.get(i) >= u.acked.get(i - 1));
+        }
+        assertArrayEquals(bytes(image), meter.getReceived());
+        meter.shutdown();
+    }
+
+    @Test
+    public void lostLastAckIsNotCountedAsDone() throws InterruptedException {
+        final FirmwareImage image = SimulatedMeter.image(N_BLOCKS, 10);
+        final SimulatedMeter meter = new SimulatedMeter("sim", 10);
+        meter.setAckDelay(0.002);
+        meter.setLoseLastAck(true);
+        final Upload u = new Upload();
+        final OADEngine e = new OADEngine(meter, image, false, u);
+        e.start();
+        u.await();
+        // The meter got everything and rebooted, but the engine can't know that
+        assertTrue(meter.isVerified());
+        assertFalse(u.success);
+        assertTrue(e.isAllSent());
+        assertTrue(u.ackedAtFinish < N_BLOCKS);
+        // The progress is kept, so a retry finds out what happened
+        assertEquals(u.ackedAtFinish, meter.getPreference(MooshimeterDevice.mPreferenceKeys.OAD_BLOCK, 0));
+        meter.shutdown();
+    }
+
+    @Test
+    public void acksSlowerThanTheStallTimeoutStillComplete() throws InterruptedException {
+        // Before the first acknowledgement the engine waits the shortest stall timeout and
+        // resends, then waits longer each time until an acknowledgement of a block sent once
+        // gives it the latency
+        final FirmwareImage image = SimulatedMeter.image(32, 11);
+        final SimulatedMeter meter = new SimulatedMeter("sim", 11);
+        meter.setAckDelay(0.3);
+        final Upload u = new Upload();
+        final OADEngine e = new OADEngine(meter, image, false, u);
+        e.start();
+        u.await();
+        assertTrue(u.success);
+        assertEquals(32, u.ackedAtFinish);
+        assertTrue(meter.getWrites() > 32);
+        assertEquals(0.3, e.getSrtt(), 0.1);
+        assertArrayEquals(bytes(image), meter.getReceived());
+        meter.shutdown();
+    }
+}
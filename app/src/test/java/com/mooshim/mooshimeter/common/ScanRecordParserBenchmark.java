@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+// Time and memory to pick the meters out of the scan records in src/test/resources, against a
+// crowded room with a thousand advertisements a second.  The parser that onLeScan used before
+// ScanRecordParser is timed as well, without its log calls.
+public class ScanRecordParserBenchmark {
+    private static final File RECORDS = new File("src/test/resources/scan_records.txt");
+    private static final double BUDGET_NS = 1e6;
+
+    private static List<byte[]> load() throws IOException {
+        final List<byte[]> rval = new ArrayList<byte[]>();
+        final BufferedReader in = new BufferedReader(new FileReader(RECORDS));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final byte[] record = new byte[line.length() / 2];
+                for(int i = 0; i < record.length; i++) {
+                    record[i] = (byte) Integer.parseInt(line.substring(2 * i, 2 * i + 2), 16);
+                }
+                rval.add(record);
+            }
+        } finally {
+            in.close();
+        }
+        return rval;
+    }
+
+    // The loop onLeScan ran before, returns the build time if it found a meter and -1 otherwise
+    private static int oldParse(byte[] scanRecord) {
+        boolean is_meter = false;
+        int build_time = 0;
+        int field_length = 0;
+        int field_id = 0;
+        for(int i = 0; i < scanRecord.length;) {
+            if(field_length == 0) {
+                field_length = scanRecord[i] & 0xFF;
+                field_id = 0;
+                i++;
+            }
+            else if(field_id == 0) {
+                field_id = scanRecord[i] & 0xFF;
+                field_length--;
+                i++;
+            } else {
+                switch(field_id) {
+                    case 6:
+                        if(field_length != 16) { break; }
+                        if(i+field_length >= scanRecord.length) {break;}
+                        byte[] uuid_reversed_bytes = Arrays.copyOfRange(scanRecord, i, i + field_length);
+                        for(int j = 0; j < 8; j++) {
+                            uuid_reversed_bytes[   j] ^= uuid_reversed_bytes[15-j];
+                            uuid_reversed_bytes[15-j] ^= uuid_reversed_bytes[   j];
+                            uuid_reversed_bytes[   j] ^= uuid_reversed_bytes[15-j];
+                        }
+                        UUID received_uuid = Util.uuidFromBytes(uuid_reversed_bytes);
+                        if(received_uuid.equals(MooshimeterDevice.mUUID.METER_SERVICE)) {
+                            is_meter = true;
+                        } else if(received_uuid.equals(MooshimeterDevice.mUUID.OAD_SERVICE_UUID)) {
+                            is_meter = true;
+                        }
+                        break;
+                    case 255:
+                        if(field_length != 4) { break; }
+                        if(i+field_length >= scanRecord.length) {break;}
+                        for(int j = 3; j >= 0; j--) {
+                            build_time |= (scanRecord[i+j] & 0xFF) << (8*j);
+                        }
+                        break;
+                }
+                i += field_length;
+                field_length = 0;
+                field_id = 0;
+            }
+        }
+        return is_meter ? build_time : -1;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Bytes allocated per record by op, after op was warmed up by the timing
+    private static double allocationPerRecord(Runnable op, int n_records) {
+        final int calls = 10000;
+        final long before = allocatedBytes();
+        for(int i = 0; i < calls; i++) {
+            op.run();
+        }
+        return (double) (allocatedBytes() - before) / calls / n_records;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final List<byte[]> records = load();
+        final ScanRecordParser parser = new ScanRecordParser();
+        int meters = 0;
+        for(byte[] r : records) {
+            final boolean is_meter = parser.parse(r);
+            final int old = oldParse(r);
+            if(is_meter != (old >= 0) || (is_meter && parser.getBuildTime() != old)) {
+                throw new AssertionError("The parsers disagree on a record");
+            }
+            meters += is_meter ? 1 : 0;
+        }
+        System.out.println(records.size() + " records, " + meters + " from meters");
+
+        final Runnable parse = new Runnable() {
+            @Override
+            public void run() {
+                for(byte[] r : records) {
+                    if(parser.parse(r)) {
+                        Benchmark.sink += parser.getBuildTime();
+                    }
+                }
+            }
+        };
+        double ns = Benchmark.median(parse, 10000) / records.size();
+        Benchmark.report("ScanRecordParser.parse per record", ns, BUDGET_NS);
+        System.out.println(String.format("  %.1f bytes allocated per record", allocationPerRecord(parse, records.size())));
+
+        final Runnable old = new Runnable() {
+            @Override
+            public void run() {
+                for(byte[] r : records) {
+                    Benchmark.sink += oldParse(r);
+                }
+            }
+        };
+        ns = Benchmark.median(old, 10000) / records.size();
+        Benchmark.report("old onLeScan loop per record", ns, BUDGET_NS);
+        System.out.println(String.format("  %.1f bytes allocated per record", allocationPerRecord(old, records.size())));
+    }
+}
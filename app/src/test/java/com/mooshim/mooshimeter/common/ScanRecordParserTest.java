@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanRecordParserTest {
+    private static final UUID OTHER_SERVICE = UUID.fromString("F000AA00-0451-4000-B000-000000000000");
+    private static final int BUILD_TIME = 1449532800;
+
+    // An AD structure: length, type, data
+    private static byte[] ad(int type, byte[] data) {
+        final byte[] rval = new byte[data.length + 2];
+        rval[0] = (byte) (data.length + 1);
+        rval[1] = (byte) type;
+        System.arraycopy(data, 0, rval, 2, data.length);
+        return rval;
+    }
+
+    // 128-bit UUIDs, little endian as in the scan record
+    private static byte[] uuids(UUID... uuids) {
+        final byte[] rval = new byte[16 * uuids.length];
+        for(int u = 0; u < uuids.length; u++) {
+            for(int k = 0; k < 8; k++) {
+                rval[16 * u + k]     = (byte) (uuids[u].getLeastSignificantBits() >>> (8 * k));
+                rval[16 * u + 8 + k] = (byte) (uuids[u].getMostSignificantBits()  >>> (8 * k));
+            }
+        }
+        return rval;
+    }
+
+    private static byte[] int32(int v) {
+        return new byte[] {(byte) v, (byte) (v >> 8), (byte) (v >> 16), (byte) (v >> 24)};
+    }
+
+    // The structures followed by zero padding, as the scan callback passes them
+    private static byte[] record(byte[]... structures) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] s : structures) {
+            out.write(s, 0, s.length);
+        }
+        final byte[] rval = new byte[62];
+        System.arraycopy(out.toByteArray(), 0, rval, 0, out.size());
+        return rval;
+    }
+
+    private static final byte[] FLAGS = ad(0x01, new byte[] {0x06});
+
+    @Test
+    public void findsAMeter() {
+        final ScanRecordParser p = new ScanRecordParser();
+        assertTrue(p.parse(record(FLAGS,
+                ad(0x07, uuids(MooshimeterDevice.mUUID.METER_SERVICE)),
+                ad(0xFF, int32(BUILD_TIME)))));
+        assertTrue(p.isMeter());
+        assertFalse(p.isInOADMode());
+        assertEquals(BUILD_TIME, p.getBuildTime());
+    }
+
+    @Test
+    public void findsAMeterInOADMode() {
+        final ScanRecordParser p = new ScanRecordParser();
+        assertTrue(p.parse(record(FLAGS, ad(0x06, uuids(MooshimeterDevice.mUUID.OAD_SERVICE_UUID)))));
+        assertTrue(p.isInOADMode());
+        assertEquals(0, p.getBuildTime());
+    }
+
+    @Test
+    public void ignoresOtherDevices() {
+        final ScanRecordParser p = new ScanRecordParser();
+        assertFalse(p.parse(record(FLAGS, ad(0x07, uuids(OTHER_SERVICE)))));
+        assertFalse(p.isInOADMode());
+    }
+
+    @Test
+    public void findsTheMeterAmongSeveralUuids() {
+        final ScanRecordParser p = new ScanRecordParser();
+        assertTrue(p.parse(record(ad(0x07, uuids(OTHER_SERVICE, MooshimeterDevice.mUUID.METER_SERVICE)))));
+    }
+
+    @Test
+    public void needsTheWholeUuid() {
+        // Same most significant half as the meter service
+        final UUID half = new UUID(MooshimeterDevice.mUUID.METER_SERVICE.getMostSignificantBits(), 0);
+        assertFalse(new ScanRecordParser().parse(record(ad(0x07, uuids(half)))));
+    }
+
+    @Test
+    public void stopsAtATruncatedStructure() {
+        final byte[] structure = ad(0x07, uuids(MooshimeterDevice.mUUID.METER_SERVICE));
+        final byte[] truncated = new byte[structure.length - 1];
+        System.arraycopy(structure, 0, truncated, 0, truncated.length);
+        assertFalse(new ScanRecordParser().parse(truncated));
+    }
+
+    @Test
+    public void ignoresManufacturerDataOfOtherLengths() {
+        final ScanRecordParser p = new ScanRecordParser();
+        p.parse(record(ad(0x07, uuids(MooshimeterDevice.mUUID.METER_SERVICE)), ad(0xFF, new byte[] {1, 2, 3, 4, 5})));
+        assertEquals(0, p.getBuildTime());
+    }
+
+    @Test
+    public void forgetsThePreviousRecord() {
+        final ScanRecordParser p = new ScanRecordParser();
+        p.parse(record(ad(0x06, uuids(MooshimeterDevice.mUUID.OAD_SERVICE_UUID)), ad(0xFF, int32(BUILD_TIME))));
+        assertFalse(p.parse(new byte[62]));
+        assertFalse(p.isInOADMode());
+        assertEquals(0, p.getBuildTime());
+    }
+}
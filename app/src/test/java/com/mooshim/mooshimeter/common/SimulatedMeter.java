@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// A meter in OAD mode for the upload tests, with the link in between.
+//
+// It behaves like the OAD target in the meter's bootloader: the identity starts an upload at
+// block zero, a block is stored if it is the one the meter expects, and after every block the
+// meter notifies the block it wants next.  The upload state survives a dropped link, like it does
+// on the meter as long as it stays powered.  Once the last block is in, the meter checks the CRC
+// of what it received, notifies the block count and reboots: into the new image if the CRC
+// matched, back into OAD mode if not.
+//
+// The link can delay and lose notifications, lose writes, and drop.  Notifications are delivered
+// in order on a thread of their own, like the BLE dispatch thread.  Preferences are kept in
+// memory, so an upload can be resumed on the same object after a reconnect.
+class SimulatedMeter extends MooshimeterDevice {
+    private final String mAddress;
+    private final ScheduledExecutorService mLink = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            // A failed test doesn't shut the link down, don't keep the test JVM alive for it
+            final Thread t = new Thread(r, "simulated_link");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final Random mRandom;
+    private final Map<String, Object> mPreferences = new HashMap<String, Object>();
+    private final Map<UUID, NotifyCallback> mNotify = new HashMap<UUID, NotifyCallback>();
+    private final Map<Integer, Runnable> mDisconnectCB = new HashMap<Integer, Runnable>();
+    private int mNextHandle = 0;
+
+    // All of the following is guarded by this
+    private boolean mConnected = false;
+    private int mConnection = 0;          // Counts the connections, stale deliveries are dropped
+    private double mLastDelivery = 0;
+    private double mAckDelay = 0;         // Seconds
+    private double mAckLoss = 0;
+    private double mBlockLoss = 0;
+    private boolean mLoseLastAck = false;
+    private int mDropAtBlock = -1;        // Drop the link once this block is stored, -1 for never
+    private int mFailConnects = 0;        // Connection attempts still to fail
+    // OAD target state
+    private boolean mUploading = false;
+    private byte[] mReceived = new byte[0];
+    private int mExpected = 0;
+    private int mNBlocks = 0;
+    private boolean mVerified = false;
+    // Statistics
+    private int mIdentities = 0;
+    private int mWrites = 0;
+    private int mConnects = 0;
+    private final List<Integer> mFirstBlocks = new ArrayList<Integer>();
+    private boolean mFirstOfConnection = false;
+
+    SimulatedMeter(String address, long seed) {
+        super(null, null);
+        mAddress = address;
+        mRandom = new Random(seed);
+        mOADMode = true;
+        mConnected = true;
+        mFirstOfConnection = true;
+    }
+
+    // A valid image of random contents, with the CRC in its header
+    static FirmwareImage image(int n_blocks, long seed) {
+        final byte[] bytes = new byte[n_blocks * Util.OAD_BLOCK_SIZE];
+        new Random(seed).nextBytes(bytes);
+        final ByteBuffer b = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        b.putShort(2, (short) 0xFFFF);
+        b.putShort(4, (short) 1);
+        b.putShort(6, (short) (bytes.length / 4));
+        b.putInt(8, 1449532800 + (int) seed);
+        b.putShort(0, (short) new FirmwareImage("unsigned", ByteBuffer.wrap(bytes)).calculateCrc());
+        return new FirmwareImage("simulated", ByteBuffer.wrap(bytes));
+    }
+
+    ////////////////////////////////
+    // Link faults
+    ////////////////////////////////
+
+    synchronized void setAckDelay(double seconds) {
+        mAckDelay = seconds;
+    }
+
+    // Loses notifications other than the last one, that one is up to setLoseLastAck
+    synchronized void setAckLoss(double probability) {
+        mAckLoss = probability;
+    }
+
+    synchronized void setBlockLoss(double probability) {
+        mBlockLoss = probability;
+    }
+
+    // The notification for the last block goes missing, the meter reboots regardless
+    synchronized void setLoseLastAck(boolean lose) {
+        mLoseLastAck = lose;
+    }
+
+    synchronized void dropLinkAtBlock(int block) {
+        mDropAtBlock = block;
+    }
+
+    synchronized void failConnects(int n) {
+        mFailConnects = n;
+    }
+
+    // Power cycles the meter: it comes back in OAD mode without an upload underway
+    synchronized void forgetUpload() {
+        mUploading = false;
+        mExpected = 0;
+    }
+
+    ////////////////////////////////
+    // Inspection
+    ////////////////////////////////
+
+    synchronized int getIdentities() {
+        return mIdentities;
+    }
+
+    synchronized int getWrites() {
+        return mWrites;
+    }
+
+    synchronized int getConnects() {
+        return mConnects;
+    }
+
+    synchronized int getExpected() {
+        return mExpected;
+    }
+
+    // The first block written on each connection
+    synchronized List<Integer> getFirstBlocks() {
+        return new ArrayList<Integer>(mFirstBlocks);
+    }
+
+    // Whether the received image passed the CRC check of the meter
+    synchronized boolean isVerified() {
+        return mVerified;
+    }
+
+    synchronized byte[] getReceived() {
+        return mReceived.clone();
+    }
+
+    ////////////////////////////////
+    // Connection
+    ////////////////////////////////
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public int connect() {
+        synchronized (this) {
+            if(mFailConnects > 0) {
+                mFailConnects--;
+                return BluetoothGatt.GATT_FAILURE;
+            }
+            mConnects++;
+            mConnected = true;
+            mConnection++;
+            mFirstOfConnection = true;
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    // Connects again after the link dropped, keeping the upload state
+    void reconnect() {
+        connect();
+    }
+
+    @Override
+    public int discover() {
+        return isConnected() ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE;
+    }
+
+    @Override
+    public int disconnect() {
+        dropLink();
+        return 0;
+    }
+
+    // Drops the link, notifications still on the way are lost
+    void dropLink() {
+        final List<Runnable> callbacks;
+        synchronized (this) {
+            if(!mConnected) {
+                return;
+            }
+            mConnected = false;
+            mConnection++;
+            callbacks = new ArrayList<Runnable>(mDisconnectCB.values());
+        }
+        // The stack reports it from a thread of its own
+        for(final Runnable cb : callbacks) {
+            new Thread(cb).start();
+        }
+    }
+
+    @Override
+    public synchronized int addConnectionStateCB(int state, Runnable cb) {
+        final int handle = mNextHandle++;
+        if(state == BluetoothGatt.STATE_DISCONNECTED) {
+            mDisconnectCB.put(handle, cb);
+        }
+        return handle;
+    }
+
+    @Override
+    public synchronized void cancelConnectionStateCB(int handle) {
+        mDisconnectCB.remove(handle);
+    }
+
+    // Waits until the notifications and the reboot scheduled so far are through
+    void settle() throws InterruptedException, ExecutionException {
+        final double now = Util.getNanoTime();
+        final double at;
+        synchronized (this) {
+            at = Math.max(mLastDelivery, now);
+        }
+        mLink.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, (long) ((at - now) * 1e6) + 2000, TimeUnit.MICROSECONDS).get();
+    }
+
+    void shutdown() {
+        mLink.shutdownNow();
+    }
+
+    ////////////////////////////////
+    // Preferences
+    ////////////////////////////////
+
+    @Override
+    public synchronized int getPreference(String key, int default_val) {
+        final Object v = mPreferences.get(key);
+        return v instanceof Integer ? (Integer) v : default_val;
+    }
+
+    @Override
+    public synchronized String getPreference(String key, String default_val) {
+        final Object v = mPreferences.get(key);
+        return v instanceof String ? (String) v : default_val;
+    }
+
+    @Override
+    public synchronized void setPreference(String key, int val) {
+        mPreferences.put(key, val);
+    }
+
+    @Override
+    public synchronized void setPreference(String key, String val) {
+        mPreferences.put(key, val);
+    }
+
+    ////////////////////////////////
+    // GATT
+    ////////////////////////////////
+
+    @Override
+    public synchronized int enableNotify(UUID uuid, boolean enable, NotifyCallback on_notify) {
+        if(!mConnected) {
+            return -1;
+        }
+        if(enable && on_notify != null) {
+            mNotify.put(uuid, on_notify);
+        } else {
+            mNotify.remove(uuid);
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized boolean isNotificationEnabled(UUID uuid) {
+        return mConnected && mNotify.containsKey(uuid);
+    }
+
+    @Override
+    public int send(UUID uuid, byte[] value) {
+        return write(uuid, value);
+    }
+
+    @Override
+    public int sendWithoutResponse(UUID uuid, byte[] value) {
+        return write(uuid, value);
+    }
+
+    private synchronized int write(UUID uuid, byte[] value) {
+        if(!mConnected) {
+            return -1;
+        }
+        if(uuid.equals(mUUID.OAD_IMAGE_IDENTIFY)) {
+            onIdentity(value);
+        } else if(uuid.equals(mUUID.OAD_IMAGE_BLOCK)) {
+            onBlock(value);
+        }
+        return 0;
+    }
+
+    ////////////////////////////////
+    // OAD target
+    ////////////////////////////////
+
+    // Guarded by this.  ver, len and build time, len in flash words.
+    private void onIdentity(byte[] value) {
+        final ByteBuffer b = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+        b.getShort();
+        final int len = 0xFFFF & b.getShort();
+        mIdentities++;
+        mNBlocks = len * 4 / Util.OAD_BLOCK_SIZE;
+        mReceived = new byte[mNBlocks * Util.OAD_BLOCK_SIZE];
+        mExpected = 0;
+        mUploading = true;
+        mVerified = false;
+        requestBlock(0, false);
+    }
+
+    // Guarded by this.  Block number and 16 bytes.
+    private void onBlock(byte[] value) {
+        final ByteBuffer b = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+        final int bnum = 0xFFFF & b.getShort();
+        mWrites++;
+        if(mFirstOfConnection) {
+            mFirstOfConnection = false;
+            mFirstBlocks.add(bnum);
+        }
+        if(mBlockLoss > 0 && mRandom.nextDouble() < mBlockLoss) {
+            return;
+        }
+        if(!mUploading) {
+            // Blocks of an upload the meter doesn't know about are ignored
+            return;
+        }
+        if(bnum != mExpected) {
+            // Ask again for the block we are missing
+            requestBlock(mExpected, false);
+            return;
+        }
+        b.get(mReceived, bnum * Util.OAD_BLOCK_SIZE, Util.OAD_BLOCK_SIZE);
+        mExpected++;
+        if(mExpected == mNBlocks) {
+            mUploading = false;
+            mVerified = new FirmwareImage("received", ByteBuffer.wrap(mReceived)).verify();
+            requestBlock(mExpected, mLoseLastAck);
+            reboot();
+            return;
+        }
+        requestBlock(mExpected, false);
+        if(bnum == mDropAtBlock) {
+            mDropAtBlock = -1;
+            mLink.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dropLink();
+                }
+            });
+        }
+    }
+
+    // Guarded by this.  Notifies the requested block over the link.
+    private void requestBlock(int block, boolean lose) {
+        if(lose || (block < mNBlocks && mAckLoss > 0 && mRandom.nextDouble() < mAckLoss)) {
+            return;
+        }
+        final NotifyCallback cb = mNotify.get(mUUID.OAD_IMAGE_BLOCK);
+        if(cb == null) {
+            return;
+        }
+        final byte[] payload = new byte[2];
+        payload[0] = (byte) block;
+        payload[1] = (byte) (block >> 8);
+        deliver(cb, payload);
+    }
+
+    // Guarded by this.  Notifications arrive in order, each after the ack delay.
+    private void deliver(final NotifyCallback cb, final byte[] payload) {
+        final int connection = mConnection;
+        final double now = Util.getNanoTime();
+        final double at = Math.max(now + mAckDelay, mLastDelivery);
+        mLastDelivery = at;
+        mLink.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedMeter.this) {
+                    if(connection != mConnection) {
+                        return;
+                    }
+                }
+                cb.notify(Util.getNanoTime(), payload);
+            }
+        }, (long) ((at - now) * 1e6), TimeUnit.MICROSECONDS);
+    }
+
+    // Guarded by this.  Disconnects once the notifications sent so far are out.
+    private void reboot() {
+        final double now = Util.getNanoTime();
+        final boolean verified = mVerified;
+        mLink.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedMeter.this) {
+                    // A good image boots, a bad one leaves the meter in the bootloader without
+                    // an upload underway
+                    mOADMode = !verified;
+                    mExpected = 0;
+                }
+                dropLink();
+            }
+        }, (long) ((Math.max(mLastDelivery, now) - now) * 1e6) + 1000, TimeUnit.MICROSECONDS);
+    }
+}
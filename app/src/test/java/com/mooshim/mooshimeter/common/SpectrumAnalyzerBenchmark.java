@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+// Time to analyze both channels of a buffer, against the time the meter takes to sample it.  The
+// autorange settings come first, then the deepest and the shallowest buffer at the fastest rate,
+// which leave the least time per buffer.  The first call of a length builds its tables, so it's
+// timed on its own, and a direct DFT of the same buffer shows what the FFT saves.
+public class SpectrumAnalyzerBenchmark {
+    private static final int BUFFERS = 64;
+
+    // Buffer length, sample rate and a fundamental with a few periods in the buffer
+    private static final int[][] CASES = {
+            { 32,  125,   15},  // Autorange, DC
+            {256, 4000,   60},  // Autorange, AC
+            { 32, 8000, 1000},
+            {256, 8000,  250},
+    };
+
+    // A wave with 5% of third harmonic and some noise, continuous across the buffers
+    private static float[][] signal(int len, double sample_rate, double fundamental, double phase) {
+        final Random r = new Random(len);
+        final float[][] rval = new float[BUFFERS][len];
+        for(int b = 0; b < BUFFERS; b++) {
+            for(int i = 0; i < len; i++) {
+                final double t = (b * len + i) / sample_rate;
+                final double x = 2 * Math.PI * fundamental * t + phase;
+                rval[b][i] = (float) (Math.sin(x) + 0.05 * Math.sin(3 * x) + 0.001 * r.nextGaussian());
+            }
+        }
+        return rval;
+    }
+
+    // Magnitude of every bin the slow way, returns the largest bin
+    private static int directDft(float[] buf, int len, float[] mag) {
+        int peak = 0;
+        for(int k = 0; k <= len / 2; k++) {
+            double re = 0;
+            double im = 0;
+            for(int i = 0; i < len; i++) {
+                final double w = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / len);
+                re += buf[i] * w * Math.cos(2 * Math.PI * k * i / len);
+                im -= buf[i] * w * Math.sin(2 * Math.PI * k * i / len);
+            }
+            mag[k] = (float) Math.sqrt(re * re + im * im);
+            if(mag[k] > mag[peak]) {
+                peak = k;
+            }
+        }
+        return peak;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static void main(String[] args) {
+        for(int[] c : CASES) {
+            final int len = c[0];
+            final double sample_rate = c[1];
+            final double budget_ns = 1e9 * len / sample_rate;
+            final float[][] ch1 = signal(len, sample_rate, c[2], 0);
+            final float[][] ch2 = signal(len, sample_rate, c[2], Math.PI / 2);
+            final SpectrumAnalyzer[] sa = {new SpectrumAnalyzer(), new SpectrumAnalyzer()};
+            System.out.println(len + " samples per buffer at " + sample_rate + " Hz");
+
+            long start = System.nanoTime();
+            sa[0].analyze(ch1[0], len, sample_rate);
+            Benchmark.report("analyze, first call of the length", System.nanoTime() - start, budget_ns);
+
+            final Runnable both = new Runnable() {
+                int b = 0;
+                @Override
+                public void run() {
+                    sa[0].analyze(ch1[b], len, sample_rate);
+                    sa[1].analyze(ch2[b], len, sample_rate);
+                    Benchmark.sink += (long) sa[0].getFundamental() + (long) sa[1].getFundamental();
+                    b = (b + 1) % BUFFERS;
+                }
+            };
+            final double ns = Benchmark.median(both, BUFFERS * 4);
+            Benchmark.report("analyze, both channels", ns, budget_ns);
+            System.out.println(String.format("  %.1fHz, THD %.2f%%", sa[0].getFundamental(), 100 * sa[0].getThd()));
+
+            final int calls = 10000;
+            final long before = allocatedBytes();
+            for(int i = 0; i < calls; i++) {
+                both.run();
+            }
+            System.out.println(String.format("  %.1f bytes allocated per buffer", (double) (allocatedBytes() - before) / calls));
+
+            final float[] mag = new float[len / 2 + 1];
+            final double dft_ns = Benchmark.median(new Runnable() {
+                int b = 0;
+                @Override
+                public void run() {
+                    Benchmark.sink += directDft(ch1[b], len, mag) + directDft(ch2[b], len, mag);
+                    b = (b + 1) % BUFFERS;
+                }
+            }, Math.max(1, 8192 / (len * len)));
+            Benchmark.report("direct DFT, both channels", dft_ns, budget_ns);
+        }
+    }
+}
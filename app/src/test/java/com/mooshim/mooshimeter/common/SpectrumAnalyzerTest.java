@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpectrumAnalyzerTest {
+    private static final double SAMPLE_RATE = 4000;
+
+    // Hann windowed magnitudes by the definition of the DFT, scaled like the analyzer
+    private static double[] directDft(float[] buf, int n) {
+        final double[] w = new double[n];
+        double sum = 0;
+        for(int i = 0; i < n; i++) {
+            w[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / n);
+            sum += w[i];
+        }
+        final double[] mag = new double[n / 2 + 1];
+        for(int k = 0; k <= n / 2; k++) {
+            double re = 0;
+            double im = 0;
+            for(int i = 0; i < n; i++) {
+                re += w[i] * buf[i] * Math.cos(2 * Math.PI * k * i / n);
+                im -= w[i] * buf[i] * Math.sin(2 * Math.PI * k * i / n);
+            }
+            mag[k] = Math.sqrt(re * re + im * im) * 2 / sum;
+        }
+        mag[0] /= 2;
+        mag[n / 2] /= 2;
+        return mag;
+    }
+
+    private static float[] tones(int n, double[] freqs, double[] amplitudes, double offset) {
+        final float[] buf = new float[n];
+        for(int i = 0; i < n; i++) {
+            double v = offset;
+            for(int t = 0; t < freqs.length; t++) {
+                v += amplitudes[t] * Math.sin(2 * Math.PI * freqs[t] * i / SAMPLE_RATE);
+            }
+            buf[i] = (float) v;
+        }
+        return buf;
+    }
+
+    @Test
+    public void fftMatchesADirectDft() {
+        final Random random = new Random(1);
+        final SpectrumAnalyzer sa = new SpectrumAnalyzer();
+        for(int n = 4; n <= 512; n *= 2) {
+            final float[] buf = new float[n];
+            for(int i = 0; i < n; i++) {
+                buf[i] = (float) random.nextGaussian();
+            }
+            sa.analyze(buf, n, SAMPLE_RATE);
+            final double[] expected = directDft(buf, n);
+            assertEquals(n / 2 + 1, sa.getBins());
+            for(int k = 0; k < expected.length; k++) {
+                assertEquals("n " + n + " bin " + k, expected[k], sa.getMagnitude()[k], 1e-4);
+            }
+        }
+    }
+
+    @Test
+    public void sineGivesItsAmplitudeAndFrequency() {
+        final int n = 1024;
+        final SpectrumAnalyzer sa = new SpectrumAnalyzer();
+        // On a bin
+        final double on_bin = 100 * SAMPLE_RATE / n;
+        sa.analyze(tones(n, new double[] {on_bin}, new double[] {2}, 0), n, SAMPLE_RATE);
+        assertEquals(SAMPLE_RATE / n, sa.getBinWidth(), 1e-12);
+        assertEquals(2, sa.getMagnitude()[100], 1e-3);
+        assertEquals(on_bin, sa.getFundamental(), 0.01 * sa.getBinWidth());
+        // Between bins the interpolation still finds it
+        sa.analyze(tones(n, new double[] {1234.5}, new double[] {1}, 0), n, SAMPLE_RATE);
+        assertEquals(1234.5, sa.getFundamental(), 0.1 * sa.getBinWidth());
+    }
+
+    @Test
+    public void dcIsTheMean() {
+        final int n = 256;
+        final SpectrumAnalyzer sa = new SpectrumAnalyzer();
+        sa.analyze(tones(n, new double[] {20 * SAMPLE_RATE / n}, new double[] {1}, 0.75), n, SAMPLE_RATE);
+        assertEquals(0.75, sa.getMagnitude()[0], 1e-4);
+    }
+
+    @Test
+    public void thdOfHarmonics() {
+        final int n = 2048;
+        final double f = 32 * SAMPLE_RATE / n;
+        final SpectrumAnalyzer sa = new SpectrumAnalyzer();
+        sa.analyze(tones(n, new double[] {f}, new double[] {1}, 0), n, SAMPLE_RATE);
+        assertTrue(sa.getThd() < 1e-3);
+        // 10% third and 5% fifth harmonic
+        sa.analyze(tones(n, new double[] {f, 3 * f, 5 * f}, new double[] {1, 0.1, 0.05}, 0), n, SAMPLE_RATE);
+        assertEquals(Math.sqrt(0.1 * 0.1 + 0.05 * 0.05), sa.getThd(), 1e-3);
+    }
+
+    @Test
+    public void silenceHasNoFundamental() {
+        final SpectrumAnalyzer sa = new SpectrumAnalyzer();
+        sa.analyze(new float[64], 64, SAMPLE_RATE);
+        assertTrue(Double.isNaN(sa.getFundamental()));
+        assertTrue(Double.isNaN(sa.getThd()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lengthMustBeAPowerOfTwo() {
+        new SpectrumAnalyzer().analyze(new float[100], 100, SAMPLE_RATE);
+    }
+}
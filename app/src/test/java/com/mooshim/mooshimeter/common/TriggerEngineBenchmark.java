@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+// Time to evaluate the trigger on one buffer, against the time the meter takes to sample it.
+// Uses the settings of TrendActivity: a 1024 sample ring, a quarter of the buffer before the
+// trigger, and the deepest buffer at the fastest rate the autorange picks for AC.
+public class TriggerEngineBenchmark {
+    private static final int BUF_LEN = 256;
+    private static final double SAMPLE_RATE = 4000;
+    private static final int BUFFERS = 64;
+
+    public static void main(String[] args) {
+        // A few periods per buffer, so the edge modes fire and deliver captures too
+        final float[][] ch1 = new float[BUFFERS][BUF_LEN];
+        final float[][] ch2 = new float[BUFFERS][BUF_LEN];
+        for(int b = 0; b < BUFFERS; b++) {
+            for(int i = 0; i < BUF_LEN; i++) {
+                final int n = b * BUF_LEN + i;
+                ch1[b][i] = (float) Math.sin(2 * Math.PI * 60 * n / SAMPLE_RATE);
+                ch2[b][i] = (float) Math.cos(2 * Math.PI * 60 * n / SAMPLE_RATE);
+            }
+        }
+        final double budget_ns = 1e9 * BUF_LEN / SAMPLE_RATE;
+        System.out.println(BUF_LEN + " samples per buffer at " + SAMPLE_RATE + " Hz");
+        for(TriggerEngine.Mode mode : TriggerEngine.Mode.values()) {
+            final TriggerEngine t = new TriggerEngine(1024);
+            t.setListener(new TriggerEngine.Listener() {
+                @Override
+                public void onCapture(float[] c1, float[] c2, int len, int trigger_i) {
+                    Benchmark.sink += len;
+                }
+            });
+            t.setDepth(BUF_LEN / 4, BUF_LEN - BUF_LEN / 4);
+            t.setLevel(0, 0.02f);
+            t.setWindow(-0.9f, 0.9f);
+            t.setMode(mode, 0);
+            final double ns = Benchmark.median(new Runnable() {
+                int b = 0;
+                @Override
+                public void run() {
+                    t.process(ch1[b], ch2[b], BUF_LEN);
+                    b = (b + 1) % BUFFERS;
+                }
+            }, BUFFERS * 4);
+            Benchmark.report("process " + mode, ns, budget_ns);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) Mooshim Engineering LLC 2015.
+ *
+ * This file is part of Mooshimeter-AndroidApp.
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Mooshimeter-AndroidApp.  If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package com.mooshim.mooshimeter.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TriggerEngineTest {
+    private static final int PRE = 8;
+    private static final int POST = 24;
+
+    // Keeps copies of the captures
+    private static class Captures extends TriggerEngine.Listener {
+        final List<float[]> ch1 = new ArrayList<float[]>();
+        final List<float[]> ch2 = new ArrayList<float[]>();
+        final List<Integer> trigger = new ArrayList<Integer>();
+
+        @Override
+        public void onCapture(float[] c1, float[] c2, int len, int trigger_i) {
+            final float[] a = new float[len];
+            final float[] b = new float[len];
+            System.arraycopy(c1, 0, a, 0, len);
+            System.arraycopy(c2, 0, b, 0, len);
+            ch1.add(a);
+            ch2.add(b);
+            trigger.add(trigger_i);
+        }
+    }
+
+    private static TriggerEngine engine(TriggerEngine.Mode mode, Captures captures) {
+        final TriggerEngine t = new TriggerEngine(4 * (PRE + POST));
+        t.setListener(captures);
+        t.setDepth(PRE, POST);
+        t.setLevel(0, 0.1f);
+        t.setWindow(-0.5f, 0.5f);
+        t.setMode(mode, 0);
+        return t;
+    }
+
+    // A sine with the given period, ch2 is the sample index
+    private static float[][] sine(int len, int period, int phase) {
+        final float[][] rval = new float[2][len];
+        for(int i = 0; i < len; i++) {
+            rval[0][i] = (float) Math.sin(2 * Math.PI * (i + phase) / period);
+            rval[1][i] = i;
+        }
+        return rval;
+    }
+
+    @Test
+    public void freeRunCapturesEveryBuffer() {
+        final Captures c = new Captures();
+        final TriggerEngine t = engine(TriggerEngine.Mode.FREE_RUN, c);
+        final float[][] s = sine(100, 50, 0);
+        t.process(s[0], s[1], 100);
+        t.process(s[0], s[1], 100);
+        assertEquals(2, c.ch1.size());
+        assertArrayEquals(s[0], c.ch1.get(0), 0);
+        assertEquals(0, (int) c.trigger.get(0));
+    }
+
+    @Test
+    public void risingEdgeIsAtTheTriggerSample() {
+        final Captures c = new Captures();
+        final TriggerEngine t = engine(TriggerEngine.Mode.RISING, c);
+        final float[][] s = sine(1000, 100, 50);
+        t.process(s[0], s[1], 1000);
+        // One edge per period, the first one comes with the capture ring empty enough
+        assertEquals(10, c.ch1.size());
+        for(int k = 0; k < c.ch1.size(); k++) {
+            final float[] v = c.ch1.get(k);
+            final int i = c.trigger.get(k);
+            assertEquals(PRE, i);
+            assertEquals(PRE + POST, v.length);
+            assertTrue(v[i - 1] < 0);
+            assertTrue(v[i] >= 0);
+            // ch2 shows the capture is contiguous
+            for(int j = 1; j < v.length; j++) {
+                assertEquals(c.ch2.get(k)[j - 1] + 1, c.ch2.get(k)[j], 0);
+            }
+        }
+    }
+
+    @Test
+    public void fallingEdgeIsAtTheTriggerSample() {
+        final Captures c = new Captures();
+        final TriggerEngine t = engine(TriggerEngine.Mode.FALLING, c);
+        final float[][] s = sine(1000, 100, 0);
+        t.process(s[0], s[1], 1000);
+        assertTrue(c.ch1.size() >= 9);
+        for(float[] v : c.ch1) {
+            assertTrue(v[PRE - 1] > 0);
+            assertTrue(v[PRE] <= 0);
+        }
+    }
+
+    @Test
+    public void edgeDuringTheFillFiresOnceThePreTriggerSamplesAreIn() {
+        final Captures c = new Captures();
+        final TriggerEngine t = engine(TriggerEngine.Mode.RISING, c);
+        // Rises through the level at the third sample, with too few samples before it
+        final float[] v = new float[PRE + POST + 4];
+        final float[] index = new float[v.length];
+        for(int i = 0; i < v.length; i++) {
+            v[i] = i < 2 ? -1 : 1;
+            index[i] = i;
+        }
+        t.process(v, index, v.length);
+        // Fires on the first sample with the pre-trigger samples before it, the edge is among them
+        assertEquals(1, c.ch1.size());
+        assertEquals(PRE, (int) c.trigger.get(0));
+        assertEquals(0, c.ch2.get(0)[0], 0);
+        assertEquals(PRE, c.ch2.get(0)[PRE], 0);
+        assertTrue(c.ch1.get(0)[1] < 0);
+        assertTrue(c.ch1.get(0)[2] >= 0);
+        // It was used up, the next real edge fires at the trigger sample
+        final float[] low = {-1, -1, 1};
+        t.process(low, low, 3);
+        t.process(new float[POST], new float[POST], POST);
+        assertEquals(2, c.ch1.size());
+        assertTrue(c.ch1.get(1)[PRE - 1] < 0);
+        assertTrue(c.ch1.get(1)[PRE] >= 0);
+    }
+
+    @Test
+    public void fallingEdgeDuringTheFillIsNotLost() {
+        final Captures c = new Captures();
+        final TriggerEngine t = engine(TriggerEngine.Mode.FALLING, c);
+        // Falls at the fourth sample and stays low
+        final float[] v = new float[PRE + POST];
+        for(int i = 0; i < v.length; i++) {
+            v[i] = i < 3 ? 1 : -1;
+        }
+        t.process(v, v, v.length);
+        assertEquals(1, c.ch1.size());
+        assertTrue(c.ch1.get(0)[2] > 0);
+        assertTrue(c.ch1.get(0)[3] <= 0);
+    }
+
+    @Test
+    public void hysteresisIgnoresNoiseOnTheEdge() {
+        final Captures c = new Captures();
+        final TriggerEngine t = engine(TriggerEngine.Mode.RISING, c);
+        // A slow ramp up with noise smaller than the hysteresis on it
+        final int len = 400;
+        final float[] v = new float[len];
+        for(int i = 0; i < len; i++) {
+            v[i] = -1 + 2f * i / len + ((i & 1) == 0 ? 0.05f : -0.05f);
+        }
+        t.process(v, v, len);
+        assertEquals(1, c.ch1.size());
+    }
+
+    @Test
+    public void buffersOfAnySizeGiveTheSameCaptures() {
+        final float[][] s = sine(1000, 70, 10);
+        final Captures whole = new Captures();
+        engine(TriggerEngine.Mode.RISING, whole).process(s[0], s[1], 1000);
+        final Captures pieces = new Captures();
+        final TriggerEngine t = engine(TriggerEngine.Mode.RISING, pieces);
+        final float[] a = new float[7];
+        final float[] b = new float[7];
+        for(int i = 0; i < 1000; i += 7) {
+            final int n = Math.min(7, 1000 - i);
+            System.arraycopy(s[0], i, a, 0, n);
+            System.arraycopy(s[1], i, b, 0, n);
+            t.process(a, b, n);
+        }
+        assertEquals(whole.ch1.size(), pieces.ch1.size());
+        for(int k = 0; k < whole.ch1.size(); k++) {
+            assertArrayEquals(whole.ch2.get(k), pieces.ch2.get(k), 0);
+        }
+    }
+
+    @Test
+    public void levelAndWindowFireOnTheSource() {
+        final float[][] s = sine(1000, 100, 0);
+        final Captures level = new Captures();
+        engine(TriggerEngine.Mode.LEVEL, level).process(s[0], s[1], 1000);
+        assertTrue(level.ch1.size() > 0);
+        for(float[] v : level.ch1) {
+            assertTrue(v[PRE] >= 0);
+        }
+        final Captures window = new Captures();
+        engine(TriggerEngine.Mode.WINDOW, window).process(s[0], s[1], 1000);
+        assertTrue(window.ch1.size() > 0);
+        for(float[] v : window.ch1) {
+            assertTrue(Math.abs(v[PRE]) > 0.5);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void depthMustFitTheRing() {
+        new TriggerEngine(16).setDepth(8, 9);
+    }
+}